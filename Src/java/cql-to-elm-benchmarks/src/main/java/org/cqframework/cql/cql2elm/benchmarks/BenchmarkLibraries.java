@@ -0,0 +1,106 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.cqframework.cql.TwoStageParser;
+import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.gen.cqlLexer;
+import org.cqframework.cql.gen.cqlParser;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The CQL libraries used by the benchmarks. These are copied from the Examples folder and the cql-to-elm test
+ * resources at build time, and are identified by their path relative to those folders without the extension,
+ * e.g. Examples/CMS146 or OperatorTests/Query.
+ *
+ * Includes are resolved from the folder of the library being translated, falling back to the bundled FHIRHelpers.
+ */
+public final class BenchmarkLibraries {
+    private static final String RESOURCE_ROOT = "/org/cqframework/cql/cql2elm/benchmarks/";
+
+    private BenchmarkLibraries() {
+    }
+
+    public static String read(String library) throws IOException {
+        try (InputStream is = BenchmarkLibraries.class.getResourceAsStream(RESOURCE_ROOT + library + ".cql")) {
+            if (is == null) {
+                throw new IllegalArgumentException(String.format("Unknown benchmark library %s.", library));
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static LibraryManager createLibraryManager(ModelManager modelManager, String library) {
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        String folder = library.substring(0, library.lastIndexOf('/') + 1);
+        libraryManager.getLibrarySourceLoader().registerProvider(new ClasspathLibrarySourceProvider(RESOURCE_ROOT + folder));
+        libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+        return libraryManager;
+    }
+
+    public static Parse parse(String source) {
+        cqlLexer lexer = new cqlLexer(new ANTLRInputStream(source));
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        cqlParser parser = new cqlParser(tokens);
+        parser.setBuildParseTree(true);
+        parser.removeErrorListeners();
+        return new Parse(tokens, TwoStageParser.parseLibrary(parser));
+    }
+
+    public static class Parse {
+        private final CommonTokenStream tokens;
+        private final ParseTree tree;
+
+        public Parse(CommonTokenStream tokens, ParseTree tree) {
+            this.tokens = tokens;
+            this.tree = tree;
+        }
+
+        public CommonTokenStream getTokens() {
+            return tokens;
+        }
+
+        public ParseTree getTree() {
+            return tree;
+        }
+    }
+
+    private static class ClasspathLibrarySourceProvider implements LibrarySourceProvider {
+        private final String folder;
+
+        public ClasspathLibrarySourceProvider(String folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        public InputStream getLibrarySource(VersionedIdentifier libraryIdentifier) {
+            InputStream result = null;
+            if (libraryIdentifier.getVersion() != null) {
+                result = BenchmarkLibraries.class.getResourceAsStream(String.format("%s%s-%s.cql", folder,
+                        libraryIdentifier.getId(), libraryIdentifier.getVersion()));
+            }
+
+            if (result == null) {
+                result = BenchmarkLibraries.class.getResourceAsStream(String.format("%s%s.cql", folder, libraryIdentifier.getId()));
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.elm.r1.Library;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the first call of each translator phase in a fresh JVM, which is what a single command line translation
+ * pays: class loading, JIT warm-up, the ANTLR DFA cache and the JAXB context are all cold. Each measurement is a
+ * single invocation in its own fork, so compare these against the warm benchmarks rather than against each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class ColdStartBenchmark {
+    @Param({"Examples/CMS146", "Examples/CMS135_QDM", "Examples/2zc_VTE3", "PathTests/PathTests"})
+    public String library;
+
+    private String source;
+
+    @Setup
+    public void setup() throws IOException {
+        source = BenchmarkLibraries.read(library);
+    }
+
+    @Benchmark
+    public BenchmarkLibraries.Parse parse() {
+        return BenchmarkLibraries.parse(source);
+    }
+
+    @Benchmark
+    public Library translate() {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = BenchmarkLibraries.createLibraryManager(modelManager, library);
+        return CqlTranslator.fromText(source, modelManager, libraryManager).toELM();
+    }
+
+    @Benchmark
+    public String translateToXml() {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = BenchmarkLibraries.createLibraryManager(modelManager, library);
+        return CqlTranslator.fromText(source, modelManager, libraryManager).toXml();
+    }
+
+    @Benchmark
+    public String translateToJson() {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = BenchmarkLibraries.createLibraryManager(modelManager, library);
+        return CqlTranslator.fromText(source, modelManager, libraryManager).toJson();
+    }
+}
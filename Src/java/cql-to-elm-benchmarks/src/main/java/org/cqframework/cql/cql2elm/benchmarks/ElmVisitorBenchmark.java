@@ -0,0 +1,100 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.visiting.ElmBaseClinicalVisitor;
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.hl7.elm.r1.Element;
+import org.hl7.elm.r1.Equal;
+import org.hl7.elm.r1.ExpressionRef;
+import org.hl7.elm.r1.Literal;
+import org.hl7.elm.r1.Property;
+import org.hl7.elm.r1.Retrieve;
+import org.hl7.elm.r1.ToDecimal;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures dispatching the nodes of a translated library through ElmBaseClinicalVisitor.visitElement, which passes
+ * each node down through the visit methods of its families of types (e.g. visitExpression, then
+ * visitBinaryExpression, then visitAdd). The nodes are collected up front, so only the dispatch is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ElmVisitorBenchmark {
+    @Param({"Examples/CMS146", "Examples/CMS135_QDM", "Examples/2zc_VTE3", "OperatorTests/DateTimeOperators",
+            "LibraryTests/FHIRHelpers-3.0.0"})
+    public String library;
+
+    private List<Element> elements;
+    private final CountingVisitor visitor = new CountingVisitor();
+
+    @Setup
+    public void setup() throws IOException {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromText(BenchmarkLibraries.read(library), modelManager,
+                BenchmarkLibraries.createLibraryManager(modelManager, library));
+        elements = new ArrayList<>();
+        ElmNodes.anyMatch(translator.toELM(), node -> {
+            if (node instanceof Element) {
+                elements.add((Element)node);
+            }
+            return false;
+        });
+    }
+
+    @Benchmark
+    public int visitElements() {
+        int result = 0;
+        for (Element element : elements) {
+            Integer count = visitor.visitElement(element, null);
+            if (count != null) {
+                result += count;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts a few node types spread over the type families, so the dispatch of each node has a visible result.
+     */
+    private static class CountingVisitor extends ElmBaseClinicalVisitor<Integer, Void> {
+        @Override
+        public Integer visitLiteral(Literal elm, Void context) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitExpressionRef(ExpressionRef elm, Void context) {
+            return 2;
+        }
+
+        @Override
+        public Integer visitProperty(Property elm, Void context) {
+            return 3;
+        }
+
+        @Override
+        public Integer visitEqual(Equal elm, Void context) {
+            return 4;
+        }
+
+        @Override
+        public Integer visitToDecimal(ToDecimal elm, Void context) {
+            return 5;
+        }
+
+        @Override
+        public Integer visitRetrieve(Retrieve elm, Void context) {
+            return 6;
+        }
+    }
+}
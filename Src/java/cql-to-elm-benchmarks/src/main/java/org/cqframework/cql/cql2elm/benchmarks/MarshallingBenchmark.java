@@ -0,0 +1,42 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing a translated library to ELM XML and JSON in a warm JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MarshallingBenchmark {
+    @Param({"Examples/CMS146", "Examples/CMS135_QDM", "Examples/2zc_VTE3", "OperatorTests/DateTimeOperators",
+            "LibraryTests/FHIRHelpers-3.0.0"})
+    public String library;
+
+    private CqlTranslator translator;
+
+    @Setup
+    public void setup() throws IOException {
+        ModelManager modelManager = new ModelManager();
+        translator = CqlTranslator.fromText(BenchmarkLibraries.read(library), modelManager,
+                BenchmarkLibraries.createLibraryManager(modelManager, library));
+    }
+
+    @Benchmark
+    public String toXml() {
+        return translator.toXml();
+    }
+
+    @Benchmark
+    public String toJson() {
+        return translator.toJson();
+    }
+}
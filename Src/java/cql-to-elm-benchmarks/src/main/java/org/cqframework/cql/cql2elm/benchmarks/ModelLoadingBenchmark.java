@@ -0,0 +1,67 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.cqframework.cql.cql2elm.BinaryModelInfo;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.elm_modelinfo.r1.ModelInfo;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.bind.JAXB;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures model loading in a warm JVM: reading the precompiled binary model info, unmarshalling the XML model info
+ * it is generated from, and resolving the model through a new ModelManager (which also loads the System model).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ModelLoadingBenchmark {
+    @Param({"System", "FHIR-3.0.0", "QDM-5.0.2", "QUICK"})
+    public String model;
+
+    private String modelName;
+    private String modelVersion;
+    private String resourcePath;
+
+    @Setup
+    public void setup() {
+        int versionIndex = model.indexOf('-');
+        modelName = versionIndex >= 0 ? model.substring(0, versionIndex) : model;
+        modelVersion = versionIndex >= 0 ? model.substring(versionIndex + 1) : null;
+        switch (modelName) {
+            case "System": resourcePath = "/org/hl7/elm/r1/system-modelinfo.xml"; break;
+            case "FHIR": resourcePath = String.format("/org/hl7/fhir/fhir-modelinfo-%s.xml", modelVersion); break;
+            case "QDM": resourcePath = String.format("/gov/healthit/qdm/qdm-modelinfo-%s.xml", modelVersion); break;
+            case "QUICK": resourcePath = "/org/hl7/fhir/quick-modelinfo.xml"; break;
+            default: throw new IllegalArgumentException(String.format("Unknown model %s.", model));
+        }
+    }
+
+    @Benchmark
+    public ModelInfo readBinaryModelInfo() throws IOException {
+        URL resource = BinaryModelInfo.class.getResource(BinaryModelInfo.getBinaryResourcePath(resourcePath));
+        if (resource == null) {
+            throw new IllegalStateException(String.format("Binary model info for %s has not been generated.", resourcePath));
+        }
+        return BinaryModelInfo.read(resource);
+    }
+
+    @Benchmark
+    public ModelInfo unmarshalXmlModelInfo() throws IOException {
+        try (InputStream is = BinaryModelInfo.class.getResourceAsStream(resourcePath)) {
+            return JAXB.unmarshal(is, ModelInfo.class);
+        }
+    }
+
+    @Benchmark
+    public Model resolveModel() {
+        return new ModelManager().resolveModel(modelName, modelVersion);
+    }
+}
@@ -0,0 +1,81 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.*;
+import org.hl7.cql.model.DataType;
+import org.hl7.cql.model.IntervalType;
+import org.hl7.cql.model.ListType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures OperatorMap.resolveOperator against the System library for a mix of exact, converted and generic
+ * signatures. The warm benchmark reuses one conversion map, so repeated calls are answered by the resolution cache;
+ * the uncached benchmark resolves against a new conversion map each time, which includes the cost of building the
+ * map (measured separately by createConversionMap).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class OperatorResolutionBenchmark {
+    private TranslatedLibrary systemLibrary;
+    private ConversionMap conversionMap;
+    private CallContext[] callContexts;
+
+    @Setup
+    public void setup() {
+        SystemModel systemModel = (SystemModel)new ModelManager().resolveModel("System");
+        systemLibrary = SystemLibraryHelper.getSystemLibrary(systemModel);
+        conversionMap = createConversionMap();
+
+        DataType integerType = systemModel.getInteger();
+        DataType decimalType = systemModel.getDecimal();
+        DataType stringType = systemModel.getString();
+        DataType dateTimeType = systemModel.getDateTime();
+        callContexts = new CallContext[] {
+                new CallContext(null, "Add", integerType, integerType),
+                new CallContext(null, "Add", integerType, decimalType),
+                new CallContext(null, "Equal", stringType, stringType),
+                new CallContext(null, "Less", dateTimeType, dateTimeType),
+                new CallContext(null, "ToString", integerType),
+                new CallContext(null, "Equal", ListType.of(integerType), ListType.of(integerType)),
+                new CallContext(null, "In", integerType, ListType.of(integerType)),
+                new CallContext(null, "Union", ListType.of(decimalType), ListType.of(integerType)),
+                new CallContext(null, "Count", ListType.of(stringType)),
+                new CallContext(null, "Sum", ListType.of(decimalType)),
+                new CallContext(null, "After", IntervalType.of(dateTimeType), IntervalType.of(dateTimeType)),
+                new CallContext(null, "Overlaps", IntervalType.of(integerType), IntervalType.of(integerType))
+        };
+    }
+
+    @Benchmark
+    public ConversionMap createConversionMap() {
+        ConversionMap result = new ConversionMap();
+        for (Conversion conversion : systemLibrary.getConversions()) {
+            result.add(conversion);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public void resolveOperator(Blackhole blackhole) {
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+        for (CallContext callContext : callContexts) {
+            blackhole.consume(operatorMap.resolveOperator(callContext, conversionMap));
+        }
+    }
+
+    @Benchmark
+    public void resolveOperatorUncached(Blackhole blackhole) {
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+        ConversionMap conversionMap = createConversionMap();
+        for (CallContext callContext : callContexts) {
+            blackhole.consume(operatorMap.resolveOperator(callContext, conversionMap));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.cqframework.cql.cql2elm.preprocessor.CqlPreprocessorVisitor;
+import org.cqframework.cql.cql2elm.preprocessor.LibraryInfo;
+import org.cqframework.cql.gen.cqlLexer;
+import org.cqframework.cql.gen.cqlParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the front end of the translator in a warm JVM: lexing, lexing and parsing, and the preprocessor pass
+ * that collects the library header and definition signatures. Parsing is measured both with the two-stage SLL/LL
+ * strategy the translator uses and with full LL prediction alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParseBenchmark {
+    @Param({"Examples/CMS146", "Examples/CMS135_QDM", "Examples/2zc_VTE3", "OperatorTests/Query",
+            "OperatorTests/IntervalOperators", "OperatorTests/DateTimeOperators", "PathTests/PathTests",
+            "LibraryTests/FHIRHelpers-3.0.0"})
+    public String library;
+
+    private String source;
+    private BenchmarkLibraries.Parse parse;
+
+    @Setup
+    public void setup() throws IOException {
+        source = BenchmarkLibraries.read(library);
+        parse = BenchmarkLibraries.parse(source);
+    }
+
+    @Benchmark
+    public void lex(Blackhole blackhole) {
+        cqlLexer lexer = new cqlLexer(new ANTLRInputStream(source));
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+            blackhole.consume(token);
+        }
+    }
+
+    @Benchmark
+    public BenchmarkLibraries.Parse parse() {
+        return BenchmarkLibraries.parse(source);
+    }
+
+    @Benchmark
+    public ParseTree parseLL() {
+        cqlParser parser = new cqlParser(new CommonTokenStream(new cqlLexer(new ANTLRInputStream(source))));
+        parser.removeErrorListeners();
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        return parser.library();
+    }
+
+    @Benchmark
+    public LibraryInfo preprocess() {
+        CqlPreprocessorVisitor preprocessor = new CqlPreprocessorVisitor();
+        preprocessor.visit(parse.getTree());
+        return preprocessor.getLibraryInfo();
+    }
+}
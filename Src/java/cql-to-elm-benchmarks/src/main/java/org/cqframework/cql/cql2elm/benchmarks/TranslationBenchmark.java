@@ -0,0 +1,71 @@
+package org.cqframework.cql.cql2elm.benchmarks;
+
+import org.cqframework.cql.cql2elm.*;
+import org.cqframework.cql.cql2elm.preprocessor.CqlPreprocessorVisitor;
+import org.cqframework.cql.cql2elm.preprocessor.LibraryInfo;
+import org.hl7.elm.r1.Library;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures translation in a warm JVM. The visit benchmark isolates the Cql2ElmVisitor pass over a parse tree that
+ * has already been built and preprocessed; translate runs the whole pipeline against shared managers, so models and
+ * included libraries are already loaded; translateWithNewManagers runs it against new managers each time, so every
+ * translation loads its models and translates its includes again, as the command line translator does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class TranslationBenchmark {
+    @Param({"Examples/CMS146", "Examples/CMS135_QDM", "Examples/2zc_VTE3", "OperatorTests/Query",
+            "OperatorTests/IntervalOperators", "OperatorTests/DateTimeOperators", "PathTests/PathTests",
+            "LibraryTests/ReferencingLibrary"})
+    public String library;
+
+    private String source;
+    private BenchmarkLibraries.Parse parse;
+    private LibraryInfo libraryInfo;
+    private ModelManager modelManager;
+    private LibraryManager libraryManager;
+
+    @Setup
+    public void setup() throws IOException {
+        source = BenchmarkLibraries.read(library);
+        parse = BenchmarkLibraries.parse(source);
+        CqlPreprocessorVisitor preprocessor = new CqlPreprocessorVisitor();
+        preprocessor.visit(parse.getTree());
+        libraryInfo = preprocessor.getLibraryInfo();
+        modelManager = new ModelManager();
+        libraryManager = BenchmarkLibraries.createLibraryManager(modelManager, library);
+
+        // Load the models and includes up front so the visit and translate benchmarks only measure the library itself
+        translate();
+    }
+
+    @Benchmark
+    public Library visit() {
+        LibraryBuilder builder = new LibraryBuilder(modelManager, libraryManager);
+        Cql2ElmVisitor visitor = new Cql2ElmVisitor(builder);
+        visitor.setTokenStream(parse.getTokens());
+        visitor.setLibraryInfo(libraryInfo);
+        visitor.visit(parse.getTree());
+        return builder.getLibrary();
+    }
+
+    @Benchmark
+    public Library translate() {
+        return CqlTranslator.fromText(source, modelManager, libraryManager).toELM();
+    }
+
+    @Benchmark
+    public Library translateWithNewManagers() {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = BenchmarkLibraries.createLibraryManager(modelManager, library);
+        return CqlTranslator.fromText(source, modelManager, libraryManager).toELM();
+    }
+}
@@ -0,0 +1,232 @@
+package org.cqframework.cql.cql2elm;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Token;
+import org.cqframework.cql.gen.cqlLexer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translates a batch of CQL files in parallel for the command line --parallel option.
+ *
+ * Files using the same model versions share a ModelManager, and those files in the same folder also share a
+ * LibraryManager, so models and included libraries are loaded and translated once per batch rather than once per
+ * file (a ModelManager only holds one version of each model, hence the partitioning). Files are scheduled
+ * on a work-stealing pool in dependency order of their include graph within each LibraryManager, and each translated
+ * file is added to the cache of its LibraryManager, so an included library is translated once, before the libraries
+ * that include it are started. Included libraries are resolved without translation options though, so when options
+ * are given the files can't be reused as includes and are all started at once instead.
+ */
+class BatchTranslator {
+    private final CqlTranslator.Format format;
+    private final boolean verifyOnly;
+    private final CqlTranslatorException.ErrorSeverity errorLevel;
+    private final PrintStream stats;
+    private final Collection<String> entryPoints;
+    private final boolean flatten;
+    private final CqlTranslator.Options[] options;
+
+    private final Map<String, ModelManager> modelManagers = new HashMap<>();
+    private final Map<String, LibraryManager> libraryManagers = new HashMap<>();
+    private final Map<Path, LibraryDependencies> dependencies = new HashMap<>();
+    // Library sources by name, for each LibraryManager key
+    private final Map<String, Map<String, List<Path>>> librarySources = new HashMap<>();
+    private final Map<Path, CompletableFuture<Void>> translations = new HashMap<>();
+
+    public BatchTranslator(CqlTranslator.Format format, boolean verifyOnly,
+                           CqlTranslatorException.ErrorSeverity errorLevel, PrintStream stats,
+                           Collection<String> entryPoints, boolean flatten, CqlTranslator.Options... options) {
+        this.format = format;
+        this.verifyOnly = verifyOnly;
+        this.errorLevel = errorLevel;
+        this.stats = stats;
+        this.entryPoints = entryPoints;
+        this.flatten = flatten;
+        this.options = options;
+    }
+
+    public void translate(Map<Path, Path> inOutMap, int parallelism) throws IOException {
+        long start = System.nanoTime();
+        for (Path in : inOutMap.keySet()) {
+            LibraryDependencies libraryDependencies = scanDependencies(in);
+            dependencies.put(in, libraryDependencies);
+
+            Path folder = in.toAbsolutePath().getParent();
+            String models = libraryDependencies.getModels().toString();
+            if (!libraryManagers.containsKey(getLibraryManagerKey(in))) {
+                LibraryManager libraryManager = new LibraryManager(modelManagers.computeIfAbsent(models, k -> new ModelManager()));
+                libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(folder));
+                libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+                libraryManagers.put(getLibraryManagerKey(in), libraryManager);
+            }
+
+            if (libraryDependencies.getName() != null) {
+                librarySources.computeIfAbsent(getLibraryManagerKey(in), k -> new HashMap<>())
+                        .computeIfAbsent(libraryDependencies.getName(), k -> new ArrayList<>()).add(in);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // Sort for a deterministic schedule, the walk order of the input folder is not
+            List<Path> inputs = new ArrayList<>(inOutMap.keySet());
+            Collections.sort(inputs);
+            for (Path in : inputs) {
+                schedule(in, inOutMap, pool, new HashSet<>());
+            }
+
+            CompletableFuture.allOf(translations.values().toArray(new CompletableFuture[translations.size()])).join();
+        }
+        finally {
+            pool.shutdown();
+            for (LibraryManager libraryManager : libraryManagers.values()) {
+                libraryManager.getLibrarySourceLoader().clearProviders();
+            }
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.err.println("================================================================================");
+        System.err.printf("Translated %d files in %d ms using %d threads (%.1f files/second)%n",
+                inOutMap.size(), elapsed, parallelism, elapsed > 0 ? inOutMap.size() * 1000.0 / elapsed : 0.0);
+    }
+
+    private String getLibraryManagerKey(Path in) {
+        return in.toAbsolutePath().getParent().toString() + dependencies.get(in).getModels().toString();
+    }
+
+    private CompletableFuture<Void> schedule(Path in, Map<Path, Path> inOutMap, ForkJoinPool pool, Set<Path> visiting) {
+        CompletableFuture<Void> translation = translations.get(in);
+        if (translation != null) {
+            return translation;
+        }
+
+        visiting.add(in);
+        List<CompletableFuture<Void>> prerequisites = new ArrayList<>();
+        Map<String, List<Path>> sources = options.length == 0
+                ? librarySources.getOrDefault(getLibraryManagerKey(in), Collections.emptyMap())
+                : Collections.emptyMap();
+        for (String include : dependencies.get(in).getIncludes()) {
+            for (Path includePath : sources.getOrDefault(include, Collections.emptyList())) {
+                // Circular includes are reported by the translator, they just can't be ordered
+                if (!visiting.contains(includePath)) {
+                    prerequisites.add(schedule(includePath, inOutMap, pool, visiting));
+                }
+            }
+        }
+        visiting.remove(in);
+
+        translation = CompletableFuture.allOf(prerequisites.toArray(new CompletableFuture[prerequisites.size()]))
+                .thenRunAsync(() -> translateFile(in, inOutMap.get(in)), pool);
+        translations.put(in, translation);
+        return translation;
+    }
+
+    private void translateFile(Path in, Path out) {
+        // Buffer the report for each file so output from concurrent translations isn't interleaved
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream log = new PrintStream(buffer, true);
+        long start = System.nanoTime();
+        try {
+            LibraryManager libraryManager = libraryManagers.get(getLibraryManagerKey(in));
+            byte[] source = Files.readAllBytes(in);
+            CqlTranslator translator = CqlTranslator.writeELM(in, out, format, verifyOnly, errorLevel,
+                    libraryManager.getModelManager(), libraryManager, log, stats, entryPoints, flatten, options);
+            libraryManager.cacheLibrary(translator, source, options);
+        }
+        // Errors too, a failed translation must not keep the files that include it from being translated
+        catch (Throwable e) {
+            log.printf("Translation failed due to errors:%n%s%n%n", e.getMessage() != null ? e.getMessage() : e);
+        }
+        log.printf("Translation time: %d ms%n%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        synchronized (System.err) {
+            System.err.print(buffer.toString());
+        }
+    }
+
+    private static LibraryDependencies scanDependencies(Path in) throws IOException {
+        try (InputStream is = new FileInputStream(in.toFile())) {
+            return scanDependencies(is);
+        }
+    }
+
+    /**
+     * Determines the library name, used models and included library names of the given source by lexing the library
+     * header, which is much cheaper than parsing the whole library.
+     */
+    static LibraryDependencies scanDependencies(InputStream is) throws IOException {
+        LibraryDependencies result = new LibraryDependencies();
+        cqlLexer lexer = new cqlLexer(new ANTLRInputStream(is));
+        lexer.removeErrorListeners();
+        String previous = null;
+        String model = null;
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+            if (token.getChannel() != Token.DEFAULT_CHANNEL) {
+                continue;
+            }
+
+            String text = token.getText();
+            if (text.equals("define") || text.equals("context")) {
+                break;
+            }
+
+            if (model != null) {
+                String version = "version".equals(previous) && token.getType() == cqlLexer.STRING
+                        ? text.substring(1, text.length() - 1) : null;
+                if (version != null || !text.equals("version")) {
+                    result.getModels().put(model, version);
+                    model = null;
+                }
+            }
+
+            if (token.getType() == cqlLexer.IDENTIFIER || token.getType() == cqlLexer.QUOTEDIDENTIFIER) {
+                String identifier = token.getType() == cqlLexer.QUOTEDIDENTIFIER
+                        ? text.substring(1, text.length() - 1) : text;
+                if ("library".equals(previous) && result.getName() == null) {
+                    result.setName(identifier);
+                }
+                else if ("using".equals(previous)) {
+                    model = identifier;
+                }
+                else if ("include".equals(previous)) {
+                    result.getIncludes().add(identifier);
+                }
+            }
+
+            previous = text;
+        }
+
+        if (model != null) {
+            result.getModels().put(model, null);
+        }
+
+        return result;
+    }
+
+    static class LibraryDependencies {
+        private String name;
+        public String getName() {
+            return name;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        // Sorted so that the string form identifies the set of model versions used by the library
+        private final Map<String, String> models = new TreeMap<>();
+        public Map<String, String> getModels() {
+            return models;
+        }
+
+        private final List<String> includes = new ArrayList<>();
+        public List<String> getIncludes() {
+            return includes;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package org.cqframework.cql.cql2elm;
+
+import org.hl7.elm_modelinfo.r1.*;
+
+import javax.xml.bind.JAXB;
+import javax.xml.namespace.QName;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads and writes a compact binary form of ModelInfo.
+ *
+ * Unmarshalling the larger modelinfo XML resources with JAXB takes a significant part of the translator startup
+ * time, so the build precompiles each of the bundled modelinfo resources into a binary resource alongside it
+ * (the same path, with a .bin extension), see the precompileModelInfo task. The binary form is a string table
+ * followed by the ModelInfo structure, with all strings written as indexes into the table.
+ *
+ * Use load(...) to load a modelinfo resource, it will use the binary resource if one is available, and fall back
+ * to the XML resource otherwise.
+ *
+ * The fields of each modelinfo class are written explicitly, so a field added to the modelinfo schema has to be
+ * added to the Writer and Reader as well. To make sure none is dropped, precompiling a resource reads the binary
+ * form back and fails unless it is equal to the unmarshalled XML.
+ */
+public class BinaryModelInfo {
+    private static final int MAGIC = 0x434D4930; // CMI0
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte NAMED_TYPE_SPECIFIER = 1;
+    private static final byte INTERVAL_TYPE_SPECIFIER = 2;
+    private static final byte LIST_TYPE_SPECIFIER = 3;
+    private static final byte CHOICE_TYPE_SPECIFIER = 4;
+    private static final byte SIMPLE_TYPE_INFO = 1;
+    private static final byte CLASS_INFO = 2;
+    private static final byte PROFILE_INFO = 3;
+    private static final byte INTERVAL_TYPE_INFO = 4;
+    private static final byte LIST_TYPE_INFO = 5;
+    private static final byte TUPLE_TYPE_INFO = 6;
+    private static final byte CHOICE_TYPE_INFO = 7;
+
+    /**
+     * Loads the modelinfo at the given XML resource path, using the precompiled binary resource if there is one.
+     */
+    public static ModelInfo load(String resourcePath) {
+        URL binaryResource = BinaryModelInfo.class.getResource(getBinaryResourcePath(resourcePath));
+        if (binaryResource != null) {
+            try {
+                return read(binaryResource);
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException(String.format("Could not load model information from %s.", binaryResource), e);
+            }
+        }
+
+        InputStream xmlResource = BinaryModelInfo.class.getResourceAsStream(resourcePath);
+        if (xmlResource == null) {
+            throw new IllegalArgumentException(String.format("Could not find model information resource %s.", resourcePath));
+        }
+
+        return JAXB.unmarshal(xmlResource, ModelInfo.class);
+    }
+
+    public static String getBinaryResourcePath(String resourcePath) {
+        int extension = resourcePath.lastIndexOf('.');
+        return (extension > resourcePath.lastIndexOf('/') ? resourcePath.substring(0, extension) : resourcePath) + ".bin";
+    }
+
+    public static ModelInfo read(URL resource) throws IOException {
+        if (resource.getProtocol().equals("file")) {
+            // Map the file rather than copying it if the resource is not packaged
+            try (FileChannel channel = FileChannel.open(Paths.get(resource.toURI()), StandardOpenOption.READ)) {
+                return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+            catch (URISyntaxException e) {
+                // Fall through and read it as a stream
+            }
+        }
+
+        try (InputStream is = resource.openStream()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[65536];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return read(ByteBuffer.wrap(buffer.toByteArray()));
+        }
+    }
+
+    public static ModelInfo read(ByteBuffer buffer) {
+        return new Reader(buffer).readModelInfo();
+    }
+
+    public static void write(ModelInfo modelInfo, OutputStream os) throws IOException {
+        Writer writer = new Writer();
+        writer.writeModelInfo(modelInfo);
+        writer.writeTo(os);
+    }
+
+    /**
+     * Precompiles modelinfo resources on the classpath into binary resources under the given output directory.
+     * Usage: BinaryModelInfo outputDirectory resourcePath...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: BinaryModelInfo outputDirectory resourcePath...");
+        }
+
+        Path outputDirectory = Paths.get(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String resourcePath = args[i];
+            InputStream xmlResource = BinaryModelInfo.class.getResourceAsStream(resourcePath);
+            if (xmlResource == null) {
+                throw new IllegalArgumentException(String.format("Could not find model information resource %s.", resourcePath));
+            }
+
+            ModelInfo modelInfo = JAXB.unmarshal(xmlResource, ModelInfo.class);
+            Path outputPath = outputDirectory.resolve(getBinaryResourcePath(resourcePath).substring(1));
+            Files.createDirectories(outputPath.getParent());
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            write(modelInfo, binary);
+            if (!modelInfo.equals(read(ByteBuffer.wrap(binary.toByteArray())))) {
+                throw new IllegalArgumentException(String.format(
+                        "The binary form of model information resource %s is not equal to the resource.", resourcePath));
+            }
+
+            Files.write(outputPath, binary.toByteArray());
+        }
+    }
+
+    private static class Writer {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(body);
+
+        public void writeTo(OutputStream os) throws IOException {
+            DataOutputStream result = new DataOutputStream(os);
+            result.writeInt(MAGIC);
+            result.writeInt(FORMAT_VERSION);
+            result.writeInt(strings.size());
+            for (String s : strings.keySet()) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                result.writeInt(bytes.length);
+                result.write(bytes);
+            }
+            out.flush();
+            body.writeTo(result);
+            result.flush();
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(0);
+            }
+            else {
+                Integer index = strings.get(value);
+                if (index == null) {
+                    index = strings.size() + 1;
+                    strings.put(value, index);
+                }
+                out.writeInt(index);
+            }
+        }
+
+        private void writeBoolean(Boolean value) throws IOException {
+            out.writeByte(value == null ? 0 : value ? 2 : 1);
+        }
+
+        public void writeModelInfo(ModelInfo modelInfo) throws IOException {
+            writeString(modelInfo.getName());
+            writeString(modelInfo.getVersion());
+            writeString(modelInfo.getUrl());
+            writeString(modelInfo.getSchemaLocation());
+            QName targetQualifier = modelInfo.getTargetQualifier();
+            out.writeBoolean(targetQualifier != null);
+            if (targetQualifier != null) {
+                writeString(targetQualifier.getNamespaceURI());
+                writeString(targetQualifier.getLocalPart());
+                writeString(targetQualifier.getPrefix());
+            }
+            writeString(modelInfo.getPatientClassName());
+            writeString(modelInfo.getPatientClassIdentifier());
+            writeString(modelInfo.getPatientBirthDatePropertyName());
+            writeBoolean(modelInfo.isCaseSensitive());
+            writeBoolean(modelInfo.isStrictRetrieveTyping());
+
+            out.writeInt(modelInfo.getRequiredModelInfo().size());
+            for (ModelSpecifier modelSpecifier : modelInfo.getRequiredModelInfo()) {
+                writeString(modelSpecifier.getName());
+                writeString(modelSpecifier.getVersion());
+            }
+
+            out.writeInt(modelInfo.getTypeInfo().size());
+            for (TypeInfo typeInfo : modelInfo.getTypeInfo()) {
+                writeTypeInfo(typeInfo);
+            }
+
+            out.writeInt(modelInfo.getConversionInfo().size());
+            for (ConversionInfo conversionInfo : modelInfo.getConversionInfo()) {
+                writeTypeSpecifier(conversionInfo.getFromTypeSpecifier());
+                writeTypeSpecifier(conversionInfo.getToTypeSpecifier());
+                writeString(conversionInfo.getFunctionName());
+                writeString(conversionInfo.getFromType());
+                writeString(conversionInfo.getToType());
+            }
+        }
+
+        private void writeTypeInfo(TypeInfo typeInfo) throws IOException {
+            if (typeInfo instanceof SimpleTypeInfo) {
+                out.writeByte(SIMPLE_TYPE_INFO);
+            }
+            else if (typeInfo instanceof ProfileInfo) {
+                out.writeByte(PROFILE_INFO);
+            }
+            else if (typeInfo instanceof ClassInfo) {
+                out.writeByte(CLASS_INFO);
+            }
+            else if (typeInfo instanceof IntervalTypeInfo) {
+                out.writeByte(INTERVAL_TYPE_INFO);
+            }
+            else if (typeInfo instanceof ListTypeInfo) {
+                out.writeByte(LIST_TYPE_INFO);
+            }
+            else if (typeInfo instanceof TupleTypeInfo) {
+                out.writeByte(TUPLE_TYPE_INFO);
+            }
+            else if (typeInfo instanceof ChoiceTypeInfo) {
+                out.writeByte(CHOICE_TYPE_INFO);
+            }
+            else {
+                throw new IllegalArgumentException(String.format("Unknown type info category %s.", typeInfo.getClass().getName()));
+            }
+
+            writeString(typeInfo.getBaseType());
+            writeTypeSpecifier(typeInfo.getBaseTypeSpecifier());
+
+            if (typeInfo instanceof SimpleTypeInfo) {
+                writeString(((SimpleTypeInfo)typeInfo).getName());
+            }
+            else if (typeInfo instanceof ClassInfo) {
+                ClassInfo classInfo = (ClassInfo)typeInfo;
+                writeString(classInfo.getName());
+                writeString(classInfo.getIdentifier());
+                writeString(classInfo.getLabel());
+                writeBoolean(classInfo.isRetrievable());
+                writeString(classInfo.getPrimaryCodePath());
+                out.writeInt(classInfo.getElement().size());
+                for (ClassInfoElement element : classInfo.getElement()) {
+                    writeString(element.getName());
+                    writeString(element.getType());
+                    writeTypeSpecifier(element.getTypeSpecifier());
+                    writeBoolean(element.isProhibited());
+                    writeBoolean(element.isOneBased());
+                }
+            }
+            else if (typeInfo instanceof IntervalTypeInfo) {
+                writeString(((IntervalTypeInfo)typeInfo).getPointType());
+                writeTypeSpecifier(((IntervalTypeInfo)typeInfo).getPointTypeSpecifier());
+            }
+            else if (typeInfo instanceof ListTypeInfo) {
+                writeString(((ListTypeInfo)typeInfo).getElementType());
+                writeTypeSpecifier(((ListTypeInfo)typeInfo).getElementTypeSpecifier());
+            }
+            else if (typeInfo instanceof TupleTypeInfo) {
+                TupleTypeInfo tupleTypeInfo = (TupleTypeInfo)typeInfo;
+                out.writeInt(tupleTypeInfo.getElement().size());
+                for (TupleTypeInfoElement element : tupleTypeInfo.getElement()) {
+                    writeString(element.getName());
+                    writeString(element.getType());
+                    writeTypeSpecifier(element.getTypeSpecifier());
+                    writeBoolean(element.isProhibited());
+                    writeBoolean(element.isOneBased());
+                }
+            }
+            else if (typeInfo instanceof ChoiceTypeInfo) {
+                writeTypeSpecifiers(((ChoiceTypeInfo)typeInfo).getType());
+            }
+        }
+
+        private void writeTypeSpecifiers(List<TypeSpecifier> typeSpecifiers) throws IOException {
+            out.writeInt(typeSpecifiers.size());
+            for (TypeSpecifier typeSpecifier : typeSpecifiers) {
+                writeTypeSpecifier(typeSpecifier);
+            }
+        }
+
+        private void writeTypeSpecifier(TypeSpecifier typeSpecifier) throws IOException {
+            if (typeSpecifier == null) {
+                out.writeByte(NULL);
+            }
+            else if (typeSpecifier instanceof NamedTypeSpecifier) {
+                out.writeByte(NAMED_TYPE_SPECIFIER);
+                writeString(((NamedTypeSpecifier)typeSpecifier).getModelName());
+                writeString(((NamedTypeSpecifier)typeSpecifier).getName());
+            }
+            else if (typeSpecifier instanceof IntervalTypeSpecifier) {
+                out.writeByte(INTERVAL_TYPE_SPECIFIER);
+                writeString(((IntervalTypeSpecifier)typeSpecifier).getPointType());
+                writeTypeSpecifier(((IntervalTypeSpecifier)typeSpecifier).getPointTypeSpecifier());
+            }
+            else if (typeSpecifier instanceof ListTypeSpecifier) {
+                out.writeByte(LIST_TYPE_SPECIFIER);
+                writeString(((ListTypeSpecifier)typeSpecifier).getElementType());
+                writeTypeSpecifier(((ListTypeSpecifier)typeSpecifier).getElementTypeSpecifier());
+            }
+            else if (typeSpecifier instanceof ChoiceTypeSpecifier) {
+                out.writeByte(CHOICE_TYPE_SPECIFIER);
+                writeTypeSpecifiers(((ChoiceTypeSpecifier)typeSpecifier).getChoice());
+            }
+            else {
+                throw new IllegalArgumentException(String.format("Unknown type specifier category %s.", typeSpecifier.getClass().getName()));
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private final String[] strings;
+
+        public Reader(ByteBuffer in) {
+            this.in = in;
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Resource is not a binary model info.");
+            }
+            int formatVersion = in.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalArgumentException(String.format("Unsupported binary model info format version %d.", formatVersion));
+            }
+
+            strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        private String readString() {
+            int index = in.getInt();
+            return index == 0 ? null : strings[index - 1];
+        }
+
+        private Boolean readBoolean() {
+            byte value = in.get();
+            return value == 0 ? null : value == 2;
+        }
+
+        public ModelInfo readModelInfo() {
+            ModelInfo modelInfo = new ModelInfo()
+                    .withName(readString())
+                    .withVersion(readString())
+                    .withUrl(readString())
+                    .withSchemaLocation(readString());
+            if (in.get() != 0) {
+                modelInfo.setTargetQualifier(new QName(readString(), readString(), readString()));
+            }
+            modelInfo.setPatientClassName(readString());
+            modelInfo.setPatientClassIdentifier(readString());
+            modelInfo.setPatientBirthDatePropertyName(readString());
+            modelInfo.setCaseSensitive(readBoolean());
+            modelInfo.setStrictRetrieveTyping(readBoolean());
+
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                modelInfo.getRequiredModelInfo().add(new ModelSpecifier().withName(readString()).withVersion(readString()));
+            }
+
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                modelInfo.getTypeInfo().add(readTypeInfo());
+            }
+
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                modelInfo.getConversionInfo().add(new ConversionInfo()
+                        .withFromTypeSpecifier(readTypeSpecifier())
+                        .withToTypeSpecifier(readTypeSpecifier())
+                        .withFunctionName(readString())
+                        .withFromType(readString())
+                        .withToType(readString()));
+            }
+
+            return modelInfo;
+        }
+
+        private TypeInfo readTypeInfo() {
+            byte category = in.get();
+            String baseType = readString();
+            TypeSpecifier baseTypeSpecifier = readTypeSpecifier();
+
+            TypeInfo result;
+            switch (category) {
+                case SIMPLE_TYPE_INFO:
+                    result = new SimpleTypeInfo().withName(readString());
+                    break;
+
+                case CLASS_INFO:
+                case PROFILE_INFO:
+                    ClassInfo classInfo = category == PROFILE_INFO ? new ProfileInfo() : new ClassInfo();
+                    classInfo.setName(readString());
+                    classInfo.setIdentifier(readString());
+                    classInfo.setLabel(readString());
+                    classInfo.setRetrievable(readBoolean());
+                    classInfo.setPrimaryCodePath(readString());
+                    int elementCount = in.getInt();
+                    for (int i = 0; i < elementCount; i++) {
+                        classInfo.getElement().add(new ClassInfoElement()
+                                .withName(readString())
+                                .withType(readString())
+                                .withTypeSpecifier(readTypeSpecifier())
+                                .withProhibited(readBoolean())
+                                .withOneBased(readBoolean()));
+                    }
+                    result = classInfo;
+                    break;
+
+                case INTERVAL_TYPE_INFO:
+                    result = new IntervalTypeInfo().withPointType(readString()).withPointTypeSpecifier(readTypeSpecifier());
+                    break;
+
+                case LIST_TYPE_INFO:
+                    result = new ListTypeInfo().withElementType(readString()).withElementTypeSpecifier(readTypeSpecifier());
+                    break;
+
+                case TUPLE_TYPE_INFO:
+                    TupleTypeInfo tupleTypeInfo = new TupleTypeInfo();
+                    int tupleElementCount = in.getInt();
+                    for (int i = 0; i < tupleElementCount; i++) {
+                        tupleTypeInfo.getElement().add(new TupleTypeInfoElement()
+                                .withName(readString())
+                                .withType(readString())
+                                .withTypeSpecifier(readTypeSpecifier())
+                                .withProhibited(readBoolean())
+                                .withOneBased(readBoolean()));
+                    }
+                    result = tupleTypeInfo;
+                    break;
+
+                case CHOICE_TYPE_INFO:
+                    ChoiceTypeInfo choiceTypeInfo = new ChoiceTypeInfo();
+                    readTypeSpecifiers(choiceTypeInfo.getType());
+                    result = choiceTypeInfo;
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown type info category %d.", category));
+            }
+
+            result.setBaseType(baseType);
+            result.setBaseTypeSpecifier(baseTypeSpecifier);
+            return result;
+        }
+
+        private void readTypeSpecifiers(List<TypeSpecifier> typeSpecifiers) {
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                typeSpecifiers.add(readTypeSpecifier());
+            }
+        }
+
+        private TypeSpecifier readTypeSpecifier() {
+            byte category = in.get();
+            switch (category) {
+                case NULL:
+                    return null;
+
+                case NAMED_TYPE_SPECIFIER:
+                    return new NamedTypeSpecifier().withModelName(readString()).withName(readString());
+
+                case INTERVAL_TYPE_SPECIFIER:
+                    return new IntervalTypeSpecifier().withPointType(readString()).withPointTypeSpecifier(readTypeSpecifier());
+
+                case LIST_TYPE_SPECIFIER:
+                    return new ListTypeSpecifier().withElementType(readString()).withElementTypeSpecifier(readTypeSpecifier());
+
+                case CHOICE_TYPE_SPECIFIER:
+                    ChoiceTypeSpecifier choiceTypeSpecifier = new ChoiceTypeSpecifier();
+                    readTypeSpecifiers(choiceTypeSpecifier.getChoice());
+                    return choiceTypeSpecifier;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown type specifier category %d.", category));
+            }
+        }
+    }
+}
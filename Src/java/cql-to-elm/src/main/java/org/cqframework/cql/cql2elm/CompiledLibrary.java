@@ -0,0 +1,63 @@
+package org.cqframework.cql.cql2elm;
+
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ELM for a library, together with the hash of the CQL source it was translated from. The LibraryManager only
+ * uses a compiled library if the hash matches the current source of the library, see LibraryManager.hashSource.
+ *
+ * The types in the ELM of a library also depend on the libraries it includes, directly or indirectly, so a compiled
+ * library with includes must carry the source hashes of all of them as well (see LibraryManager.hashIncludedSources),
+ * and is only used if they all match the current sources. A compiled library with includes but no include hashes is
+ * never used.
+ *
+ * The ELM must have been translated with result types enabled (the EnableResultTypes option), since the types of the
+ * library's definitions cannot otherwise be determined without translating it again.
+ */
+public class CompiledLibrary {
+    public CompiledLibrary(Library library, String sourceHash) {
+        this(library, sourceHash, Collections.emptyMap());
+    }
+
+    public CompiledLibrary(Library library, String sourceHash, Map<VersionedIdentifier, String> includeSourceHashes) {
+        if (library == null) {
+            throw new IllegalArgumentException("library is null");
+        }
+
+        if (sourceHash == null || sourceHash.equals("")) {
+            throw new IllegalArgumentException("sourceHash is null");
+        }
+
+        if (includeSourceHashes == null) {
+            throw new IllegalArgumentException("includeSourceHashes is null");
+        }
+
+        this.library = library;
+        this.sourceHash = sourceHash;
+        this.includeSourceHashes = Collections.unmodifiableMap(new HashMap<>(includeSourceHashes));
+    }
+
+    private final Library library;
+    public Library getLibrary() {
+        return library;
+    }
+
+    private final String sourceHash;
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    private final Map<VersionedIdentifier, String> includeSourceHashes;
+    /**
+     * Returns the source hashes of the libraries the library includes, directly or indirectly, by identifier (with
+     * the version given in the include, if any).
+     */
+    public Map<VersionedIdentifier, String> getIncludeSourceHashes() {
+        return includeSourceHashes;
+    }
+}
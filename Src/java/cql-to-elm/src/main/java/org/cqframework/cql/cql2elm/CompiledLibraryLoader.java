@@ -0,0 +1,199 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.cql2elm.model.Model;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.cql.model.*;
+import org.hl7.elm.r1.*;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rehydrates a TranslatedLibrary from the ELM of a previously translated library, so that it can be referenced by
+ * other libraries without translating it again.
+ *
+ * Only the library's namespace and function signatures are rebuilt, the definitions are not validated again. The
+ * result types of the definitions are taken from the result type names and specifiers in the ELM, so the library
+ * must have been translated with result types enabled; if the type of any definition cannot be determined (because
+ * it is missing, or names a type or model that cannot be resolved), the library cannot be loaded and load returns
+ * null, so that the caller can translate the source instead.
+ */
+class CompiledLibraryLoader {
+    private final ModelManager modelManager;
+    private final Map<String, Model> models = new HashMap<>();
+
+    private CompiledLibraryLoader(ModelManager modelManager) {
+        this.modelManager = modelManager;
+    }
+
+    public static TranslatedLibrary load(Library library, ModelManager modelManager) {
+        return new CompiledLibraryLoader(modelManager).load(library);
+    }
+
+    private TranslatedLibrary load(Library library) {
+        TranslatedLibrary result = new TranslatedLibrary();
+        result.setIdentifier(library.getIdentifier());
+        result.setLibrary(library);
+
+        if (library.getUsings() != null) {
+            for (UsingDef using : library.getUsings().getDef()) {
+                Model model = modelManager.resolveModel(using.getLocalIdentifier(), using.getVersion());
+                models.put(model.getModelInfo().getUrl(), model);
+                result.add(using);
+            }
+        }
+
+        // System is always available, whether or not it is listed in the usings
+        Model systemModel = modelManager.resolveModel("System");
+        models.putIfAbsent(systemModel.getModelInfo().getUrl(), systemModel);
+        DataType codeType = systemModel.resolveTypeName("Code");
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                result.add(include);
+            }
+        }
+
+        if (library.getCodeSystems() != null) {
+            for (CodeSystemDef codeSystem : library.getCodeSystems().getDef()) {
+                codeSystem.setResultType(ListType.of(codeType));
+                result.add(codeSystem);
+            }
+        }
+
+        if (library.getValueSets() != null) {
+            for (ValueSetDef valueSet : library.getValueSets().getDef()) {
+                valueSet.setResultType(ListType.of(codeType));
+                result.add(valueSet);
+            }
+        }
+
+        if (library.getCodes() != null) {
+            for (CodeDef code : library.getCodes().getDef()) {
+                code.setResultType(codeType);
+                result.add(code);
+            }
+        }
+
+        if (library.getConcepts() != null) {
+            for (ConceptDef concept : library.getConcepts().getDef()) {
+                concept.setResultType(systemModel.resolveTypeName("Concept"));
+                result.add(concept);
+            }
+        }
+
+        if (library.getParameters() != null) {
+            for (ParameterDef parameter : library.getParameters().getDef()) {
+                DataType parameterType = parameter.getParameterTypeSpecifier() != null
+                        ? resolveTypeSpecifier(parameter.getParameterTypeSpecifier())
+                        : parameter.getParameterType() != null
+                                ? resolveTypeName(parameter.getParameterType())
+                                : getResultType(parameter, parameter.getDefault());
+                if (parameterType == null) {
+                    return null;
+                }
+
+                parameter.setResultType(parameterType);
+                result.add(parameter);
+            }
+        }
+
+        if (library.getStatements() != null) {
+            for (ExpressionDef expression : library.getStatements().getDef()) {
+                if (expression instanceof FunctionDef) {
+                    for (OperandDef operand : ((FunctionDef)expression).getOperand()) {
+                        DataType operandType = operand.getOperandTypeSpecifier() != null
+                                ? resolveTypeSpecifier(operand.getOperandTypeSpecifier())
+                                : operand.getOperandType() != null ? resolveTypeName(operand.getOperandType()) : null;
+                        if (operandType == null) {
+                            return null;
+                        }
+
+                        operand.setResultType(operandType);
+                    }
+                }
+
+                DataType expressionType = getResultType(expression, expression.getExpression());
+                if (expressionType == null) {
+                    return null;
+                }
+
+                expression.setResultType(expressionType);
+                result.add(expression);
+            }
+        }
+
+        return result;
+    }
+
+    private DataType getResultType(Element element, Expression value) {
+        DataType result = getResultType(element);
+        if (result == null && value != null) {
+            result = getResultType(value);
+        }
+
+        return result;
+    }
+
+    private DataType getResultType(Element element) {
+        if (element.getResultTypeName() != null) {
+            return resolveTypeName(element.getResultTypeName());
+        }
+
+        if (element.getResultTypeSpecifier() != null) {
+            return resolveTypeSpecifier(element.getResultTypeSpecifier());
+        }
+
+        return null;
+    }
+
+    private DataType resolveTypeName(QName typeName) {
+        Model model = models.get(typeName.getNamespaceURI());
+        return model != null ? model.resolveTypeName(typeName.getLocalPart()) : null;
+    }
+
+    private DataType resolveTypeSpecifier(TypeSpecifier typeSpecifier) {
+        if (typeSpecifier instanceof NamedTypeSpecifier) {
+            return resolveTypeName(((NamedTypeSpecifier)typeSpecifier).getName());
+        }
+
+        if (typeSpecifier instanceof ListTypeSpecifier) {
+            DataType elementType = resolveTypeSpecifier(((ListTypeSpecifier)typeSpecifier).getElementType());
+            return elementType != null ? ListType.of(elementType) : null;
+        }
+
+        if (typeSpecifier instanceof IntervalTypeSpecifier) {
+            DataType pointType = resolveTypeSpecifier(((IntervalTypeSpecifier)typeSpecifier).getPointType());
+            return pointType != null ? IntervalType.of(pointType) : null;
+        }
+
+        if (typeSpecifier instanceof TupleTypeSpecifier) {
+            List<TupleTypeElement> elements = new ArrayList<>();
+            for (TupleElementDefinition element : ((TupleTypeSpecifier)typeSpecifier).getElement()) {
+                DataType elementType = resolveTypeSpecifier(element.getType());
+                if (elementType == null) {
+                    return null;
+                }
+                elements.add(new TupleTypeElement(element.getName(), elementType));
+            }
+            return TupleType.of(elements);
+        }
+
+        if (typeSpecifier instanceof ChoiceTypeSpecifier) {
+            List<DataType> types = new ArrayList<>();
+            for (TypeSpecifier choice : ((ChoiceTypeSpecifier)typeSpecifier).getType()) {
+                DataType type = resolveTypeSpecifier(choice);
+                if (type == null) {
+                    return null;
+                }
+                types.add(type);
+            }
+            return ChoiceType.of(types);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,14 @@
+package org.cqframework.cql.cql2elm;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+
+/**
+ * Provides previously translated ELM for libraries, so that the LibraryManager can load an included library from its
+ * ELM rather than translating its source again.
+ */
+public interface CompiledLibraryProvider {
+    /**
+     * Returns the compiled form of the given library, or null if none is available.
+     */
+    CompiledLibrary getCompiledLibrary(VersionedIdentifier libraryIdentifier);
+}
@@ -8,6 +8,7 @@ import org.antlr.v4.runtime.tree.TerminalNode;
 import org.cqframework.cql.cql2elm.model.invocation.*;
 import org.cqframework.cql.cql2elm.preprocessor.*;
 import org.cqframework.cql.elm.tracking.*;
+import org.cqframework.cql.elm.visiting.ElmNodes;
 import org.cqframework.cql.gen.cqlBaseVisitor;
 import org.cqframework.cql.gen.cqlLexer;
 import org.cqframework.cql.gen.cqlParser;
@@ -54,6 +55,11 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         this.libraryInfo = libraryInfo;
     }
 
+    private DefinitionCache definitionCache = null;
+    void setDefinitionCache(DefinitionCache definitionCache) {
+        this.definitionCache = definitionCache;
+    }
+
     //Put them here for now, but eventually somewhere else?
     private final Set<String> definedExpressionDefinitions = new HashSet<>();
     private final Stack<ExpressionDefinitionInfo> forwards = new Stack<>();
@@ -152,6 +158,11 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
     }
 
     private int getNextLocalId() {
+        // Local ids must remain unique across the definitions reused from previous translations
+        if (definitionCache != null) {
+            return definitionCache.nextLocalId();
+        }
+
         return nextLocalId++;
     }
 
@@ -301,6 +312,9 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         libraryBuilder.setLibraryIdentifier(new VersionedIdentifier().withId(libraryInfo.getLibraryName()).withVersion(libraryInfo.getVersion()));
         libraryBuilder.beginTranslation();
         try {
+            // Start translating the included libraries now, the visit resolves them one at a time
+            prefetchIncludes();
+
             // Loop through and call visit on each child (to ensure they are tracked)
             for (int i = 0; i < ctx.getChildCount(); i++) {
                 lastResult = visit(ctx.getChild(i));
@@ -314,6 +328,22 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         }
     }
 
+    private void prefetchIncludes() {
+        // A single include is resolved as soon as the visit starts, there is nothing to run alongside it
+        if (libraryInfo.getLibraryName() == null || libraryInfo.getIncludeDefinitions().size() < 2) {
+            return;
+        }
+
+        List<VersionedIdentifier> libraryIdentifiers = new ArrayList<>();
+        for (IncludeDefinitionInfo includeDefinition : libraryInfo.getIncludeDefinitions()) {
+            libraryIdentifiers.add(new VersionedIdentifier()
+                    .withId(includeDefinition.getName())
+                    .withVersion(includeDefinition.getVersion()));
+        }
+
+        libraryBuilder.getLibraryManager().prefetchLibraries(libraryIdentifiers);
+    }
+
     @Override
     public VersionedIdentifier visitLibraryDefinition(@NotNull cqlParser.LibraryDefinitionContext ctx) {
         VersionedIdentifier vid = of.createVersionedIdentifier()
@@ -421,15 +451,15 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
 
     @Override
     public Object visitTupleTypeSpecifier(@NotNull cqlParser.TupleTypeSpecifierContext ctx) {
-        TupleType resultType = new TupleType();
+        List<TupleTypeElement> resultElements = new ArrayList<>();
         TupleTypeSpecifier typeSpecifier = of.createTupleTypeSpecifier();
         for (cqlParser.TupleElementDefinitionContext definitionContext : ctx.tupleElementDefinition()) {
             TupleElementDefinition element = (TupleElementDefinition)visit(definitionContext);
-            resultType.addElement(new TupleTypeElement(element.getName(), element.getType().getResultType()));
+            resultElements.add(new TupleTypeElement(element.getName(), element.getType().getResultType()));
             typeSpecifier.getElement().add(element);
         }
 
-        typeSpecifier.setResultType(resultType);
+        typeSpecifier.setResultType(TupleType.of(resultElements));
 
         return typeSpecifier;
     }
@@ -444,7 +474,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
             types.add(typeSpecifier.getResultType());
         }
         ChoiceTypeSpecifier result = of.createChoiceTypeSpecifier().withType(typeSpecifiers);
-        ChoiceType choiceType = new ChoiceType(types);
+        ChoiceType choiceType = ChoiceType.of(types);
         result.setResultType(choiceType);
         return result;
     }
@@ -452,7 +482,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
     @Override
     public IntervalTypeSpecifier visitIntervalTypeSpecifier(@NotNull cqlParser.IntervalTypeSpecifierContext ctx) {
         IntervalTypeSpecifier result = of.createIntervalTypeSpecifier().withPointType(parseTypeSpecifier(ctx.typeSpecifier()));
-        IntervalType intervalType = new IntervalType(result.getPointType().getResultType());
+        IntervalType intervalType = IntervalType.of(result.getPointType().getResultType());
         result.setResultType(intervalType);
         return result;
     }
@@ -460,7 +490,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
     @Override
     public ListTypeSpecifier visitListTypeSpecifier(@NotNull cqlParser.ListTypeSpecifierContext ctx) {
         ListTypeSpecifier result = of.createListTypeSpecifier().withElementType(parseTypeSpecifier(ctx.typeSpecifier()));
-        ListType listType = new ListType(result.getElementType().getResultType());
+        ListType listType = ListType.of(result.getElementType().getResultType());
         result.setResultType(listType);
         return result;
     }
@@ -481,7 +511,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                 .withName(parseString(ctx.identifier()))
                 .withId(parseString(ctx.codesystemId()))
                 .withVersion(parseString(ctx.versionSpecifier()))
-                .withResultType(new ListType(libraryBuilder.resolveTypeName("System", "Code")));
+                .withResultType(ListType.of(libraryBuilder.resolveTypeName("System", "Code")));
 
         libraryBuilder.addCodeSystem(cs);
         return cs;
@@ -546,7 +576,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                 vs.getCodeSystem().add((CodeSystemRef)visit(codesystem));
             }
         }
-        vs.setResultType(new ListType(libraryBuilder.resolveTypeName("System", "Code")));
+        vs.setResultType(ListType.of(libraryBuilder.resolveTypeName("System", "Code")));
         libraryBuilder.addValueSet(vs);
 
         return vs;
@@ -615,7 +645,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                 DataType patientType = libraryBuilder.resolveTypeName(modelInfo.getName(), patientTypeName);
                 Retrieve patientRetrieve = of.createRetrieve().withDataType(libraryBuilder.dataTypeToQName(patientType));
                 track(patientRetrieve, ctx);
-                patientRetrieve.setResultType(new ListType(patientType));
+                patientRetrieve.setResultType(ListType.of(patientType));
                 String patientClassIdentifier = modelInfo.getPatientClassIdentifier();
                 if (patientClassIdentifier != null) {
                     patientRetrieve.setTemplateId(patientClassIdentifier);
@@ -651,26 +681,38 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
     public ExpressionDef internalVisitExpressionDefinition(@NotNull cqlParser.ExpressionDefinitionContext ctx) {
         String identifier = parseString(ctx.identifier());
         ExpressionDef def = libraryBuilder.resolveExpressionRef(identifier);
+        if (def != null) {
+            return def;
+        }
+
+        long start = System.nanoTime();
+        def = reuseDefinition(ctx);
         if (def == null) {
-            libraryBuilder.pushExpressionContext(currentContext);
+            beginDefinition(ctx, identifier);
             try {
-                libraryBuilder.pushExpressionDefinition(identifier);
+                libraryBuilder.pushExpressionContext(currentContext);
                 try {
-                    def = of.createExpressionDef()
-                            .withAccessLevel(parseAccessModifier(ctx.accessModifier()))
-                            .withName(identifier)
-                            .withContext(currentContext)
-                            .withExpression((Expression) visit(ctx.expression()));
-                    def.setResultType(def.getExpression().getResultType());
-                    libraryBuilder.addExpression(def);
+                    libraryBuilder.pushExpressionDefinition(identifier);
+                    try {
+                        def = of.createExpressionDef()
+                                .withAccessLevel(parseAccessModifier(ctx.accessModifier()))
+                                .withName(identifier)
+                                .withContext(currentContext)
+                                .withExpression((Expression) visit(ctx.expression()));
+                        def.setResultType(def.getExpression().getResultType());
+                        libraryBuilder.addExpression(def);
+                    } finally {
+                        libraryBuilder.popExpressionDefinition();
+                    }
                 } finally {
-                    libraryBuilder.popExpressionDefinition();
+                    libraryBuilder.popExpressionContext();
                 }
             } finally {
-                libraryBuilder.popExpressionContext();
+                endDefinition(def);
             }
         }
 
+        definitionTranslated(def, start);
         return def;
     }
 
@@ -717,13 +759,13 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
     @Override
     public Object visitTupleSelector(@NotNull cqlParser.TupleSelectorContext ctx) {
         Tuple tuple = of.createTuple();
-        TupleType tupleType = new TupleType();
+        List<TupleTypeElement> tupleElements = new ArrayList<>();
         for (cqlParser.TupleElementSelectorContext elementContext : ctx.tupleElementSelector()) {
             TupleElement element = (TupleElement)visit(elementContext);
-            tupleType.addElement(new TupleTypeElement(element.getName(), element.getResultType()));
+            tupleElements.add(new TupleTypeElement(element.getName(), element.getResultType()));
             tuple.getElement().add(element);
         }
-        tuple.setResultType(tupleType);
+        tuple.setResultType(TupleType.of(tupleElements));
         return tuple;
     }
 
@@ -789,7 +831,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         if (elementTypeSpecifier != null) {
             ListTypeSpecifier listTypeSpecifier = of.createListTypeSpecifier().withElementType(elementTypeSpecifier);
             track(listTypeSpecifier, ctx.typeSpecifier());
-            listType = new ListType(elementTypeSpecifier.getResultType());
+            listType = ListType.of(elementTypeSpecifier.getResultType());
             listTypeSpecifier.setResultType(listType);
         }
 
@@ -841,7 +883,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         }
 
         if (listType == null) {
-            listType = new ListType(elementType);
+            listType = ListType.of(elementType);
         }
 
         list.setResultType(listType);
@@ -1625,7 +1667,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                 }
 
                 if (elementTypes.size() > 1) {
-                    ListType targetType = new ListType(new ChoiceType(elementTypes));
+                    ListType targetType = ListType.of(ChoiceType.of(elementTypes));
                     left = of.createAs().withOperand(left).withAsTypeSpecifier(libraryBuilder.dataTypeToTypeSpecifier(targetType));
                     track(left, ctx.expression(0));
                     left.setResultType(targetType);
@@ -2790,8 +2832,11 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         }
 
         retrieves.add(retrieve);
+        if (definitionCache != null) {
+            definitionCache.recordRetrieve(retrieve);
+        }
 
-        retrieve.setResultType(new ListType((DataType) namedType));
+        retrieve.setResultType(ListType.of((DataType) namedType));
 
         return retrieve;
     }
@@ -2849,10 +2894,8 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                 }
 
                 Expression where = ctx.whereClause() != null ? (Expression) visit(ctx.whereClause()) : null;
-                if (dateRangeOptimization && where != null) {
-                    for (AliasedQuerySource aqs : sources) {
-                        where = optimizeDateRangeInQuery(where, aqs);
-                    }
+                if (dateRangeOptimization) {
+                    where = optimizeDateRanges(sources, dfcx, qicx, where);
                 }
 
                 ReturnClause ret = ctx.returnClause() != null ? (ReturnClause) visit(ctx.returnClause()) : null;
@@ -2861,7 +2904,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                             .withDistinct(true);
 
                     Tuple returnExpression = of.createTuple();
-                    TupleType returnType = new TupleType();
+                    List<TupleTypeElement> returnElements = new ArrayList<>();
                     for (AliasedQuerySource aqs : sources) {
                         TupleElement element =
                                 of.createTupleElement()
@@ -2870,11 +2913,12 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
                         DataType sourceType = aqs.getResultType() instanceof ListType ? ((ListType)aqs.getResultType()).getElementType() : aqs.getResultType();
                         element.getValue().setResultType(sourceType); // Doesn't use the fluent API to avoid casting
                         element.setResultType(element.getValue().getResultType());
-                        returnType.addElement(new TupleTypeElement(element.getName(), element.getResultType()));
+                        returnElements.add(new TupleTypeElement(element.getName(), element.getResultType()));
                         returnExpression.getElement().add(element);
                     }
 
-                    returnExpression.setResultType(queryContext.isSingular() ? returnType : new ListType(returnType));
+                    TupleType returnType = TupleType.of(returnElements);
+                    returnExpression.setResultType(queryContext.isSingular() ? returnType : ListType.of(returnType));
                     ret.setExpression(returnExpression);
                     ret.setResultType(returnExpression.getResultType());
                 }
@@ -2946,13 +2990,17 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
      * clause after optimization.
      */
     public Expression optimizeDateRangeInQuery(Expression where, AliasedQuerySource aqs) {
+        return optimizeDateRangeInQuery(where, aqs, new DateRangeScope(Collections.singletonList(aqs), null, null));
+    }
+
+    private Expression optimizeDateRangeInQuery(Expression where, AliasedQuerySource aqs, DateRangeScope scope) {
         if (aqs.getExpression() instanceof Retrieve) {
             Retrieve retrieve = (Retrieve) aqs.getExpression();
             String alias = aqs.getAlias();
-            if ((where instanceof IncludedIn || where instanceof In) && attemptDateRangeOptimization((BinaryExpression) where, retrieve, alias)) {
+            if ((where instanceof IncludedIn || where instanceof In) && attemptDateRangeOptimization((BinaryExpression) where, retrieve, alias, scope)) {
                 where = null;
             }
-            else if (where instanceof And && attemptDateRangeOptimization((And) where, retrieve, alias)) {
+            else if (where instanceof And && attemptDateRangeOptimization((And) where, retrieve, alias, scope)) {
                 // Now optimize out the trues from the Ands
                 where = consolidateAnd((And) where);
             }
@@ -2960,6 +3008,321 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         return where;
     }
 
+    /**
+     * Optimizes the date ranges of the retrieves of a query. First, as <code>optimizeDateRangeInQuery</code>, a
+     * <code>during</code> of a primary source in the where clause is moved into the retrieve. Then, for the retrieves
+     * that are still not restricted by date, the terms of the where clause (for the primary sources) and of the such
+     * that conditions of the relationship clauses (for the related sources, and for the primary sources in the case
+     * of a <code>with</code>) are used to bound the date range of the retrieve (see
+     * <code>optimizeDateRangeBounds</code>).
+     *
+     * @return the where clause with optimized "durings" removed
+     */
+    private Expression optimizeDateRanges(List<AliasedQuerySource> sources, List<LetClause> lets,
+                                          List<RelationshipClause> relationships, Expression where) {
+        DateRangeScope scope = new DateRangeScope(sources, lets, relationships);
+        if (where != null) {
+            for (AliasedQuerySource aqs : sources) {
+                where = optimizeDateRangeInQuery(where, aqs, scope);
+            }
+        }
+
+        for (AliasedQuerySource aqs : sources) {
+            optimizeDateRangeBounds(where, aqs, scope);
+            for (RelationshipClause relationship : relationships) {
+                if (relationship instanceof With) {
+                    optimizeDateRangeBounds(relationship.getSuchThat(), aqs, scope);
+                }
+            }
+        }
+
+        for (RelationshipClause relationship : relationships) {
+            optimizeDateRangeBounds(relationship.getSuchThat(), relationship, scope);
+        }
+
+        return where;
+    }
+
+    /**
+     * The aliases and let clauses of a query. A retrieve of the query is evaluated before any of them are bound, so
+     * its date range cannot refer to them, except that a let clause can be referenced by using its expression.
+     */
+    private static class DateRangeScope {
+        private final Set<String> aliases = new HashSet<>();
+        private final Map<String, LetClause> lets = new HashMap<>();
+
+        public DateRangeScope(List<AliasedQuerySource> sources, List<LetClause> lets,
+                              List<RelationshipClause> relationships) {
+            for (AliasedQuerySource source : sources) {
+                aliases.add(source.getAlias());
+            }
+            if (lets != null) {
+                for (LetClause let : lets) {
+                    this.lets.put(let.getIdentifier(), let);
+                }
+            }
+            if (relationships != null) {
+                for (RelationshipClause relationship : relationships) {
+                    aliases.add(relationship.getAlias());
+                }
+            }
+        }
+
+        /**
+         * Returns the expression to use as (or to derive) the date range of a retrieve of the query, or
+         * <code>null</code> if the given expression depends on the aliases or let clauses of the query.
+         */
+        public Expression resolve(Expression range) {
+            if (range instanceof QueryLetRef && lets.containsKey(((QueryLetRef)range).getName())) {
+                range = lets.get(((QueryLetRef)range).getName()).getExpression();
+            }
+
+            return ElmNodes.anyMatch(range, this::isQueryReference) ? null : range;
+        }
+
+        private boolean isQueryReference(Object node) {
+            return (node instanceof AliasRef && aliases.contains(((AliasRef)node).getName()))
+                    || (node instanceof Property && ((Property)node).getScope() != null && aliases.contains(((Property)node).getScope()))
+                    || (node instanceof QueryLetRef && lets.containsKey(((QueryLetRef)node).getName()));
+        }
+    }
+
+    /**
+     * The bounds on the date property of a retrieve implied by the terms of a condition.
+     */
+    private static class DateRangeBounds {
+        private String path;
+        private Expression range;
+        private Expression low;
+        private boolean lowClosed;
+        private Expression high;
+        private boolean highClosed;
+
+        /**
+         * Only bounds on the same property can be combined, the first property bounded is the one used.
+         */
+        public boolean accept(String path) {
+            if (this.path == null) {
+                this.path = path;
+            }
+
+            return this.path.equals(path);
+        }
+    }
+
+    /**
+     * Bounds the date range of the retrieve of the given source with the terms of the given condition that restrict
+     * the date of the source to a range that can be determined before the retrieve, in addition to those
+     * <code>optimizeDateRangeInQuery</code> handles:
+     * <ul>
+     *     <li><code>starts</code> and <code>ends</code> (the date must be within the range),</li>
+     *     <li><code>starts during</code> (the date must be on or after the start of the range),</li>
+     *     <li><code>ends during</code> (the date must be on or before the end of the range),</li>
+     *     <li><code>on or after</code>, <code>after</code>, <code>on or before</code> and <code>before</code>,
+     *     including their <code>starts</code> and <code>ends</code> forms, and</li>
+     *     <li>comparisons of the date with a DateTime.</li>
+     * </ul>
+     * Where the terms give a lower and an upper bound for the same date property, the range is between them, otherwise
+     * it extends to the minimum or maximum DateTime. Terms with a precision are not used, because their range would
+     * have to be widened to the precision.
+     *
+     * The retrieve's date range only restricts the date to a range that is implied by the condition, so the condition
+     * is not changed. A retrieve can only be restricted to be within a range, so <code>overlaps</code> (of any kind)
+     * and <code>includes</code> terms cannot be used.
+     */
+    private void optimizeDateRangeBounds(Expression condition, AliasedQuerySource aqs, DateRangeScope scope) {
+        if (condition == null || !(aqs.getExpression() instanceof Retrieve)) {
+            return;
+        }
+
+        Retrieve retrieve = (Retrieve) aqs.getExpression();
+        if (retrieve.getDateProperty() != null || retrieve.getDateRange() != null) {
+            return;
+        }
+
+        DateRangeBounds bounds = new DateRangeBounds();
+        addDateRangeBounds(condition, aqs.getAlias(), scope, bounds);
+        if (bounds.range != null) {
+            retrieve.setDateProperty(bounds.path);
+            retrieve.setDateRange(copyDateRange(bounds.range));
+        }
+        else if (bounds.low != null || bounds.high != null) {
+            DataType dateTimeType = libraryBuilder.resolveTypeName("System", "DateTime");
+            Expression low = bounds.low;
+            if (low == null) {
+                MinValue minimum = of.createMinValue();
+                minimum.setValueType(libraryBuilder.dataTypeToQName(dateTimeType));
+                minimum.setResultType(dateTimeType);
+                low = minimum;
+            }
+            Expression high = bounds.high;
+            if (high == null) {
+                MaxValue maximum = of.createMaxValue();
+                maximum.setValueType(libraryBuilder.dataTypeToQName(dateTimeType));
+                maximum.setResultType(dateTimeType);
+                high = maximum;
+            }
+
+            retrieve.setDateProperty(bounds.path);
+            retrieve.setDateRange(copyDateRange(libraryBuilder.createInterval(low, bounds.low == null || bounds.lowClosed,
+                    high, bounds.high == null || bounds.highClosed)));
+        }
+    }
+
+    /**
+     * Returns a copy of the given expression to use as the date range of a retrieve, as the expression (or the
+     * expressions it is derived from) also stays in the condition or let clause it was taken from. The copy has no
+     * local ids, so they remain unique in the library.
+     */
+    private Expression copyDateRange(Expression range) {
+        Map<Object, Object> copies = new IdentityHashMap<>();
+        Expression result = (Expression)ElmNodes.copy(range, copies);
+        for (Object copy : copies.values()) {
+            if (copy instanceof Element) {
+                ((Element)copy).setLocalId(null);
+            }
+        }
+        return result;
+    }
+
+    private void addDateRangeBounds(Expression condition, String alias, DateRangeScope scope, DateRangeBounds bounds) {
+        if (condition instanceof And) {
+            for (Expression operand : ((And) condition).getOperand()) {
+                addDateRangeBounds(operand, alias, scope, bounds);
+            }
+            return;
+        }
+
+        if (!(condition instanceof BinaryExpression) || getDateTimePrecision((BinaryExpression) condition) != null) {
+            return;
+        }
+
+        BinaryExpression term = (BinaryExpression) condition;
+        Expression left = term.getOperand().get(0);
+        Expression right = term.getOperand().get(1);
+
+        if (term instanceof In || term instanceof IncludedIn || term instanceof Starts || term instanceof Ends) {
+            Expression range = scope.resolve(right);
+            if (range == null || !range.getResultType().isSubTypeOf(IntervalType.of(libraryBuilder.resolveTypeName("System", "DateTime")))) {
+                return;
+            }
+
+            String path = getPropertyPath(left, alias);
+            if (path != null) {
+                if (bounds.accept(path) && bounds.range == null) {
+                    bounds.range = range;
+                }
+            }
+            else if (term instanceof In && (left instanceof Start || left instanceof End)) {
+                path = getPropertyPath(((UnaryExpression) left).getOperand(), alias);
+                if (path != null && bounds.accept(path)) {
+                    if (left instanceof Start) {
+                        addDateRangeBound(bounds, true, createStart(range), true);
+                    }
+                    else {
+                        addDateRangeBound(bounds, false, createEnd(range), true);
+                    }
+                }
+            }
+            return;
+        }
+
+        boolean lower;
+        boolean closed;
+        if (term instanceof SameOrAfter || term instanceof GreaterOrEqual) {
+            lower = true;
+            closed = true;
+        }
+        else if (term instanceof After || term instanceof Greater) {
+            lower = true;
+            closed = false;
+        }
+        else if (term instanceof SameOrBefore || term instanceof LessOrEqual) {
+            lower = false;
+            closed = true;
+        }
+        else if (term instanceof Before || term instanceof Less) {
+            lower = false;
+            closed = false;
+        }
+        else {
+            return;
+        }
+
+        // Put the date of the source on the left
+        if (getBoundedPropertyPath(left, alias) == null && getBoundedPropertyPath(right, alias) != null) {
+            Expression swap = left;
+            left = right;
+            right = swap;
+            lower = !lower;
+        }
+
+        String path = getBoundedPropertyPath(left, alias);
+        Expression value = scope.resolve(right);
+        if (path == null || value == null || !isRHSEligibleForDateRangeOptimization(value)) {
+            return;
+        }
+
+        // Only the start of an interval can be bounded from below, and only the end from above
+        if ((lower && left instanceof End) || (!lower && left instanceof Start) || !bounds.accept(path)) {
+            return;
+        }
+
+        // A date after an interval is after its end, and a date before an interval is before its start
+        if (value.getResultType() instanceof IntervalType) {
+            value = lower ? createEnd(value) : createStart(value);
+        }
+
+        addDateRangeBound(bounds, lower, value, closed);
+    }
+
+    private void addDateRangeBound(DateRangeBounds bounds, boolean lower, Expression value, boolean closed) {
+        if (lower && bounds.low == null) {
+            bounds.low = value;
+            bounds.lowClosed = closed;
+        }
+        else if (!lower && bounds.high == null) {
+            bounds.high = value;
+            bounds.highClosed = closed;
+        }
+    }
+
+    /**
+     * Returns the path of the date property of the given source that is the given expression, or whose start or end
+     * is the given expression.
+     */
+    private String getBoundedPropertyPath(Expression expression, String alias) {
+        if (expression instanceof Start || expression instanceof End) {
+            return getPropertyPath(((UnaryExpression) expression).getOperand(), alias);
+        }
+
+        return getPropertyPath(expression, alias);
+    }
+
+    private DateTimePrecision getDateTimePrecision(BinaryExpression term) {
+        if (term instanceof In) return ((In) term).getPrecision();
+        if (term instanceof IncludedIn) return ((IncludedIn) term).getPrecision();
+        if (term instanceof Starts) return ((Starts) term).getPrecision();
+        if (term instanceof Ends) return ((Ends) term).getPrecision();
+        if (term instanceof SameOrAfter) return ((SameOrAfter) term).getPrecision();
+        if (term instanceof SameOrBefore) return ((SameOrBefore) term).getPrecision();
+        if (term instanceof After) return ((After) term).getPrecision();
+        if (term instanceof Before) return ((Before) term).getPrecision();
+        return null;
+    }
+
+    private Expression createStart(Expression interval) {
+        Start start = of.createStart().withOperand(interval);
+        libraryBuilder.resolveUnaryCall("System", "Start", start);
+        return start;
+    }
+
+    private Expression createEnd(Expression interval) {
+        End end = of.createEnd().withOperand(interval);
+        libraryBuilder.resolveUnaryCall("System", "End", end);
+        return end;
+    }
+
     /**
      * Test a <code>BinaryExpression</code> expression and determine if it is suitable to be refactored into the
      * <code>Retrieve</code> as a date range restriction.  If so, adjust the <code>Retrieve</code>
@@ -2971,18 +3334,19 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
      * @return <code>true</code> if the date range was set in the <code>Retrieve</code>; <code>false</code>
      * otherwise.
      */
-    private boolean attemptDateRangeOptimization(BinaryExpression during, Retrieve retrieve, String alias) {
+    private boolean attemptDateRangeOptimization(BinaryExpression during, Retrieve retrieve, String alias, DateRangeScope scope) {
         if (retrieve.getDateProperty() != null || retrieve.getDateRange() != null) {
             return false;
         }
 
         Expression left = during.getOperand().get(0);
-        Expression right = during.getOperand().get(1);
+        Expression right = scope.resolve(during.getOperand().get(1));
 
         String propertyPath = getPropertyPath(left, alias);
-        if (propertyPath != null && isRHSEligibleForDateRangeOptimization(right)) {
+        if (propertyPath != null && right != null && isRHSEligibleForDateRangeOptimization(right)) {
             retrieve.setDateProperty(propertyPath);
-            retrieve.setDateRange(right);
+            // The during is removed from the where clause, but the expression of a let clause stays in the let
+            retrieve.setDateRange(right != during.getOperand().get(1) ? copyDateRange(right) : right);
             return true;
         }
 
@@ -3028,18 +3392,18 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
      * @return <code>true</code> if the date range was set in the <code>Retrieve</code> and the <code>And</code>
      * operands (or sub-operands) were modified; <code>false</code> otherwise.
      */
-    private boolean attemptDateRangeOptimization(And and, Retrieve retrieve, String alias) {
+    private boolean attemptDateRangeOptimization(And and, Retrieve retrieve, String alias, DateRangeScope scope) {
         if (retrieve.getDateProperty() != null || retrieve.getDateRange() != null) {
             return false;
         }
 
         for (int i = 0; i < and.getOperand().size(); i++) {
             Expression operand = and.getOperand().get(i);
-            if ((operand instanceof IncludedIn || operand instanceof In) && attemptDateRangeOptimization((BinaryExpression) operand, retrieve, alias)) {
+            if ((operand instanceof IncludedIn || operand instanceof In) && attemptDateRangeOptimization((BinaryExpression) operand, retrieve, alias, scope)) {
                 // Replace optimized part in And with true -- to be optimized out later
                 and.getOperand().set(i, libraryBuilder.createLiteral(true));
                 return true;
-            } else if (operand instanceof And && attemptDateRangeOptimization((And) operand, retrieve, alias)) {
+            } else if (operand instanceof And && attemptDateRangeOptimization((And) operand, retrieve, alias, scope)) {
                 return true;
             }
         }
@@ -3083,7 +3447,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
     private boolean isRHSEligibleForDateRangeOptimization(Expression rhs) {
         return
             rhs.getResultType().isSubTypeOf(libraryBuilder.resolveTypeName("System", "DateTime"))
-                || rhs.getResultType().isSubTypeOf(new IntervalType(libraryBuilder.resolveTypeName("System", "DateTime")));
+                || rhs.getResultType().isSubTypeOf(IntervalType.of(libraryBuilder.resolveTypeName("System", "DateTime")));
 
         // BTR: The only requirement for the optimization is that the expression be of type DateTime or Interval<DateTime>
         // Whether or not the expression can be statically evaluated (literal, in the loose sense of the word) is really
@@ -3213,7 +3577,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         returnClause.setExpression(parseExpression(ctx.expression()));
         returnClause.setResultType(libraryBuilder.peekQueryContext().isSingular()
                 ? returnClause.getExpression().getResultType()
-                : new ListType(returnClause.getExpression().getResultType()));
+                : ListType.of(returnClause.getExpression().getResultType()));
 
         return returnClause;
     }
@@ -3348,23 +3712,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         if (result == null) {
             ExpressionDefinitionInfo expressionInfo = libraryInfo.resolveExpressionReference(identifier);
             if (expressionInfo != null) {
-                String saveContext = currentContext;
-                currentContext = expressionInfo.getContext();
-                try {
-                    Stack<Chunk> saveChunks = chunks;
-                    chunks = new Stack<Chunk>();
-                    forwards.push(expressionInfo);
-                    try {
-                        // Have to call the visit to get the outer processing to occur
-                        visit(expressionInfo.getDefinition());
-                    }
-                    finally {
-                        chunks = saveChunks;
-                        forwards.pop();
-                    }
-                } finally {
-                    currentContext = saveContext;
-                }
+                visitForwardExpressionDefinition(expressionInfo);
             }
 
             ParameterDefinitionInfo parameterInfo = libraryInfo.resolveParameterReference(identifier);
@@ -3405,23 +3753,7 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
             Iterable<FunctionDefinitionInfo> functionInfos = libraryInfo.resolveFunctionReference(functionName);
             if (functionInfos != null) {
                 for (FunctionDefinitionInfo functionInfo : functionInfos) {
-                    String saveContext = currentContext;
-                    currentContext = functionInfo.getContext();
-                    try {
-                        Stack<Chunk> saveChunks = chunks;
-                        chunks = new Stack<Chunk>();
-                        forwardFunctions.push(functionInfo);
-                        try {
-                            // Have to call the visit to allow the outer processing to occur
-                            visit(functionInfo.getDefinition());
-                        }
-                        finally {
-                            forwardFunctions.pop();
-                            chunks = saveChunks;
-                        }
-                    } finally {
-                        currentContext = saveContext;
-                    }
+                    visitForwardFunctionDefinition(functionInfo);
                 }
             }
             result = libraryBuilder.resolveFunction(libraryName, functionName, expressions, true);
@@ -3430,6 +3762,105 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         return result;
     }
 
+    private void visitForwardExpressionDefinition(ExpressionDefinitionInfo expressionInfo) {
+        String saveContext = currentContext;
+        currentContext = expressionInfo.getContext();
+        try {
+            Stack<Chunk> saveChunks = chunks;
+            chunks = new Stack<Chunk>();
+            forwards.push(expressionInfo);
+            try {
+                // Have to call the visit to get the outer processing to occur
+                visit(expressionInfo.getDefinition());
+            }
+            finally {
+                chunks = saveChunks;
+                forwards.pop();
+            }
+        } finally {
+            currentContext = saveContext;
+        }
+    }
+
+    private void visitForwardFunctionDefinition(FunctionDefinitionInfo functionInfo) {
+        String saveContext = currentContext;
+        currentContext = functionInfo.getContext();
+        try {
+            Stack<Chunk> saveChunks = chunks;
+            chunks = new Stack<Chunk>();
+            forwardFunctions.push(functionInfo);
+            try {
+                // Have to call the visit to allow the outer processing to occur
+                visit(functionInfo.getDefinition());
+            }
+            finally {
+                forwardFunctions.pop();
+                chunks = saveChunks;
+            }
+        } finally {
+            currentContext = saveContext;
+        }
+    }
+
+    private void beginDefinition(ParserRuleContext ctx, String name) {
+        if (definitionCache != null) {
+            definitionCache.beginDefinition(ctx, name, currentContext);
+        }
+    }
+
+    private void endDefinition(ExpressionDef def) {
+        if (definitionCache != null) {
+            definitionCache.endDefinition(def);
+        }
+    }
+
+    private void definitionTranslated(ExpressionDef def, long start) {
+        TranslationListener listener = libraryBuilder.getTranslationListener();
+        if (listener != null) {
+            listener.definitionTranslated(def, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reuses the definition translated from the same source by a previous translation, if the definition cache
+     * allows it. The definitions it references are visited first, so that they are added to the library in the same
+     * order as they would be if the definition was translated again.
+     */
+    private <T extends ExpressionDef> T reuseDefinition(ParserRuleContext ctx) {
+        if (definitionCache == null) {
+            return null;
+        }
+
+        DefinitionCache.Entry entry = definitionCache.reuse(ctx, currentContext);
+        if (entry == null) {
+            return null;
+        }
+
+        for (String reference : entry.getReferences()) {
+            if (libraryBuilder.resolve(reference) == null) {
+                ExpressionDefinitionInfo expressionInfo = libraryInfo.resolveExpressionReference(reference);
+                if (expressionInfo != null && expressionInfo.getDefinition() != null) {
+                    visitForwardExpressionDefinition(expressionInfo);
+                }
+            }
+
+            Iterable<FunctionDefinitionInfo> functionInfos = libraryInfo.resolveFunctionReference(reference);
+            if (functionInfos != null) {
+                for (FunctionDefinitionInfo functionInfo : functionInfos) {
+                    visitForwardFunctionDefinition(functionInfo);
+                }
+            }
+        }
+
+        definitionCache.replayExceptions(entry);
+        libraryBuilder.addExpression(entry.getDefinition());
+        retrieves.addAll(entry.getRetrieves());
+
+        @SuppressWarnings("unchecked")
+        T result = (T)entry.getDefinition();
+        return result;
+    }
+
     @Override
     public Expression visitFunction(@NotNull cqlParser.FunctionContext ctx) {
         if (libraryBuilder.hasExpressionTarget()) {
@@ -3493,48 +3924,66 @@ public class Cql2ElmVisitor extends cqlBaseVisitor {
         }
 
         if (!libraryBuilder.getTranslatedLibrary().contains(fun)) {
-            if (ctx.functionBody() != null) {
-                libraryBuilder.beginFunctionDef(fun);
+            long start = System.nanoTime();
+            FunctionDef reused = reuseDefinition(ctx);
+            if (reused != null) {
+                definitionTranslated(reused, start);
+                return reused;
+            }
+
+            beginDefinition(ctx, fun.getName());
+            try {
+                translateFunctionDefinition(ctx, fun, resultType);
+            }
+            finally {
+                endDefinition(fun);
+            }
+            definitionTranslated(fun, start);
+        }
+
+        return fun;
+    }
+
+    private void translateFunctionDefinition(@NotNull cqlParser.FunctionDefinitionContext ctx, FunctionDef fun, TypeSpecifier resultType) {
+        if (ctx.functionBody() != null) {
+            libraryBuilder.beginFunctionDef(fun);
+            try {
+                libraryBuilder.pushExpressionContext(currentContext);
                 try {
-                    libraryBuilder.pushExpressionContext(currentContext);
+                    libraryBuilder.pushExpressionDefinition(String.format("%s()", fun.getName()));
                     try {
-                        libraryBuilder.pushExpressionDefinition(String.format("%s()", fun.getName()));
-                        try {
-                            fun.setExpression(parseExpression(ctx.functionBody()));
-                        } finally {
-                            libraryBuilder.popExpressionDefinition();
-                        }
+                        fun.setExpression(parseExpression(ctx.functionBody()));
                     } finally {
-                        libraryBuilder.popExpressionContext();
+                        libraryBuilder.popExpressionDefinition();
                     }
                 } finally {
-                    libraryBuilder.endFunctionDef();
-                }
-
-                if (resultType != null && fun.getExpression() != null && fun.getExpression().getResultType() != null) {
-                    if (!DataTypes.subTypeOf(fun.getExpression().getResultType(), resultType.getResultType())) {
-                        throw new IllegalArgumentException(String.format("Function %s has declared return type %s but the function body returns incompatible type %s.",
-                                fun.getName(), resultType.getResultType(), fun.getExpression().getResultType()));
-                    }
+                    libraryBuilder.popExpressionContext();
                 }
-
-                fun.setResultType(fun.getExpression().getResultType());
+            } finally {
+                libraryBuilder.endFunctionDef();
             }
-            else {
-                fun.setExternal(true);
-                if (resultType == null) {
-                    throw new IllegalArgumentException(String.format("Function %s is marked external but does not declare a return type.", fun.getName()));
+
+            if (resultType != null && fun.getExpression() != null && fun.getExpression().getResultType() != null) {
+                if (!DataTypes.subTypeOf(fun.getExpression().getResultType(), resultType.getResultType())) {
+                    throw new IllegalArgumentException(String.format("Function %s has declared return type %s but the function body returns incompatible type %s.",
+                            fun.getName(), resultType.getResultType(), fun.getExpression().getResultType()));
                 }
-                fun.setResultType(resultType.getResultType());
             }
 
-            fun.setContext(currentContext);
-            if (fun.getResultType() != null) {
-                libraryBuilder.addExpression(fun);
+            fun.setResultType(fun.getExpression().getResultType());
+        }
+        else {
+            fun.setExternal(true);
+            if (resultType == null) {
+                throw new IllegalArgumentException(String.format("Function %s is marked external but does not declare a return type.", fun.getName()));
             }
+            fun.setResultType(resultType.getResultType());
         }
 
-        return fun;
+        fun.setContext(currentContext);
+        if (fun.getResultType() != null) {
+            libraryBuilder.addExpression(fun);
+        }
     }
 
     @Override
@@ -7,9 +7,13 @@ import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.misc.NotNull;
 import org.antlr.v4.runtime.misc.Nullable;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.cqframework.cql.TwoStageParser;
 import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
 import org.cqframework.cql.cql2elm.preprocessor.CqlPreprocessorVisitor;
+import org.cqframework.cql.elm.optimizing.ElmOptimizer;
+import org.cqframework.cql.elm.serializing.BinaryElm;
 import org.cqframework.cql.elm.tracking.TrackBack;
+import org.cqframework.cql.elm.visiting.ElmNodes;
 import org.cqframework.cql.gen.cqlLexer;
 import org.cqframework.cql.gen.cqlParser;
 import org.hl7.cql_annotations.r1.Annotation;
@@ -21,6 +25,8 @@ import org.hl7.elm_modelinfo.r1.ModelInfo;
 
 import javax.xml.bind.*;
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
@@ -37,10 +43,11 @@ public class CqlTranslator {
         DisableListTraversal,
         DisableDemotion,
         DisablePromotion,
-        DisableMethodInvocation
+        DisableMethodInvocation,
+        EnableElmOptimization
     }
-    public static enum Format { XML, JSON, COFFEE }
-    private static JAXBContext jaxbContext;
+    public static enum Format { XML, JSON, COFFEE, BINARY }
+    private static volatile JAXBContext jaxbContext;
 
     private Library library = null;
     private TranslatedLibrary translatedLibrary = null;
@@ -53,6 +60,7 @@ public class CqlTranslator {
     private ModelManager modelManager = null;
     private LibraryManager libraryManager = null;
     private CqlTranslatorException.ErrorSeverity errorLevel = CqlTranslatorException.ErrorSeverity.Info;
+    private TranslationListener listener = null;
 
     public static CqlTranslator fromText(String cqlText, ModelManager modelManager, LibraryManager libraryManager, CqlTranslator.Options... options) {
         return new CqlTranslator(new ANTLRInputStream(cqlText), modelManager, libraryManager, CqlTranslatorException.ErrorSeverity.Info, options);
@@ -90,29 +98,152 @@ public class CqlTranslator {
         return new CqlTranslator(new ANTLRInputStream(new FileInputStream(cqlFile)), modelManager, libraryManager, errorLevel, options);
     }
 
+    /**
+     * Translates the given CQL, reporting the timings and counts of the translation to the given listener. The
+     * listener is also told the time taken each time the result is converted to XML or JSON.
+     */
+    public static CqlTranslator fromText(String cqlText, ModelManager modelManager, LibraryManager libraryManager,
+                                         CqlTranslatorException.ErrorSeverity errorLevel, TranslationListener listener,
+                                         CqlTranslator.Options... options) {
+        return new CqlTranslator(new ANTLRInputStream(cqlText), modelManager, libraryManager, errorLevel, null, listener, options);
+    }
+
+    public static CqlTranslator fromStream(InputStream cqlStream, ModelManager modelManager, LibraryManager libraryManager,
+                                           CqlTranslatorException.ErrorSeverity errorLevel, TranslationListener listener,
+                                           CqlTranslator.Options... options) throws IOException {
+        return new CqlTranslator(new ANTLRInputStream(cqlStream), modelManager, libraryManager, errorLevel, null, listener, options);
+    }
+
+    public static CqlTranslator fromFile(File cqlFile, ModelManager modelManager, LibraryManager libraryManager,
+                                         CqlTranslatorException.ErrorSeverity errorLevel, TranslationListener listener,
+                                         CqlTranslator.Options... options) throws IOException {
+        return new CqlTranslator(new ANTLRInputStream(new FileInputStream(cqlFile)), modelManager, libraryManager, errorLevel, null, listener, options);
+    }
+
+    static CqlTranslator fromText(String cqlText, ModelManager modelManager, LibraryManager libraryManager,
+                                  CqlTranslatorException.ErrorSeverity errorLevel, DefinitionCache definitionCache,
+                                  CqlTranslator.Options... options) {
+        return new CqlTranslator(new ANTLRInputStream(cqlText), modelManager, libraryManager, errorLevel, definitionCache, null, options);
+    }
+
     private CqlTranslator(ANTLRInputStream is, ModelManager modelManager, LibraryManager libraryManager,
                           CqlTranslatorException.ErrorSeverity errorLevel, CqlTranslator.Options... options) {
+        this(is, modelManager, libraryManager, errorLevel, null, null, options);
+    }
+
+    private CqlTranslator(ANTLRInputStream is, ModelManager modelManager, LibraryManager libraryManager,
+                          CqlTranslatorException.ErrorSeverity errorLevel, DefinitionCache definitionCache,
+                          TranslationListener listener, CqlTranslator.Options... options) {
         this.modelManager = modelManager;
         this.libraryManager = libraryManager;
-        translateToELM(is, errorLevel, options);
+        this.listener = listener;
+        translateToELM(is, errorLevel, definitionCache, options);
+    }
+
+    private long phaseCompleted(TranslationListener.Phase phase, long start) {
+        long end = System.nanoTime();
+        if (listener != null) {
+            listener.phaseCompleted(phase, end - start);
+        }
+        return end;
     }
 
     public String toXml() {
+        long start = System.nanoTime();
         try {
             return convertToXml(library);
         }
         catch (JAXBException e) {
             throw new IllegalArgumentException("Could not convert library to XML.", e);
         }
+        finally {
+            phaseCompleted(TranslationListener.Phase.Serialization, start);
+        }
     }
 
     public String toJson() {
+        long start = System.nanoTime();
         try {
             return convertToJson(library);
         }
         catch (JAXBException e) {
             throw new IllegalArgumentException("Could not convert library to JSON.", e);
         }
+        finally {
+            phaseCompleted(TranslationListener.Phase.Serialization, start);
+        }
+    }
+
+    /**
+     * Writes the ELM XML for the library directly to the given stream, without building it as a string first.
+     * The output is the same as that of toXml(), encoded as UTF-8. The stream is not closed.
+     */
+    public void writeXml(OutputStream os) {
+        writeXml(library, os);
+    }
+
+    /**
+     * Writes the ELM XML for the given library, such as a pruned version of the translated library, to the given
+     * stream. The stream is not closed.
+     */
+    public void writeXml(Library library, OutputStream os) {
+        long start = System.nanoTime();
+        try {
+            xmlMarshaller.get().marshal(new ObjectFactory().createLibrary(library), os);
+        }
+        catch (JAXBException e) {
+            throw new IllegalArgumentException("Could not convert library to XML.", e);
+        }
+        finally {
+            phaseCompleted(TranslationListener.Phase.Serialization, start);
+        }
+    }
+
+    /**
+     * Writes the ELM JSON for the library directly to the given stream, without building it as a string first.
+     * The output is the same as that of toJson(), encoded as UTF-8. The stream is not closed.
+     */
+    public void writeJson(OutputStream os) {
+        writeJson(library, os);
+    }
+
+    /**
+     * Writes the ELM JSON for the given library, such as a pruned version of the translated library, to the given
+     * stream. The stream is not closed.
+     */
+    public void writeJson(Library library, OutputStream os) {
+        long start = System.nanoTime();
+        try {
+            jsonMarshaller.get().marshal(new ObjectFactory().createLibrary(library), os);
+        }
+        catch (JAXBException e) {
+            throw new IllegalArgumentException("Could not convert library to JSON.", e);
+        }
+        finally {
+            phaseCompleted(TranslationListener.Phase.Serialization, start);
+        }
+    }
+
+    /**
+     * Writes the library to the given stream in the compact binary ELM format (see BinaryElm). The stream is not
+     * closed.
+     */
+    public void writeBinary(OutputStream os) throws IOException {
+        writeBinary(library, os);
+    }
+
+    /**
+     * Writes the given library, such as a pruned version of the translated library, to the given stream in the
+     * compact binary ELM format. The stream is not closed.
+     */
+    public void writeBinary(Library library, OutputStream os) throws IOException {
+        long start = System.nanoTime();
+        try {
+            BinaryElm.write(library, os);
+        }
+        finally {
+            phaseCompleted(TranslationListener.Phase.Serialization, start);
+        }
     }
 
     public Library toELM() {
@@ -131,6 +262,21 @@ public class CqlTranslator {
         return retrieves;
     }
 
+    /**
+     * Returns the merged retrieves of the library and all the libraries it includes (see DataRequirements).
+     */
+    public DataRequirements getDataRequirements() {
+        return DataRequirements.collect(library, libraryManager);
+    }
+
+    /**
+     * Returns the definitions of the library and the libraries it includes that are reachable from the given
+     * definitions of the library (see PrunedLibraries).
+     */
+    public PrunedLibraries getPrunedLibraries(Collection<String> entryPoints) {
+        return PrunedLibraries.collect(library, libraryManager, entryPoints);
+    }
+
     public List<CqlTranslatorException> getExceptions() { return exceptions; }
 
     public List<CqlTranslatorException> getErrors() { return errors; }
@@ -139,16 +285,58 @@ public class CqlTranslator {
 
     public List<CqlTranslatorException> getMessages() { return messages; }
 
+    private static final String[] FHIR_HELPERS_VERSIONS = { "1.0.2", "1.6", "1.8", "3.0.0", "3.2.0" };
+
+    /**
+     * Parses the bundled FHIRHelpers libraries to populate the parser's prediction cache, which is shared by all the
+     * translations in the JVM, so that a long-running process doesn't pay for building it on its first translations.
+     */
+    public static void warmUpParser() throws IOException {
+        for (String version : FHIR_HELPERS_VERSIONS) {
+            try (InputStream is = CqlTranslator.class.getResourceAsStream(String.format("/org/hl7/fhir/FHIRHelpers-%s.cql", version))) {
+                // The FHIR model and its libraries are optional
+                if (is != null) {
+                    TwoStageParser.warmUp(is);
+                }
+            }
+        }
+    }
+
     public static JAXBContext getJaxbContext() {
-        if (jaxbContext == null) {
-            try {
-                jaxbContext = JAXBContext.newInstance(Library.class, Annotation.class);
-            } catch (JAXBException e) {
-                e.printStackTrace();
-                throw new RuntimeException("Error creating JAXBContext - " + e.getMessage());
+        JAXBContext result = jaxbContext;
+        if (result == null) {
+            synchronized (CqlTranslator.class) {
+                result = jaxbContext;
+                if (result == null) {
+                    try {
+                        result = JAXBContext.newInstance(Library.class, Annotation.class);
+                        jaxbContext = result;
+                    } catch (JAXBException e) {
+                        e.printStackTrace();
+                        throw new RuntimeException("Error creating JAXBContext - " + e.getMessage());
+                    }
+                }
             }
         }
-        return jaxbContext;
+        return result;
+    }
+
+    // Marshallers are not thread safe, but are relatively expensive to create and configure, so each thread keeps its own
+    private static final ThreadLocal<Marshaller> xmlMarshaller = ThreadLocal.withInitial(() -> createMarshaller(false));
+    private static final ThreadLocal<Marshaller> jsonMarshaller = ThreadLocal.withInitial(() -> createMarshaller(true));
+
+    private static Marshaller createMarshaller(boolean json) {
+        try {
+            Marshaller marshaller = getJaxbContext().createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            if (json) {
+                marshaller.setProperty("eclipselink.media-type", "application/json");
+            }
+            return marshaller;
+        }
+        catch (JAXBException e) {
+            throw new RuntimeException("Error creating Marshaller - " + e.getMessage(), e);
+        }
     }
 
     private class CqlErrorListener extends BaseErrorListener {
@@ -181,9 +369,15 @@ public class CqlTranslator {
         }
     }
 
-    private void translateToELM(ANTLRInputStream is, CqlTranslatorException.ErrorSeverity errorLevel, CqlTranslator.Options... options) {
+    private void translateToELM(ANTLRInputStream is, CqlTranslatorException.ErrorSeverity errorLevel,
+                                DefinitionCache definitionCache, CqlTranslator.Options... options) {
+        long start = System.nanoTime();
         cqlLexer lexer = new cqlLexer(is);
         CommonTokenStream tokens = new CommonTokenStream(lexer);
+        // Lex the whole library up front so that lexing and parsing can be timed separately
+        tokens.fill();
+        start = phaseCompleted(TranslationListener.Phase.Lexing, start);
+
         cqlParser parser = new cqlParser(tokens);
         parser.setBuildParseTree(true);
 
@@ -193,6 +387,7 @@ public class CqlTranslator {
         messages = new ArrayList<>();
         LibraryBuilder builder = new LibraryBuilder(modelManager, libraryManager);
         builder.setErrorLevel(errorLevel);
+        builder.setTranslationListener(listener);
         List<CqlTranslator.Options> optionList = Arrays.asList(options);
         Cql2ElmVisitor visitor = new Cql2ElmVisitor(builder);
         if (optionList.contains(CqlTranslator.Options.EnableDateRangeOptimization)) {
@@ -225,18 +420,41 @@ public class CqlTranslator {
 
         parser.removeErrorListeners(); // Clear the default console listener
         parser.addErrorListener(new CqlTranslator.CqlErrorListener(builder, visitor.isDetailedErrorsEnabled()));
-        ParseTree tree = parser.library();
+        ParseTree tree = TwoStageParser.parseLibrary(parser);
+        start = phaseCompleted(TranslationListener.Phase.Parsing, start);
 
         CqlPreprocessorVisitor preprocessor = new CqlPreprocessorVisitor();
         preprocessor.visit(tree);
+        start = phaseCompleted(TranslationListener.Phase.Preprocessing, start);
 
         visitor.setTokenStream(tokens);
         visitor.setLibraryInfo(preprocessor.getLibraryInfo());
 
+        if (definitionCache != null) {
+            definitionCache.beginTranslation((cqlParser.LibraryContext)tree, tokens, builder, visitor);
+            builder.setDefinitionCache(definitionCache);
+            visitor.setDefinitionCache(definitionCache);
+        }
+
         visitResult = visitor.visit(tree);
+        start = phaseCompleted(TranslationListener.Phase.Visiting, start);
+
+        // Optimize before the definition cache records the definitions, so it keeps them as they are in the result
+        boolean optimized = optionList.contains(CqlTranslator.Options.EnableElmOptimization) && builder.getErrors().isEmpty();
+        if (optimized) {
+            ElmOptimizer.createDefault().optimize(builder.getLibrary());
+            phaseCompleted(TranslationListener.Phase.Optimization, start);
+        }
+        if (definitionCache != null) {
+            definitionCache.endTranslation(optimized);
+        }
+        if (listener != null) {
+            listener.translationCompleted(builder.getLibrary().getIdentifier(), builder.getConversionMap().getStatistics());
+        }
         library = builder.getLibrary();
         translatedLibrary = builder.getTranslatedLibrary();
-        retrieves = visitor.getRetrieves();
+        retrieves = optimized ? ElmNodes.retainContained(visitor.getRetrieves(), library.getStatements())
+                : visitor.getRetrieves();
         exceptions.addAll(builder.getExceptions());
         errors.addAll(builder.getErrors());
         warnings.addAll(builder.getWarnings());
@@ -244,20 +462,14 @@ public class CqlTranslator {
     }
 
     public String convertToXml(Library library) throws JAXBException {
-        Marshaller marshaller = getJaxbContext().createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
         StringWriter writer = new StringWriter();
-        marshaller.marshal(new ObjectFactory().createLibrary(library), writer);
+        xmlMarshaller.get().marshal(new ObjectFactory().createLibrary(library), writer);
         return writer.getBuffer().toString();
     }
 
     public String convertToJson(Library library) throws JAXBException {
-        Marshaller marshaller = getJaxbContext().createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.setProperty("eclipselink.media-type", "application/json");
-
         StringWriter writer = new StringWriter();
-        marshaller.marshal(new ObjectFactory().createLibrary(library), writer);
+        jsonMarshaller.get().marshal(new ObjectFactory().createLibrary(library), writer);
         return writer.getBuffer().toString();
     }
 
@@ -268,24 +480,26 @@ public class CqlTranslator {
         ModelInfoLoader.registerModelInfoProvider(modelId, modelProvider);
     }
 
-    private static void outputExceptions(Iterable<CqlTranslatorException> exceptions) {
+    static void outputExceptions(PrintStream log, Iterable<CqlTranslatorException> exceptions) {
         for (CqlTranslatorException error : exceptions) {
             TrackBack tb = error.getLocator();
             String lines = tb == null ? "[n/a]" : String.format("[%d:%d, %d:%d]",
                     tb.getStartLine(), tb.getStartChar(), tb.getEndLine(), tb.getEndChar());
-            System.err.printf("%s:%s %s%n", error.getSeverity(), lines, error.getMessage());
+            log.printf("%s:%s %s%n", error.getSeverity(), lines, error.getMessage());
         }
     }
 
-    private static void writeELM(Path inPath, Path outPath, CqlTranslator.Format format, boolean dateRangeOptimizations,
-                                 boolean annotations, boolean locators, boolean resultTypes, boolean verifyOnly,
-                                 boolean detailedErrors, CqlTranslatorException.ErrorSeverity errorLevel,
-                                 boolean disableListTraversal, boolean disableDemotion, boolean disablePromotion,
-                                 boolean disableMethodInvocation) throws IOException {
+    private static CqlTranslator.Options[] getOptions(boolean dateRangeOptimizations, boolean elmOptimizations, boolean annotations,
+                                                      boolean locators, boolean resultTypes, boolean detailedErrors,
+                                                      boolean disableListTraversal, boolean disableDemotion,
+                                                      boolean disablePromotion, boolean disableMethodInvocation) {
         ArrayList<CqlTranslator.Options> options = new ArrayList<>();
         if (dateRangeOptimizations) {
             options.add(CqlTranslator.Options.EnableDateRangeOptimization);
         }
+        if (elmOptimizations) {
+            options.add(CqlTranslator.Options.EnableElmOptimization);
+        }
         if (annotations) {
             options.add(CqlTranslator.Options.EnableAnnotations);
         }
@@ -310,57 +524,161 @@ public class CqlTranslator {
         if (disableMethodInvocation) {
             options.add(CqlTranslator.Options.DisableMethodInvocation);
         }
+        return options.toArray(new CqlTranslator.Options[options.size()]);
+    }
 
-        System.err.println("================================================================================");
-        System.err.printf("TRANSLATE %s%n", inPath);
+    private static String getExtension(CqlTranslator.Format format) {
+        switch (format) {
+            case JSON:
+                return ".json";
+            case COFFEE:
+                return ".coffee";
+            case BINARY:
+                return ".bin";
+            case XML:
+            default:
+                return ".xml";
+        }
+    }
 
+    private static Path getOutputPath(Path in, Path out, CqlTranslator.Format format) {
+        if (out.toFile().isDirectory()) {
+            // Use input filename with ".xml", ".json", ".coffee", or ".bin" extension
+            String name = in.toFile().getName();
+            if (name.lastIndexOf('.') != -1) {
+                name = name.substring(0, name.lastIndexOf('.'));
+            }
+            out = out.resolve(name + getExtension(format));
+        }
+
+        if (out.equals(in)) {
+            throw new IllegalArgumentException("input and output file must be different!");
+        }
+
+        return out;
+    }
+
+    private static void writeELM(Path inPath, Path outPath, CqlTranslator.Format format, boolean verifyOnly,
+                                 CqlTranslatorException.ErrorSeverity errorLevel, PrintStream stats,
+                                 Collection<String> entryPoints, boolean flatten,
+                                 CqlTranslator.Options... options) throws IOException {
         ModelManager modelManager = new ModelManager();
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(inPath.getParent()));
         libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
-        CqlTranslator translator = fromFile(inPath.toFile(), modelManager, libraryManager, errorLevel, options.toArray(new CqlTranslator.Options[options.size()]));
-        libraryManager.getLibrarySourceLoader().clearProviders();
+        try {
+            writeELM(inPath, outPath, format, verifyOnly, errorLevel, modelManager, libraryManager, System.err, stats,
+                    entryPoints, flatten, options);
+        }
+        finally {
+            libraryManager.getLibrarySourceLoader().clearProviders();
+        }
+    }
+
+    /**
+     * Translates the given file, writing a report of the translation to log. If stats is not null, the statistics of
+     * the translation are written to it as a single line of JSON (see TranslationStatistics). If entry points are
+     * given, only the definitions reachable from them are written, merged with those of the included libraries into
+     * a single library if flatten is set (see PrunedLibraries). Otherwise the included libraries with reachable
+     * definitions are written pruned as well, next to the output and named the way DefaultLibrarySourceProvider
+     * names sources (&lt;library&gt;[-&lt;version&gt;]). Returns the translator.
+     */
+    static CqlTranslator writeELM(Path inPath, Path outPath, CqlTranslator.Format format, boolean verifyOnly,
+                         CqlTranslatorException.ErrorSeverity errorLevel, ModelManager modelManager,
+                         LibraryManager libraryManager, PrintStream log, PrintStream stats,
+                         Collection<String> entryPoints, boolean flatten,
+                         CqlTranslator.Options... options) throws IOException {
+        log.println("================================================================================");
+        log.printf("TRANSLATE %s%n", inPath);
+
+        TranslationStatistics statistics = stats != null ? new TranslationStatistics() : null;
+        CqlTranslator translator = fromFile(inPath.toFile(), modelManager, libraryManager, errorLevel, statistics, options);
 
         if (translator.getErrors().size() > 0) {
-            System.err.println("Translation failed due to errors:");
-            outputExceptions(translator.getExceptions());
+            log.println("Translation failed due to errors:");
+            outputExceptions(log, translator.getExceptions());
         } else if (! verifyOnly) {
             if (translator.getExceptions().size() == 0) {
-                System.err.println("Translation completed successfully.");
+                log.println("Translation completed successfully.");
             }
             else {
-                System.err.println("Translation completed with messages:");
-                outputExceptions(translator.getExceptions());
+                log.println("Translation completed with messages:");
+                outputExceptions(log, translator.getExceptions());
             }
-            try (PrintWriter pw = new PrintWriter(outPath.toFile(), "UTF-8")) {
-                switch (format) {
-                    case COFFEE:
-                        pw.print("module.exports = ");
-                        pw.println(translator.toJson());
-                        break;
-                    case JSON:
-                        pw.println(translator.toJson());
-                        break;
-                    case XML:
-                    default:
-                        pw.println(translator.toXml());
+            Library library = translator.toELM();
+            if (!entryPoints.isEmpty()) {
+                PrunedLibraries prunedLibraries = translator.getPrunedLibraries(entryPoints);
+                if (flatten) {
+                    library = prunedLibraries.flatten();
                 }
-                pw.println();
+                else {
+                    List<Library> libraries = prunedLibraries.getLibraries();
+                    library = libraries.get(0);
+                    for (Library include : libraries.subList(1, libraries.size())) {
+                        VersionedIdentifier identifier = include.getIdentifier();
+                        Path includePath = outPath.resolveSibling(identifier.getId()
+                                + (identifier.getVersion() != null ? "-" + identifier.getVersion() : "")
+                                + getExtension(format));
+                        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(includePath))) {
+                            writeELM(translator, include, format, os);
+                        }
+                        log.println(String.format("ELM output written to: %s", includePath.toString()));
+                    }
+                }
+            }
+            // Stream the ELM straight to the file rather than building the whole document as a string first
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(outPath))) {
+                writeELM(translator, library, format, os);
             }
-            System.err.println(String.format("ELM output written to: %s", outPath.toString()));
+            log.println(String.format("ELM output written to: %s", outPath.toString()));
         }
 
-        System.err.println();
+        if (stats != null) {
+            // Concurrent translations share the stream, so write each library's statistics as a whole line
+            synchronized (stats) {
+                stats.println(statistics.toJson());
+                stats.flush();
+            }
+        }
+
+        log.println();
+        return translator;
+    }
+
+    static void writeELM(CqlTranslator translator, CqlTranslator.Format format, OutputStream os) throws IOException {
+        writeELM(translator, translator.toELM(), format, os);
+    }
+
+    static void writeELM(CqlTranslator translator, Library library, CqlTranslator.Format format, OutputStream os) throws IOException {
+        switch (format) {
+            case COFFEE:
+                os.write("module.exports = ".getBytes(StandardCharsets.UTF_8));
+                translator.writeJson(library, os);
+                break;
+            case JSON:
+                translator.writeJson(library, os);
+                break;
+            case BINARY:
+                translator.writeBinary(library, os);
+                return;
+            case XML:
+            default:
+                translator.writeXml(library, os);
+        }
+        byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        os.write(lineSeparator);
+        os.write(lineSeparator);
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
         OptionParser parser = new OptionParser();
-        OptionSpec<File> input = parser.accepts("input").withRequiredArg().ofType(File.class).required();
+        OptionSpec<File> input = parser.accepts("input").withRequiredArg().ofType(File.class);
         OptionSpec<File> model = parser.accepts("model").withRequiredArg().ofType(File.class);
         OptionSpec<File> output = parser.accepts("output").withRequiredArg().ofType(File.class);
         OptionSpec<CqlTranslator.Format> format = parser.accepts("format").withRequiredArg().ofType(CqlTranslator.Format.class).defaultsTo(CqlTranslator.Format.XML);
         OptionSpec verify = parser.accepts("verify");
         OptionSpec optimization = parser.accepts("date-range-optimization");
+        OptionSpec elmOptimization = parser.accepts("elm-optimization");
         OptionSpec annotations = parser.accepts("annotations");
         OptionSpec locators = parser.accepts("locators");
         OptionSpec resultTypes = parser.accepts("result-types");
@@ -370,11 +688,75 @@ public class CqlTranslator {
         OptionSpec disableDemotion = parser.accepts("disable-demotion");
         OptionSpec disablePromotion = parser.accepts("disable-promotion");
         OptionSpec disableMethodInvocation = parser.accepts("disable-method-invocation");
+        OptionSpec<String> entryPoint = parser.accepts("entry-point").withRequiredArg().ofType(String.class);
+        OptionSpec flatten = parser.accepts("flatten");
         OptionSpec strict = parser.accepts("strict");
         OptionSpec debug = parser.accepts("debug");
+        OptionSpec<Integer> parallel = parser.accepts("parallel").withRequiredArg().ofType(Integer.class);
+        OptionSpec<File> stats = parser.accepts("stats").withOptionalArg().ofType(File.class);
+        OptionSpec server = parser.accepts("server");
+        OptionSpec<Integer> port = parser.accepts("port").withRequiredArg().ofType(Integer.class).defaultsTo(8090);
+        OptionSpec<Integer> serverThreads = parser.accepts("server-threads").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSpec<Integer> serverQueue = parser.accepts("server-queue").withRequiredArg().ofType(Integer.class).defaultsTo(64);
+        OptionSpec<Integer> serverMaxRequest = parser.accepts("server-max-request").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(TranslationServer.DEFAULT_MAX_REQUEST_SIZE);
 
         OptionSet options = parser.parse(args);
 
+        if (options.has(model)) {
+            final File modelFile = options.valueOf(model);
+            if (! modelFile.exists() || modelFile.isDirectory()) {
+                throw new IllegalArgumentException("model must be a valid file!");
+            }
+            loadModelInfo(modelFile);
+        }
+
+        CqlTranslator.Options[] translatorOptions = getOptions(options.has(optimization), options.has(elmOptimization),
+                options.has(debug) || options.has(annotations),
+                options.has(debug) || options.has(locators),
+                options.has(debug) || options.has(resultTypes),
+                options.has(detailedErrors), // Didn't include in debug, maybe should...
+                options.has(strict) || options.has(disableListTraversal),
+                options.has(strict) || options.has(disableDemotion),
+                options.has(strict) || options.has(disablePromotion),
+                options.has(strict) || options.has(disableMethodInvocation));
+        CqlTranslatorException.ErrorSeverity translatorErrorLevel = options.has(errorLevel)
+                ? (CqlTranslatorException.ErrorSeverity)options.valueOf(errorLevel)
+                : CqlTranslatorException.ErrorSeverity.Info;
+
+        if (options.has(flatten) && ! options.has(entryPoint)) {
+            throw new IllegalArgumentException("flatten requires at least one entry-point!");
+        }
+
+        if (options.has(server)) {
+            // Included libraries are resolved from the input folder, if one is given
+            File libraryFolder = options.has(input) ? input.value(options) : null;
+            if (libraryFolder != null && ! libraryFolder.isDirectory()) {
+                throw new IllegalArgumentException("input must be a valid folder when running as a server!");
+            }
+
+            TranslationServer translationServer = new TranslationServer(port.value(options), serverThreads.value(options),
+                    serverQueue.value(options), serverMaxRequest.value(options), libraryFolder != null ? new DefaultLibrarySourceProvider(libraryFolder.toPath()) : null,
+                    format.value(options), translatorErrorLevel, translatorOptions);
+            translationServer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    translationServer.stop(5);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            System.err.printf("Translation server listening on http://%s:%d/translate%n",
+                    InetAddress.getLoopbackAddress().getHostAddress(), translationServer.getPort());
+            return;
+        }
+
+        if (! options.has(input)) {
+            throw new IllegalArgumentException("input is required unless running as a server!");
+        }
+
         final Path source = input.value(options).toPath();
         final Path destination =
                 output.value(options) != null
@@ -405,56 +787,40 @@ public class CqlTranslator {
             inOutMap.put(source, destination);
         }
 
+        Map<Path, Path> inOutputMap = new HashMap<>();
         for (Map.Entry<Path, Path> inOut : inOutMap.entrySet()) {
-            Path in = inOut.getKey();
-            Path out = inOut.getValue();
-            if (out.toFile().isDirectory()) {
-                // Use input filename with ".xml", ".json", or ".coffee" extension
-                String name = in.toFile().getName();
-                if (name.lastIndexOf('.') != -1) {
-                    name = name.substring(0, name.lastIndexOf('.'));
-                }
-                switch (outputFormat) {
-                    case JSON:
-                        name += ".json";
-                        break;
-                    case COFFEE:
-                        name += ".coffee";
-                        break;
-                    case XML:
-                    default:
-                        name += ".xml";
-                        break;
+            inOutputMap.put(inOut.getKey(), getOutputPath(inOut.getKey(), inOut.getValue(), outputFormat));
+        }
 
+        // Statistics are written to the given file, or to standard output, as one line of JSON per library
+        PrintStream statsStream = null;
+        if (options.has(stats)) {
+            statsStream = stats.value(options) != null
+                    ? new PrintStream(new FileOutputStream(stats.value(options)), false, "UTF-8")
+                    : System.out;
+        }
+
+        try {
+            if (options.has(parallel)) {
+                int threads = options.valueOf(parallel);
+                if (threads < 1) {
+                    throw new IllegalArgumentException("parallel must be at least 1!");
                 }
-                out = out.resolve(name);
+                new BatchTranslator(outputFormat, options.has(verify), translatorErrorLevel, statsStream,
+                        entryPoint.values(options), options.has(flatten), translatorOptions)
+                        .translate(inOutputMap, threads);
+                return;
             }
 
-            if (out.equals(in)) {
-                throw new IllegalArgumentException("input and output file must be different!");
+            for (Map.Entry<Path, Path> inOut : inOutputMap.entrySet()) {
+                writeELM(inOut.getKey(), inOut.getValue(), outputFormat, options.has(verify), translatorErrorLevel,
+                        statsStream, entryPoint.values(options), options.has(flatten), translatorOptions);
             }
-
-            if (options.has(model)) {
-                final File modelFile = options.valueOf(model);
-                if (! modelFile.exists() || modelFile.isDirectory()) {
-                    throw new IllegalArgumentException("model must be a valid file!");
-                }
-                loadModelInfo(modelFile);
+        }
+        finally {
+            if (statsStream != null && statsStream != System.out) {
+                statsStream.close();
             }
-
-            writeELM(in, out, outputFormat, options.has(optimization),
-                    options.has(debug) || options.has(annotations),
-                    options.has(debug) || options.has(locators),
-                    options.has(debug) || options.has(resultTypes),
-                    options.has(verify),
-                    options.has(detailedErrors), // Didn't include in debug, maybe should...
-                    options.has(errorLevel)
-                            ? (CqlTranslatorException.ErrorSeverity)options.valueOf(errorLevel)
-                            : CqlTranslatorException.ErrorSeverity.Info,
-                    options.has(strict) || options.has(disableListTraversal),
-                    options.has(strict) || options.has(disableDemotion),
-                    options.has(strict) || options.has(disablePromotion),
-                    options.has(strict) || options.has(disableMethodInvocation));
         }
     }
 }
@@ -24,21 +24,25 @@ public class CqlTranslatorException extends RuntimeException {
     public CqlTranslatorException(String message) {
         super(message);
         this.severity = ErrorSeverity.Error;
+        this.locator = null;
     }
 
     public CqlTranslatorException(String message, ErrorSeverity severity) {
         super(message);
         this.severity = severity;
+        this.locator = null;
     }
 
     public CqlTranslatorException(String message, Throwable cause) {
         super(message, cause);
         this.severity = ErrorSeverity.Error;
+        this.locator = null;
     }
 
     public CqlTranslatorException(String message, ErrorSeverity severity, Throwable cause) {
         super(message, cause);
         this.severity = severity;
+        this.locator = null;
     }
 
     public CqlTranslatorException(String message, TrackBack locator) {
@@ -71,7 +75,7 @@ public class CqlTranslatorException extends RuntimeException {
         return severity;
     }
 
-    private TrackBack locator;
+    private final TrackBack locator;
 
     public TrackBack getLocator() {
         return locator;
@@ -0,0 +1,323 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.hl7.elm.r1.*;
+
+import javax.xml.namespace.QName;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.List;
+
+/**
+ * The data requirements of a library and the libraries it includes: the retrieves of all the libraries, merged so
+ * that each distinct retrieve is listed once, for data access layers that want to fetch everything a library needs
+ * up front in a few queries rather than evaluating one retrieve at a time.
+ *
+ * Retrieves are merged when they have the same data type, template, code property and codes. Codes are compared by
+ * structure, with value set and code references compared by the value set or code they refer to, and other
+ * references by the library that defines them, so the same value set referenced from different libraries, or through
+ * different include aliases, is recognized as the same. The date range of a merged retrieve is the union of the date
+ * ranges of the retrieves it was merged from (see CqlTranslator.Options.EnableDateRangeOptimization); if any of them
+ * has no date range, or they filter on different date properties, the merged retrieve has no date range.
+ *
+ * Included libraries are resolved through the LibraryManager the same way the translator resolves them, so the
+ * libraries are normally taken from its cache rather than translated again.
+ */
+public class DataRequirements {
+    private final LibraryManager libraryManager;
+    private final Map<String, Library> libraries = new LinkedHashMap<>();
+    private final Map<String, DataRequirement> requirements = new LinkedHashMap<>();
+
+    /**
+     * An expression of one of the libraries, with the identifier of the library the names in the expression are
+     * resolved in.
+     */
+    public static class LibraryExpression {
+        private final VersionedIdentifier libraryIdentifier;
+        private final Expression expression;
+
+        public LibraryExpression(VersionedIdentifier libraryIdentifier, Expression expression) {
+            this.libraryIdentifier = libraryIdentifier;
+            this.expression = expression;
+        }
+
+        public VersionedIdentifier getLibraryIdentifier() {
+            return libraryIdentifier;
+        }
+
+        public Expression getExpression() {
+            return expression;
+        }
+    }
+
+    /**
+     * A distinct retrieve of the libraries, and the retrieves it was merged from.
+     */
+    public static class DataRequirement {
+        private final QName dataType;
+        private final String templateId;
+        private final String codeProperty;
+        private final LibraryExpression codes;
+        private String dateProperty;
+        private final List<LibraryExpression> dateRanges = new ArrayList<>();
+        private final Set<String> dateRangeKeys = new HashSet<>();
+        private boolean dateRestricted = true;
+        private final List<LibraryExpression> retrieves = new ArrayList<>();
+
+        private DataRequirement(VersionedIdentifier libraryIdentifier, Retrieve retrieve) {
+            this.dataType = retrieve.getDataType();
+            this.templateId = retrieve.getTemplateId();
+            this.codeProperty = retrieve.getCodeProperty();
+            this.codes = retrieve.getCodes() != null ? new LibraryExpression(libraryIdentifier, retrieve.getCodes()) : null;
+            this.dateProperty = retrieve.getDateProperty();
+        }
+
+        private void add(VersionedIdentifier libraryIdentifier, Retrieve retrieve, String dateRangeKey) {
+            retrieves.add(new LibraryExpression(libraryIdentifier, retrieve));
+            if (!dateRestricted) {
+                return;
+            }
+
+            if (retrieve.getDateRange() == null || retrieve.getDateProperty() == null
+                    || !retrieve.getDateProperty().equals(dateProperty)) {
+                dateRestricted = false;
+                dateProperty = null;
+                dateRanges.clear();
+                dateRangeKeys.clear();
+            }
+            else if (dateRangeKeys.add(dateRangeKey)) {
+                dateRanges.add(new LibraryExpression(libraryIdentifier, retrieve.getDateRange()));
+            }
+        }
+
+        public QName getDataType() {
+            return dataType;
+        }
+
+        public String getTemplateId() {
+            return templateId;
+        }
+
+        public String getCodeProperty() {
+            return codeProperty;
+        }
+
+        /**
+         * Returns the codes of the first of the merged retrieves, or null if the retrieves are not filtered by code.
+         */
+        public LibraryExpression getCodes() {
+            return codes;
+        }
+
+        /**
+         * Returns the date property the date ranges apply to, or null if the data is not restricted by date.
+         */
+        public String getDateProperty() {
+            return dateProperty;
+        }
+
+        /**
+         * Returns the distinct date ranges of the merged retrieves, the data required is that within any of them. The
+         * list is empty if the data is not restricted by date.
+         */
+        public List<LibraryExpression> getDateRanges() {
+            return dateRanges;
+        }
+
+        public List<LibraryExpression> getRetrieves() {
+            return retrieves;
+        }
+    }
+
+    private DataRequirements(LibraryManager libraryManager) {
+        this.libraryManager = libraryManager;
+    }
+
+    public static DataRequirements collect(Library library, LibraryManager libraryManager) {
+        if (library == null) {
+            throw new IllegalArgumentException("library is null.");
+        }
+
+        if (libraryManager == null) {
+            throw new IllegalArgumentException("libraryManager is null.");
+        }
+
+        DataRequirements result = new DataRequirements(libraryManager);
+        result.addLibrary(library);
+        return result;
+    }
+
+    /**
+     * Returns the identifiers of the library and all the libraries it includes, directly or indirectly.
+     */
+    public List<VersionedIdentifier> getLibraries() {
+        List<VersionedIdentifier> result = new ArrayList<>();
+        for (Library library : libraries.values()) {
+            result.add(library.getIdentifier());
+        }
+        return result;
+    }
+
+    public List<DataRequirement> getRequirements() {
+        return new ArrayList<>(requirements.values());
+    }
+
+    private void addLibrary(Library root) {
+        Deque<Library> pending = new ArrayDeque<>();
+        libraries.put(getKey(root.getIdentifier()), root);
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Library library = pending.remove();
+            if (library.getIncludes() != null) {
+                for (IncludeDef include : library.getIncludes().getDef()) {
+                    VersionedIdentifier identifier = getIncludeIdentifier(include);
+                    if (!libraries.containsKey(getKey(identifier))) {
+                        Library includedLibrary = libraryManager.resolveLibrary(identifier, null).getLibrary();
+                        libraries.put(getKey(identifier), includedLibrary);
+                        pending.add(includedLibrary);
+                    }
+                }
+            }
+        }
+
+        for (Library library : libraries.values()) {
+            List<Retrieve> retrieves = new ArrayList<>();
+            findRetrieves(library, retrieves);
+            for (Retrieve retrieve : retrieves) {
+                addRetrieve(library, retrieve);
+            }
+        }
+    }
+
+    private void addRetrieve(Library library, Retrieve retrieve) {
+        StringBuilder key = new StringBuilder();
+        key.append(retrieve.getDataType()).append('|').append(retrieve.getTemplateId()).append('|')
+                .append(retrieve.getCodeProperty()).append('|');
+        appendKey(key, retrieve.getCodes(), library);
+
+        DataRequirement requirement = requirements.get(key.toString());
+        if (requirement == null) {
+            requirement = new DataRequirement(library.getIdentifier(), retrieve);
+            requirements.put(key.toString(), requirement);
+        }
+
+        StringBuilder dateRangeKey = new StringBuilder();
+        appendKey(dateRangeKey, retrieve.getDateRange(), library);
+        requirement.add(library.getIdentifier(), retrieve, dateRangeKey.toString());
+    }
+
+    private static VersionedIdentifier getIncludeIdentifier(IncludeDef include) {
+        return new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion());
+    }
+
+    private static String getKey(VersionedIdentifier identifier) {
+        return String.format("%s|%s", identifier.getId(), identifier.getVersion());
+    }
+
+    private Library resolveLibrary(Library library, String libraryName) {
+        if (libraryName == null) {
+            return library;
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                if (include.getLocalIdentifier().equals(libraryName)) {
+                    return libraries.get(getKey(getIncludeIdentifier(include)));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Appends a key for the given ELM value to the given builder, such that two values have the same key if they have
+     * the same meaning in the libraries they are from.
+     */
+    private void appendKey(StringBuilder key, Object value, Library library) {
+        if (value == null) {
+            key.append("null");
+        }
+        else if (value instanceof List) {
+            key.append('[');
+            for (Object element : (List<?>)value) {
+                appendKey(key, element, library);
+                key.append(',');
+            }
+            key.append(']');
+        }
+        else if (value instanceof ValueSetRef && appendValueSetKey(key, (ValueSetRef)value, library)) {
+            return;
+        }
+        else if (value instanceof CodeRef && appendCodeKey(key, (CodeRef)value, library)) {
+            return;
+        }
+        else if (ElmNodes.isElmClass(value.getClass())) {
+            key.append(value.getClass().getSimpleName()).append('(');
+            for (Field field : ElmNodes.getFields(value.getClass())) {
+                Object fieldValue = ElmNodes.getValue(field, value);
+                if (field.getName().equals("libraryName")) {
+                    // References are to definitions of the current library unless they name an include
+                    Library referencedLibrary = resolveLibrary(library, (String)fieldValue);
+                    key.append("library=").append(referencedLibrary != null ? getKey(referencedLibrary.getIdentifier()) : fieldValue).append(';');
+                }
+                else if (fieldValue != null) {
+                    key.append(field.getName()).append('=');
+                    appendKey(key, fieldValue, library);
+                    key.append(';');
+                }
+            }
+            key.append(')');
+        }
+        else {
+            key.append(value);
+        }
+    }
+
+    private boolean appendValueSetKey(StringBuilder key, ValueSetRef valueSetRef, Library library) {
+        Library referencedLibrary = resolveLibrary(library, valueSetRef.getLibraryName());
+        if (referencedLibrary != null && referencedLibrary.getValueSets() != null) {
+            for (ValueSetDef valueSet : referencedLibrary.getValueSets().getDef()) {
+                if (valueSet.getName().equals(valueSetRef.getName())) {
+                    key.append("ValueSet(").append(valueSet.getId()).append('|').append(valueSet.getVersion()).append(')');
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean appendCodeKey(StringBuilder key, CodeRef codeRef, Library library) {
+        Library referencedLibrary = resolveLibrary(library, codeRef.getLibraryName());
+        if (referencedLibrary != null && referencedLibrary.getCodes() != null) {
+            for (CodeDef code : referencedLibrary.getCodes().getDef()) {
+                if (code.getName().equals(codeRef.getName())) {
+                    key.append("Code(").append(code.getId()).append('|');
+                    // The code system of a code is always defined in the same library as the code
+                    CodeSystemRef codeSystemRef = code.getCodeSystem();
+                    if (codeSystemRef != null && referencedLibrary.getCodeSystems() != null) {
+                        for (CodeSystemDef codeSystem : referencedLibrary.getCodeSystems().getDef()) {
+                            if (codeSystem.getName().equals(codeSystemRef.getName())) {
+                                key.append(codeSystem.getId()).append('|').append(codeSystem.getVersion());
+                            }
+                        }
+                    }
+                    key.append(')');
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static void findRetrieves(Library library, List<Retrieve> retrieves) {
+        ElmNodes.anyMatch(library, node -> {
+            if (node instanceof Retrieve) {
+                retrieves.add((Retrieve)node);
+            }
+            return false;
+        });
+    }
+}
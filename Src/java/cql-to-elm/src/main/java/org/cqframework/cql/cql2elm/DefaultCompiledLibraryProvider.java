@@ -0,0 +1,91 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.elm.serializing.BinaryElm;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides compiled libraries from ELM XML, JSON or binary files in a directory, named as the translator names its
+ * output: <filename>[-<version>].xml, <filename>[-<version>].json or <filename>[-<version>].bin. The hash of the
+ * source each file was translated from is read from a file of the same name with a .sha256 extension added (e.g.
+ * FHIRHelpers-3.0.0.xml.sha256), in the form written by the sha256sum utility. The hashes of the libraries the library
+ * includes, if any, follow on lines of their own, each a hash followed by the identifier and version (if included
+ * with a version) of the included library, separated by whitespace.
+ *
+ * A file that cannot be read, or whose hash file has no hash, is skipped, so the library is translated from its
+ * source instead.
+ */
+public class DefaultCompiledLibraryProvider implements CompiledLibraryProvider {
+
+    public DefaultCompiledLibraryProvider(Path path) {
+        if (path == null || ! path.toFile().isDirectory()) {
+            throw new IllegalArgumentException(String.format("path '%s' is not a valid directory", path));
+        }
+
+        this.path = path;
+    }
+
+    private Path path;
+
+    @Override
+    public CompiledLibrary getCompiledLibrary(VersionedIdentifier libraryIdentifier) {
+        String fileName = String.format("%s%s", libraryIdentifier.getId(),
+                libraryIdentifier.getVersion() != null ? ("-" + libraryIdentifier.getVersion()) : "");
+        for (String extension : new String[] { ".bin", ".xml", ".json" }) {
+            Path libraryPath = path.resolve(fileName + extension);
+            Path hashPath = path.resolve(fileName + extension + ".sha256");
+            if (libraryPath.toFile().isFile() && hashPath.toFile().isFile()) {
+                try {
+                    List<String> lines = Files.readAllLines(hashPath, StandardCharsets.UTF_8);
+                    String sourceHash = lines.isEmpty() ? "" : lines.get(0).trim().split("\\s+")[0];
+                    if (sourceHash.isEmpty()) {
+                        continue;
+                    }
+
+                    Map<VersionedIdentifier, String> includeSourceHashes = new HashMap<>();
+                    for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                        String[] fields = line.trim().split("\\s+");
+                        if (fields.length >= 2) {
+                            includeSourceHashes.put(new VersionedIdentifier().withId(fields[1])
+                                    .withVersion(fields.length > 2 ? fields[2] : null), fields[0]);
+                        }
+                    }
+                    return new CompiledLibrary(readLibrary(libraryPath, extension), sourceHash, includeSourceHashes);
+                }
+                catch (IOException | JAXBException | IllegalArgumentException e) {
+                    // Skip the file, as if there were no compiled library
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Library readLibrary(Path libraryPath, String extension) throws IOException, JAXBException {
+        if (extension.equals(".bin")) {
+            return BinaryElm.read(ByteBuffer.wrap(Files.readAllBytes(libraryPath)));
+        }
+
+        Unmarshaller unmarshaller = CqlTranslator.getJaxbContext().createUnmarshaller();
+        if (extension.equals(".json")) {
+            unmarshaller.setProperty("eclipselink.media-type", "application/json");
+        }
+
+        try (InputStream is = Files.newInputStream(libraryPath)) {
+            return unmarshaller.unmarshal(new StreamSource(is), Library.class).getValue();
+        }
+    }
+}
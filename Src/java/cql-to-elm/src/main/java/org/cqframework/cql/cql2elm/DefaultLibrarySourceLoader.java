@@ -3,8 +3,8 @@ package org.cqframework.cql.cql2elm;
 import org.hl7.elm.r1.VersionedIdentifier;
 
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Used by LibraryManager to manage a set of library source providers that
@@ -12,7 +12,7 @@ import java.util.List;
  * to be used outside the context of the instantiating LibraryManager instance.
  */
 class DefaultLibrarySourceLoader implements LibrarySourceLoader {
-    private final List<LibrarySourceProvider> PROVIDERS = new ArrayList<>();
+    private final List<LibrarySourceProvider> PROVIDERS = new CopyOnWriteArrayList<>();
 
   @Override
     public void registerProvider(LibrarySourceProvider provider) {
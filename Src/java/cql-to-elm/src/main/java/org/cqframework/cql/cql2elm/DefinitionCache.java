@@ -0,0 +1,432 @@
+package org.cqframework.cql.cql2elm;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.cqframework.cql.elm.tracking.TrackBack;
+import org.cqframework.cql.elm.tracking.Trackable;
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.cqframework.cql.gen.cqlParser;
+import org.hl7.elm.r1.Element;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.Retrieve;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Keeps the expression and function definitions of a translated library so that a subsequent translation of an
+ * edited version of the same library can reuse the definitions that did not change.
+ *
+ * Definitions are identified by their source text. While a library is translated, the cache records for each
+ * definition the names it looked up in the library (whether they resolved to expressions, functions or not at all)
+ * and the retrieves it contains. When the next translation begins, any definition whose text changed, was added or
+ * was removed marks its name as changed, and so does any definition that referenced a changed name, transitively.
+ * Definitions whose names are unchanged are then reused, as a copy with its locators moved if the definition moved
+ * to a different line. The warnings and messages reported while translating a definition are reported again
+ * each time it is reused (after those of the definitions it references), but definitions with errors are always
+ * translated again.
+ *
+ * All definitions are translated again if anything other than the expression and function definitions changed
+ * (library header, usings, includes, terminology, parameters and contexts), if an included library was translated
+ * again, or if the source has syntax errors. In the latter case the cache keeps the previous definitions, so the
+ * next translation of a corrected source can still reuse them.
+ *
+ * When the ELM optimizer is enabled, the definitions are recorded as optimized, along with the retrieves that remain
+ * after optimization.
+ *
+ * Reused definitions are copied, so the results of previous translations are not changed by later ones. Local ids
+ * remain unique across translations, but are not numbered in the order of the source as they are in a single
+ * translation.
+ */
+class DefinitionCache {
+    private String header;
+    private Map<String, Entry> entries = new HashMap<>();
+    private Map<String, TranslatedLibrary> includes = new HashMap<>();
+    private int nextLocalId = 1;
+
+    // State for the translation in progress
+    private TokenStream tokenStream;
+    private LibraryBuilder libraryBuilder;
+    private boolean reuse;
+    private boolean includesVerified;
+    private boolean replaying;
+    private final Set<String> changedNames = new HashSet<>();
+    private final Map<String, Entry> translatedEntries = new HashMap<>();
+    private final Set<String> duplicateTexts = new HashSet<>();
+    private final Stack<Entry> definitions = new Stack<>();
+    private int reusedCount;
+    private int translatedCount;
+
+    /**
+     * Returns the number of definitions reused by the last translation.
+     */
+    public int getReusedCount() {
+        return reusedCount;
+    }
+
+    /**
+     * Returns the number of definitions translated by the last translation.
+     */
+    public int getTranslatedCount() {
+        return translatedCount;
+    }
+
+    public int nextLocalId() {
+        return nextLocalId++;
+    }
+
+    public void beginTranslation(cqlParser.LibraryContext library, TokenStream tokenStream, LibraryBuilder libraryBuilder,
+                                 Cql2ElmVisitor visitor) {
+        this.tokenStream = tokenStream;
+        this.libraryBuilder = libraryBuilder;
+        includesVerified = false;
+        changedNames.clear();
+        translatedEntries.clear();
+        duplicateTexts.clear();
+        definitions.clear();
+        reusedCount = 0;
+        translatedCount = 0;
+
+        // The library builder has only seen the parse at this point, so any exceptions are syntax errors
+        if (!libraryBuilder.getExceptions().isEmpty()) {
+            reuse = false;
+            this.libraryBuilder = null;
+            return;
+        }
+
+        StringBuilder header = new StringBuilder();
+        Set<String> texts = new HashSet<>();
+        for (int i = 0; i < library.getChildCount(); i++) {
+            ParseTree child = library.getChild(i);
+            ParserRuleContext definition = getDefinition(child);
+            if (definition == null) {
+                header.append(getText(child)).append('\n');
+                continue;
+            }
+
+            String text = getText(definition);
+            texts.add(text);
+            if (!entries.containsKey(text)) {
+                changedNames.add(visitor.parseString(getIdentifier(definition)));
+            }
+        }
+
+        reuse = header.toString().equals(this.header);
+        this.header = header.toString();
+        if (!reuse) {
+            return;
+        }
+
+        for (Entry entry : entries.values()) {
+            if (!entry.valid || !texts.contains(entry.text)) {
+                changedNames.add(entry.name);
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Entry entry : entries.values()) {
+                if (!changedNames.contains(entry.name) && !Collections.disjoint(entry.references, changedNames)) {
+                    changedNames.add(entry.name);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the definition translated from the given definition context by the previous translation, if it can be
+     * reused in the given context, or null if the definition must be translated again.
+     */
+    public Entry reuse(ParserRuleContext ctx, String context) {
+        if (!reuse) {
+            return null;
+        }
+
+        String text = getText(ctx);
+        Entry entry = entries.get(text);
+        if (entry == null || changedNames.contains(entry.name) || !Objects.equals(entry.context, context)
+                || entry.startChar != ctx.getStart().getCharPositionInLine() || !verifyIncludes()) {
+            return null;
+        }
+
+        // The definition is copied rather than changed in place, as it is part of the result of the previous translation
+        Map<Object, Object> copies = new IdentityHashMap<>();
+        ExpressionDef definition = (ExpressionDef)ElmNodes.copy(entry.definition, copies);
+        definition.getTrackbacks().clear();
+        int lineDelta = ctx.getStart().getLine() - entry.startLine;
+        if (lineDelta != 0) {
+            moveLocators(definition, lineDelta, Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+
+        Entry result = new Entry(text, entry.name, entry.context, ctx.getStart().getLine(), entry.startChar);
+        result.definition = definition;
+        result.references.addAll(entry.references);
+        for (Retrieve retrieve : entry.retrieves) {
+            Object copy = copies.get(retrieve);
+            result.retrieves.add(copy != null ? (Retrieve)copy : retrieve);
+        }
+        for (CqlTranslatorException exception : entry.exceptions) {
+            result.exceptions.add(lineDelta != 0 && exception.getLocator() != null
+                    ? moveException(exception, lineDelta) : exception);
+        }
+        addEntry(result);
+        reusedCount++;
+        return result;
+    }
+
+    public void beginDefinition(ParserRuleContext ctx, String name, String context) {
+        if (libraryBuilder != null) {
+            definitions.push(new Entry(getText(ctx), name, context, ctx.getStart().getLine(), ctx.getStart().getCharPositionInLine()));
+        }
+    }
+
+    public void endDefinition(ExpressionDef definition) {
+        if (libraryBuilder != null) {
+            Entry entry = definitions.pop();
+            entry.definition = definition;
+            entry.valid = entry.valid && definition != null && definition.getResultType() != null;
+            addEntry(entry);
+            translatedCount++;
+        }
+    }
+
+    public void recordReference(String name) {
+        if (!definitions.isEmpty()) {
+            definitions.peek().references.add(name);
+        }
+    }
+
+    public void recordRetrieve(Retrieve retrieve) {
+        if (!definitions.isEmpty()) {
+            definitions.peek().retrieves.add(retrieve);
+        }
+    }
+
+    public void recordException(CqlTranslatorException exception) {
+        if (replaying || definitions.isEmpty()) {
+            return;
+        }
+
+        definitions.peek().exceptions.add(exception);
+        if (exception.getSeverity() == CqlTranslatorException.ErrorSeverity.Error) {
+            for (Entry entry : definitions) {
+                entry.valid = false;
+            }
+        }
+    }
+
+    /**
+     * Reports the warnings and messages of a reused definition again.
+     */
+    public void replayExceptions(Entry entry) {
+        replaying = true;
+        try {
+            for (CqlTranslatorException exception : entry.exceptions) {
+                libraryBuilder.recordParsingException(exception);
+            }
+        }
+        finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Records the definitions of the translation. If the library was rewritten after its definitions were translated
+     * (by the ELM optimizer), the definitions are recorded as rewritten, without the retrieves that were removed.
+     */
+    public void endTranslation(boolean rewritten) {
+        if (libraryBuilder == null) {
+            return;
+        }
+
+        if (rewritten) {
+            for (Entry entry : translatedEntries.values()) {
+                List<Retrieve> retrieves = ElmNodes.retainContained(entry.retrieves, entry.definition);
+                if (retrieves.size() != entry.retrieves.size()) {
+                    entry.retrieves.clear();
+                    entry.retrieves.addAll(retrieves);
+                }
+            }
+        }
+
+        for (String text : duplicateTexts) {
+            translatedEntries.get(text).valid = false;
+        }
+
+        Map<String, TranslatedLibrary> includes = new HashMap<>();
+        if (libraryBuilder.getLibrary().getIncludes() != null) {
+            for (IncludeDef include : libraryBuilder.getLibrary().getIncludes().getDef()) {
+                includes.put(include.getLocalIdentifier(), libraryBuilder.resolveLibrary(include.getLocalIdentifier()));
+            }
+        }
+
+        this.includes = includes;
+        entries = new HashMap<>(translatedEntries);
+        translatedEntries.clear();
+        libraryBuilder = null;
+        tokenStream = null;
+    }
+
+    private void addEntry(Entry entry) {
+        if (translatedEntries.putIfAbsent(entry.text, entry) != null) {
+            duplicateTexts.add(entry.text);
+        }
+    }
+
+    private boolean verifyIncludes() {
+        if (!includesVerified) {
+            for (Map.Entry<String, TranslatedLibrary> include : includes.entrySet()) {
+                if (libraryBuilder.resolveLibrary(include.getKey()) != include.getValue()) {
+                    reuse = false;
+                    return false;
+                }
+            }
+            includesVerified = true;
+        }
+
+        return true;
+    }
+
+    private String getText(ParseTree tree) {
+        if (tree instanceof ParserRuleContext) {
+            return tokenStream.getText((ParserRuleContext)tree);
+        }
+
+        return tree.getText();
+    }
+
+    private static ParserRuleContext getDefinition(ParseTree tree) {
+        if (tree instanceof cqlParser.StatementContext) {
+            cqlParser.StatementContext statement = (cqlParser.StatementContext)tree;
+            if (statement.expressionDefinition() != null) {
+                return statement.expressionDefinition();
+            }
+
+            if (statement.functionDefinition() != null) {
+                return statement.functionDefinition();
+            }
+        }
+
+        return null;
+    }
+
+    private static ParseTree getIdentifier(ParserRuleContext definition) {
+        if (definition instanceof cqlParser.ExpressionDefinitionContext) {
+            return ((cqlParser.ExpressionDefinitionContext)definition).identifier();
+        }
+
+        return ((cqlParser.FunctionDefinitionContext)definition).identifier();
+    }
+
+    private static void moveLocators(Object object, int lineDelta, Set<Object> visited) {
+        if (!visited.add(object)) {
+            return;
+        }
+
+        if (object instanceof Trackable) {
+            List<TrackBack> trackbacks = ((Trackable)object).getTrackbacks();
+            for (int i = 0; i < trackbacks.size(); i++) {
+                trackbacks.set(i, moveTrackBack(trackbacks.get(i), lineDelta));
+            }
+        }
+
+        if (object instanceof Element) {
+            Element element = (Element)object;
+            if (element.getLocator() != null) {
+                element.setLocator(moveLocator(element.getLocator(), lineDelta));
+            }
+        }
+
+        for (Field field : ElmNodes.getAllFields(object.getClass())) {
+            Object value = ElmNodes.getValue(field, object);
+            if (value instanceof Collection) {
+                for (Object item : (Collection<?>)value) {
+                    if (isElementClass(item)) {
+                        moveLocators(item, lineDelta, visited);
+                    }
+                }
+            }
+            else if (isElementClass(value)) {
+                moveLocators(value, lineDelta, visited);
+            }
+        }
+    }
+
+    // Exceptions of other classes than these are reported with their original locator, rather than lose their class
+    private static CqlTranslatorException moveException(CqlTranslatorException exception, int lineDelta) {
+        TrackBack locator = moveTrackBack(exception.getLocator(), lineDelta);
+        if (exception.getClass() == CqlSemanticException.class) {
+            return new CqlSemanticException(exception.getMessage(), exception.getSeverity(), locator, exception.getCause());
+        }
+        if (exception.getClass() == CqlSyntaxException.class) {
+            return new CqlSyntaxException(exception.getMessage(), exception.getSeverity(), locator, exception.getCause());
+        }
+        if (exception.getClass() == CqlInternalException.class) {
+            return new CqlInternalException(exception.getMessage(), locator, exception.getCause());
+        }
+        if (exception.getClass() == CqlTranslatorException.class) {
+            return new CqlTranslatorException(exception.getMessage(), exception.getSeverity(), locator, exception.getCause());
+        }
+        return exception;
+    }
+
+    private static TrackBack moveTrackBack(TrackBack tb, int lineDelta) {
+        return new TrackBack(tb.getLibrary(), tb.getStartLine() + lineDelta, tb.getStartChar(),
+                tb.getEndLine() + lineDelta, tb.getEndChar());
+    }
+
+    // Locators have the form startLine:startChar[-endLine:endChar]
+    private static String moveLocator(String locator, int lineDelta) {
+        StringBuilder result = new StringBuilder();
+        for (String position : locator.split("-")) {
+            String[] parts = position.split(":");
+            if (result.length() > 0) {
+                result.append('-');
+            }
+            result.append(Integer.parseInt(parts[0]) + lineDelta).append(':').append(parts[1]);
+        }
+        return result.toString();
+    }
+
+    private static boolean isElementClass(Object value) {
+        return value != null && ElmNodes.isElmClass(value.getClass());
+    }
+
+    public static class Entry {
+        private Entry(String text, String name, String context, int startLine, int startChar) {
+            this.text = text;
+            this.name = name;
+            this.context = context;
+            this.startLine = startLine;
+            this.startChar = startChar;
+        }
+
+        private final String text;
+        private final String name;
+        private final String context;
+        private final int startLine;
+        private final int startChar;
+        private final Set<String> references = new LinkedHashSet<>();
+        private final List<Retrieve> retrieves = new ArrayList<>();
+        private final List<CqlTranslatorException> exceptions = new ArrayList<>();
+        private ExpressionDef definition;
+        private boolean valid = true;
+
+        public ExpressionDef getDefinition() {
+            return definition;
+        }
+
+        public Iterable<String> getReferences() {
+            return references;
+        }
+
+        public List<Retrieve> getRetrieves() {
+            return retrieves;
+        }
+    }
+}
@@ -2,8 +2,6 @@ package org.cqframework.cql.cql2elm;
 
 import org.hl7.elm_modelinfo.r1.ModelInfo;
 
-import javax.xml.bind.JAXB;
-
 /**
  * Created by Bryn on 4/15/2016.
  */
@@ -24,29 +22,23 @@ public class FhirModelInfoProvider implements ModelInfoProvider {
         String localVersion = version == null ? "" : version;
         switch (localVersion) {
             case "1.0.2":
-                return JAXB.unmarshal(FhirModelInfoProvider.class.getResourceAsStream("/org/hl7/fhir/fhir-modelinfo-1.0.2.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/org/hl7/fhir/fhir-modelinfo-1.0.2.xml");
 
             case "1.4":
-                return JAXB.unmarshal(FhirModelInfoProvider.class.getResourceAsStream("/org/hl7/fhir/fhir-modelinfo-1.4.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/org/hl7/fhir/fhir-modelinfo-1.4.xml");
 
             case "1.6":
-                return JAXB.unmarshal(FhirModelInfoProvider.class.getResourceAsStream("/org/hl7/fhir/fhir-modelinfo-1.6.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/org/hl7/fhir/fhir-modelinfo-1.6.xml");
 
             case "1.8":
-                return JAXB.unmarshal(FhirModelInfoProvider.class.getResourceAsStream("/org/hl7/fhir/fhir-modelinfo-1.8.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/org/hl7/fhir/fhir-modelinfo-1.8.xml");
 
             case "3.0.0":
             case "":
-                return JAXB.unmarshal(FhirModelInfoProvider.class.getResourceAsStream("/org/hl7/fhir/fhir-modelinfo-3.0.0.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/org/hl7/fhir/fhir-modelinfo-3.0.0.xml");
 
             case "3.2.0":
-                return JAXB.unmarshal(FhirModelInfoProvider.class.getResourceAsStream("/org/hl7/fhir/fhir-modelinfo-3.2.0.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/org/hl7/fhir/fhir-modelinfo-3.2.0.xml");
 
             default:
                 throw new IllegalArgumentException(String.format("Unknown version %s of the FHIR model.", localVersion));
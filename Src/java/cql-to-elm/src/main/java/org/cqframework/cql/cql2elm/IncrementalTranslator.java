@@ -0,0 +1,59 @@
+package org.cqframework.cql.cql2elm;
+
+/**
+ * Translates successive versions of the same library, such as the contents of an editor, reusing the expression and
+ * function definitions that are not affected by an edit rather than translating the whole library each time.
+ *
+ * Each call to translate parses the whole source, but only the definitions whose source changed, together with the
+ * definitions that reference them (directly or indirectly), are translated again. The ELM for the other definitions
+ * is carried over from the previous translation, so it is shared between the returned translators. Any change
+ * outside the expression and function definitions (for example to the usings, includes, terminology, parameters or
+ * contexts of the library) translates the whole library again.
+ *
+ * An IncrementalTranslator is not thread-safe, use one for each library being edited.
+ */
+public class IncrementalTranslator {
+    private final ModelManager modelManager;
+    private final LibraryManager libraryManager;
+    private final CqlTranslatorException.ErrorSeverity errorLevel;
+    private final CqlTranslator.Options[] options;
+    private final DefinitionCache definitionCache = new DefinitionCache();
+
+    public IncrementalTranslator(ModelManager modelManager, LibraryManager libraryManager, CqlTranslator.Options... options) {
+        this(modelManager, libraryManager, CqlTranslatorException.ErrorSeverity.Info, options);
+    }
+
+    public IncrementalTranslator(ModelManager modelManager, LibraryManager libraryManager,
+                                 CqlTranslatorException.ErrorSeverity errorLevel, CqlTranslator.Options... options) {
+        if (modelManager == null) {
+            throw new IllegalArgumentException("modelManager is null");
+        }
+
+        if (libraryManager == null) {
+            throw new IllegalArgumentException("libraryManager is null");
+        }
+
+        this.modelManager = modelManager;
+        this.libraryManager = libraryManager;
+        this.errorLevel = errorLevel;
+        this.options = options;
+    }
+
+    public CqlTranslator translate(String cqlText) {
+        return CqlTranslator.fromText(cqlText, modelManager, libraryManager, errorLevel, definitionCache, options);
+    }
+
+    /**
+     * Returns the number of definitions the last translation reused from the previous one.
+     */
+    public int getReusedDefinitionCount() {
+        return definitionCache.getReusedCount();
+    }
+
+    /**
+     * Returns the number of definitions the last translation translated.
+     */
+    public int getTranslatedDefinitionCount() {
+        return definitionCache.getTranslatedCount();
+    }
+}
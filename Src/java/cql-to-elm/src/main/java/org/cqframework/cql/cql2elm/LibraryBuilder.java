@@ -246,11 +246,11 @@ public class LibraryBuilder {
         // listTypeSpecifier: 'list' '<' typeSpecifier '>'
         if (typeSpecifier.toLowerCase().startsWith("interval<")) {
             DataType pointType = resolveTypeSpecifier(typeSpecifier.substring(typeSpecifier.indexOf('<') + 1, typeSpecifier.lastIndexOf('>')));
-            return new IntervalType(pointType);
+            return IntervalType.of(pointType);
         }
         else if (typeSpecifier.toLowerCase().startsWith("list<")) {
             DataType elementType = resolveTypeName(typeSpecifier.substring(typeSpecifier.indexOf('<') + 1, typeSpecifier.lastIndexOf('>')));
-            return new ListType(elementType);
+            return ListType.of(elementType);
         }
         else if (typeSpecifier.indexOf(".") >= 0) {
             String modelName = typeSpecifier.substring(0, typeSpecifier.indexOf("."));
@@ -281,7 +281,8 @@ public class LibraryBuilder {
     }
 
     private void loadSystemLibrary() {
-        TranslatedLibrary systemLibrary = SystemLibraryHelper.load(getSystemModel());
+        // The System library is shared, generic instantiations made by this translation go to the overlay
+        TranslatedLibrary systemLibrary = SystemLibraryHelper.getSystemLibrary(getSystemModel()).createOverlay();
         libraries.put(systemLibrary.getIdentifier().getId(), systemLibrary);
         loadConversionMap(systemLibrary);
     }
@@ -319,7 +320,24 @@ public class LibraryBuilder {
         }
     }
 
+    private DefinitionCache definitionCache = null;
+    void setDefinitionCache(DefinitionCache definitionCache) {
+        this.definitionCache = definitionCache;
+    }
+
+    private TranslationListener translationListener = null;
+    public TranslationListener getTranslationListener() {
+        return translationListener;
+    }
+    public void setTranslationListener(TranslationListener translationListener) {
+        this.translationListener = translationListener;
+    }
+
     private void addException(CqlTranslatorException e) {
+        if (definitionCache != null) {
+            definitionCache.recordException(e);
+        }
+
         // Always add to the list of all exceptions
         exceptions.add(e);
 
@@ -391,6 +409,10 @@ public class LibraryBuilder {
     }
 
 
+    public LibraryManager getLibraryManager() {
+        return libraryManager;
+    }
+
     public void beginTranslation() {
         loadSystemLibrary();
 
@@ -427,7 +449,11 @@ public class LibraryBuilder {
                 .withVersion(includeDef.getVersion());
 
         ArrayList<CqlTranslatorException> errors = new ArrayList<CqlTranslatorException>();
+        long start = System.nanoTime();
         TranslatedLibrary referencedLibrary = libraryManager.resolveLibrary(libraryIdentifier, errors);
+        if (translationListener != null) {
+            translationListener.includeResolved(libraryIdentifier, System.nanoTime() - start);
+        }
         for (CqlTranslatorException error : errors) {
             this.addException(error);
         }
@@ -612,6 +638,9 @@ public class LibraryBuilder {
     public OperatorResolution resolveCall(CallContext callContext) {
         OperatorResolution result = null;
         if (callContext.getLibraryName() == null || callContext.getLibraryName().equals("")) {
+            if (definitionCache != null) {
+                definitionCache.recordReference(callContext.getOperatorName());
+            }
             result = translatedLibrary.resolveCall(callContext, conversionMap);
             if (result == null) {
                 result = getSystemLibrary().resolveCall(callContext, conversionMap);
@@ -754,7 +783,7 @@ public class LibraryBuilder {
     public Expression resolveToList(Expression expression) {
         // Use a ToList operator here to avoid duplicate evaluation of the operand.
         ToList toList = of.createToList().withOperand(expression);
-        toList.setResultType(new ListType(expression.getResultType()));
+        toList.setResultType(ListType.of(expression.getResultType()));
         return toList;
     }
 
@@ -1031,7 +1060,7 @@ public class LibraryBuilder {
                 .withHighClosed(highClosed);
 
         DataType pointType = ensureCompatibleTypes(result.getLow().getResultType(), result.getHigh().getResultType());
-        result.setResultType(new IntervalType(pointType));
+        result.setResultType(IntervalType.of(pointType));
 
         result.setLow(ensureCompatible(result.getLow(), pointType));
         result.setHigh(ensureCompatible(result.getHigh(), pointType));
@@ -1137,22 +1166,25 @@ public class LibraryBuilder {
         while (currentType != null) {
             if (currentType instanceof ClassType) {
                 ClassType classType = (ClassType)currentType;
-                for (ClassTypeElement e : classType.getElements()) {
-                    if (e.getName().equals(identifier)) {
-                        if (e.isProhibited()) {
-                            throw new IllegalArgumentException(String.format("Element %s cannot be referenced because it is marked prohibited in type %s.", e.getName(), ((ClassType) currentType).getName()));
-                        }
-
-                        return e.getType();
+                ClassTypeElement e = classType.findElement(identifier);
+                if (e != null) {
+                    if (e.isProhibited()) {
+                        throw new IllegalArgumentException(String.format("Element %s cannot be referenced because it is marked prohibited in type %s.", e.getName(), getDeclaringType(classType, e).getName()));
                     }
+
+                    return e.getType();
+                }
+
+                // The element index includes inherited elements, so there is no need to search the base classes
+                while (currentType.getBaseType() instanceof ClassType) {
+                    currentType = currentType.getBaseType();
                 }
             }
             else if (currentType instanceof TupleType) {
                 TupleType tupleType = (TupleType)currentType;
-                for (TupleTypeElement e : tupleType.getElements()) {
-                    if (e.getName().equals(identifier)) {
-                        return e.getType();
-                    }
+                TupleTypeElement e = tupleType.findElement(identifier);
+                if (e != null) {
+                    return e.getType();
                 }
             }
             else if (currentType instanceof IntervalType) {
@@ -1183,7 +1215,7 @@ public class LibraryBuilder {
 
                 // The result type is a choice of all the resolved types
                 if (resultTypes.size() > 1) {
-                    return new ChoiceType(resultTypes);
+                    return ChoiceType.of(resultTypes);
                 }
 
                 if (resultTypes.size() == 1) {
@@ -1197,7 +1229,7 @@ public class LibraryBuilder {
                 // Resolve property as a list of items of property of the element type
                 ListType listType = (ListType)currentType;
                 DataType resultType = resolveProperty(listType.getElementType(), identifier);
-                return new ListType(resultType);
+                return ListType.of(resultType);
 
             }
 
@@ -1216,6 +1248,15 @@ public class LibraryBuilder {
         return null;
     }
 
+    private ClassType getDeclaringType(ClassType classType, ClassTypeElement element) {
+        DataType currentType = classType;
+        while (currentType instanceof ClassType && !((ClassType)currentType).getElements().contains(element)) {
+            currentType = currentType.getBaseType();
+        }
+
+        return currentType instanceof ClassType ? (ClassType)currentType : classType;
+    }
+
     public Expression resolveIdentifier(String identifier, boolean mustResolve) {
         // An Identifier will always be:
         // 1: The name of an alias
@@ -1265,6 +1306,9 @@ public class LibraryBuilder {
             return operandRef;
         }
 
+        if (definitionCache != null) {
+            definitionCache.recordReference(identifier);
+        }
         Element element = resolve(identifier);
 
         if (element instanceof ExpressionDef) {
@@ -1455,7 +1499,7 @@ public class LibraryBuilder {
                     .withSource(source)
                     .withWhere(not)
                     .withReturn(of.createReturnClause().withExpression(accessor));
-            query.setResultType(new ListType(accessor.getResultType()));
+            query.setResultType(ListType.of(accessor.getResultType()));
 
             if (accessor.getResultType() instanceof ListType) {
                 Flatten result = of.createFlatten().withOperand(query);
@@ -1585,7 +1629,7 @@ public class LibraryBuilder {
 
             DataType resultType = expressionDef.getResultType();
             if (!(resultType instanceof ListType)) {
-                return new ListType(resultType);
+                return ListType.of(resultType);
             }
             else {
                 return resultType;
@@ -1,14 +1,23 @@
 package org.cqframework.cql.cql2elm;
 
 import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.cqframework.cql.cql2elm.CqlTranslatorException.HasErrors;
 
@@ -16,28 +25,77 @@ import static org.cqframework.cql.cql2elm.CqlTranslatorException.HasErrors;
  * Manages a set of CQL libraries. As new library references are encountered
  * during translation, the corresponding source is obtained via
  * librarySourceLoader, translated and cached for later use.
+ *
+ * Translated libraries are cached by identifier, version, a hash of the library
+ * source and the options used to translate it, so a single LibraryManager can be
+ * shared by concurrent translations. Only the latest source of each version of a
+ * library is kept: caching a library discards those of other sources with the same
+ * identifier, version and options, so a long-lived manager does not keep a
+ * translation of every edit of a library. Circular reference detection, and the check
+ * that a translation doesn't load two versions of the same library, are tracked per
+ * translation (i.e. per thread), not across the whole manager. Each translation also
+ * loads and hashes the source of each library it resolves only once, even though
+ * resolving a library that is already cached still checks that its source is unchanged.
+ *
+ * The libraries included by a library can be translated in parallel ahead of the
+ * translation of the library itself (see prefetchLibraries). A library that is being
+ * translated in the background is waited for rather than translated again, and each
+ * background translation starts with the translation stack of the library that
+ * included it and shares its loaded versions, so circular references and version
+ * conflicts are still detected.
+ *
+ * If compiled library providers are registered, an included library whose source
+ * hash matches that of a compiled library is loaded from the compiled ELM rather
+ * than translated again.
  */
 public class LibraryManager {
     private ModelManager modelManager;
-    private final Map<String, TranslatedLibrary> libraries;
-    private final Stack<String> translationStack;
+    private final Map<LibraryKey, CachedLibrary> libraries;
+    private final ThreadLocal<Stack<String>> translationStack;
+    // The state of the current translation, set while the translation stack is not empty
+    private final ThreadLocal<Translation> translation;
     private final DefaultLibrarySourceLoader librarySourceLoader;
+    private final List<CompiledLibraryProvider> compiledLibraryProviders;
+    private final Map<LibraryKey, PendingLibrary> pendingLibraries;
+    // The library each thread is waiting for, to detect threads waiting for each other's translations
+    private final Map<Thread, PendingLibrary> waitingThreads;
 
     public LibraryManager(ModelManager modelManager) {
         if (modelManager == null) {
             throw new IllegalArgumentException("modelManager is null");
         }
         this.modelManager = modelManager;
-        libraries = new HashMap<>();
-        translationStack = new Stack<>();
+        libraries = new ConcurrentHashMap<>();
+        translationStack = ThreadLocal.withInitial(Stack::new);
+        translation = new ThreadLocal<>();
         this.librarySourceLoader = new DefaultLibrarySourceLoader();
+        this.compiledLibraryProviders = new CopyOnWriteArrayList<>();
+        this.pendingLibraries = new ConcurrentHashMap<>();
+        this.waitingThreads = new HashMap<>();
     }
-    
+
+    public ModelManager getModelManager() {
+        return modelManager;
+    }
+
     public LibrarySourceLoader getLibrarySourceLoader() {
       return librarySourceLoader;
     }
-    
-    public TranslatedLibrary resolveLibrary(VersionedIdentifier libraryIdentifier, List<CqlTranslatorException> errors) {
+
+    public void registerCompiledLibraryProvider(CompiledLibraryProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("provider is null.");
+        }
+
+        compiledLibraryProviders.add(provider);
+    }
+
+    public void clearCompiledLibraryProviders() {
+        compiledLibraryProviders.clear();
+    }
+
+    public TranslatedLibrary resolveLibrary(VersionedIdentifier libraryIdentifier, List<CqlTranslatorException> errors,
+                                            CqlTranslator.Options... options) {
         if (libraryIdentifier == null) {
             throw new IllegalArgumentException("libraryIdentifier is null.");
         }
@@ -46,24 +104,177 @@ public class LibraryManager {
             throw new IllegalArgumentException("libraryIdentifier Id is null");
         }
 
-        TranslatedLibrary library = libraries.get(libraryIdentifier.getId());
-        
-        if (library != null 
-                && libraryIdentifier.getVersion() != null 
-                && !libraryIdentifier.getVersion().equals(library.getIdentifier().getVersion())) {
+        Translation translation = this.translation.get();
+        Map<String, VersionedIdentifier> loadedLibraries = translation != null ? translation.loadedLibraries : null;
+        if (loadedLibraries != null) {
+            checkLoadedVersion(libraryIdentifier, loadedLibraries.get(libraryIdentifier.getId()));
+        }
+
+        LibrarySource librarySource = getLibrarySource(libraryIdentifier);
+        LibraryKey key = new LibraryKey(libraryIdentifier, librarySource.hash, options);
+
+        CachedLibrary result = libraries.get(key);
+        if (result == null) {
+            PendingLibrary pendingLibrary = pendingLibraries.get(key);
+            result = pendingLibrary != null ? pendingLibrary.await() : null;
+        }
+        if (result == null) {
+            result = loadLibrary(libraryIdentifier, librarySource.source, key, options);
+        }
+
+        // Checked again once loaded, as a background translation of the same translation may have loaded another
+        // version. The versions the library includes are loaded too, even if the library itself came from the cache.
+        if (loadedLibraries != null) {
+            addLoadedVersion(loadedLibraries, libraryIdentifier, result.getLibrary().getIdentifier());
+            Library library = result.getLibrary().getLibrary();
+            if (library != null && library.getIncludes() != null) {
+                for (IncludeDef includeDef : library.getIncludes().getDef()) {
+                    if (includeDef.getVersion() != null) {
+                        VersionedIdentifier includeIdentifier = new VersionedIdentifier()
+                                .withId(includeDef.getPath()).withVersion(includeDef.getVersion());
+                        addLoadedVersion(loadedLibraries, includeIdentifier, includeIdentifier);
+                    }
+                }
+            }
+        }
+
+        if (errors != null) {
+            errors.addAll(result.getExceptions());
+        }
+
+        return result.getLibrary();
+    }
+
+    private void addLoadedVersion(Map<String, VersionedIdentifier> loadedLibraries, VersionedIdentifier libraryIdentifier,
+                                  VersionedIdentifier loadedIdentifier) {
+        checkLoadedVersion(libraryIdentifier, loadedLibraries.putIfAbsent(libraryIdentifier.getId(), loadedIdentifier));
+    }
+
+    private void checkLoadedVersion(VersionedIdentifier libraryIdentifier, VersionedIdentifier loadedIdentifier) {
+        if (loadedIdentifier != null
+                && libraryIdentifier.getVersion() != null
+                && !libraryIdentifier.getVersion().equals(loadedIdentifier.getVersion())) {
             throw new CqlTranslatorIncludeException(String.format("Could not resolve reference to library %s, version %s because version %s is already loaded.",
-                    libraryIdentifier.getId(), libraryIdentifier.getVersion(), library.getIdentifier().getVersion()), libraryIdentifier.getId(), libraryIdentifier.getVersion());
-        } else {
-            library = translateLibrary(libraryIdentifier, errors);
-            if (!HasErrors(errors)) {
-                libraries.put(libraryIdentifier.getId(), library);
+                    libraryIdentifier.getId(), libraryIdentifier.getVersion(), loadedIdentifier.getVersion()), libraryIdentifier.getId(), libraryIdentifier.getVersion());
+        }
+    }
+
+    private CachedLibrary loadLibrary(VersionedIdentifier libraryIdentifier, byte[] librarySource, LibraryKey key,
+                                      CqlTranslator.Options... options) {
+        // NOTE: Concurrent requests for the same library may both translate it, the first successful result is kept.
+        List<CqlTranslatorException> translationErrors = new ArrayList<>();
+        TranslatedLibrary library = loadCompiledLibrary(libraryIdentifier, key.sourceHash);
+        if (library == null) {
+            library = translateLibrary(libraryIdentifier, librarySource, translationErrors, options);
+        }
+
+        CachedLibrary result = new CachedLibrary(library, translationErrors);
+        if (!HasErrors(translationErrors)) {
+            CachedLibrary existingLibrary = putLibrary(key, result);
+            if (existingLibrary != null) {
+                return new CachedLibrary(existingLibrary.getLibrary(), translationErrors);
             }
         }
 
-        return library;
+        return result;
+    }
+
+    /**
+     * Starts translating the given libraries, included by the library being translated on the current thread, in
+     * parallel on the common fork-join pool. Libraries that are already translated, or whose source cannot be loaded, are skipped; errors are reported
+     * when the library is resolved. A library that is still waiting for a thread when it is resolved is translated by
+     * the resolving thread instead.
+     *
+     * Libraries are translated with the options used for included libraries (i.e. none), so that they are found by
+     * resolveLibrary.
+     */
+    public void prefetchLibraries(Collection<VersionedIdentifier> libraryIdentifiers) {
+        List<String> stack = new ArrayList<>(translationStack.get());
+        Translation translation = this.translation.get();
+        List<PendingLibrary> started = new ArrayList<>();
+        for (VersionedIdentifier libraryIdentifier : libraryIdentifiers) {
+            LibrarySource librarySource;
+            try {
+                librarySource = getLibrarySource(libraryIdentifier);
+            }
+            catch (CqlTranslatorIncludeException e) {
+                continue;
+            }
+
+            LibraryKey key = new LibraryKey(libraryIdentifier, librarySource.hash);
+            if (!libraries.containsKey(key)) {
+                PendingLibrary pendingLibrary = new PendingLibrary(libraryIdentifier, librarySource.source, key);
+                if (pendingLibraries.putIfAbsent(key, pendingLibrary) == null) {
+                    started.add(pendingLibrary);
+                }
+            }
+        }
+
+        for (PendingLibrary pendingLibrary : started) {
+            ForkJoinPool.commonPool().execute(() -> pendingLibrary.run(stack, translation));
+        }
     }
 
-    private TranslatedLibrary translateLibrary(VersionedIdentifier libraryIdentifier, List<CqlTranslatorException> errors) {
+    /**
+     * Adds a library translated outside of the LibraryManager (e.g. a file of a batch) to the cache, so that libraries
+     * including it resolve the translated library rather than translating the source again. The library is cached
+     * under its identifier with and without its version, as it may be included either way. Libraries with errors are
+     * not cached, just as for resolveLibrary, and only includes translated with the same options will find it.
+     */
+    public void cacheLibrary(CqlTranslator translator, byte[] librarySource, CqlTranslator.Options... options) {
+        TranslatedLibrary library = translator.getTranslatedLibrary();
+        if (library == null || library.getIdentifier() == null || library.getIdentifier().getId() == null
+                || HasErrors(translator.getExceptions())) {
+            return;
+        }
+
+        String sourceHash = hashSource(librarySource);
+        CachedLibrary cachedLibrary = new CachedLibrary(library, translator.getExceptions());
+        putLibrary(new LibraryKey(library.getIdentifier(), sourceHash, options), cachedLibrary);
+        if (library.getIdentifier().getVersion() != null) {
+            VersionedIdentifier unversioned = new VersionedIdentifier().withId(library.getIdentifier().getId());
+            putLibrary(new LibraryKey(unversioned, sourceHash, options), cachedLibrary);
+        }
+    }
+
+    /**
+     * Returns the number of translated libraries in the cache.
+     */
+    public int getCachedLibraryCount() {
+        return libraries.size();
+    }
+
+    private CachedLibrary putLibrary(LibraryKey key, CachedLibrary library) {
+        CachedLibrary existingLibrary = libraries.putIfAbsent(key, library);
+        if (existingLibrary == null) {
+            libraries.keySet().removeIf(key::supersedes);
+        }
+
+        return existingLibrary;
+    }
+
+    private LibrarySource getLibrarySource(VersionedIdentifier libraryIdentifier) {
+        Translation translation = this.translation.get();
+        if (translation == null) {
+            byte[] source = loadLibrarySource(libraryIdentifier);
+            return new LibrarySource(source, hashSource(source));
+        }
+
+        String key = String.format("%s|%s", libraryIdentifier.getId(), libraryIdentifier.getVersion());
+        LibrarySource result = translation.librarySources.get(key);
+        if (result == null) {
+            byte[] source = loadLibrarySource(libraryIdentifier);
+            LibrarySource librarySource = new LibrarySource(source, hashSource(source));
+            result = translation.librarySources.putIfAbsent(key, librarySource);
+            if (result == null) {
+                result = librarySource;
+            }
+        }
+
+        return result;
+    }
+
+    private byte[] loadLibrarySource(VersionedIdentifier libraryIdentifier) {
         InputStream librarySource = null;
         try {
             librarySource = librarySourceLoader.getLibrarySource(libraryIdentifier);
@@ -77,19 +288,132 @@ public class LibraryManager {
                     libraryIdentifier.getId(), libraryIdentifier.getVersion()), libraryIdentifier.getId(), libraryIdentifier.getVersion());
         }
 
+        try (InputStream is = librarySource) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return buffer.toByteArray();
+        }
+        catch (IOException e) {
+            throw new CqlTranslatorIncludeException(String.format("Could not load source for library %s, version %s.",
+                    libraryIdentifier.getId(), libraryIdentifier.getVersion()), libraryIdentifier.getId(), libraryIdentifier.getVersion(), e);
+        }
+    }
+
+    /**
+     * Returns the hash the LibraryManager uses to identify the given library source (a hex encoded SHA-256 digest).
+     * Compiled libraries must carry the hash of the source they were translated from.
+     */
+    public static String hashSource(byte[] librarySource) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(librarySource);
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not compute library source hash.", e);
+        }
+    }
+
+    private TranslatedLibrary loadCompiledLibrary(VersionedIdentifier libraryIdentifier, String sourceHash) {
+        for (CompiledLibraryProvider provider : compiledLibraryProviders) {
+            CompiledLibrary compiledLibrary = provider.getCompiledLibrary(libraryIdentifier);
+            if (compiledLibrary == null || !compiledLibrary.getSourceHash().equalsIgnoreCase(sourceHash)
+                    || !hasCurrentIncludes(compiledLibrary)) {
+                continue;
+            }
+
+            // A compiled library without result types cannot be loaded, fall back to translating the source
+            TranslatedLibrary result = CompiledLibraryLoader.load(compiledLibrary.getLibrary(), modelManager);
+            if (result == null) {
+                continue;
+            }
+
+            checkVersion(libraryIdentifier, result);
+            return result;
+        }
+
+        return null;
+    }
+
+    private boolean hasCurrentIncludes(CompiledLibrary compiledLibrary) {
+        Map<VersionedIdentifier, String> includeSourceHashes = compiledLibrary.getIncludeSourceHashes();
+        Library library = compiledLibrary.getLibrary();
+        if (library.getIncludes() != null) {
+            for (IncludeDef includeDef : library.getIncludes().getDef()) {
+                if (!includeSourceHashes.containsKey(getIncludeIdentifier(includeDef))) {
+                    return false;
+                }
+            }
+        }
+
+        for (Map.Entry<VersionedIdentifier, String> include : includeSourceHashes.entrySet()) {
+            try {
+                if (!getLibrarySource(include.getKey()).hash.equalsIgnoreCase(include.getValue())) {
+                    return false;
+                }
+            }
+            catch (CqlTranslatorIncludeException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the source hashes of the libraries the given library includes, directly or indirectly, as a compiled
+     * library with includes must carry them (see CompiledLibrary). The included libraries are resolved to find their
+     * own includes, so this is best called once the library has been translated with this LibraryManager.
+     */
+    public Map<VersionedIdentifier, String> hashIncludedSources(Library library) {
+        Map<VersionedIdentifier, String> result = new HashMap<>();
+        hashIncludedSources(library, result);
+        return result;
+    }
+
+    private void hashIncludedSources(Library library, Map<VersionedIdentifier, String> result) {
+        if (library == null || library.getIncludes() == null) {
+            return;
+        }
+
+        for (IncludeDef includeDef : library.getIncludes().getDef()) {
+            VersionedIdentifier includeIdentifier = getIncludeIdentifier(includeDef);
+            if (!result.containsKey(includeIdentifier)) {
+                result.put(includeIdentifier, getLibrarySource(includeIdentifier).hash);
+                hashIncludedSources(resolveLibrary(includeIdentifier, null).getLibrary(), result);
+            }
+        }
+    }
+
+    private static VersionedIdentifier getIncludeIdentifier(IncludeDef includeDef) {
+        return new VersionedIdentifier().withId(includeDef.getPath()).withVersion(includeDef.getVersion());
+    }
+
+    private void checkVersion(VersionedIdentifier libraryIdentifier, TranslatedLibrary library) {
+        if (libraryIdentifier.getVersion() != null && !libraryIdentifier.getVersion().equals(library.getIdentifier().getVersion())) {
+            throw new CqlTranslatorIncludeException(String.format("Library %s was included as version %s, but version %s of the library was found.",
+                    libraryIdentifier.getId(), libraryIdentifier.getVersion(), library.getIdentifier().getVersion()),
+                    libraryIdentifier.getId(), libraryIdentifier.getVersion());
+        }
+    }
+
+    private TranslatedLibrary translateLibrary(VersionedIdentifier libraryIdentifier, byte[] librarySource,
+                                               List<CqlTranslatorException> errors, CqlTranslator.Options... options) {
         try {
-            CqlTranslator translator = CqlTranslator.fromStream(librarySource, modelManager, this);
+            CqlTranslator translator = CqlTranslator.fromStream(new ByteArrayInputStream(librarySource), modelManager, this, options);
             if (errors != null) {
                 errors.addAll(translator.getExceptions());
             }
 
             TranslatedLibrary result = translator.getTranslatedLibrary();
-            if (libraryIdentifier.getVersion() != null && !libraryIdentifier.getVersion().equals(result.getIdentifier().getVersion())) {
-                throw new CqlTranslatorIncludeException(String.format("Library %s was included as version %s, but version %s of the library was found.",
-                        libraryIdentifier.getId(), libraryIdentifier.getVersion(), result.getIdentifier().getVersion()),
-                        libraryIdentifier.getId(), libraryIdentifier.getVersion());
-            }
-
+            checkVersion(libraryIdentifier, result);
             return result;
         } catch (IOException e) {
             throw new CqlTranslatorIncludeException(String.format("Errors occurred translating library %s, version %s.",
@@ -102,10 +426,14 @@ public class LibraryManager {
             throw new IllegalArgumentException("libraryName is null.");
         }
 
+        Stack<String> translationStack = this.translationStack.get();
         if (translationStack.contains(libraryName)) {
             throw new IllegalArgumentException(String.format("Circular library reference %s.", libraryName));
         }
 
+        if (translationStack.isEmpty()) {
+            translation.set(new Translation());
+        }
         translationStack.push(libraryName);
     }
 
@@ -114,9 +442,203 @@ public class LibraryManager {
             throw new IllegalArgumentException("libraryName is null.");
         }
 
-        String currentLibraryName = translationStack.pop();
+        String currentLibraryName = translationStack.get().pop();
+        if (translationStack.get().isEmpty()) {
+            translation.remove();
+        }
         if (!libraryName.equals(currentLibraryName)) {
             throw new IllegalArgumentException(String.format("Translation stack imbalance for library %s.", libraryName));
         }
     }
+
+    /**
+     * A library that has been scheduled for translation by prefetchLibraries. It is translated once, by the first
+     * thread to run it: either a pool thread, or a thread that resolves the library before a pool thread has started it.
+     */
+    private class PendingLibrary {
+        private final VersionedIdentifier libraryIdentifier;
+        private final byte[] librarySource;
+        private final LibraryKey key;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CompletableFuture<CachedLibrary> result = new CompletableFuture<>();
+        private volatile Thread owner;
+        // The translation the library is translated for
+        private volatile Translation translation;
+
+        public PendingLibrary(VersionedIdentifier libraryIdentifier, byte[] librarySource, LibraryKey key) {
+            this.libraryIdentifier = libraryIdentifier;
+            this.librarySource = librarySource;
+            this.key = key;
+        }
+
+        /**
+         * Translates the library, with the given translation stack and translation or, if null, those of the current
+         * thread. Returns false if the library had already been started.
+         */
+        public boolean run(List<String> stack, Translation translation) {
+            if (!started.compareAndSet(false, true)) {
+                return false;
+            }
+
+            owner = Thread.currentThread();
+            Stack<String> currentStack = translationStack.get();
+            Translation currentTranslation = LibraryManager.this.translation.get();
+            this.translation = stack != null ? translation : currentTranslation;
+            if (stack != null) {
+                Stack<String> pendingStack = new Stack<>();
+                pendingStack.addAll(stack);
+                translationStack.set(pendingStack);
+                LibraryManager.this.translation.set(translation);
+            }
+            try {
+                result.complete(loadLibrary(libraryIdentifier, librarySource, key));
+            }
+            catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+            finally {
+                translationStack.set(currentStack);
+                LibraryManager.this.translation.set(currentTranslation);
+                pendingLibraries.remove(key, this);
+            }
+
+            return true;
+        }
+
+        /**
+         * Returns the translated library, translating it on the current thread if it has not been started yet, or
+         * returns null if the library must be translated on the current thread because its translation is (directly or
+         * through other waiting threads) waiting for the current thread.
+         *
+         * Also returns null if the library was translated for another translation and failed, as the errors may come
+         * from the versions loaded by that translation (pending libraries are shared by all the translations of the
+         * manager, and libraries with errors are not cached).
+         */
+        public CachedLibrary await() {
+            run(null, null);
+
+            Thread current = Thread.currentThread();
+            synchronized (waitingThreads) {
+                if (!result.isDone()) {
+                    Set<Thread> visited = new HashSet<>();
+                    for (Thread thread = owner; thread != null && visited.add(thread); ) {
+                        if (thread == current) {
+                            return null;
+                        }
+
+                        PendingLibrary waitingFor = waitingThreads.get(thread);
+                        thread = waitingFor != null ? waitingFor.owner : null;
+                    }
+                }
+
+                waitingThreads.put(current, this);
+            }
+
+            try {
+                CachedLibrary library = result.join();
+                return HasErrors(library.getExceptions()) && translation != LibraryManager.this.translation.get() ? null : library;
+            }
+            catch (CompletionException e) {
+                if (translation != LibraryManager.this.translation.get()) {
+                    return null;
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error)e.getCause();
+                }
+                throw e;
+            }
+            finally {
+                synchronized (waitingThreads) {
+                    waitingThreads.remove(current);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a translation, shared with the background translations of the libraries it includes.
+     */
+    private static class Translation {
+        // The identifiers of the libraries loaded by the translation by id
+        private final Map<String, VersionedIdentifier> loadedLibraries = new ConcurrentHashMap<>();
+        // The sources loaded by the translation by identifier and version
+        private final Map<String, LibrarySource> librarySources = new ConcurrentHashMap<>();
+    }
+
+    private static class LibrarySource {
+        public LibrarySource(byte[] source, String hash) {
+            this.source = source;
+            this.hash = hash;
+        }
+
+        private final byte[] source;
+        private final String hash;
+    }
+
+    private static class LibraryKey {
+        public LibraryKey(VersionedIdentifier libraryIdentifier, String sourceHash, CqlTranslator.Options... options) {
+            this.id = libraryIdentifier.getId();
+            this.version = libraryIdentifier.getVersion();
+            this.sourceHash = sourceHash;
+            this.options = EnumSet.noneOf(CqlTranslator.Options.class);
+            if (options != null) {
+                this.options.addAll(Arrays.asList(options));
+            }
+        }
+
+        private final String id;
+        private final String version;
+        private final String sourceHash;
+        private final EnumSet<CqlTranslator.Options> options;
+
+        /**
+         * Returns true if the given key is for another source of the same library version, translated with the same
+         * options.
+         */
+        public boolean supersedes(LibraryKey other) {
+            return this.id.equals(other.id)
+                    && Objects.equals(this.version, other.version)
+                    && !this.sourceHash.equals(other.sourceHash)
+                    && this.options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, version, sourceHash, options);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof LibraryKey) {
+                LibraryKey that = (LibraryKey)o;
+                return this.id.equals(that.id)
+                        && Objects.equals(this.version, that.version)
+                        && this.sourceHash.equals(that.sourceHash)
+                        && this.options.equals(that.options);
+            }
+
+            return false;
+        }
+    }
+
+    private static class CachedLibrary {
+        public CachedLibrary(TranslatedLibrary library, List<CqlTranslatorException> exceptions) {
+            this.library = library;
+            this.exceptions = Collections.unmodifiableList(new ArrayList<>(exceptions));
+        }
+
+        private final TranslatedLibrary library;
+        public TranslatedLibrary getLibrary() {
+            return library;
+        }
+
+        // Warnings and messages reported while translating the library, replayed on each cache hit
+        private final List<CqlTranslatorException> exceptions;
+        public List<CqlTranslatorException> getExceptions() {
+            return exceptions;
+        }
+    }
 }
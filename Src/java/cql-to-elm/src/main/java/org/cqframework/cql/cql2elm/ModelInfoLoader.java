@@ -2,13 +2,13 @@ package org.cqframework.cql.cql2elm;
 
 import org.hl7.elm.r1.VersionedIdentifier;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ModelInfoLoader {
 
     private static final Map<VersionedIdentifier, ModelInfoProvider> PROVIDERS =
-            new HashMap<VersionedIdentifier, ModelInfoProvider>();
+            new ConcurrentHashMap<VersionedIdentifier, ModelInfoProvider>();
 
     static {
         registerModelInfoProvider(new VersionedIdentifier().withId("System").withVersion("1"), new SystemModelInfoProvider());
@@ -52,9 +52,7 @@ public class ModelInfoLoader {
 
         if (modelIdentifier.getVersion() != null) {
             VersionedIdentifier versionlessIdentifier = new VersionedIdentifier().withId(modelIdentifier.getId());
-            if (!PROVIDERS.containsKey(versionlessIdentifier)) {
-                PROVIDERS.put(versionlessIdentifier, provider);
-            }
+            PROVIDERS.putIfAbsent(versionlessIdentifier, provider);
         }
     }
 
@@ -4,14 +4,18 @@ import org.cqframework.cql.cql2elm.model.Model;
 import org.cqframework.cql.cql2elm.model.SystemModel;
 import org.hl7.elm.r1.VersionedIdentifier;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by Bryn on 12/29/2016.
+ *
+ * A ModelManager is safe for concurrent use, so a single instance can be shared by all the translations in a
+ * process. Each model is built at most once per manager, and the resulting Model is never modified after it has
+ * been built, so it can be read from any number of threads without further synchronization.
  */
 public class ModelManager {
-    private final Map<String, Model> models = new HashMap<>();
+    private final Map<String, Model> models = new ConcurrentHashMap<>();
 
     private Model buildModel(VersionedIdentifier identifier) {
         Model model = null;
@@ -42,8 +46,15 @@ public class ModelManager {
     public Model resolveModel(VersionedIdentifier modelIdentifier) {
         Model model = models.get(modelIdentifier.getId());
         if (model == null) {
-            model = buildModel(modelIdentifier);
-            models.put(modelIdentifier.getId(), model);
+            // Building a model is expensive, so make sure concurrent callers only build it once. Building a model
+            // resolves the System model recursively, which is why this is not a computeIfAbsent.
+            synchronized (models) {
+                model = models.get(modelIdentifier.getId());
+                if (model == null) {
+                    model = buildModel(modelIdentifier);
+                    models.put(modelIdentifier.getId(), model);
+                }
+            }
         }
 
         if (modelIdentifier.getVersion() != null && !modelIdentifier.getVersion().equals(model.getModelInfo().getVersion())) {
@@ -0,0 +1,491 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.hl7.elm.r1.*;
+
+import java.util.*;
+import java.util.List;
+
+/**
+ * The definitions of a library and the libraries it includes that are reachable from a set of entry points, for
+ * engines that only evaluate a few definitions of a library (such as the populations of a measure) and would
+ * otherwise load and index every definition of every included library.
+ *
+ * A definition is reachable if it is an entry point, or it is referenced by a reachable definition through an
+ * expression, function, parameter, code system, value set, code or concept reference. A function reference reaches
+ * all the overloads of the function. The definitions the translator creates for the context statements of the
+ * library (e.g. define Patient) are always kept.
+ *
+ * The pruned libraries share the definitions of the translated libraries rather than copying them, so they should not
+ * be modified. The flattened library is a copy, in which the definitions of the included libraries are renamed to
+ * their library name and definition name (e.g. "FHIRHelpers.ToString"), so parameters of included libraries are set
+ * by that name as well.
+ *
+ * Included libraries are resolved through the LibraryManager the same way the translator resolves them, so the
+ * libraries are normally taken from its cache rather than translated again.
+ */
+public class PrunedLibraries {
+    private final LibraryManager libraryManager;
+    private final Library library;
+    private final Map<String, Library> libraries = new LinkedHashMap<>();
+    private final Map<Library, Map<String, List<Element>>> definitions = new IdentityHashMap<>();
+    private final Set<Object> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<IncludeDef> usedIncludes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private PrunedLibraries(Library library, LibraryManager libraryManager) {
+        this.library = library;
+        this.libraryManager = libraryManager;
+    }
+
+    public static PrunedLibraries collect(Library library, LibraryManager libraryManager, Collection<String> entryPoints) {
+        if (library == null) {
+            throw new IllegalArgumentException("library is null.");
+        }
+
+        if (libraryManager == null) {
+            throw new IllegalArgumentException("libraryManager is null.");
+        }
+
+        if (entryPoints == null) {
+            throw new IllegalArgumentException("entryPoints is null.");
+        }
+
+        PrunedLibraries result = new PrunedLibraries(library, libraryManager);
+        result.addEntryPoints(entryPoints);
+        return result;
+    }
+
+    /**
+     * Returns the library with only its reachable definitions, and only the includes those definitions use.
+     */
+    public Library getLibrary() {
+        return prune(library);
+    }
+
+    /**
+     * Returns the pruned library and the pruned libraries it includes, directly or indirectly, that have reachable
+     * definitions. The library is first.
+     */
+    public List<Library> getLibraries() {
+        List<Library> result = new ArrayList<>();
+        for (Library current : libraries.values()) {
+            if (current == library || hasReachedDefinitions(current)) {
+                result.add(prune(current));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a single library with the reachable definitions of the library and the libraries it includes, and no
+     * includes.
+     */
+    public Library flatten() {
+        Map<String, String> versions = new HashMap<>();
+        for (Library current : libraries.values()) {
+            if (current != library && hasReachedDefinitions(current)) {
+                VersionedIdentifier identifier = current.getIdentifier();
+                String version = versions.putIfAbsent(identifier.getId(), identifier.getVersion());
+                if (version != null && !Objects.equals(version, identifier.getVersion())) {
+                    throw new IllegalArgumentException(String.format("Could not flatten library %s, it includes versions %s and %s of library %s.",
+                            library.getIdentifier().getId(), version, identifier.getVersion(), identifier.getId()));
+                }
+            }
+        }
+
+        Library result = new Library()
+                .withIdentifier(library.getIdentifier())
+                .withSchemaIdentifier(library.getSchemaIdentifier());
+        Map<String, UsingDef> usings = new LinkedHashMap<>();
+        for (Library current : libraries.values()) {
+            if (current != library && !hasReachedDefinitions(current)) {
+                continue;
+            }
+
+            if (current.getUsings() != null) {
+                for (UsingDef using : current.getUsings().getDef()) {
+                    UsingDef existing = usings.putIfAbsent(using.getLocalIdentifier(), using);
+                    if (existing != null && (!Objects.equals(existing.getUri(), using.getUri())
+                            || !Objects.equals(existing.getVersion(), using.getVersion()))) {
+                        throw new IllegalArgumentException(String.format("Could not flatten library %s, it uses versions %s and %s of model %s.",
+                                library.getIdentifier().getId(), existing.getVersion(), using.getVersion(), using.getLocalIdentifier()));
+                    }
+                }
+            }
+
+            Map<Object, Object> copies = new IdentityHashMap<>();
+            Set<Object> references = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (current.getParameters() != null) {
+                for (ParameterDef parameter : current.getParameters().getDef()) {
+                    if (reached.contains(parameter)) {
+                        if (result.getParameters() == null) {
+                            result.setParameters(new Library.Parameters());
+                        }
+                        result.getParameters().getDef().add(copyDefinition(parameter, current, copies, references));
+                    }
+                }
+            }
+            if (current.getCodeSystems() != null) {
+                for (CodeSystemDef codeSystem : current.getCodeSystems().getDef()) {
+                    if (reached.contains(codeSystem)) {
+                        if (result.getCodeSystems() == null) {
+                            result.setCodeSystems(new Library.CodeSystems());
+                        }
+                        result.getCodeSystems().getDef().add(copyDefinition(codeSystem, current, copies, references));
+                    }
+                }
+            }
+            if (current.getValueSets() != null) {
+                for (ValueSetDef valueSet : current.getValueSets().getDef()) {
+                    if (reached.contains(valueSet)) {
+                        if (result.getValueSets() == null) {
+                            result.setValueSets(new Library.ValueSets());
+                        }
+                        result.getValueSets().getDef().add(copyDefinition(valueSet, current, copies, references));
+                    }
+                }
+            }
+            if (current.getCodes() != null) {
+                for (CodeDef code : current.getCodes().getDef()) {
+                    if (reached.contains(code)) {
+                        if (result.getCodes() == null) {
+                            result.setCodes(new Library.Codes());
+                        }
+                        result.getCodes().getDef().add(copyDefinition(code, current, copies, references));
+                    }
+                }
+            }
+            if (current.getConcepts() != null) {
+                for (ConceptDef concept : current.getConcepts().getDef()) {
+                    if (reached.contains(concept)) {
+                        if (result.getConcepts() == null) {
+                            result.setConcepts(new Library.Concepts());
+                        }
+                        result.getConcepts().getDef().add(copyDefinition(concept, current, copies, references));
+                    }
+                }
+            }
+            if (current.getStatements() != null) {
+                for (ExpressionDef def : current.getStatements().getDef()) {
+                    if (reached.contains(def)) {
+                        if (result.getStatements() == null) {
+                            result.setStatements(new Library.Statements());
+                        }
+                        result.getStatements().getDef().add(copyDefinition(def, current, copies, references));
+                    }
+                }
+            }
+        }
+
+        if (!usings.isEmpty()) {
+            result.setUsings(new Library.Usings().withDef(usings.values()));
+        }
+
+        return result;
+    }
+
+    private void addEntryPoints(Collection<String> entryPoints) {
+        libraries.put(getKey(library.getIdentifier()), library);
+        Deque<Element> pending = new ArrayDeque<>();
+        Map<Element, Library> owners = new IdentityHashMap<>();
+        for (String entryPoint : entryPoints) {
+            List<Element> defs = getDefinitions(library).get("expression|" + entryPoint);
+            if (defs == null) {
+                throw new IllegalArgumentException(String.format("Could not resolve entry point %s in library %s.",
+                        entryPoint, library.getIdentifier().getId()));
+            }
+            reach(library, defs, pending, owners);
+        }
+
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                if (!(def instanceof FunctionDef) && def.getName().equals(def.getContext())) {
+                    reach(library, Collections.singletonList(def), pending, owners);
+                }
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            Element def = pending.remove();
+            Library owner = owners.get(def);
+            ElmNodes.anyMatch(def, node -> {
+                String kind = getReferenceKind(node);
+                if (kind != null) {
+                    Library referencedLibrary = resolveLibrary(owner, getLibraryName(node));
+                    if (referencedLibrary != null) {
+                        List<Element> defs = getDefinitions(referencedLibrary).get(kind + "|" + getName(node));
+                        if (defs != null) {
+                            reach(referencedLibrary, defs, pending, owners);
+                        }
+                    }
+                }
+                return false;
+            });
+        }
+    }
+
+    private void reach(Library owner, List<Element> defs, Deque<Element> pending, Map<Element, Library> owners) {
+        for (Element def : defs) {
+            if (reached.add(def)) {
+                owners.put(def, owner);
+                pending.add(def);
+            }
+        }
+    }
+
+    private boolean hasReachedDefinitions(Library current) {
+        for (List<Element> defs : getDefinitions(current).values()) {
+            for (Element def : defs) {
+                if (reached.contains(def)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Map<String, List<Element>> getDefinitions(Library current) {
+        Map<String, List<Element>> result = definitions.get(current);
+        if (result == null) {
+            result = new HashMap<>();
+            if (current.getParameters() != null) {
+                for (ParameterDef def : current.getParameters().getDef()) {
+                    result.computeIfAbsent("parameter|" + def.getName(), k -> new ArrayList<>()).add(def);
+                }
+            }
+            if (current.getCodeSystems() != null) {
+                for (CodeSystemDef def : current.getCodeSystems().getDef()) {
+                    result.computeIfAbsent("codesystem|" + def.getName(), k -> new ArrayList<>()).add(def);
+                }
+            }
+            if (current.getValueSets() != null) {
+                for (ValueSetDef def : current.getValueSets().getDef()) {
+                    result.computeIfAbsent("valueset|" + def.getName(), k -> new ArrayList<>()).add(def);
+                }
+            }
+            if (current.getCodes() != null) {
+                for (CodeDef def : current.getCodes().getDef()) {
+                    result.computeIfAbsent("code|" + def.getName(), k -> new ArrayList<>()).add(def);
+                }
+            }
+            if (current.getConcepts() != null) {
+                for (ConceptDef def : current.getConcepts().getDef()) {
+                    result.computeIfAbsent("concept|" + def.getName(), k -> new ArrayList<>()).add(def);
+                }
+            }
+            if (current.getStatements() != null) {
+                // Expressions and functions share a namespace, a function reference reaches all its overloads
+                for (ExpressionDef def : current.getStatements().getDef()) {
+                    result.computeIfAbsent("expression|" + def.getName(), k -> new ArrayList<>()).add(def);
+                }
+            }
+            definitions.put(current, result);
+        }
+
+        return result;
+    }
+
+    private static String getReferenceKind(Object node) {
+        if (node instanceof ExpressionRef) {
+            return "expression";
+        }
+        if (node instanceof ParameterRef) {
+            return "parameter";
+        }
+        if (node instanceof CodeSystemRef) {
+            return "codesystem";
+        }
+        if (node instanceof ValueSetRef) {
+            return "valueset";
+        }
+        if (node instanceof CodeRef) {
+            return "code";
+        }
+        if (node instanceof ConceptRef) {
+            return "concept";
+        }
+        return null;
+    }
+
+    private static String getLibraryName(Object reference) {
+        if (reference instanceof ExpressionRef) {
+            return ((ExpressionRef)reference).getLibraryName();
+        }
+        if (reference instanceof ParameterRef) {
+            return ((ParameterRef)reference).getLibraryName();
+        }
+        if (reference instanceof CodeSystemRef) {
+            return ((CodeSystemRef)reference).getLibraryName();
+        }
+        if (reference instanceof ValueSetRef) {
+            return ((ValueSetRef)reference).getLibraryName();
+        }
+        if (reference instanceof CodeRef) {
+            return ((CodeRef)reference).getLibraryName();
+        }
+        return ((ConceptRef)reference).getLibraryName();
+    }
+
+    private static String getName(Object reference) {
+        if (reference instanceof ExpressionRef) {
+            return ((ExpressionRef)reference).getName();
+        }
+        if (reference instanceof ParameterRef) {
+            return ((ParameterRef)reference).getName();
+        }
+        if (reference instanceof CodeSystemRef) {
+            return ((CodeSystemRef)reference).getName();
+        }
+        if (reference instanceof ValueSetRef) {
+            return ((ValueSetRef)reference).getName();
+        }
+        if (reference instanceof CodeRef) {
+            return ((CodeRef)reference).getName();
+        }
+        return ((ConceptRef)reference).getName();
+    }
+
+    private static void setReference(Object reference, String libraryName, String name) {
+        if (reference instanceof ExpressionRef) {
+            ((ExpressionRef)reference).withLibraryName(libraryName).setName(name);
+        }
+        else if (reference instanceof ParameterRef) {
+            ((ParameterRef)reference).withLibraryName(libraryName).setName(name);
+        }
+        else if (reference instanceof CodeSystemRef) {
+            ((CodeSystemRef)reference).withLibraryName(libraryName).setName(name);
+        }
+        else if (reference instanceof ValueSetRef) {
+            ((ValueSetRef)reference).withLibraryName(libraryName).setName(name);
+        }
+        else if (reference instanceof CodeRef) {
+            ((CodeRef)reference).withLibraryName(libraryName).setName(name);
+        }
+        else {
+            ((ConceptRef)reference).withLibraryName(libraryName).setName(name);
+        }
+    }
+
+    private static VersionedIdentifier getIncludeIdentifier(IncludeDef include) {
+        return new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion());
+    }
+
+    private static String getKey(VersionedIdentifier identifier) {
+        return String.format("%s|%s", identifier.getId(), identifier.getVersion());
+    }
+
+    private Library resolveLibrary(Library current, String libraryName) {
+        if (libraryName == null) {
+            return current;
+        }
+
+        if (current.getIncludes() != null) {
+            for (IncludeDef include : current.getIncludes().getDef()) {
+                if (include.getLocalIdentifier().equals(libraryName)) {
+                    usedIncludes.add(include);
+                    VersionedIdentifier identifier = getIncludeIdentifier(include);
+                    Library result = libraries.get(getKey(identifier));
+                    if (result == null) {
+                        result = libraryManager.resolveLibrary(identifier, null).getLibrary();
+                        libraries.put(getKey(identifier), result);
+                    }
+                    return result;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private <T> List<T> prune(List<T> defs) {
+        List<T> result = new ArrayList<>();
+        for (T def : defs) {
+            if (reached.contains(def) || usedIncludes.contains(def)) {
+                result.add(def);
+            }
+        }
+        return result;
+    }
+
+    private Library prune(Library current) {
+        Library result = new Library()
+                .withIdentifier(current.getIdentifier())
+                .withSchemaIdentifier(current.getSchemaIdentifier())
+                .withUsings(current.getUsings());
+        if (current.getIncludes() != null && !prune(current.getIncludes().getDef()).isEmpty()) {
+            result.setIncludes(new Library.Includes().withDef(prune(current.getIncludes().getDef())));
+        }
+        if (current.getParameters() != null && !prune(current.getParameters().getDef()).isEmpty()) {
+            result.setParameters(new Library.Parameters().withDef(prune(current.getParameters().getDef())));
+        }
+        if (current.getCodeSystems() != null && !prune(current.getCodeSystems().getDef()).isEmpty()) {
+            result.setCodeSystems(new Library.CodeSystems().withDef(prune(current.getCodeSystems().getDef())));
+        }
+        if (current.getValueSets() != null && !prune(current.getValueSets().getDef()).isEmpty()) {
+            result.setValueSets(new Library.ValueSets().withDef(prune(current.getValueSets().getDef())));
+        }
+        if (current.getCodes() != null && !prune(current.getCodes().getDef()).isEmpty()) {
+            result.setCodes(new Library.Codes().withDef(prune(current.getCodes().getDef())));
+        }
+        if (current.getConcepts() != null && !prune(current.getConcepts().getDef()).isEmpty()) {
+            result.setConcepts(new Library.Concepts().withDef(prune(current.getConcepts().getDef())));
+        }
+        if (current.getStatements() != null && !prune(current.getStatements().getDef()).isEmpty()) {
+            result.setStatements(new Library.Statements().withDef(prune(current.getStatements().getDef())));
+        }
+        return result;
+    }
+
+    private String getFlattenedName(Library current, String name) {
+        return current == library ? name : String.format("%s.%s", current.getIdentifier().getId(), name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Element> T copyDefinition(T def, Library current, Map<Object, Object> copies, Set<Object> references) {
+        T result = (T)copy(def, current, copies, references);
+        if (result instanceof ExpressionDef) {
+            ExpressionDef expressionDef = (ExpressionDef)result;
+            expressionDef.setName(getFlattenedName(current, expressionDef.getName()));
+        }
+        else if (result instanceof ParameterDef) {
+            ParameterDef parameterDef = (ParameterDef)result;
+            parameterDef.setName(getFlattenedName(current, parameterDef.getName()));
+        }
+        else if (result instanceof CodeSystemDef) {
+            CodeSystemDef codeSystemDef = (CodeSystemDef)result;
+            codeSystemDef.setName(getFlattenedName(current, codeSystemDef.getName()));
+        }
+        else if (result instanceof ValueSetDef) {
+            ValueSetDef valueSetDef = (ValueSetDef)result;
+            valueSetDef.setName(getFlattenedName(current, valueSetDef.getName()));
+        }
+        else if (result instanceof CodeDef) {
+            CodeDef codeDef = (CodeDef)result;
+            codeDef.setName(getFlattenedName(current, codeDef.getName()));
+        }
+        else if (result instanceof ConceptDef) {
+            ConceptDef conceptDef = (ConceptDef)result;
+            conceptDef.setName(getFlattenedName(current, conceptDef.getName()));
+        }
+        return result;
+    }
+
+    /**
+     * Copies the given ELM value of the given library, making its references refer to the flattened definitions.
+     * Subtrees shared within the library stay shared in the copy, so the references that have been made to refer to
+     * the flattened definitions are kept in references, to do that only once.
+     */
+    private Object copy(Object value, Library current, Map<Object, Object> copies, Set<Object> references) {
+        Object result = ElmNodes.copy(value, copies);
+        ElmNodes.anyMatch(result, node -> {
+            if (getReferenceKind(node) != null && references.add(node)) {
+                Library referencedLibrary = resolveLibrary(current, getLibraryName(node));
+                if (referencedLibrary != null) {
+                    setReference(node, null, getFlattenedName(referencedLibrary, getName(node)));
+                }
+            }
+            return false;
+        });
+        return result;
+    }
+}
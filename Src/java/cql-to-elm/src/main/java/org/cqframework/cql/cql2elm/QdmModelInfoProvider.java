@@ -2,8 +2,6 @@ package org.cqframework.cql.cql2elm;
 
 import org.hl7.elm_modelinfo.r1.ModelInfo;
 
-import javax.xml.bind.JAXB;
-
 /**
  * Created by Bryn on 2/3/2016.
  */
@@ -24,27 +22,20 @@ public class QdmModelInfoProvider implements ModelInfoProvider {
         String localVersion = version == null ? "" : version;
         switch (localVersion) {
             case "4.1.2":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo.xml");
             case "4.2":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo-4.2.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo-4.2.xml");
             case "4.3":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo-4.3.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo-4.3.xml");
             case "5.0":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo-5.0.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo-5.0.xml");
             case "5.0.1":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo-5.0.1.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo-5.0.1.xml");
             case "5.0.2":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo-5.0.2.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo-5.0.2.xml");
             case "5.3":
             case "":
-                return JAXB.unmarshal(QdmModelInfoProvider.class.getResourceAsStream("/gov/healthit/qdm/qdm-modelinfo-5.3.xml"),
-                        ModelInfo.class);
+                return BinaryModelInfo.load("/gov/healthit/qdm/qdm-modelinfo-5.3.xml");
             default:
                 throw new IllegalArgumentException(String.format("Unknown version %s of the QDM model.", localVersion));
         }
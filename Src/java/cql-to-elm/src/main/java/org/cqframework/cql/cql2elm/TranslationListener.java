@@ -0,0 +1,48 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.cql2elm.model.ResolutionStatistics;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+/**
+ * Receives timings and counts from a translation, for monitoring where translation time goes. A listener is given
+ * to the CqlTranslator factory methods, and is called from the thread performing the translation. All the methods
+ * do nothing by default.
+ *
+ * Times are in nanoseconds and are inclusive: the time of the Visiting phase includes the resolution of the
+ * included libraries, and the time of a definition includes that of any definitions it references that had not
+ * been translated yet. Included libraries are translated without the listener, so the resolution time of an include
+ * is all that is reported for it.
+ *
+ * @see TranslationStatistics
+ */
+public interface TranslationListener {
+    enum Phase { Lexing, Parsing, Preprocessing, Visiting, Optimization, Serialization }
+
+    /**
+     * Called at the end of each phase of the translation. Optimization is only reported if the ELM optimization
+     * option is enabled. Serialization is reported each time the library is converted to XML or JSON.
+     */
+    default void phaseCompleted(Phase phase, long elapsedNanos) {
+    }
+
+    /**
+     * Called when an included library has been resolved, whether it was translated, loaded from compiled ELM or
+     * already cached by the LibraryManager.
+     */
+    default void includeResolved(VersionedIdentifier libraryIdentifier, long elapsedNanos) {
+    }
+
+    /**
+     * Called when an expression or function definition has been translated.
+     */
+    default void definitionTranslated(ExpressionDef def, long elapsedNanos) {
+    }
+
+    /**
+     * Called once the library has been visited, with the operator resolution and conversion search counts of the
+     * translation.
+     */
+    default void translationCompleted(VersionedIdentifier libraryIdentifier, ResolutionStatistics statistics) {
+    }
+}
@@ -0,0 +1,293 @@
+package org.cqframework.cql.cql2elm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Serves translation requests over HTTP on the loopback interface for the command line --server option, so that
+ * build tools and editors can translate libraries without paying for JVM startup, JAXB context creation, model
+ * loading and parser warm-up on every translation.
+ *
+ * The CQL source is POSTed to /translate (optionally with a format=XML|JSON|COFFEE|BINARY query parameter) and the ELM
+ * is returned with a 200 status. If the library has errors, the errors are returned as text with a 400 status, in the
+ * same form the command line reports them.
+ *
+ * ModelManagers and LibraryManagers are partitioned by the model versions used by the library as they are for
+ * --parallel, so models and included libraries are loaded once and shared by all requests. The managers of the
+ * MAX_LIBRARY_MANAGERS most recently used combinations of model versions are kept. Included libraries are cached by
+ * source hash, so edits to an included library are picked up by the next request that includes it, and the
+ * translation of the previous source is discarded.
+ *
+ * Requests are translated on a fixed pool of worker threads. Requests that arrive while all workers are busy wait in
+ * a bounded queue, and once the queue is full further requests are rejected with a 503 status rather than being
+ * allowed to build up without limit. Request bodies larger than maxRequestSize bytes are rejected with a 413 status
+ * without being read into memory.
+ */
+public class TranslationServer {
+    private final int port;
+    private final LibrarySourceProvider librarySourceProvider;
+    private final CqlTranslator.Format format;
+    private final CqlTranslatorException.ErrorSeverity errorLevel;
+    private final CqlTranslator.Options[] options;
+    private final ThreadPoolExecutor workers;
+    private final int maxRequestSize;
+    static final int MAX_LIBRARY_MANAGERS = 16;
+    public static final int DEFAULT_MAX_REQUEST_SIZE = 4 * 1024 * 1024;
+
+    private final Map<String, LibraryManager> libraryManagers = Collections.synchronizedMap(
+            new LinkedHashMap<String, LibraryManager>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LibraryManager> eldest) {
+                    return size() > MAX_LIBRARY_MANAGERS;
+                }
+            });
+    private HttpServer server;
+
+    /**
+     * Creates a server listening on the given loopback port (0 to use any free port), translating requests on the
+     * given number of worker threads and queueing at most queueCapacity requests when all the workers are busy.
+     * Requests with a body larger than maxRequestSize bytes are rejected. Included libraries are resolved from librarySourceProvider, which may be null, and from the bundled FHIR
+     * libraries.
+     */
+    public TranslationServer(int port, int threads, int queueCapacity, int maxRequestSize, LibrarySourceProvider librarySourceProvider,
+                             CqlTranslator.Format format, CqlTranslatorException.ErrorSeverity errorLevel,
+                             CqlTranslator.Options... options) {
+        if (port < 0) {
+            throw new IllegalArgumentException(String.format("Invalid server port %d.", port));
+        }
+
+        if (threads < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of server threads %d.", threads));
+        }
+
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException(String.format("Invalid server queue capacity %d.", queueCapacity));
+        }
+
+        if (maxRequestSize < 1) {
+            throw new IllegalArgumentException(String.format("Invalid server maximum request size %d.", maxRequestSize));
+        }
+
+        this.port = port;
+        this.librarySourceProvider = librarySourceProvider;
+        this.format = format;
+        this.errorLevel = errorLevel;
+        this.options = options;
+        this.maxRequestSize = maxRequestSize;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalArgumentException("Server is already started.");
+        }
+
+        warmUp();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // Requests are accepted on the server's dispatch thread, which only hands them to the workers
+        server.createContext("/translate", this::dispatch);
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits for up to delaySeconds for the requests already accepted to complete.
+     */
+    public synchronized void stop(int delaySeconds) throws InterruptedException {
+        if (server == null) {
+            return;
+        }
+
+        server.stop(0);
+        server = null;
+        workers.shutdown();
+        if (!workers.awaitTermination(delaySeconds, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+        }
+
+        synchronized (libraryManagers) {
+            for (LibraryManager libraryManager : libraryManagers.values()) {
+                libraryManager.getLibrarySourceLoader().clearProviders();
+            }
+        }
+    }
+
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalArgumentException("Server is not started.");
+        }
+
+        return server.getAddress().getPort();
+    }
+
+    int getLibraryManagerCount() {
+        return libraryManagers.size();
+    }
+
+    private void warmUp() throws IOException {
+        CqlTranslator.warmUpParser();
+
+        // Create the JAXB context and load the System model and library before the first request arrives
+        LibraryManager libraryManager = getLibraryManager(new BatchTranslator.LibraryDependencies());
+        CqlTranslator translator = CqlTranslator.fromText("library ServerWarmUp define X: 1 + 1",
+                libraryManager.getModelManager(), libraryManager, errorLevel, options);
+        CqlTranslator.writeELM(translator, format, new ByteArrayOutputStream());
+    }
+
+    private LibraryManager getLibraryManager(BatchTranslator.LibraryDependencies dependencies) {
+        // A ModelManager only holds one version of each model, so requests are partitioned by the model versions used
+        return libraryManagers.computeIfAbsent(dependencies.getModels().toString(), k -> {
+            LibraryManager libraryManager = new LibraryManager(new ModelManager());
+            if (librarySourceProvider != null) {
+                libraryManager.getLibrarySourceLoader().registerProvider(librarySourceProvider);
+            }
+            libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+            return libraryManager;
+        });
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try {
+            workers.execute(() -> handle(exchange));
+        }
+        catch (RejectedExecutionException e) {
+            sendText(exchange, 503, "Translation server is busy, try again later.");
+        }
+    }
+
+    private void handle(HttpExchange exchange) {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, String.format("Method %s is not supported.", exchange.getRequestMethod()));
+                return;
+            }
+
+            CqlTranslator.Format requestFormat;
+            try {
+                requestFormat = getFormat(exchange.getRequestURI().getRawQuery());
+            }
+            catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            byte[] source = null;
+            if (getContentLength(exchange) <= maxRequestSize) {
+                source = readAll(exchange.getRequestBody(), maxRequestSize);
+            }
+            if (source == null) {
+                sendText(exchange, 413, String.format("Request body is larger than %d bytes.", maxRequestSize));
+                return;
+            }
+
+            LibraryManager libraryManager = getLibraryManager(BatchTranslator.scanDependencies(new ByteArrayInputStream(source)));
+            CqlTranslator translator = CqlTranslator.fromStream(new ByteArrayInputStream(source),
+                    libraryManager.getModelManager(), libraryManager, errorLevel, options);
+
+            if (translator.getErrors().size() > 0) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                PrintStream log = new PrintStream(buffer, true, "UTF-8");
+                log.println("Translation failed due to errors:");
+                CqlTranslator.outputExceptions(log, translator.getExceptions());
+                sendText(exchange, 400, buffer.toString("UTF-8"));
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", getContentType(requestFormat));
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody())) {
+                CqlTranslator.writeELM(translator, requestFormat, os);
+            }
+        }
+        catch (Exception e) {
+            try {
+                sendText(exchange, 500, String.format("Translation failed: %s", e.getMessage()));
+            }
+            catch (IOException | RuntimeException ignored) {
+                // The response was already started, all that can be done is to drop the connection
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private CqlTranslator.Format getFormat(String query) throws UnsupportedEncodingException {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator > 0 && parameter.substring(0, separator).equals("format")) {
+                    String value = URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+                    try {
+                        return CqlTranslator.Format.valueOf(value.toUpperCase());
+                    }
+                    catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(String.format("Unknown format %s.", value));
+                    }
+                }
+            }
+        }
+
+        return format;
+    }
+
+    private static String getContentType(CqlTranslator.Format format) {
+        switch (format) {
+            case XML:
+                return "application/xml; charset=utf-8";
+            case JSON:
+                return "application/json; charset=utf-8";
+            case BINARY:
+                return "application/octet-stream";
+            default:
+                return "text/plain; charset=utf-8";
+        }
+    }
+
+    private static long getContentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return contentLength != null ? Long.parseLong(contentLength.trim()) : 0;
+        }
+        catch (NumberFormatException e) {
+            // The length is checked again as the body is read
+            return 0;
+        }
+    }
+
+    // Returns null if the stream holds more than maxSize bytes
+    private static byte[] readAll(InputStream is, int maxSize) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = is.read(chunk)) != -1) {
+            if (buffer.size() + read > maxSize) {
+                return null;
+            }
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
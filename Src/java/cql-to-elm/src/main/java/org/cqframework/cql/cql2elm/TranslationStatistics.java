@@ -0,0 +1,145 @@
+package org.cqframework.cql.cql2elm;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cqframework.cql.cql2elm.model.ResolutionStatistics;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.FunctionDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import java.util.*;
+
+/**
+ * A TranslationListener that collects the timings and counts of a single translation, for the command line --stats
+ * option. The statistics can be read directly, or as a JSON document (see toJson) with times in milliseconds.
+ */
+public class TranslationStatistics implements TranslationListener {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private VersionedIdentifier libraryIdentifier;
+    private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+    private final List<Timing<VersionedIdentifier>> includes = new ArrayList<>();
+    private final List<Timing<ExpressionDef>> definitions = new ArrayList<>();
+    private ResolutionStatistics resolutionStatistics;
+
+    public static class Timing<T> {
+        private final T subject;
+        private final long elapsedNanos;
+
+        public Timing(T subject, long elapsedNanos) {
+            this.subject = subject;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public T getSubject() {
+            return subject;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    @Override
+    public void phaseCompleted(Phase phase, long elapsedNanos) {
+        phaseNanos.merge(phase, elapsedNanos, Long::sum);
+    }
+
+    @Override
+    public void includeResolved(VersionedIdentifier libraryIdentifier, long elapsedNanos) {
+        includes.add(new Timing<>(libraryIdentifier, elapsedNanos));
+    }
+
+    @Override
+    public void definitionTranslated(ExpressionDef def, long elapsedNanos) {
+        definitions.add(new Timing<>(def, elapsedNanos));
+    }
+
+    @Override
+    public void translationCompleted(VersionedIdentifier libraryIdentifier, ResolutionStatistics statistics) {
+        this.libraryIdentifier = libraryIdentifier;
+        this.resolutionStatistics = statistics;
+    }
+
+    public VersionedIdentifier getLibraryIdentifier() {
+        return libraryIdentifier;
+    }
+
+    /**
+     * Returns the total time of the given phase, or 0 if the phase has not completed.
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+
+    public List<Timing<VersionedIdentifier>> getIncludes() {
+        return includes;
+    }
+
+    public List<Timing<ExpressionDef>> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * Returns the resolution counts of the translation, or null if the translation did not complete.
+     */
+    public ResolutionStatistics getResolutionStatistics() {
+        return resolutionStatistics;
+    }
+
+    public String toJson() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (libraryIdentifier != null) {
+            result.put("library", libraryIdentifier.getId());
+            result.put("version", libraryIdentifier.getVersion());
+        }
+
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            if (phaseNanos.containsKey(phase)) {
+                phases.put(phase.name().toLowerCase(), toMillis(phaseNanos.get(phase)));
+            }
+        }
+        result.put("phases", phases);
+
+        List<Object> includeList = new ArrayList<>();
+        for (Timing<VersionedIdentifier> include : includes) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("library", include.getSubject().getId());
+            entry.put("version", include.getSubject().getVersion());
+            entry.put("ms", toMillis(include.getElapsedNanos()));
+            includeList.add(entry);
+        }
+        result.put("includes", includeList);
+
+        List<Object> definitionList = new ArrayList<>();
+        for (Timing<ExpressionDef> definition : definitions) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", definition.getSubject().getName());
+            entry.put("context", definition.getSubject().getContext());
+            entry.put("function", definition.getSubject() instanceof FunctionDef);
+            entry.put("ms", toMillis(definition.getElapsedNanos()));
+            definitionList.add(entry);
+        }
+        result.put("definitions", definitionList);
+
+        if (resolutionStatistics != null) {
+            result.put("operatorResolutions", resolutionStatistics.getOperatorResolutions());
+            result.put("operatorResolutionCacheHits", resolutionStatistics.getOperatorResolutionCacheHits());
+            result.put("conversionSearches", resolutionStatistics.getConversionSearches());
+            result.put("conversionCacheHits", resolutionStatistics.getConversionCacheHits());
+        }
+
+        try {
+            return mapper.writeValueAsString(result);
+        }
+        catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not convert translation statistics to JSON.", e);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        // Microsecond precision is plenty, and keeps the output readable
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
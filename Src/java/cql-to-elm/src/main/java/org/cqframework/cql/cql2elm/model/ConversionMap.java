@@ -1,21 +1,45 @@
 package org.cqframework.cql.cql2elm.model;
 
-import org.hl7.cql.model.ChoiceType;
-import org.hl7.cql.model.DataType;
-import org.hl7.cql.model.IntervalType;
-import org.hl7.cql.model.ListType;
+import org.hl7.cql.model.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class ConversionMap {
     private Map<DataType, List<Conversion>> map = new HashMap<>();
     private List<Conversion> genericConversions = new ArrayList<>();
+    // Results of findConversion (including failures to find one), cleared whenever a conversion is added
+    private Map<ConversionKey, Conversion> conversionCache = new HashMap<>();
+    private int version;
+    private final ResolutionStatistics statistics = new ResolutionStatistics();
+
+    /**
+     * Returns the operator resolution and conversion search counts of the translation this map belongs to.
+     */
+    public ResolutionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns a number that changes whenever a conversion is added, so results derived from the map can be cached.
+     */
+    public int getVersion() {
+        return version;
+    }
     private boolean demotion = true;
     private boolean promotion = true;
 
+    public boolean isDemotionEnabled() {
+        return demotion;
+    }
+
+    public boolean isPromotionEnabled() {
+        return promotion;
+    }
+
     public void enableDemotion() {
         demotion = true;
     }
@@ -37,6 +61,9 @@ public class ConversionMap {
             throw new IllegalArgumentException("conversion is null.");
         }
 
+        conversionCache.clear();
+        version++;
+
         // NOTE: The conversion map supports generic conversions, however, they turned out to be quite expensive computationally
         // so we introduced list promotion and demotion instead (we should add interval promotion and demotion too, would be quite useful)
         // Generic conversions could still be potentially useful, so I left the code, but it's never used because the generic conversions
@@ -190,6 +217,60 @@ public class ConversionMap {
     }
 
     public Conversion findConversion(DataType fromType, DataType toType, boolean isImplicit, OperatorMap operatorMap) {
+        // Conversions involving generic types depend on the type parameter bindings, and generic conversions may
+        // instantiate new conversions as a side effect, so neither can be memoized
+        if (isGeneric(fromType) || isGeneric(toType) || !genericConversions.isEmpty()) {
+            statistics.recordConversionSearch(false);
+            return findConversionUncached(fromType, toType, isImplicit, operatorMap);
+        }
+
+        ConversionKey key = new ConversionKey(fromType, toType, isImplicit, promotion, demotion);
+        Conversion result = conversionCache.get(key);
+        boolean cacheHit = result != null || conversionCache.containsKey(key);
+        statistics.recordConversionSearch(cacheHit);
+        if (!cacheHit) {
+            result = findConversionUncached(fromType, toType, isImplicit, operatorMap);
+            conversionCache.put(key, result);
+        }
+
+        return result;
+    }
+
+    // NOTE: Class types are only ever defined by model info, so are never generic. This doesn't use DataType.isGeneric
+    // because ClassType.isGeneric does not terminate for recursive class types (e.g. FHIR.Element).
+    static boolean isGeneric(DataType type) {
+        if (type instanceof TypeParameter) {
+            return true;
+        }
+
+        if (type instanceof ListType) {
+            return isGeneric(((ListType)type).getElementType());
+        }
+
+        if (type instanceof IntervalType) {
+            return isGeneric(((IntervalType)type).getPointType());
+        }
+
+        if (type instanceof ChoiceType) {
+            for (DataType choice : ((ChoiceType)type).getTypes()) {
+                if (isGeneric(choice)) {
+                    return true;
+                }
+            }
+        }
+
+        if (type instanceof TupleType) {
+            for (TupleTypeElement element : ((TupleType)type).getElements()) {
+                if (isGeneric(element.getType())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Conversion findConversionUncached(DataType fromType, DataType toType, boolean isImplicit, OperatorMap operatorMap) {
         Conversion result = findCompatibleConversion(fromType, toType);
         if (result == null) {
             result = internalFindConversion(fromType, toType, isImplicit);
@@ -230,4 +311,39 @@ public class ConversionMap {
 
         return result;
     }
+
+    private static class ConversionKey {
+        public ConversionKey(DataType fromType, DataType toType, boolean isImplicit, boolean promotion, boolean demotion) {
+            this.fromType = fromType;
+            this.toType = toType;
+            this.isImplicit = isImplicit;
+            this.promotion = promotion;
+            this.demotion = demotion;
+        }
+
+        private final DataType fromType;
+        private final DataType toType;
+        private final boolean isImplicit;
+        private final boolean promotion;
+        private final boolean demotion;
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fromType, toType, isImplicit, promotion, demotion);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ConversionKey) {
+                ConversionKey that = (ConversionKey)o;
+                return this.fromType.equals(that.fromType)
+                        && this.toType.equals(that.toType)
+                        && this.isImplicit == that.isImplicit
+                        && this.promotion == that.promotion
+                        && this.demotion == that.demotion;
+            }
+
+            return false;
+        }
+    }
 }
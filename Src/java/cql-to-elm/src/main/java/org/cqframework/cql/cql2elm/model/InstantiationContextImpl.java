@@ -135,7 +135,7 @@ public class InstantiationContextImpl implements InstantiationContext {
         // Add list promotion if no other conversion is found
         if (results.isEmpty()) {
             if (!(callType instanceof ListType)) {
-                results.add(new ListType(callType));
+                results.add(ListType.of(callType));
                 conversionScore += 4; // List promotion has a score of 4
             }
         }
@@ -5,39 +5,52 @@ import org.hl7.cql.model.*;
 import org.hl7.elm_modelinfo.r1.ModelInfo;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A Model is built from its ModelInfo and can be shared by concurrent translations (see ModelManager).
+ *
+ * By default the types of a model are imported on demand: resolveTypeName and resolveLabel import the requested
+ * type (and the types it references) the first time it is used, so a library that only touches a handful of
+ * types doesn't pay for importing the whole model. Types are only published to the indexes once they are
+ * completely built, and once published are never modified.
+ */
 public class Model {
     public Model(@NotNull ModelInfo modelInfo, Model systemModel) throws ClassNotFoundException {
+        this(modelInfo, systemModel, true);
+    }
+
+    public Model(@NotNull ModelInfo modelInfo, Model systemModel, boolean lazy) throws ClassNotFoundException {
         info = modelInfo;
-        index = new HashMap<>();
-        nameIndex = new HashMap<>();
-        classIndex = new HashMap<>();
-        conversions = new ArrayList<>();
+        index = new ConcurrentHashMap<>();
+        nameIndex = new ConcurrentHashMap<>();
+        classIndex = new ConcurrentHashMap<>();
+        List<Conversion> conversions = new ArrayList<>();
 
         ModelImporter importer = new ModelImporter(info, systemModel != null ? systemModel.nameIndex.values() : null);
-        index = importer.getTypes();
         for (Conversion c : importer.getConversions()) {
             conversions.add(c);
         }
+        this.conversions = Collections.unmodifiableList(conversions);
 
-        for (DataType t : index.values()) {
-            if (t instanceof ClassType && ((ClassType)t).getLabel() != null) {
-                classIndex.put(casify(((ClassType)t).getLabel()), (ClassType)t);
-            }
-
-            if (t instanceof NamedType) {
-                nameIndex.put(casify(((NamedType)t).getSimpleName()), t);
-            }
+        if (!lazy) {
+            importer.resolveTypeInfos();
         }
+
+        publishTypes(importer.takeNewTypes());
+        this.importer = lazy ? importer : null;
     }
 
-    private ModelInfo info;
+    private final ModelInfo info;
     public ModelInfo getModelInfo() { return info; }
 
-    private Map<String, DataType> index;
-    private Map<String, ClassType> classIndex;
-    private Map<String, DataType> nameIndex;
-    private List<Conversion> conversions;
+    private final Map<String, DataType> index;
+    private final Map<String, ClassType> classIndex;
+    private final Map<String, DataType> nameIndex;
+    private final List<Conversion> conversions;
+
+    // Only set for lazily imported models, access is synchronized on the importer
+    private final ModelImporter importer;
 
     public Iterable<Conversion> getConversions() {
         return conversions;
@@ -50,11 +63,39 @@ public class Model {
             result = nameIndex.get(typeName);
         }
 
+        if (result == null && importer != null && importer.hasModelTypeName(typeName)) {
+            synchronized (importer) {
+                result = importer.resolveModelTypeName(typeName);
+                publishTypes(importer.takeNewTypes());
+            }
+        }
+
         return result;
     }
 
     public ClassType resolveLabel(@NotNull String label) {
-        return classIndex.get(casify(label));
+        ClassType result = classIndex.get(casify(label));
+        if (result == null && importer != null && importer.hasLabel(label)) {
+            synchronized (importer) {
+                result = importer.resolveLabel(label);
+                publishTypes(importer.takeNewTypes());
+            }
+        }
+
+        return result;
+    }
+
+    private void publishTypes(Iterable<DataType> types) {
+        for (DataType t : types) {
+            if (t instanceof NamedType) {
+                index.put(casify(((NamedType)t).getName()), t);
+                nameIndex.put(casify(((NamedType)t).getSimpleName()), t);
+            }
+
+            if (t instanceof ClassType && ((ClassType)t).getLabel() != null) {
+                classIndex.put(casify(((ClassType)t).getLabel()), (ClassType)t);
+            }
+        }
     }
 
     private String casify(String typeName) {
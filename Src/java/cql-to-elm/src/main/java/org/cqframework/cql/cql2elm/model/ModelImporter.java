@@ -5,12 +5,19 @@ import org.hl7.elm_modelinfo.r1.*;
 
 import java.util.*;
 
+/**
+ * Imports the types and conversions of a ModelInfo. Conversions are imported on construction, types are imported
+ * either all at once with resolveTypeInfos, or on demand with resolveModelTypeName and resolveLabel (which import the
+ * requested type along with the types it references).
+ */
 public class ModelImporter {
 
     private ModelInfo modelInfo;
     private Map<String, TypeInfo> typeInfoIndex;
+    private Map<String, ClassInfo> labelIndex;
+    private Map<String, DataType> systemTypes;
     private Map<String, DataType> resolvedTypes;
-    private List<DataType> dataTypes;
+    private List<DataType> newTypes;
     private List<Conversion> conversions;
 
     public ModelImporter(ModelInfo modelInfo, Iterable<DataType> systemTypes) {
@@ -20,8 +27,10 @@ public class ModelImporter {
 
         this.modelInfo = modelInfo;
         this.typeInfoIndex = new HashMap<>();
+        this.labelIndex = new HashMap<>();
+        this.systemTypes = new HashMap<>();
         this.resolvedTypes = new HashMap<>();
-        this.dataTypes = new ArrayList<>();
+        this.newTypes = new ArrayList<>();
         this.conversions = new ArrayList<>();
 
         // Import system types
@@ -29,7 +38,7 @@ public class ModelImporter {
             for (DataType systemType : systemTypes) {
                 if (systemType instanceof NamedType) {
                     NamedType namedSystemType = (NamedType)systemType;
-                    this.resolvedTypes.put(namedSystemType.getName(), systemType);
+                    this.systemTypes.put(namedSystemType.getName(), systemType);
                 }
             }
         }
@@ -43,6 +52,9 @@ public class ModelImporter {
                 ClassInfo classInfo = (ClassInfo)t;
                 if (classInfo.getName() != null) {
                     typeInfoIndex.put(ensureUnqualified(classInfo.getName()), classInfo);
+                    if (classInfo.getLabel() != null) {
+                        labelIndex.put(casify(classInfo.getLabel()), classInfo);
+                    }
                 }
             }
         }
@@ -63,23 +75,58 @@ public class ModelImporter {
             Conversion conversion = new Conversion(operator, true);
             conversions.add(conversion);
         }
+    }
+
+    public Map<String, DataType> getTypes() { return resolvedTypes; }
+    public Iterable<Conversion> getConversions() { return conversions; }
+
+    /**
+     * Returns the named types imported since the last call, and resets the list.
+     */
+    public List<DataType> takeNewTypes() {
+        List<DataType> result = newTypes;
+        newTypes = new ArrayList<>();
+        return result;
+    }
 
+    public void resolveTypeInfos() {
         for (TypeInfo t: this.modelInfo.getTypeInfo()) {
-            dataTypes.add(resolveTypeInfo(t));
+            resolveTypeInfo(t);
         }
+    }
 
-        if (systemTypes != null) {
-            for (DataType systemType : systemTypes) {
-                if (systemType instanceof NamedType) {
-                    NamedType namedSystemType = (NamedType)systemType;
-                    this.resolvedTypes.remove(namedSystemType.getName());
-                }
-            }
-        }
+    /**
+     * Returns true if the model defines a type with the given name, qualified with the model name or not.
+     */
+    public boolean hasModelTypeName(String typeName) {
+        return lookupTypeInfo(ensureUnqualified(typeName)) != null;
     }
 
-    public Map<String, DataType> getTypes() { return resolvedTypes; }
-    public Iterable<Conversion> getConversions() { return conversions; }
+    /**
+     * Imports the model type with the given name, qualified with the model name or not, returning null if the
+     * model does not define the type.
+     */
+    public DataType resolveModelTypeName(String typeName) {
+        TypeInfo typeInfo = lookupTypeInfo(ensureUnqualified(typeName));
+        return typeInfo != null ? resolveTypeInfo(typeInfo) : null;
+    }
+
+    public boolean hasLabel(String label) {
+        return labelIndex.containsKey(casify(label));
+    }
+
+    /**
+     * Imports the class type with the given label, returning null if the model does not define the label.
+     */
+    public ClassType resolveLabel(String label) {
+        ClassInfo classInfo = labelIndex.get(casify(label));
+        return classInfo != null ? resolveClassType(classInfo) : null;
+    }
+
+    private void addResolvedType(NamedType type) {
+        resolvedTypes.put(casify(type.getName()), (DataType)type);
+        newTypes.add((DataType)type);
+    }
 
     private String casify(String typeName) {
         return casify(typeName, this.modelInfo.isCaseSensitive() != null ? this.modelInfo.isCaseSensitive() : false);
@@ -131,13 +178,13 @@ public class ModelImporter {
         if (typeSpecifier instanceof IntervalTypeSpecifier) {
             IntervalTypeSpecifier intervalTypeSpecifier = (IntervalTypeSpecifier)typeSpecifier;
             DataType pointType = resolveTypeNameOrSpecifier(intervalTypeSpecifier.getPointType(), intervalTypeSpecifier.getPointTypeSpecifier());
-            return new IntervalType(pointType);
+            return IntervalType.of(pointType);
         }
 
         if (typeSpecifier instanceof ListTypeSpecifier) {
             ListTypeSpecifier listTypeSpecifier = (ListTypeSpecifier)typeSpecifier;
             DataType elementType = resolveTypeNameOrSpecifier(listTypeSpecifier.getElementType(), listTypeSpecifier.getElementTypeSpecifier());
-            return new ListType(elementType);
+            return ListType.of(elementType);
         }
 
         if (typeSpecifier instanceof ChoiceTypeSpecifier) {
@@ -147,7 +194,7 @@ public class ModelImporter {
                 DataType choiceType = resolveTypeSpecifier(choice);
                 choices.add(choiceType);
             }
-            return new ChoiceType(choices);
+            return ChoiceType.of(choices);
         }
 
         return null;
@@ -165,11 +212,11 @@ public class ModelImporter {
         // listTypeSpecifier: 'list' '<' typeSpecifier '>'
         if (typeName.toLowerCase().startsWith("interval<")) {
             DataType pointType = resolveTypeName(typeName.substring(typeName.indexOf('<') + 1, typeName.lastIndexOf('>')));
-            return new IntervalType(pointType);
+            return IntervalType.of(pointType);
         }
         else if (typeName.toLowerCase().startsWith("list<")) {
             DataType elementType = resolveTypeName(typeName.substring(typeName.indexOf('<') + 1, typeName.lastIndexOf('>')));
-            return new ListType(elementType);
+            return ListType.of(elementType);
         }
 
         DataType result = lookupType(typeName);
@@ -202,7 +249,12 @@ public class ModelImporter {
             throw new IllegalArgumentException("typeName is null");
         }
 
-        return resolvedTypes.get(casify(typeName));
+        DataType result = resolvedTypes.get(casify(typeName));
+        if (result == null) {
+            result = systemTypes.get(casify(typeName));
+        }
+
+        return result;
     }
 
     private TypeInfo lookupTypeInfo(String typeName) {
@@ -246,7 +298,7 @@ public class ModelImporter {
             else {
                 result = new SimpleType(qualifiedTypeName, resolveTypeNameOrSpecifier(t.getBaseType(), t.getBaseTypeSpecifier()));
             }
-            resolvedTypes.put(casify(result.getName()), result);
+            addResolvedType(result);
         }
 
         return result;
@@ -261,7 +313,7 @@ public class ModelImporter {
     }
 
     private TupleType resolveTupleType(TupleTypeInfo t) {
-        TupleType result = new TupleType(resolveTupleTypeElements(t.getElement()));
+        TupleType result = TupleType.of(resolveTupleTypeElements(t.getElement()));
         return result;
     }
 
@@ -287,7 +339,7 @@ public class ModelImporter {
             else {
                 result = new ClassType(qualifiedName, resolveTypeNameOrSpecifier(t.getBaseType(), t.getBaseTypeSpecifier()));
             }
-            resolvedTypes.put(casify(result.getName()), result);
+            addResolvedType(result);
             result.addElements(resolveClassTypeElements(t.getElement()));
             result.setIdentifier(t.getIdentifier());
             result.setLabel(t.getLabel());
@@ -299,12 +351,12 @@ public class ModelImporter {
     }
 
     private IntervalType resolveIntervalType(IntervalTypeInfo t) {
-        IntervalType result = new IntervalType(resolveTypeNameOrSpecifier(t.getPointType(), t.getPointTypeSpecifier()));
+        IntervalType result = IntervalType.of(resolveTypeNameOrSpecifier(t.getPointType(), t.getPointTypeSpecifier()));
         return result;
     }
 
     private ListType resolveListType(ListTypeInfo t) {
-        ListType result = new ListType(resolveTypeNameOrSpecifier(t.getElementType(), t.getElementTypeSpecifier()));
+        ListType result = ListType.of(resolveTypeNameOrSpecifier(t.getElementType(), t.getElementTypeSpecifier()));
         return result;
     }
 
@@ -313,6 +365,6 @@ public class ModelImporter {
         for (TypeSpecifier typeSpecifier : t.getType()) {
             types.add(resolveTypeSpecifier(typeSpecifier));
         }
-        return new ChoiceType(types);
+        return ChoiceType.of(types);
     }
 }
@@ -22,6 +22,12 @@ public class OperatorEntry {
     private SignatureNodes signatures = new SignatureNodes();
     private Map<Signature, GenericOperator> genericOperators = new HashMap<>();
 
+    // Incremented whenever resolution registers a new instantiation of a generic operator
+    private int instantiationCount;
+    public int getInstantiationCount() {
+        return instantiationCount;
+    }
+
     private static class SignatureNode {
         public SignatureNode(Operator operator) {
             if (operator == null) {
@@ -71,6 +77,12 @@ public class OperatorEntry {
 
         private SignatureNodes subSignatures = new SignatureNodes();
 
+        public SignatureNode copy() {
+            SignatureNode result = new SignatureNode(operator);
+            result.subSignatures = subSignatures.copy();
+            return result;
+        }
+
         @Override
         public int hashCode() {
             return operator.getSignature().hashCode();
@@ -95,6 +107,14 @@ public class OperatorEntry {
     private static class SignatureNodes {
         private Map<Signature, SignatureNode> signatures = new HashMap<>();
 
+        public SignatureNodes copy() {
+            SignatureNodes result = new SignatureNodes();
+            for (Map.Entry<Signature, SignatureNode> entry : signatures.entrySet()) {
+                result.signatures.put(entry.getKey(), entry.getValue().copy());
+            }
+            return result;
+        }
+
         public boolean contains(Operator operator) {
             boolean result = signatures.containsKey(operator.getSignature());
             if (!result) {
@@ -156,6 +176,26 @@ public class OperatorEntry {
         }
     }
 
+    /**
+     * Returns a copy of this entry that can be modified (by adding operators or instantiating generic operators)
+     * without affecting this entry. The operators themselves are shared.
+     */
+    public OperatorEntry copy() {
+        OperatorEntry result = new OperatorEntry(name);
+        result.signatures = signatures.copy();
+        result.genericOperators = new HashMap<>(genericOperators);
+        result.instantiationCount = instantiationCount;
+        return result;
+    }
+
+    /**
+     * Resolution only modifies an entry when it instantiates a generic operator, so entries without generic
+     * operators can be resolved against without being modified.
+     */
+    public boolean hasGenericOperators() {
+        return !genericOperators.isEmpty();
+    }
+
     public boolean containsOperator(Operator operator) {
         if (operator instanceof GenericOperator) {
             return containsGenericOperator((GenericOperator)operator);
@@ -209,6 +249,7 @@ public class OperatorEntry {
             if (result != null && !signatures.contains(result)) {
                 // If the generic signature was instantiated, store it as an actual signature.
                 signatures.add(new SignatureNode(result));
+                instantiationCount++;
             }
 
             // re-attempt the resolution with the instantiated signature registered
@@ -3,37 +3,170 @@ package org.cqframework.cql.cql2elm.model;
 import org.hl7.cql.model.DataType;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * An OperatorMap can be frozen once it is built, after which it can no longer be modified, and can be shared by
+ * concurrent translations. A translation that needs to add operators to a frozen map (or instantiate its generic
+ * operators) works against an overlay of the map instead (see createOverlay), which copies the entries it modifies
+ * from the frozen map on first write. Resolving against a frozen map instantiates generic operators in a copy of their
+ * entry, which is kept for the conversion map of the resolution (i.e. for the translation), as the resolution cache
+ * is.
+ */
 public class OperatorMap {
-    private Map<String, OperatorEntry> operators = new HashMap<>();
+    public OperatorMap() {
+        this.base = null;
+    }
+
+    private OperatorMap(OperatorMap base) {
+        this.base = base;
+    }
+
+    // Operator maps of included libraries may be shared by concurrent translations
+    private final Map<String, OperatorEntry> operators = new ConcurrentHashMap<>();
+    private final OperatorMap base;
+    private volatile boolean frozen;
+
+    // Resolutions (including failures to resolve) by conversion map, then by operator name and call signature.
+    // Conversion maps belong to a single translation, so the per conversion map caches are only used from one thread,
+    // and are dropped along with their conversion map.
+    private final Map<ConversionMap, Map<ResolutionKey, OperatorResolution>> resolutionCache =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    // The copies of the entries of a frozen map that generic operators are instantiated in, by conversion map, then by
+    // operator name
+    private final Map<ConversionMap, Map<String, OperatorEntry>> instantiationEntries =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private final AtomicLong resolutionCacheHits = new AtomicLong();
+    private final AtomicLong resolutionCacheMisses = new AtomicLong();
+
+    public long getResolutionCacheHits() {
+        return resolutionCacheHits.get();
+    }
+
+    public long getResolutionCacheMisses() {
+        return resolutionCacheMisses.get();
+    }
+
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public OperatorMap createOverlay() {
+        if (!frozen) {
+            throw new IllegalArgumentException("Overlays can only be created for a frozen operator map.");
+        }
+
+        return new OperatorMap(this);
+    }
 
     public boolean containsOperator(Operator operator) {
-        OperatorEntry entry = getEntry(operator.getName());
-        return entry.containsOperator(operator);
+        OperatorEntry entry = findEntry(operator.getName());
+        return entry != null && entry.containsOperator(operator);
     }
 
     public void addOperator(Operator operator) {
-        OperatorEntry entry = getEntry(operator.getName());
+        OperatorEntry entry = getWritableEntry(operator.getName());
         entry.addOperator(operator);
+        resolutionCache.clear();
     }
 
-    private OperatorEntry getEntry(String operatorName) {
+    private OperatorEntry findEntry(String operatorName) {
         if (operatorName == null || operatorName.equals("")) {
             throw new IllegalArgumentException("operatorName is null or empty.");
         }
 
         OperatorEntry entry = operators.get(operatorName);
+        if (entry == null && base != null) {
+            entry = base.findEntry(operatorName);
+        }
+
+        return entry;
+    }
+
+    private OperatorEntry getWritableEntry(String operatorName) {
+        if (frozen) {
+            throw new IllegalArgumentException(String.format("Operator %s cannot be registered because the operator map is frozen.", operatorName));
+        }
+
+        OperatorEntry entry = findEntry(operatorName);
         if (entry == null) {
             entry = new OperatorEntry(operatorName);
             operators.put(operatorName, entry);
         }
+        else if (operators.get(operatorName) != entry) {
+            entry = entry.copy();
+            operators.put(operatorName, entry);
+        }
+
+        return entry;
+    }
+
+    private OperatorEntry getResolutionEntry(String operatorName, ConversionMap conversionMap) {
+        OperatorEntry entry = findEntry(operatorName);
+        if (entry != null && entry.hasGenericOperators() && (frozen || operators.get(operatorName) != entry)) {
+            // Resolution may instantiate generic operators, which must not modify a frozen entry
+            if (frozen) {
+                Map<String, OperatorEntry> entries;
+                synchronized (instantiationEntries) {
+                    entries = instantiationEntries.computeIfAbsent(conversionMap, k -> new HashMap<>());
+                }
+                OperatorEntry frozenEntry = entry;
+                entry = entries.computeIfAbsent(operatorName, k -> frozenEntry.copy());
+            }
+            else {
+                entry = getWritableEntry(operatorName);
+            }
+        }
 
         return entry;
     }
 
     public OperatorResolution resolveOperator(CallContext callContext, ConversionMap conversionMap) {
-        OperatorEntry entry = getEntry(callContext.getOperatorName());
-        List<OperatorResolution> results = entry.resolve(callContext, this, conversionMap);
+        // Calls with generic operand types are resolved against the bindings in effect, so are not cached
+        for (DataType operandType : callContext.getSignature().getOperandTypes()) {
+            if (ConversionMap.isGeneric(operandType)) {
+                conversionMap.getStatistics().recordOperatorResolution(false);
+                return internalResolveOperator(getResolutionEntry(callContext.getOperatorName(), conversionMap), callContext, conversionMap);
+            }
+        }
+
+        Map<ResolutionKey, OperatorResolution> resolutions;
+        synchronized (resolutionCache) {
+            resolutions = resolutionCache.computeIfAbsent(conversionMap, k -> new HashMap<>());
+        }
+
+        ResolutionKey key = new ResolutionKey(callContext, conversionMap);
+        OperatorResolution result = resolutions.get(key);
+        if (result != null || resolutions.containsKey(key)) {
+            resolutionCacheHits.incrementAndGet();
+            conversionMap.getStatistics().recordOperatorResolution(true);
+            return result;
+        }
+
+        resolutionCacheMisses.incrementAndGet();
+        conversionMap.getStatistics().recordOperatorResolution(false);
+        OperatorEntry entry = getResolutionEntry(callContext.getOperatorName(), conversionMap);
+        int instantiationCount = entry != null ? entry.getInstantiationCount() : 0;
+        result = internalResolveOperator(entry, callContext, conversionMap);
+        if (entry != null && entry.getInstantiationCount() != instantiationCount) {
+            // A generic instantiation may change the resolution of other signatures
+            synchronized (resolutionCache) {
+                resolutionCache.clear();
+                resolutions = resolutionCache.computeIfAbsent(conversionMap, k -> new HashMap<>());
+            }
+        }
+
+        resolutions.put(key, result);
+        return result;
+    }
+
+    private OperatorResolution internalResolveOperator(OperatorEntry entry, CallContext callContext, ConversionMap conversionMap) {
+        List<OperatorResolution> results = entry != null ? entry.resolve(callContext, this, conversionMap) : null;
 
         // Score each resolution and return the lowest score
         // Duplicate scores indicate ambiguous match
@@ -108,4 +241,42 @@ public class OperatorMap {
 
         return result;
     }
+
+    private static class ResolutionKey {
+        public ResolutionKey(CallContext callContext, ConversionMap conversionMap) {
+            this.operatorName = callContext.getOperatorName();
+            this.operandTypes = new ArrayList<>();
+            for (DataType operandType : callContext.getSignature().getOperandTypes()) {
+                this.operandTypes.add(operandType);
+            }
+            this.conversionMapVersion = conversionMap.getVersion();
+            this.promotion = conversionMap.isPromotionEnabled();
+            this.demotion = conversionMap.isDemotionEnabled();
+        }
+
+        private final String operatorName;
+        private final List<DataType> operandTypes;
+        private final int conversionMapVersion;
+        private final boolean promotion;
+        private final boolean demotion;
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operatorName, operandTypes, conversionMapVersion, promotion, demotion);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ResolutionKey) {
+                ResolutionKey that = (ResolutionKey)o;
+                return this.operatorName.equals(that.operatorName)
+                        && this.operandTypes.equals(that.operandTypes)
+                        && this.conversionMapVersion == that.conversionMapVersion
+                        && this.promotion == that.promotion
+                        && this.demotion == that.demotion;
+            }
+
+            return false;
+        }
+    }
 }
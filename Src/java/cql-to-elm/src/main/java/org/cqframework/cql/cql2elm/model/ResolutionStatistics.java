@@ -0,0 +1,56 @@
+package org.cqframework.cql.cql2elm.model;
+
+/**
+ * Counts the operator resolutions and conversion searches performed by a translation.
+ *
+ * The statistics are kept by the ConversionMap of the translation, which is passed to every operator resolution and
+ * conversion search, and like the ConversionMap are only used from the thread performing the translation.
+ */
+public class ResolutionStatistics {
+    private long operatorResolutions;
+    private long operatorResolutionCacheHits;
+    private long conversionSearches;
+    private long conversionCacheHits;
+
+    /**
+     * Returns the number of calls to OperatorMap.resolveOperator.
+     */
+    public long getOperatorResolutions() {
+        return operatorResolutions;
+    }
+
+    /**
+     * Returns the number of calls to OperatorMap.resolveOperator answered from the resolution cache.
+     */
+    public long getOperatorResolutionCacheHits() {
+        return operatorResolutionCacheHits;
+    }
+
+    /**
+     * Returns the number of calls to ConversionMap.findConversion, including those it makes itself.
+     */
+    public long getConversionSearches() {
+        return conversionSearches;
+    }
+
+    /**
+     * Returns the number of calls to ConversionMap.findConversion answered from the conversion cache.
+     */
+    public long getConversionCacheHits() {
+        return conversionCacheHits;
+    }
+
+    void recordOperatorResolution(boolean cacheHit) {
+        operatorResolutions++;
+        if (cacheHit) {
+            operatorResolutionCacheHits++;
+        }
+    }
+
+    void recordConversionSearch(boolean cacheHit) {
+        conversionSearches++;
+        if (cacheHit) {
+            conversionCacheHits++;
+        }
+    }
+}
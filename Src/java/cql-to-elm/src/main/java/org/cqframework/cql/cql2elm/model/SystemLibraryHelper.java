@@ -3,7 +3,26 @@ package org.cqframework.cql.cql2elm.model;
 import org.hl7.cql.model.*;
 import org.hl7.elm.r1.VersionedIdentifier;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 public class SystemLibraryHelper {
+    // The System library only depends on the system model, so it is built once per system model and shared
+    private static final Map<SystemModel, TranslatedLibrary> systemLibraries = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Returns the frozen System library for the given system model, building it on first use. Translations should
+     * work against an overlay of the result (see TranslatedLibrary.createOverlay).
+     */
+    public static TranslatedLibrary getSystemLibrary(SystemModel systemModel) {
+        return systemLibraries.computeIfAbsent(systemModel, k -> {
+            TranslatedLibrary system = load(k);
+            system.freeze();
+            return system;
+        });
+    }
+
     public static TranslatedLibrary load(SystemModel systemModel) {
         TranslatedLibrary system = new TranslatedLibrary();
         system.setIdentifier(new VersionedIdentifier().withId("System").withVersion("1.0"));
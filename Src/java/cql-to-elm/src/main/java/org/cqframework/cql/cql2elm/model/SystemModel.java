@@ -7,7 +7,8 @@ import org.hl7.elm_modelinfo.r1.ModelInfo;
 
 public class SystemModel extends Model {
     public SystemModel(@NotNull ModelInfo modelInfo) throws ClassNotFoundException {
-        super(modelInfo, null);
+        // The system types are imported into every other model, so they are always imported up front
+        super(modelInfo, null, false);
     }
 
     public DataType getAny() {
@@ -6,11 +6,26 @@ import org.hl7.elm.r1.*;
 import java.util.*;
 
 public class TranslatedLibrary {
+    public TranslatedLibrary() {
+        this.namespace = new HashMap<>();
+        this.operators = new OperatorMap();
+        this.conversions = new ArrayList<>();
+    }
+
+    private TranslatedLibrary(TranslatedLibrary base) {
+        this.identifier = base.identifier;
+        this.library = base.library;
+        this.namespace = new HashMap<>(base.namespace);
+        this.operators = base.operators.createOverlay();
+        this.conversions = new ArrayList<>(base.conversions);
+    }
+
     private VersionedIdentifier identifier;
     private Library library;
-    private final HashMap<String, Element> namespace = new HashMap<>();
-    private final OperatorMap operators = new OperatorMap();
-    private final java.util.List<Conversion> conversions = new ArrayList<>();
+    private final HashMap<String, Element> namespace;
+    private final OperatorMap operators;
+    private final java.util.List<Conversion> conversions;
+    private volatile boolean frozen;
 
     public VersionedIdentifier getIdentifier() {
         return identifier;
@@ -26,7 +41,41 @@ public class TranslatedLibrary {
         this.library = library;
     }
 
+    /**
+     * Prevents further changes to the library, so it can be shared by concurrent translations. Use createOverlay
+     * to obtain a modifiable view of a frozen library.
+     */
+    public void freeze() {
+        frozen = true;
+        operators.freeze();
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns a library that initially has the same contents as this (frozen) library, and can be modified without
+     * affecting it. Operator entries are only copied from this library when they are modified.
+     */
+    public TranslatedLibrary createOverlay() {
+        if (!frozen) {
+            throw new IllegalArgumentException("Overlays can only be created for a frozen library.");
+        }
+
+        return new TranslatedLibrary(this);
+    }
+
+    private void checkFrozen() {
+        if (frozen) {
+            throw new IllegalArgumentException(String.format("Library %s is frozen and cannot be modified.",
+                    identifier != null ? identifier.getId() : null));
+        }
+    }
+
     private void checkNamespace(String identifier) {
+        checkFrozen();
+
         Element existingElement = resolve(identifier);
         if (existingElement != null) {
             throw new IllegalArgumentException(String.format("Identifier %s is already in use in this library.", identifier));
@@ -120,6 +169,8 @@ public class TranslatedLibrary {
             throw new IllegalArgumentException("Casting conversions cannot be registered as part of a library.");
         }
 
+        checkFrozen();
+
         conversions.add(conversion);
     }
 
@@ -31,9 +31,8 @@ public class CqlPreprocessorVisitor extends cqlBaseVisitor {
         if (ctx.versionSpecifier() != null) {
             includeDefinition.setVersion((String)visit(ctx.versionSpecifier()));
         }
-        if (ctx.localIdentifier() != null) {
-          includeDefinition.setLocalName((String)visit(ctx.localIdentifier()));
-        }        
+        includeDefinition.setLocalName(ctx.localIdentifier() != null
+                ? (String)visit(ctx.localIdentifier()) : includeDefinition.getName());
         libraryInfo.addIncludeDefinition(includeDefinition);
         return includeDefinition;
     }
@@ -84,6 +84,10 @@ public class LibraryInfo {
         includeDefinitions.put(includeDefinition.getLocalName(), includeDefinition);
     }
 
+    public Collection<IncludeDefinitionInfo> getIncludeDefinitions() {
+        return includeDefinitions.values();
+    }
+
     public IncludeDefinitionInfo resolveLibraryReference(String identifier) {
         return includeDefinitions.get(identifier);
     }
@@ -0,0 +1,104 @@
+package org.cqframework.cql.cql2elm;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BatchTranslatorTests {
+    private Path root;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("BatchTranslatorTests");
+        Path input = root.resolve("input");
+        Files.createDirectories(input.resolve("other"));
+        write(input.resolve("BatchBase.cql"), "library BatchBase version '1.0'", "define \"Base\": 1");
+        write(input.resolve("BatchA.cql"), "library BatchA", "include BatchBase version '1.0'",
+                "define \"A\": BatchBase.\"Base\" + 1");
+        write(input.resolve("BatchB.cql"), "library BatchB", "include BatchBase", "include BatchA",
+                "define \"B\": BatchA.\"A\" + BatchBase.\"Base\"");
+        write(input.resolve("BatchD.cql"), "library BatchD", "include BatchA", "include BatchB",
+                "define \"D\": BatchA.\"A\" + BatchB.\"B\"");
+
+        // A library of the same name in another folder, which the libraries of that folder include instead
+        write(input.resolve("other/BatchBase.cql"), "library BatchBase version '1.0'", "define \"Base\": 'one'");
+        write(input.resolve("other/BatchC.cql"), "library BatchC", "include BatchBase version '1.0'",
+                "define \"C\": BatchBase.\"Base\" + 'two'");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static void write(Path path, String... lines) throws IOException {
+        Files.write(path, Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    private List<String> translate(String output, String... options) throws IOException, InterruptedException {
+        List<String> args = new ArrayList<>(Arrays.asList("--input", root.resolve("input").toString(),
+                "--output", root.resolve(output).toString()));
+        args.addAll(Arrays.asList(options));
+        CqlTranslator.main(args.toArray(new String[args.size()]));
+
+        List<String> result = new ArrayList<>();
+        for (String file : Arrays.asList("BatchBase.xml", "BatchA.xml", "BatchB.xml", "BatchD.xml",
+                "other/BatchBase.xml", "other/BatchC.xml")) {
+            File elm = root.resolve(output).resolve(file).toFile();
+            assertThat(file, elm.exists(), is(true));
+            result.add(new String(Files.readAllBytes(elm.toPath()), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException, InterruptedException {
+        List<String> sequential = translate("sequential");
+        assertThat(translate("parallel", "--parallel", "3"), is(sequential));
+        assertThat(sequential.get(5), containsString("Concatenate"));
+    }
+
+    @Test
+    public void testParallelMatchesSequentialWithOptions() throws IOException, InterruptedException {
+        List<String> sequential = translate("sequential", "--result-types");
+        assertThat(translate("parallel", "--result-types", "--parallel", "3"), is(sequential));
+    }
+
+    @Test
+    public void testEntryPointWritesPrunedIncludes() throws IOException, InterruptedException {
+        Path output = Files.createDirectories(root.resolve("pruned"));
+        CqlTranslator.main(new String[] { "--input", root.resolve("input/BatchD.cql").toString(),
+                "--output", output.toString(), "--entry-point", "D" });
+
+        for (String file : Arrays.asList("BatchD.xml", "BatchA.xml", "BatchB.xml", "BatchBase-1.0.xml")) {
+            assertThat(file, output.resolve(file).toFile().exists(), is(true));
+        }
+        assertThat(new String(Files.readAllBytes(output.resolve("BatchBase-1.0.xml")), StandardCharsets.UTF_8),
+                containsString("Base"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFlattenRequiresEntryPoint() throws IOException, InterruptedException {
+        CqlTranslator.main(new String[] { "--input", root.resolve("input/BatchD.cql").toString(),
+                "--output", Files.createDirectories(root.resolve("flattened")).toString(), "--flatten" });
+    }
+}
@@ -0,0 +1,112 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.elm.serializing.BinaryElm;
+import org.hl7.elm.r1.Library;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import javax.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.testng.Assert.fail;
+
+public class BinaryElmTests {
+    @DataProvider(name = "libraries")
+    public static Object[][] libraries() throws URISyntaxException, IOException {
+        Path root = Paths.get(BinaryElmTests.class.getResource("CMS146v2_Test_CQM.cql").toURI()).getParent();
+        try (Stream<Path> paths = Files.walk(root)) {
+            List<Path> libraries = paths.filter(p -> p.toString().endsWith(".cql")).sorted().collect(Collectors.toList());
+            Object[][] result = new Object[libraries.size()][];
+            for (int i = 0; i < libraries.size(); i++) {
+                result[i] = new Object[] { libraries.get(i).toFile() };
+            }
+            return result;
+        }
+    }
+
+    @Test(dataProvider = "libraries")
+    public void testRoundTrip(File file) throws IOException, JAXBException {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        CqlTranslator translator = CqlTranslator.fromFile(file, modelManager, libraryManager,
+                CqlTranslator.Options.EnableAnnotations, CqlTranslator.Options.EnableLocators,
+                CqlTranslator.Options.EnableResultTypes);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        translator.writeBinary(os);
+        Library library = BinaryElm.read(new ByteArrayInputStream(os.toByteArray()));
+
+        assertThat(translator.convertToXml(library), is(translator.toXml()));
+        assertThat(os.size(), lessThan(translator.toXml().length()));
+    }
+
+    @Test
+    public void testCommandLineFormat() throws IOException, InterruptedException {
+        Path output = Files.createTempDirectory("BinaryElmTests");
+        try {
+            File input = new File(BinaryElmTests.class.getResource("LibraryTests/BaseLibrary.cql").getFile());
+            CqlTranslator.main(new String[] { "--input", input.getPath(), "--output", output.toString(), "--format", "BINARY" });
+
+            Path binary = output.resolve("BaseLibrary.bin");
+            assertThat(Files.exists(binary), is(true));
+            Library library = BinaryElm.read(ByteBuffer.wrap(Files.readAllBytes(binary)));
+            assertThat(library.getIdentifier().getId(), is("BaseLibrary"));
+        }
+        finally {
+            for (File file : output.toFile().listFiles()) {
+                file.delete();
+            }
+            Files.delete(output);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidInput() {
+        BinaryElm.read(ByteBuffer.wrap("<library/>".getBytes()));
+    }
+
+    private byte[] getBinary() throws IOException {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        File input = new File(BinaryElmTests.class.getResource("LibraryTests/BaseLibrary.cql").getFile());
+        CqlTranslator translator = CqlTranslator.fromFile(input, modelManager, libraryManager);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        translator.writeBinary(os);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testTruncatedInput() throws IOException {
+        byte[] binary = getBinary();
+        for (int length : new int[] { 4, 5, binary.length / 2, binary.length - 1 }) {
+            try {
+                BinaryElm.read(ByteBuffer.wrap(Arrays.copyOf(binary, length)));
+                fail(String.format("Expected truncated input of length %d to be rejected.", length));
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTrailingInput() throws IOException {
+        byte[] binary = getBinary();
+        BinaryElm.read(ByteBuffer.wrap(Arrays.copyOf(binary, binary.length + 1)));
+    }
+}
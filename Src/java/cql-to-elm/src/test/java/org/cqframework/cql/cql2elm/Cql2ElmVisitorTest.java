@@ -1,6 +1,7 @@
 package org.cqframework.cql.cql2elm;
 
 import org.cqframework.cql.elm.tracking.Trackable;
+import org.cqframework.cql.elm.visiting.ElmNodes;
 import org.hl7.elm.r1.*;
 import org.testng.annotations.Test;
 
@@ -748,6 +749,177 @@ public class Cql2ElmVisitorTest {
         assertThat(rhs.getLibraryName(), is(nullValue()));
     }
 
+    @Test
+    public void testDateRangeOptimizationForStartsDuring() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "parameter MeasurementPeriod default Interval[DateTime(2013, 1, 1), DateTime(2014, 1, 1))\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    where E.period starts during MeasurementPeriod";
+
+        Query query = testEncounterPerformanceInpatientForDateRangeOptimization(cql);
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+
+        // The encounter must start on or after the start of the measurement period, and can end any time after
+        assertThat(request.getDateProperty(), is("period"));
+        Interval range = (Interval) request.getDateRange();
+        assertThat(range.isLowClosed(), is(true));
+        assertThat(((ParameterRef) ((Start) range.getLow()).getOperand()).getName(), is("MeasurementPeriod"));
+        assertThat(range.isHighClosed(), is(true));
+        assertThat(range.getHigh(), instanceOf(MaxValue.class));
+
+        // The range only bounds the where, so the where is unchanged
+        In where = (In) query.getWhere();
+        assertThat(where.getOperand().get(0), instanceOf(Start.class));
+    }
+
+    @Test
+    public void testDateRangeOptimizationForComparisons() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "parameter MeasurementPeriod default Interval[DateTime(2013, 1, 1), DateTime(2014, 1, 1))\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    where E.length > 2 days\n" +
+                "    and E.period starts on or after start of MeasurementPeriod\n" +
+                "    and end of MeasurementPeriod > end of E.period";
+
+        Query query = testEncounterPerformanceInpatientForDateRangeOptimization(cql);
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+
+        assertThat(request.getDateProperty(), is("period"));
+        Interval range = (Interval) request.getDateRange();
+        assertThat(range.isLowClosed(), is(true));
+        assertThat(((ParameterRef) ((Start) range.getLow()).getOperand()).getName(), is("MeasurementPeriod"));
+        assertThat(range.isHighClosed(), is(false));
+        assertThat(((ParameterRef) ((End) range.getHigh()).getOperand()).getName(), is("MeasurementPeriod"));
+
+        And where = (And) query.getWhere();
+        assertThat(where.getOperand().get(1), instanceOf(Greater.class));
+    }
+
+    @Test
+    public void testDateRangeOptimizationNotDoneForOverlaps() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "parameter MeasurementPeriod default Interval[DateTime(2013, 1, 1), DateTime(2014, 1, 1))\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    where E.period overlaps MeasurementPeriod\n" +
+                "    and E.period ends on or after start of MeasurementPeriod";
+
+        Query query = testEncounterPerformanceInpatientForDateRangeOptimization(cql);
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+
+        // Overlapping encounters may start before or end after the measurement period
+        assertThat(request.getDateProperty(), is(nullValue()));
+        assertThat(request.getDateRange(), is(nullValue()));
+    }
+
+    @Test
+    public void testDateRangeOptimizationForLetReference() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "parameter MeasurementPeriod default Interval[DateTime(2013, 1, 1), DateTime(2014, 1, 1))\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    let Period: MeasurementPeriod\n" +
+                "    where E.period during Period";
+
+        Query query = testEncounterPerformanceInpatientForDateRangeOptimization(cql);
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+
+        assertThat(request.getDateProperty(), is("period"));
+        ParameterRef mp = (ParameterRef) request.getDateRange();
+        assertThat(mp.getName(), is("MeasurementPeriod"));
+        assertThat(query.getWhere(), is(nullValue()));
+    }
+
+    @Test
+    public void testDateRangeOptimizationCopiesRange() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "parameter MeasurementPeriod default Interval[DateTime(2013, 1, 1), DateTime(2014, 1, 1))\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    where E.period starts during MeasurementPeriod\n" +
+                "define lt : [Encounter: \"Inpatient\"] E\n" +
+                "    let Period: Interval[start of MeasurementPeriod, end of MeasurementPeriod]\n" +
+                "    where E.period during Period";
+
+        // The ranges stay in the where and let clauses, so the retrieves have copies of them without local ids
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromText(cql, modelManager, new LibraryManager(modelManager),
+                CqlTranslator.Options.EnableAnnotations, CqlTranslator.Options.EnableDateRangeOptimization);
+        assertThat(translator.getErrors().size(), is(0));
+        Library library = translator.toELM();
+        for (ExpressionDef def : library.getStatements().getDef()) {
+            Map<String, Object> localIds = new HashMap<>();
+            ElmNodes.anyMatch(def, node -> {
+                String localId = node instanceof Element ? ((Element) node).getLocalId() : null;
+                if (localId != null) {
+                    assertThat(def.getName() + " " + localId, localIds.put(localId, node), is(nullValue()));
+                }
+                return false;
+            });
+        }
+
+        Query query = (Query) library.getStatements().getDef().get(library.getStatements().getDef().size() - 1).getExpression();
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+        assertThat(request.getDateRange(), instanceOf(Interval.class));
+        assertThat(request.getDateRange(), not(sameInstance(query.getLet().get(0).getExpression())));
+    }
+
+    @Test
+    public void testDateRangeOptimizationNotDoneForAliasReference() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    where E.period during Interval[start of E.period, end of E.period]";
+
+        Query query = testEncounterPerformanceInpatientForDateRangeOptimization(cql);
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+
+        // The range depends on the encounter, so it can't be evaluated before the retrieve
+        assertThat(request.getDateProperty(), is(nullValue()));
+        assertThat(request.getDateRange(), is(nullValue()));
+        assertThat(query.getWhere(), instanceOf(IncludedIn.class));
+    }
+
+    @Test
+    public void testDateRangeOptimizationForRelationship() {
+        String cql =
+                "using QUICK\n" +
+                "valueset \"Inpatient\" : '2.16.840.1.113883.3.666.5.307'\n" +
+                "parameter MeasurementPeriod default Interval[DateTime(2013, 1, 1), DateTime(2014, 1, 1))\n" +
+                "define st : [Encounter: \"Inpatient\"] E\n" +
+                "    with [Condition] C\n" +
+                "        such that C.onsetDateTime during MeasurementPeriod\n" +
+                "        and C.onsetDateTime during E.period\n" +
+                "    with [Condition] D\n" +
+                "        such that D.onsetDateTime during E.period\n" +
+                "        and E.period starts during MeasurementPeriod";
+
+        Query query = testEncounterPerformanceInpatientForDateRangeOptimization(cql);
+
+        // Every encounter returned has a condition such that the encounter starts during the measurement period
+        Retrieve request = (Retrieve) query.getSource().get(0).getExpression();
+        assertThat(request.getDateProperty(), is("period"));
+        Interval range = (Interval) request.getDateRange();
+        assertThat(((ParameterRef) ((Start) range.getLow()).getOperand()).getName(), is("MeasurementPeriod"));
+
+        Retrieve conditions = (Retrieve) query.getRelationship().get(0).getExpression();
+        assertThat(conditions.getDateProperty(), is("onsetDateTime"));
+        assertThat(((ParameterRef) conditions.getDateRange()).getName(), is("MeasurementPeriod"));
+
+        // The only date range of the other conditions depends on the encounter
+        Retrieve otherConditions = (Retrieve) query.getRelationship().get(1).getExpression();
+        assertThat(otherConditions.getDateProperty(), is(nullValue()));
+        assertThat(otherConditions.getDateRange(), is(nullValue()));
+    }
+
     // This test is semantically invalid, you cannot use "during" with a list
     @Test(enabled = false)
     public void testDateRangeOptimizationNotDoneOnUnsupportedExpressions() {
@@ -0,0 +1,113 @@
+package org.cqframework.cql.cql2elm;
+
+import org.hl7.elm.r1.ParameterRef;
+import org.hl7.elm.r1.Retrieve;
+import org.hl7.elm.r1.ValueSetRef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class DataRequirementsTests {
+    private static DataRequirements getDataRequirements(CqlTranslator.Options... options) throws IOException {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        try (InputStream is = DataRequirementsTests.class.getResourceAsStream("LibraryTests/DataRequirementsLibrary.cql")) {
+            CqlTranslator translator = CqlTranslator.fromStream(is, modelManager, libraryManager, options);
+            assertThat(translator.getErrors().size(), is(0));
+            return translator.getDataRequirements();
+        }
+    }
+
+    private static DataRequirements.DataRequirement getRequirement(DataRequirements dataRequirements, String dataType, String valueSetName) {
+        for (DataRequirements.DataRequirement requirement : dataRequirements.getRequirements()) {
+            if (requirement.getDataType().getLocalPart().equals(dataType)
+                    && (valueSetName == null ? requirement.getCodes() == null
+                        : requirement.getCodes() != null && ((ValueSetRef)requirement.getCodes().getExpression()).getName().equals(valueSetName))) {
+                return requirement;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getLibraryIds(List<DataRequirements.LibraryExpression> expressions) {
+        List<String> result = new ArrayList<>();
+        for (DataRequirements.LibraryExpression expression : expressions) {
+            result.add(expression.getLibraryIdentifier().getId());
+        }
+        return result;
+    }
+
+    @Test
+    public void testIncludedLibraries() throws IOException {
+        DataRequirements dataRequirements = getDataRequirements();
+        List<String> libraries = new ArrayList<>();
+        for (VersionedIdentifier library : dataRequirements.getLibraries()) {
+            libraries.add(library.getId());
+        }
+        assertThat(libraries, contains("DataRequirementsLibrary", "DataRequirementsBase"));
+    }
+
+    @Test
+    public void testMergedRetrieves() throws IOException {
+        DataRequirements dataRequirements = getDataRequirements();
+
+        // Patient (from each context Patient), Encounter, Condition with codes, and Condition without codes
+        assertThat(dataRequirements.getRequirements().size(), is(4));
+
+        // The same value set under different names in different libraries is the same requirement
+        DataRequirements.DataRequirement encounters = getRequirement(dataRequirements, "Encounter", "Inpatient Encounter");
+        assertThat(encounters, notNullValue());
+        assertThat(encounters.getCodeProperty(), is("type"));
+        assertThat(getLibraryIds(encounters.getRetrieves()), containsInAnyOrder("DataRequirementsLibrary", "DataRequirementsBase"));
+        assertThat(getRequirement(dataRequirements, "Encounter", "Inpatient"), nullValue());
+
+        DataRequirements.DataRequirement pharyngitis = getRequirement(dataRequirements, "Condition", "Acute Pharyngitis");
+        assertThat(pharyngitis.getRetrieves().size(), is(3));
+
+        DataRequirements.DataRequirement conditions = getRequirement(dataRequirements, "Condition", null);
+        assertThat(getLibraryIds(conditions.getRetrieves()), containsInAnyOrder("DataRequirementsLibrary", "DataRequirementsBase"));
+
+        DataRequirements.DataRequirement patients = getRequirement(dataRequirements, "Patient", null);
+        assertThat(patients.getRetrieves().size(), is(2));
+
+        for (DataRequirements.DataRequirement requirement : dataRequirements.getRequirements()) {
+            assertThat(requirement.getDateProperty(), nullValue());
+            assertThat(requirement.getDateRanges(), empty());
+        }
+    }
+
+    @Test
+    public void testUnionedDateRanges() throws IOException {
+        DataRequirements dataRequirements = getDataRequirements(CqlTranslator.Options.EnableDateRangeOptimization);
+
+        // Two distinct ranges from the three retrieves, all of them in the including library
+        DataRequirements.DataRequirement pharyngitis = getRequirement(dataRequirements, "Condition", "Acute Pharyngitis");
+        assertThat(pharyngitis.getRetrieves().size(), is(3));
+        assertThat(pharyngitis.getDateProperty(), is("onsetDateTime"));
+        List<String> ranges = new ArrayList<>();
+        for (DataRequirements.LibraryExpression dateRange : pharyngitis.getDateRanges()) {
+            assertThat(dateRange.getLibraryIdentifier().getId(), is("DataRequirementsLibrary"));
+            ranges.add(((ParameterRef)dateRange.getExpression()).getName());
+        }
+        assertThat(ranges, contains("MeasurementPeriod", "LookbackPeriod"));
+
+        // The retrieve of the included library is not restricted by date, so neither is the merged retrieve
+        DataRequirements.DataRequirement encounters = getRequirement(dataRequirements, "Encounter", "Inpatient Encounter");
+        assertThat(encounters.getRetrieves().size(), is(2));
+        boolean restricted = false;
+        for (DataRequirements.LibraryExpression retrieve : encounters.getRetrieves()) {
+            restricted |= ((Retrieve)retrieve.getExpression()).getDateRange() != null;
+        }
+        assertThat(restricted, is(true));
+        assertThat(encounters.getDateProperty(), nullValue());
+        assertThat(encounters.getDateRanges(), empty());
+    }
+}
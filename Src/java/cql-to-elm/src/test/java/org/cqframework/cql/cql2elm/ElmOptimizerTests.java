@@ -0,0 +1,196 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.elm.optimizing.ElmOptimizer;
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.cqframework.cql.elm.visiting.ElmRewriter;
+import org.hl7.elm.r1.*;
+import org.testng.annotations.Test;
+
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ElmOptimizerTests {
+    private static Expression translate(String expression) {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromText(
+                "library Test using QUICK context Patient define X: " + expression,
+                modelManager, new LibraryManager(modelManager), CqlTranslator.Options.EnableElmOptimization);
+        assertThat(translator.getErrors().size(), is(0));
+        for (ExpressionDef def : translator.toELM().getStatements().getDef()) {
+            if (def.getName().equals("X")) {
+                return def.getExpression();
+            }
+        }
+        return null;
+    }
+
+    private static String getValue(Expression expression) {
+        assertThat(expression, instanceOf(Literal.class));
+        return ((Literal)expression).getValue();
+    }
+
+    private static int count(Expression expression, Class<?> nodeClass) {
+        int[] result = new int[1];
+        ElmNodes.anyMatch(expression, node -> {
+            if (nodeClass.isInstance(node)) {
+                result[0]++;
+            }
+            return false;
+        });
+        return result[0];
+    }
+
+    @Test
+    public void testConstantFolding() {
+        assertThat(getValue(translate("1 + 2 * 3")), is("7"));
+        assertThat(getValue(translate("-(4) - 1")), is("-5"));
+        assertThat(getValue(translate("1 + 1.5")), is("2.5"));
+        assertThat(getValue(translate("7 div 2 + 7 mod 2")), is("4"));
+        assertThat(getValue(translate("'ab' + Upper('c')")), is("abC"));
+        assertThat(getValue(translate("'x' & 'y'")), is("xy"));
+        assertThat(getValue(translate("Length('abc')")), is("3"));
+
+        DateTime date = (DateTime)translate("DateTime(2016, 1, 31) + 1 month");
+        assertThat(getValue(date.getYear()), is("2016"));
+        assertThat(getValue(date.getMonth()), is("2"));
+        assertThat(getValue(date.getDay()), is("29"));
+    }
+
+    @Test
+    public void testConstantFoldingLeavesErrors() {
+        assertThat(translate("2147483647 + 1"), instanceOf(Add.class));
+        assertThat(translate("1 div 0"), instanceOf(TruncatedDivide.class));
+        assertThat(translate("DateTime(2016, 1, 31, 12) + 1 month"), instanceOf(Add.class));
+        assertThat(translate("99999999999999999999.0 + 1.0"), instanceOf(Add.class));
+        assertThat(translate("12345678901234.5 * 1234567.12345678"), instanceOf(Multiply.class));
+        assertThat(translate("Length('\uD83D\uDE00')"), instanceOf(Length.class));
+        assertThat(getValue(translate("99999999999999999998.0 + 1.0")), is("99999999999999999999.0"));
+    }
+
+    @Test
+    public void testRewriterVisitsOnce() {
+        Expression expression = translate("Tuple { a: Tuple { b: Tuple { c: 1 + 2 } }, d: Tuple { e: 3 } }");
+        java.util.List<Expression> visited = new ArrayList<>();
+        new ElmRewriter<Void>() {
+            @Override
+            public Expression visitLiteral(Literal elm, Void context) {
+                visited.add(elm);
+                return null;
+            }
+
+            @Override
+            public Expression visitTuple(Tuple elm, Void context) {
+                visited.add(elm);
+                return super.visitTuple(elm, context);
+            }
+        }.rewrite(expression, null);
+
+        assertThat(visited.size(), is(count(expression, Literal.class) + count(expression, Tuple.class)));
+        assertThat(visited.size(), is(6));
+    }
+
+    @Test
+    public void testBooleanSimplification() {
+        assertThat(translate("true and (1 > 2)"), instanceOf(Greater.class));
+        assertThat(getValue(translate("(1 > 2) and false")), is("false"));
+        assertThat(translate("false or (1 > 2)"), instanceOf(Greater.class));
+        assertThat(getValue(translate("(1 > 2) or true")), is("true"));
+        assertThat(translate("not not (1 > 2)"), instanceOf(Greater.class));
+        assertThat(getValue(translate("not (true and false)")), is("true"));
+
+        // null and true is null, but null and false is false
+        assertThat(translate("null and true"), instanceOf(As.class));
+        assertThat(getValue(translate("null and false")), is("false"));
+    }
+
+    @Test
+    public void testRedundantConversionRemoval() {
+        assertThat(getValue(translate("(1 as Integer) + 1")), is("2"));
+        assertThat(translate("(null as Integer)"), instanceOf(As.class));
+    }
+
+    @Test
+    public void testCommonSubexpressionElimination() {
+        Query query = (Query)translate("[Encounter] E\n" +
+                "    where duration in days of E.period > 2 and duration in days of E.period < 10\n" +
+                "    return duration in days of E.period");
+
+        assertThat(query.getLet().size(), is(1));
+        LetClause let = query.getLet().get(0);
+        assertThat(let.getExpression(), instanceOf(DurationBetween.class));
+        assertThat(count(query.getWhere(), DurationBetween.class), is(0));
+        assertThat(count(query.getWhere(), QueryLetRef.class), is(2));
+        assertThat(((QueryLetRef)query.getReturn().getExpression()).getName(), is(let.getIdentifier()));
+    }
+
+    @Test
+    public void testCommonSubexpressionEliminationReusesLet() {
+        Query query = (Query)translate("[Encounter] E\n" +
+                "    let Conditions: [Condition] C where C.onsetDateTime during E.period\n" +
+                "    where exists ([Condition] C where C.onsetDateTime during E.period)");
+
+        assertThat(query.getLet().size(), is(1));
+        assertThat(((QueryLetRef)((Exists)query.getWhere()).getOperand()).getName(), is("Conditions"));
+    }
+
+    @Test
+    public void testCommonSubexpressionEliminationScope() {
+        // The repeated condition depends on the related source, so it stays in the such that
+        Query query = (Query)translate("[Encounter] E\n" +
+                "    with [Condition] C such that C.onsetDateTime + 1 day during E.period and C.onsetDateTime + 1 day after start of E.period");
+
+        assertThat(query.getLet().size(), is(0));
+
+        // The repeated condition of the nested query depends on its alias, so it is left to the nested query
+        query = (Query)translate("[Encounter] E\n" +
+                "    where exists ([Condition] C where C.onsetDateTime + 1 day > start of E.period and C.onsetDateTime + 1 day < end of E.period)");
+
+        assertThat(query.getLet().size(), is(0));
+        Query nested = (Query)((Exists)query.getWhere()).getOperand();
+        assertThat(nested.getLet().size(), is(1));
+    }
+
+    @Test
+    public void testCommonSubexpressionEliminationConditional() {
+        // The repeated expression is only evaluated when the guard holds, so it is not evaluated for every row
+        Query query = (Query)translate("[Encounter] E\n" +
+                "    where if E.period is not null then duration in days of E.period > 2 and duration in days of E.period < 10 else false");
+
+        assertThat(query.getLet().size(), is(0));
+        assertThat(count(query.getWhere(), DurationBetween.class), is(2));
+
+        query = (Query)translate("[Encounter] E\n" +
+                "    where E.period is not null and duration in days of E.period > 2 and duration in days of E.period < 10");
+
+        assertThat(query.getLet().size(), is(0));
+
+        // Unless it is also evaluated unconditionally
+        query = (Query)translate("[Encounter] E\n" +
+                "    where duration in days of E.period > 0\n" +
+                "        and (if E.class is not null then duration in days of E.period < 10 else duration in days of E.period < 20)");
+
+        assertThat(query.getLet().size(), is(1));
+        assertThat(count(query.getWhere(), DurationBetween.class), is(0));
+        assertThat(count(query.getWhere(), QueryLetRef.class), is(3));
+    }
+
+    @Test(dataProvider = "libraries", dataProviderClass = BinaryElmTests.class)
+    public void testLibraries(File file) throws IOException, JAXBException {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        CqlTranslator translator = CqlTranslator.fromFile(file, modelManager, libraryManager,
+                CqlTranslator.Options.EnableAnnotations, CqlTranslator.Options.EnableLocators,
+                CqlTranslator.Options.EnableResultTypes, CqlTranslator.Options.EnableElmOptimization);
+
+        // The optimized library can be serialized, and optimizing it again changes nothing
+        String xml = translator.toXml();
+        ElmOptimizer.createDefault().optimize(translator.toELM());
+        assertThat(translator.toXml(), is(xml));
+    }
+}
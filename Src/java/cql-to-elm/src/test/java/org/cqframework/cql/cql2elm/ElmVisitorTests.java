@@ -0,0 +1,125 @@
+package org.cqframework.cql.cql2elm;
+
+import org.cqframework.cql.elm.visiting.ElmBaseClinicalVisitor;
+import org.cqframework.cql.elm.visiting.ElmBaseLibraryVisitor;
+import org.cqframework.cql.elm.visiting.ParallelElmTraversal;
+import org.hl7.elm.r1.*;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ElmVisitorTests {
+    private static class NamingVisitor extends ElmBaseClinicalVisitor<String, Void> {
+        @Override
+        public String visitExpressionRef(ExpressionRef elm, Void context) {
+            return "ExpressionRef";
+        }
+
+        @Override
+        public String visitFunctionRef(FunctionRef elm, Void context) {
+            return "FunctionRef";
+        }
+
+        @Override
+        public String visitBinaryExpression(BinaryExpression elm, Void context) {
+            return elm instanceof Add ? "BinaryExpression" : super.visitBinaryExpression(elm, context);
+        }
+
+        @Override
+        public String visitSubtract(Subtract elm, Void context) {
+            return "Subtract";
+        }
+
+        @Override
+        public String visitRetrieve(Retrieve elm, Void context) {
+            return "Retrieve";
+        }
+    }
+
+    @Test
+    public void testDispatch() {
+        NamingVisitor visitor = new NamingVisitor();
+        ObjectFactory of = new ObjectFactory();
+
+        // A node is dispatched by the nearest of its class and superclasses
+        assertThat(visitor.visitElement(of.createExpressionRef(), null), is("ExpressionRef"));
+        assertThat(visitor.visitElement(of.createFunctionRef(), null), is("FunctionRef"));
+        assertThat(visitor.visitExpression(of.createFunctionRef(), null), is("FunctionRef"));
+
+        // Overriding the visit method of a family of types intercepts its members
+        assertThat(visitor.visitElement(of.createAdd(), null), is("BinaryExpression"));
+        assertThat(visitor.visitElement(of.createSubtract(), null), is("Subtract"));
+
+        // Clinical expressions are dispatched by the clinical visitor
+        assertThat(visitor.visitElement(of.createRetrieve(), null), is("Retrieve"));
+
+        assertThat(visitor.visitElement(of.createMultiply(), null), nullValue());
+        assertThat(visitor.visitElement(null, null), nullValue());
+    }
+
+    private static class StatementVisitor extends ElmBaseLibraryVisitor<List<String>, Void> {
+        @Override
+        public List<String> visitExpressionDef(ExpressionDef elm, Void context) {
+            return Collections.singletonList(elm.getName());
+        }
+    }
+
+    @Test
+    public void testParallelTraversal() throws IOException {
+        ModelManager modelManager = new ModelManager();
+        Library library;
+        try (InputStream is = ElmVisitorTests.class.getResourceAsStream("OperatorTests/DateTimeOperators.cql")) {
+            CqlTranslator translator = CqlTranslator.fromStream(is, modelManager, new LibraryManager(modelManager));
+            assertThat(translator.getErrors().size(), is(0));
+            library = translator.toELM();
+        }
+
+        List<String> names = new ArrayList<>();
+        for (ExpressionDef def : library.getStatements().getDef()) {
+            names.add(def.getName());
+        }
+        assertThat(names.size(), greaterThan(20));
+
+        AtomicInteger contexts = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelElmTraversal<List<String>, Void> traversal = new ParallelElmTraversal<>(
+                    new StatementVisitor(),
+                    () -> {
+                        contexts.incrementAndGet();
+                        return null;
+                    },
+                    (left, right) -> {
+                        List<String> result = new ArrayList<>(left);
+                        result.addAll(right);
+                        return result;
+                    }).withPool(pool);
+
+            // Results are merged in statement order
+            assertThat(traversal.visitStatements(library), is(names));
+            assertThat(contexts.get(), is(names.size()));
+
+            contexts.set(0);
+            assertThat(traversal.withThreshold(names.size()).visitStatements(library), is(names));
+            assertThat(contexts.get(), is(1));
+
+            List<String> twice = new ArrayList<>(names);
+            twice.addAll(names);
+            assertThat(traversal.withThreshold(8).visitStatements(Arrays.asList(library, library)), is(twice));
+            assertThat(traversal.visitStatements(new Library()), nullValue());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
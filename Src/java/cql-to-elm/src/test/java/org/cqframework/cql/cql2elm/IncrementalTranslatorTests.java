@@ -0,0 +1,190 @@
+package org.cqframework.cql.cql2elm;
+
+import org.hl7.elm.r1.ExpressionDef;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class IncrementalTranslatorTests {
+    private static final CqlTranslator.Options[] OPTIONS = {
+            CqlTranslator.Options.EnableLocators, CqlTranslator.Options.EnableResultTypes };
+
+    private ModelManager modelManager;
+    private LibraryManager libraryManager;
+    private String source;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        modelManager = new ModelManager();
+        libraryManager = new LibraryManager(modelManager);
+        try (InputStream is = IncrementalTranslatorTests.class.getResourceAsStream("CMS146v2_Test_CQM.cql")) {
+            source = new Scanner(is, "UTF-8").useDelimiter("\\Z").next();
+        }
+    }
+
+    private CqlTranslator translate(String cqlText) {
+        return CqlTranslator.fromText(cqlText, modelManager, libraryManager, OPTIONS);
+    }
+
+    private void assertSameTranslation(CqlTranslator incremental, String cqlText) {
+        CqlTranslator full = translate(cqlText);
+        assertThat(incremental.getErrors().size(), is(full.getErrors().size()));
+        assertThat(incremental.toRetrieves().size(), is(full.toRetrieves().size()));
+        assertThat(incremental.toXml(), is(full.toXml()));
+    }
+
+    @Test
+    public void testUnchangedLibrary() {
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, OPTIONS);
+        CqlTranslator first = translator.translate(source);
+        assertThat(first.getErrors().size(), is(0));
+        assertThat(translator.getReusedDefinitionCount(), is(0));
+        int definitionCount = translator.getTranslatedDefinitionCount();
+        assertThat(definitionCount, greaterThan(0));
+
+        CqlTranslator second = translator.translate(source);
+        assertThat(translator.getReusedDefinitionCount(), is(definitionCount));
+        assertThat(translator.getTranslatedDefinitionCount(), is(0));
+        assertSameTranslation(second, source);
+    }
+
+    @Test
+    public void testChangedDefinition() {
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, OPTIONS);
+        translator.translate(source);
+        int definitionCount = translator.getTranslatedDefinitionCount();
+
+        // InDemographic is referenced only by InInitialPopulation, the edit also moves the definitions below it down a line
+        String edited = source.replace("AgeInYearsAt(start of MeasurementPeriod) >= 2 and",
+                "AgeInYearsAt(start of MeasurementPeriod) >= 3\n        and");
+        assertThat(edited, is(not(source)));
+        CqlTranslator result = translator.translate(edited);
+        assertThat(translator.getTranslatedDefinitionCount(), is(2));
+        assertThat(translator.getReusedDefinitionCount(), is(definitionCount - 2));
+        assertSameTranslation(result, edited);
+
+        // Pharyngitis is referenced by TargetEncounters, and so indirectly by most of the library
+        String reverted = edited.replace("union [Condition: \"Acute Tonsillitis\"]", "");
+        result = translator.translate(reverted);
+        assertThat(translator.getTranslatedDefinitionCount(), greaterThan(2));
+        assertSameTranslation(result, reverted);
+    }
+
+    private static List<String> locators(CqlTranslator translator) {
+        List<String> result = new ArrayList<>();
+        for (ExpressionDef def : translator.toELM().getStatements().getDef()) {
+            result.add(def.getName() + " " + def.getLocator() + " " + def.getExpression().getLocator() + " "
+                    + def.getExpression().getTrackbacks());
+        }
+        return result;
+    }
+
+    @Test
+    public void testMovedDefinitionsAreCopied() {
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, OPTIONS);
+        CqlTranslator first = translator.translate(source);
+        List<String> firstLocators = locators(first);
+
+        // Moves every definition down two lines without changing any of them
+        String moved = source.replace("define InDemographic:", "\n\ndefine InDemographic:");
+        assertThat(moved, is(not(source)));
+        CqlTranslator second = translator.translate(moved);
+        assertThat(translator.getTranslatedDefinitionCount(), is(0));
+        assertSameTranslation(second, moved);
+
+        assertThat(locators(first), is(firstLocators));
+        assertThat(locators(second), is(not(firstLocators)));
+    }
+
+    @Test
+    public void testOptimizedDefinitions() {
+        CqlTranslator.Options[] options = {
+                CqlTranslator.Options.EnableLocators, CqlTranslator.Options.EnableElmOptimization };
+        String optimized = "library Optimized using QUICK context Patient\n"
+                + "define A: false and exists [Condition]\n"
+                + "define B: exists [Encounter] and 1 + 1 = 2\n";
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, options);
+        CqlTranslator first = translator.translate(optimized);
+        assertThat(first.getErrors().size(), is(0));
+        assertThat(first.toRetrieves().size(), is(1));
+        String firstXml = first.toXml();
+
+        // Only B is translated again, A is reused without the retrieve the optimizer removed
+        String edited = optimized.replace("1 + 1 = 2", "2 + 2 = 4");
+        CqlTranslator second = translator.translate(edited);
+        assertThat(translator.getReusedDefinitionCount(), is(1));
+        assertThat(second.toRetrieves().size(), is(1));
+        CqlTranslator full = CqlTranslator.fromText(edited, modelManager, libraryManager, options);
+        assertThat(second.toXml(), is(full.toXml()));
+        assertThat(first.toXml(), is(firstXml));
+    }
+
+    @Test
+    public void testAddedAndRemovedDefinitions() {
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, OPTIONS);
+        translator.translate(source);
+
+        String added = source.replace("define InDenominator:", "define NewDefinition:\n    HasTargetEncounter\n\ndefine InDenominator:");
+        CqlTranslator result = translator.translate(added);
+        assertThat(translator.getTranslatedDefinitionCount(), is(1));
+        assertSameTranslation(result, added);
+
+        result = translator.translate(source);
+        assertThat(translator.getTranslatedDefinitionCount(), is(0));
+        assertSameTranslation(result, source);
+    }
+
+    @Test
+    public void testChangedHeader() {
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, OPTIONS);
+        translator.translate(source);
+        int definitionCount = translator.getTranslatedDefinitionCount();
+
+        String edited = source.replace("DateTime(2013, 1, 1, 0, 0, 0, 0)", "DateTime(2012, 1, 1, 0, 0, 0, 0)");
+        CqlTranslator result = translator.translate(edited);
+        assertThat(translator.getReusedDefinitionCount(), is(0));
+        assertThat(translator.getTranslatedDefinitionCount(), is(definitionCount));
+        assertSameTranslation(result, edited);
+    }
+
+    @Test
+    public void testErrors() {
+        IncrementalTranslator translator = new IncrementalTranslator(modelManager, libraryManager, OPTIONS);
+        translator.translate(source);
+        int definitionCount = translator.getTranslatedDefinitionCount();
+
+        // A syntax error translates everything, but keeps the previous definitions for the corrected source
+        String syntaxError = source.replace("define InDenominator:\n    true", "define InDenominator:\n    true and");
+        CqlTranslator result = translator.translate(syntaxError);
+        assertThat(result.getErrors().size(), greaterThan(0));
+        assertThat(translator.getReusedDefinitionCount(), is(0));
+
+        translator.translate(source);
+        assertThat(translator.getReusedDefinitionCount(), is(definitionCount));
+
+        // Definitions with semantic errors, and those referencing them, are translated again until they are corrected
+        String semanticError = source.replace("define InDenominator:\n    true", "define InDenominator:\n    true + 1");
+        result = translator.translate(semanticError);
+        assertThat(result.getErrors().size(), greaterThan(0));
+        assertThat(translator.getTranslatedDefinitionCount(), is(1));
+
+        result = translator.translate(semanticError);
+        assertThat(translator.getTranslatedDefinitionCount(), is(1));
+        assertSameTranslation(result, semanticError);
+
+        result = translator.translate(source);
+        assertThat(result.getErrors().size(), is(0));
+        assertThat(translator.getTranslatedDefinitionCount(), is(1));
+        assertSameTranslation(result, source);
+    }
+}
@@ -5,12 +5,41 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class LibraryTests {
 
@@ -99,4 +128,356 @@ public class LibraryTests {
         }
     }
 
+    @Test
+    public void testTranslatedLibraryCache() {
+        VersionedIdentifier baseLibrary = new VersionedIdentifier().withId("BaseLibrary");
+        TranslatedLibrary first = libraryManager.resolveLibrary(baseLibrary, new ArrayList<>());
+        TranslatedLibrary second = libraryManager.resolveLibrary(baseLibrary, new ArrayList<>());
+        assertThat(second, sameInstance(first));
+
+        TranslatedLibrary withOptions = libraryManager.resolveLibrary(baseLibrary, new ArrayList<>(), CqlTranslator.Options.EnableLocators);
+        assertThat(withOptions, not(sameInstance(first)));
+    }
+
+    private static boolean hasVersionConflict(CqlTranslator translator) {
+        for (CqlTranslatorException error : translator.getErrors()) {
+            if (error.getMessage() != null && error.getMessage().contains("is already loaded")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testMultipleVersions() throws IOException {
+        LibraryManager versionLibraryManager = new LibraryManager(modelManager);
+        versionLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/MultipleVersions.cql"),
+                modelManager, versionLibraryManager);
+        assertThat(hasVersionConflict(translator), is(true));
+
+        translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/IndirectMultipleVersions.cql"),
+                modelManager, versionLibraryManager);
+        assertThat(hasVersionConflict(translator), is(true));
+
+        // Separate translations may use different versions, even when the included library is already cached
+        translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/ReferencingVersionedLibrary.cql"),
+                modelManager, versionLibraryManager);
+        assertThat(translator.getErrors().size(), is(0));
+        assertThat(versionLibraryManager.resolveLibrary(new VersionedIdentifier().withId("VersionedLibrary").withVersion("1"),
+                new ArrayList<>()).getIdentifier().getVersion(), is("1"));
+
+        translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/IndirectMultipleVersions.cql"),
+                modelManager, versionLibraryManager);
+        assertThat(hasVersionConflict(translator), is(true));
+    }
+
+    @Test
+    public void testPendingLibraryOfAnotherTranslation() throws Exception {
+        LibraryManager versionLibraryManager = new LibraryManager(modelManager);
+        versionLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        VersionedIdentifier referencingIdentifier = new VersionedIdentifier().withId("ReferencingVersionedLibrary");
+        List<CqlTranslatorException> errors = new ArrayList<>();
+        Thread resolvingThread = new Thread(() -> versionLibraryManager.resolveLibrary(referencingIdentifier, errors));
+
+        // Holds the background translation of ReferencingVersionedLibrary until the other thread waits for it
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean held = new AtomicBoolean();
+        versionLibraryManager.registerCompiledLibraryProvider(libraryIdentifier -> {
+            if (Thread.currentThread() instanceof ForkJoinWorkerThread && held.compareAndSet(false, true)) {
+                started.countDown();
+                long deadline = System.currentTimeMillis() + 10000;
+                while (resolvingThread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                    Thread.yield();
+                }
+            }
+            return null;
+        });
+
+        // This translation has loaded version 1, so the background translation of the library, which includes
+        // version 2, fails
+        versionLibraryManager.beginTranslation("Test");
+        try {
+            versionLibraryManager.resolveLibrary(new VersionedIdentifier().withId("VersionedLibrary").withVersion("1"), null);
+            versionLibraryManager.prefetchLibraries(Collections.singletonList(referencingIdentifier));
+            assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+            resolvingThread.start();
+            resolvingThread.join(10000);
+        }
+        finally {
+            versionLibraryManager.endTranslation("Test");
+        }
+
+        // The other thread, which loaded no other version, translated the library again rather than take the errors
+        assertThat(resolvingThread.isAlive(), is(false));
+        assertThat(CqlTranslatorException.HasErrors(errors), is(false));
+    }
+
+    @Test
+    public void testCacheLibrary() throws IOException {
+        LibraryManager cachingLibraryManager = new LibraryManager(modelManager);
+        cachingLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        CqlTranslator baseTranslator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/BaseLibrary.cql"),
+                modelManager, cachingLibraryManager);
+        cachingLibraryManager.cacheLibrary(baseTranslator, readBaseLibrarySource());
+
+        TranslatedLibrary baseLibrary = cachingLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>());
+        assertThat(baseLibrary, sameInstance(baseTranslator.getTranslatedLibrary()));
+
+        // Includes translated with other options, or of a changed source, don't find the library
+        assertThat(cachingLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>(),
+                CqlTranslator.Options.EnableLocators), not(sameInstance(baseTranslator.getTranslatedLibrary())));
+        LibraryManager changedLibraryManager = new LibraryManager(modelManager);
+        changedLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        changedLibraryManager.cacheLibrary(baseTranslator, "library BaseLibrary".getBytes(StandardCharsets.UTF_8));
+        assertThat(changedLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>()),
+                not(sameInstance(baseTranslator.getTranslatedLibrary())));
+    }
+
+    @Test
+    public void testSupersededLibrary() {
+        String[] source = new String[1];
+        LibraryManager editedLibraryManager = new LibraryManager(modelManager);
+        editedLibraryManager.getLibrarySourceLoader().registerProvider(id -> id.getId().equals("Edited")
+                ? new ByteArrayInputStream(source[0].getBytes(StandardCharsets.UTF_8)) : null);
+
+        // Each edit of the library replaces the translation of the previous source
+        VersionedIdentifier edited = new VersionedIdentifier().withId("Edited");
+        for (int i = 0; i < 4; i++) {
+            source[0] = String.format("library Edited define X: %d", i);
+            TranslatedLibrary library = editedLibraryManager.resolveLibrary(edited, new ArrayList<>());
+            assertThat(library.resolveExpressionRef("X").getExpression().toString(), containsString(String.valueOf(i)));
+            assertThat(editedLibraryManager.getCachedLibraryCount(), is(1));
+        }
+
+        // Other versions and options are kept
+        editedLibraryManager.resolveLibrary(edited, new ArrayList<>(), CqlTranslator.Options.EnableLocators);
+        assertThat(editedLibraryManager.getCachedLibraryCount(), is(2));
+    }
+
+    @Test
+    public void testSharedLibraryManager() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CqlTranslator>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/ReferencingLibrary.cql"),
+                        modelManager, libraryManager)));
+            }
+
+            for (Future<CqlTranslator> result : results) {
+                assertThat(result.get().getErrors().size(), is(0));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelIncludes() throws IOException {
+        LibraryManager parallelLibraryManager = new LibraryManager(modelManager);
+        Map<String, Integer> loads = new ConcurrentHashMap<>();
+        parallelLibraryManager.getLibrarySourceLoader().registerProvider(libraryIdentifier -> {
+            loads.merge(libraryIdentifier.getId(), 1, Integer::sum);
+            return new TestLibrarySourceProvider().getLibrarySource(libraryIdentifier);
+        });
+        CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/ParallelIncludes.cql"),
+                modelManager, parallelLibraryManager);
+        assertThat(translator.getErrors().size(), is(0));
+
+        // The source of each library is loaded once by the translation, by the prefetch, and not again to resolve it
+        assertThat(loads.get("BaseLibrary"), is(1));
+        assertThat(loads.get("PrunedBase"), is(1));
+        assertThat(loads.get("DataRequirementsBase"), is(1));
+
+        // The included libraries were translated ahead of the visit and cached
+        TranslatedLibrary baseLibrary = parallelLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>());
+        assertThat(baseLibrary.resolveExpressionRef("BaseExpression"), notNullValue());
+        assertThat(parallelLibraryManager.resolveLibrary(new VersionedIdentifier().withId("DataRequirementsBase"), new ArrayList<>()),
+                sameInstance(parallelLibraryManager.resolveLibrary(new VersionedIdentifier().withId("DataRequirementsBase"), new ArrayList<>())));
+    }
+
+    @Test(timeOut = 60000)
+    public void testParallelCircularIncludes() throws IOException {
+        // CircularA and CircularB include each other, and are both translated ahead of the visit
+        for (int i = 0; i < 10; i++) {
+            LibraryManager parallelLibraryManager = new LibraryManager(modelManager);
+            parallelLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+            CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/CircularIncludes.cql"),
+                    modelManager, parallelLibraryManager);
+            assertThat(translator.getErrors().size(), is(not(0)));
+        }
+    }
+
+    @Test
+    public void testCompiledLibraryProvider() throws IOException {
+        CqlTranslator baseTranslator = translateBaseLibrary(CqlTranslator.Options.EnableResultTypes);
+        Library compiled = baseTranslator.toELM();
+        String sourceHash = LibraryManager.hashSource(readBaseLibrarySource());
+
+        LibraryManager compiledLibraryManager = new LibraryManager(modelManager);
+        compiledLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        compiledLibraryManager.registerCompiledLibraryProvider(id -> id.getId().equals("BaseLibrary") ? new CompiledLibrary(compiled, sourceHash) : null);
+
+        TranslatedLibrary baseLibrary = compiledLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>());
+        assertThat(baseLibrary.getLibrary(), sameInstance(compiled));
+        assertThat(baseLibrary.resolve("Pregnancy Test"), notNullValue());
+
+        CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/ReferencingLibrary.cql"),
+                modelManager, compiledLibraryManager);
+        assertThat(translator.getErrors().size(), is(0));
+        ExpressionDef reference = translator.getTranslatedLibrary().resolveExpressionRef("ReferenceExpression");
+        assertThat(reference.getExpression().getResultType(), sameInstance(modelManager.resolveModel("System").resolveTypeName("String")));
+    }
+
+    @Test
+    public void testCompiledModelLibrary() throws IOException {
+        VersionedIdentifier fhirHelpers = new VersionedIdentifier().withId("FHIRHelpers").withVersion("3.0.0");
+        CqlTranslator fhirHelpersTranslator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/FHIRHelpers-3.0.0.cql"),
+                modelManager, new LibraryManager(modelManager), CqlTranslator.Options.EnableResultTypes);
+        Library compiled = fhirHelpersTranslator.toELM();
+        String sourceHash;
+        try (InputStream is = new TestLibrarySourceProvider().getLibrarySource(fhirHelpers)) {
+            sourceHash = LibraryManager.hashSource(readAll(is));
+        }
+
+        LibraryManager compiledLibraryManager = new LibraryManager(modelManager);
+        compiledLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        compiledLibraryManager.registerCompiledLibraryProvider(id -> id.getId().equals("FHIRHelpers") ? new CompiledLibrary(compiled, sourceHash) : null);
+
+        CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("TestChoiceTypes.cql"),
+                modelManager, compiledLibraryManager);
+        assertThat(translator.getErrors().size(), is(0));
+        assertThat(compiledLibraryManager.resolveLibrary(fhirHelpers, new ArrayList<>()).getLibrary(), sameInstance(compiled));
+    }
+
+    @Test
+    public void testCompiledLibraryProviderFallback() throws IOException {
+        String sourceHash = LibraryManager.hashSource(readBaseLibrarySource());
+
+        // The source has changed since the library was compiled
+        Library stale = translateBaseLibrary(CqlTranslator.Options.EnableResultTypes).toELM();
+        LibraryManager staleLibraryManager = new LibraryManager(modelManager);
+        staleLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        staleLibraryManager.registerCompiledLibraryProvider(id -> new CompiledLibrary(stale, "0" + sourceHash.substring(1)));
+        TranslatedLibrary library = staleLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>());
+        assertThat(library.getLibrary(), not(sameInstance(stale)));
+
+        // The library was compiled without result types
+        Library untyped = translateBaseLibrary().toELM();
+        LibraryManager untypedLibraryManager = new LibraryManager(modelManager);
+        untypedLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        untypedLibraryManager.registerCompiledLibraryProvider(id -> new CompiledLibrary(untyped, sourceHash));
+        library = untypedLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>());
+        assertThat(library.getLibrary(), not(sameInstance(untyped)));
+
+        // The library names a type that cannot be resolved
+        Library unresolved = translateBaseLibrary(CqlTranslator.Options.EnableResultTypes).toELM();
+        ExpressionDef unresolvedDef = unresolved.getStatements().getDef().get(0);
+        unresolvedDef.setResultTypeName(new QName("urn:hl7-org:elm-types:r1", "Unknown"));
+        unresolvedDef.getExpression().setResultTypeName(unresolvedDef.getResultTypeName());
+        unresolvedDef.getExpression().setResultTypeSpecifier(null);
+        LibraryManager unresolvedLibraryManager = new LibraryManager(modelManager);
+        unresolvedLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        unresolvedLibraryManager.registerCompiledLibraryProvider(id -> new CompiledLibrary(unresolved, sourceHash));
+        library = unresolvedLibraryManager.resolveLibrary(new VersionedIdentifier().withId("BaseLibrary"), new ArrayList<>());
+        assertThat(library.getLibrary(), not(sameInstance(unresolved)));
+    }
+
+    @Test
+    public void testCompiledLibraryIncludes() throws IOException {
+        VersionedIdentifier referencing = new VersionedIdentifier().withId("ReferencingLibrary");
+        LibraryManager translatingLibraryManager = new LibraryManager(modelManager);
+        translatingLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/ReferencingLibrary.cql"),
+                modelManager, translatingLibraryManager, CqlTranslator.Options.EnableResultTypes);
+        assertThat(translator.getErrors().size(), is(0));
+        Library compiled = translator.toELM();
+        String sourceHash;
+        try (InputStream is = new TestLibrarySourceProvider().getLibrarySource(referencing)) {
+            sourceHash = LibraryManager.hashSource(readAll(is));
+        }
+
+        Map<VersionedIdentifier, String> includeSourceHashes = translatingLibraryManager.hashIncludedSources(compiled);
+        VersionedIdentifier base = new VersionedIdentifier().withId("BaseLibrary");
+        assertThat(includeSourceHashes.size(), is(1));
+        assertThat(includeSourceHashes.get(base), is(LibraryManager.hashSource(readBaseLibrarySource())));
+
+        // Without the hashes of its includes, the compiled library is not used
+        assertThat(resolveCompiled(referencing, new CompiledLibrary(compiled, sourceHash)), not(sameInstance(compiled)));
+
+        // Nor if an included library has changed since the library was compiled
+        Map<VersionedIdentifier, String> staleSourceHashes = new HashMap<>();
+        staleSourceHashes.put(base, "0" + includeSourceHashes.get(base).substring(1));
+        assertThat(resolveCompiled(referencing, new CompiledLibrary(compiled, sourceHash, staleSourceHashes)), not(sameInstance(compiled)));
+
+        assertThat(resolveCompiled(referencing, new CompiledLibrary(compiled, sourceHash, includeSourceHashes)), sameInstance(compiled));
+    }
+
+    private Library resolveCompiled(VersionedIdentifier libraryIdentifier, CompiledLibrary compiledLibrary) {
+        LibraryManager compiledLibraryManager = new LibraryManager(modelManager);
+        compiledLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        compiledLibraryManager.registerCompiledLibraryProvider(id -> id.equals(libraryIdentifier) ? compiledLibrary : null);
+        return compiledLibraryManager.resolveLibrary(libraryIdentifier, new ArrayList<>()).getLibrary();
+    }
+
+    @Test
+    public void testDefaultCompiledLibraryProvider() throws IOException {
+        Path compiledPath = Files.createTempDirectory("compiled");
+        try {
+            CqlTranslator baseTranslator = translateBaseLibrary(CqlTranslator.Options.EnableResultTypes);
+            try (OutputStream os = Files.newOutputStream(compiledPath.resolve("BaseLibrary.json"))) {
+                baseTranslator.writeJson(os);
+            }
+            String sourceHash = LibraryManager.hashSource(readBaseLibrarySource());
+            Files.write(compiledPath.resolve("BaseLibrary.json.sha256"), (sourceHash + "  BaseLibrary.cql\n").getBytes(StandardCharsets.UTF_8));
+
+            // Entries with no hash or that cannot be read are skipped
+            Files.write(compiledPath.resolve("BaseLibrary.bin"), new byte[] { 1, 2, 3 });
+            Files.write(compiledPath.resolve("BaseLibrary.bin.sha256"), (sourceHash + "  BaseLibrary.cql\n").getBytes(StandardCharsets.UTF_8));
+            Files.write(compiledPath.resolve("BaseLibrary.xml"), new byte[0]);
+            Files.write(compiledPath.resolve("BaseLibrary.xml.sha256"), " \n".getBytes(StandardCharsets.UTF_8));
+
+            CompiledLibrary compiled = new DefaultCompiledLibraryProvider(compiledPath).getCompiledLibrary(new VersionedIdentifier().withId("BaseLibrary"));
+            assertThat(compiled.getSourceHash(), is(sourceHash));
+            assertThat(compiled.getLibrary().getIdentifier().getId(), is("BaseLibrary"));
+
+            LibraryManager compiledLibraryManager = new LibraryManager(modelManager);
+            compiledLibraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+            compiledLibraryManager.registerCompiledLibraryProvider(new DefaultCompiledLibraryProvider(compiledPath));
+            CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/ReferencingLibrary.cql"),
+                    modelManager, compiledLibraryManager);
+            assertThat(translator.getErrors().size(), is(0));
+        }
+        finally {
+            for (Path path : Files.newDirectoryStream(compiledPath)) {
+                Files.delete(path);
+            }
+            Files.delete(compiledPath);
+        }
+    }
+
+    private CqlTranslator translateBaseLibrary(CqlTranslator.Options... options) throws IOException {
+        CqlTranslator translator = CqlTranslator.fromStream(LibraryTests.class.getResourceAsStream("LibraryTests/BaseLibrary.cql"),
+                modelManager, new LibraryManager(modelManager), options);
+        assertThat(translator.getErrors().size(), is(0));
+        return translator;
+    }
+
+    private byte[] readBaseLibrarySource() throws IOException {
+        try (InputStream is = LibraryTests.class.getResourceAsStream("LibraryTests/BaseLibrary.cql")) {
+            return readAll(is);
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = is.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
 }
@@ -1,15 +1,32 @@
 package org.cqframework.cql.cql2elm;
 
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.cql.model.*;
 import org.hl7.elm.r1.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.elm_modelinfo.r1.ModelInfo;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import javax.xml.bind.JAXB;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class ModelTests {
     @BeforeClass
@@ -35,4 +52,183 @@ public class ModelTests {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void testSharedModelManager() throws Exception {
+        final ModelManager modelManager = new ModelManager();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CqlTranslator>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> CqlTranslator.fromStream(ModelTests.class.getResourceAsStream("ModelTests/ModelTest.cql"),
+                        modelManager, new LibraryManager(modelManager))));
+            }
+
+            for (Future<CqlTranslator> result : results) {
+                assertThat(result.get().getErrors().size(), is(0));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertThat(modelManager.resolveModel("Test"), sameInstance(modelManager.resolveModel("Test")));
+    }
+
+    @Test
+    public void testBinaryModelInfo() throws IOException {
+        // All of the resources the precompileModelInfo task precompiles
+        String[] resourcePaths = {
+                "/org/hl7/elm/r1/system-modelinfo.xml",
+                "/org/hl7/fhir/quick-modelinfo.xml",
+                "/org/hl7/fhir/fhir-modelinfo-1.0.2.xml",
+                "/org/hl7/fhir/fhir-modelinfo-1.4.xml",
+                "/org/hl7/fhir/fhir-modelinfo-1.6.xml",
+                "/org/hl7/fhir/fhir-modelinfo-1.8.xml",
+                "/org/hl7/fhir/fhir-modelinfo-3.0.0.xml",
+                "/org/hl7/fhir/fhir-modelinfo-3.2.0.xml",
+                "/gov/healthit/qdm/qdm-modelinfo.xml",
+                "/gov/healthit/qdm/qdm-modelinfo-4.2.xml",
+                "/gov/healthit/qdm/qdm-modelinfo-4.3.xml",
+                "/gov/healthit/qdm/qdm-modelinfo-5.0.xml",
+                "/gov/healthit/qdm/qdm-modelinfo-5.0.1.xml",
+                "/gov/healthit/qdm/qdm-modelinfo-5.0.2.xml",
+                "/gov/healthit/qdm/qdm-modelinfo-5.3.xml"
+        };
+
+        for (String resourcePath : resourcePaths) {
+            InputStream xmlResource = ModelTests.class.getResourceAsStream(resourcePath);
+            assertThat(resourcePath, xmlResource, notNullValue());
+            ModelInfo modelInfo = JAXB.unmarshal(xmlResource, ModelInfo.class);
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            BinaryModelInfo.write(modelInfo, binary);
+            assertThat(resourcePath, BinaryModelInfo.read(ByteBuffer.wrap(binary.toByteArray())), is(modelInfo));
+        }
+    }
+
+    @Test
+    public void testLazyModel() throws ClassNotFoundException {
+        ModelManager modelManager = new ModelManager();
+        Model systemModel = modelManager.resolveModel("System");
+        ModelInfo modelInfo = new FhirModelInfoProvider().withVersion("3.0.0").load();
+        Model eagerModel = new Model(modelInfo, systemModel, false);
+        Model lazyModel = new Model(modelInfo, systemModel, true);
+
+        for (String typeName : new String[] { "Patient", "FHIR.Condition", "Observation", "CodeableConcept" }) {
+            DataType eagerType = eagerModel.resolveTypeName(typeName);
+            DataType lazyType = lazyModel.resolveTypeName(typeName);
+            assertThat(lazyType, notNullValue());
+            assertThat(lazyType.toString(), is(eagerType.toString()));
+            assertThat(((ClassType)lazyType).getElements().size(), is(((ClassType)eagerType).getElements().size()));
+            assertThat(lazyModel.resolveTypeName(typeName), sameInstance(lazyType));
+        }
+
+        assertThat(lazyModel.resolveTypeName("NotAType"), nullValue());
+        assertThat(lazyModel.resolveTypeName("System.String"), nullValue());
+    }
+
+    @Test
+    public void testInternedTypes() {
+        ModelManager modelManager = new ModelManager();
+        Model systemModel = modelManager.resolveModel("System");
+        DataType integerType = systemModel.resolveTypeName("Integer");
+        DataType stringType = systemModel.resolveTypeName("String");
+
+        assertThat(ListType.of(integerType), sameInstance(ListType.of(integerType)));
+        assertThat(IntervalType.of(integerType), sameInstance(IntervalType.of(integerType)));
+        assertThat(ListType.of(IntervalType.of(integerType)), sameInstance(ListType.of(IntervalType.of(integerType))));
+        assertThat(ChoiceType.of(Arrays.asList(integerType, stringType)), sameInstance(ChoiceType.of(Arrays.asList(integerType, stringType))));
+        assertThat(ChoiceType.of(Arrays.asList(integerType, stringType)), not(sameInstance(ChoiceType.of(Arrays.asList(stringType, integerType)))));
+
+        TupleType tupleType = TupleType.of(Arrays.asList(new TupleTypeElement("a", integerType), new TupleTypeElement("b", stringType)));
+        assertThat(TupleType.of(Arrays.asList(new TupleTypeElement("a", integerType), new TupleTypeElement("b", stringType))), sameInstance(tupleType));
+        assertThat(tupleType.isInterned(), is(true));
+
+        // Interned types are still equal to equivalent types created directly
+        TupleType unsharedType = new TupleType(Arrays.asList(new TupleTypeElement("b", stringType), new TupleTypeElement("a", integerType)));
+        assertThat(unsharedType.isInterned(), is(false));
+        assertThat(unsharedType, is(tupleType));
+        assertThat(unsharedType.hashCode(), is(tupleType.hashCode()));
+        assertThat(new ListType(integerType), is(ListType.of(integerType)));
+    }
+
+    @Test
+    public void testConcurrentInternedTypes() throws Exception {
+        ModelManager modelManager = new ModelManager();
+        DataType integerType = modelManager.resolveModel("System").resolveTypeName("Integer");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Each round interns types no other round has, so the threads race to create them
+            for (int round = 0; round < 20; round++) {
+                String name = "concurrent" + round;
+                List<Future<ListType>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    results.add(executor.submit(() -> ListType.of(TupleType.of(Arrays.asList(new TupleTypeElement(name, integerType))))));
+                }
+
+                ListType first = results.get(0).get();
+                assertThat(first.isInterned(), is(true));
+                for (Future<ListType> result : results) {
+                    assertThat(result.get(), sameInstance(first));
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInternedTupleTypeIsImmutable() {
+        ModelManager modelManager = new ModelManager();
+        DataType integerType = modelManager.resolveModel("System").resolveTypeName("Integer");
+        TupleType.of(Arrays.asList(new TupleTypeElement("a", integerType)))
+                .addElement(new TupleTypeElement("b", integerType));
+    }
+
+    @Test
+    public void testElementIndex() {
+        ModelManager modelManager = new ModelManager();
+        Model fhirModel = modelManager.resolveModel("FHIR", "3.0.0");
+        ClassType patientType = (ClassType)fhirModel.resolveTypeName("Patient");
+
+        for (ClassTypeElement element : patientType.getAllElements()) {
+            assertThat(patientType.findElement(element.getName()), sameInstance(element));
+        }
+
+        // Inherited from DomainResource and Resource respectively
+        assertThat(patientType.findElement("text"), notNullValue());
+        assertThat(patientType.findElement("id"), notNullValue());
+        assertThat(patientType.findElement("notAnElement"), nullValue());
+
+        TupleType tupleType = patientType.getTupleType();
+        assertThat(tupleType.findElement("birthDate").getType(), sameInstance(patientType.findElement("birthDate").getType()));
+        assertThat(tupleType.findElement("notAnElement"), nullValue());
+    }
+
+    @Test
+    public void testElementIndexBaseTypeChange() {
+        SimpleType integerType = new SimpleType("System.Integer");
+        ClassType baseType = new ClassType("Test.Base");
+        baseType.addElement(new ClassTypeElement("a", integerType));
+        ClassType derivedType = new ClassType("Test.Derived", baseType);
+        derivedType.addElement(new ClassTypeElement("b", integerType));
+        assertThat(derivedType.findElement("c"), nullValue());
+
+        // Elements added to a base type after the index was built are still found
+        ClassTypeElement element = new ClassTypeElement("c", integerType);
+        baseType.addElement(element);
+        assertThat(derivedType.findElement("c"), sameInstance(element));
+        assertThat(derivedType.findElement("b"), notNullValue());
+
+        // And so are elements added to any type further up the chain, each time they are added
+        ClassType leafType = new ClassType("Test.Leaf", derivedType);
+        assertThat(leafType.findElement("c"), sameInstance(element));
+        for (String name : new String[] { "d", "e" }) {
+            element = new ClassTypeElement(name, integerType);
+            baseType.addElement(element);
+            assertThat(leafType.findElement(name), sameInstance(element));
+            assertThat(derivedType.findElement(name), sameInstance(element));
+        }
+    }
 }
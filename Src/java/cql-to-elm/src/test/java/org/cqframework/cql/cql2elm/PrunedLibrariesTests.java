@@ -0,0 +1,113 @@
+package org.cqframework.cql.cql2elm;
+
+import org.hl7.elm.r1.*;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PrunedLibrariesTests {
+    private static CqlTranslator translate() throws IOException {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        try (InputStream is = PrunedLibrariesTests.class.getResourceAsStream("LibraryTests/PrunedLibrary.cql")) {
+            CqlTranslator translator = CqlTranslator.fromStream(is, modelManager, libraryManager);
+            assertThat(translator.getErrors().size(), is(0));
+            return translator;
+        }
+    }
+
+    private static List<String> getNames(Library library) {
+        List<String> result = new ArrayList<>();
+        if (library.getParameters() != null) {
+            for (ParameterDef def : library.getParameters().getDef()) {
+                result.add(def.getName());
+            }
+        }
+        if (library.getCodeSystems() != null) {
+            for (CodeSystemDef def : library.getCodeSystems().getDef()) {
+                result.add(def.getName());
+            }
+        }
+        if (library.getValueSets() != null) {
+            for (ValueSetDef def : library.getValueSets().getDef()) {
+                result.add(def.getName());
+            }
+        }
+        if (library.getCodes() != null) {
+            for (CodeDef def : library.getCodes().getDef()) {
+                result.add(def.getName());
+            }
+        }
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                result.add(def.getName());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testPrunedLibraries() throws IOException {
+        CqlTranslator translator = translate();
+        PrunedLibraries prunedLibraries = translator.getPrunedLibraries(Arrays.asList("Initial Population", "Numerator"));
+
+        List<Library> libraries = prunedLibraries.getLibraries();
+        assertThat(libraries.size(), is(2));
+
+        Library library = libraries.get(0);
+        assertThat(library.getIdentifier().getId(), is("PrunedLibrary"));
+        assertThat(getNames(library), contains("MeasurementPeriod", "LOINC", "Acute Pharyngitis", "Blood Pressure",
+                "Patient", "Pharyngitis", "Blood Pressures", "Initial Population", "Numerator"));
+        assertThat(library.getIncludes().getDef().size(), is(1));
+        assertThat(library.getIncludes().getDef().get(0).getLocalIdentifier(), is("Base"));
+
+        // A function reference reaches all the overloads of the function, and AgeInYears() references Patient
+        Library base = libraries.get(1);
+        assertThat(base.getIdentifier().getId(), is("PrunedBase"));
+        assertThat(getNames(base), contains("Adult Age", "Lookback", "Patient", "Adult", "Recent", "Recent"));
+
+        // The translated library is unchanged
+        assertThat(getNames(translator.toELM()), hasItems("Heart Rate", "Heart Rates", "Unused Conditions"));
+        assertThat(translator.toELM().getIncludes().getDef().size(), is(2));
+    }
+
+    @Test
+    public void testFlatten() throws IOException {
+        CqlTranslator translator = translate();
+        Library library = translator.getPrunedLibraries(Arrays.asList("Initial Population", "Numerator")).flatten();
+
+        assertThat(library.getIdentifier().getId(), is("PrunedLibrary"));
+        assertThat(library.getIncludes(), nullValue());
+        assertThat(getNames(library), contains("MeasurementPeriod", "PrunedBase.Adult Age", "PrunedBase.Lookback",
+                "LOINC", "Acute Pharyngitis", "Blood Pressure", "Patient", "Pharyngitis", "Blood Pressures",
+                "Initial Population", "Numerator", "PrunedBase.Patient", "PrunedBase.Adult", "PrunedBase.Recent",
+                "PrunedBase.Recent"));
+
+        ExpressionDef initialPopulation = library.getStatements().getDef().get(3);
+        ExpressionRef adult = (ExpressionRef)((And)initialPopulation.getExpression()).getOperand().get(1);
+        assertThat(adult.getLibraryName(), nullValue());
+        assertThat(adult.getName(), is("PrunedBase.Adult"));
+
+        ExpressionDef adultDef = library.getStatements().getDef().get(6);
+        ParameterRef adultAge = (ParameterRef)((GreaterOrEqual)adultDef.getExpression()).getOperand().get(1);
+        assertThat(adultAge.getLibraryName(), nullValue());
+        assertThat(adultAge.getName(), is("PrunedBase.Adult Age"));
+
+        // The included library is copied rather than renamed in place
+        Library base = translator.getPrunedLibraries(Arrays.asList("Initial Population")).getLibraries().get(1);
+        assertThat(getNames(base), contains("Adult Age", "Patient", "Adult"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownEntryPoint() throws IOException {
+        translate().getPrunedLibraries(Arrays.asList("Denominator"));
+    }
+}
@@ -0,0 +1,183 @@
+package org.cqframework.cql.cql2elm;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+public class TranslationServerTests {
+    private TranslationServer server;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        server = new TranslationServer(0, 2, 4, TranslationServer.DEFAULT_MAX_REQUEST_SIZE, new TestLibrarySourceProvider(), CqlTranslator.Format.XML,
+                CqlTranslatorException.ErrorSeverity.Info);
+        server.start();
+    }
+
+    @AfterClass
+    public void tearDown() throws InterruptedException {
+        server.stop(5);
+    }
+
+    private static Response request(TranslationServer server, String method, String query, String cql) throws IOException {
+        return request(server, method, query, cql, false);
+    }
+
+    private static Response request(TranslationServer server, String method, String query, String cql, boolean chunked) throws IOException {
+        URL url = new URL(String.format("http://localhost:%d/translate%s", server.getPort(), query != null ? "?" + query : ""));
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod(method);
+        if (cql != null) {
+            connection.setDoOutput(true);
+            if (chunked) {
+                connection.setChunkedStreamingMode(4);
+            }
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(cql.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int status = connection.getResponseCode();
+        try (InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return new Response(status, new Scanner(is, "UTF-8").useDelimiter("\\Z").next());
+        }
+    }
+
+    private static String readLibrary(String name) throws IOException {
+        try (InputStream is = TranslationServerTests.class.getResourceAsStream(String.format("LibraryTests/%s.cql", name))) {
+            return new Scanner(is, "UTF-8").useDelimiter("\\Z").next();
+        }
+    }
+
+    @Test
+    public void testTranslate() throws IOException {
+        Response response = request(server, "POST", null, "library Test define X: 1 + 1");
+        assertThat(response.status, is(200));
+        assertThat(response.body, containsString("<library"));
+
+        response = request(server, "POST", "format=json", "library Test define X: 1 + 1");
+        assertThat(response.status, is(200));
+        assertThat(response.body, containsString("\"library\""));
+    }
+
+    @Test
+    public void testIncludedLibrary() throws IOException {
+        Response response = request(server, "POST", null, readLibrary("ReferencingLibrary"));
+        assertThat(response.status, is(200));
+        assertThat(response.body, containsString("BaseLibrary"));
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        Response response = request(server, "POST", null, "library Test define X: 1 + 'a'");
+        assertThat(response.status, is(400));
+        assertThat(response.body, containsString("Translation failed due to errors:"));
+
+        response = request(server, "POST", "format=yaml", "library Test define X: 1 + 1");
+        assertThat(response.status, is(400));
+        assertThat(response.body, containsString("Unknown format yaml."));
+
+        response = request(server, "GET", null, null);
+        assertThat(response.status, is(405));
+    }
+
+    @Test
+    public void testBusy() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TestLibrarySourceProvider libraries = new TestLibrarySourceProvider();
+        LibrarySourceProvider blockingProvider = libraryIdentifier -> {
+            entered.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return libraries.getLibrarySource(libraryIdentifier);
+        };
+
+        // A single worker with no queue, so a second request is rejected while the first is translating
+        TranslationServer busyServer = new TranslationServer(0, 1, 0, TranslationServer.DEFAULT_MAX_REQUEST_SIZE, blockingProvider, CqlTranslator.Format.XML,
+                CqlTranslatorException.ErrorSeverity.Info);
+        busyServer.start();
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            String source = readLibrary("ReferencingLibrary");
+            Future<Response> first = client.submit(() -> request(busyServer, "POST", null, source));
+            assertThat(entered.await(30, TimeUnit.SECONDS), is(true));
+
+            Response rejected = request(busyServer, "POST", null, source);
+            assertThat(rejected.status, is(503));
+
+            release.countDown();
+            assertThat(first.get(30, TimeUnit.SECONDS).status, is(200));
+            assertThat(request(busyServer, "POST", null, source).status, is(200));
+        }
+        finally {
+            release.countDown();
+            client.shutdown();
+            busyServer.stop(5);
+        }
+    }
+
+    @Test
+    public void testLibraryManagerLimit() throws IOException, InterruptedException {
+        TranslationServer limitedServer = new TranslationServer(0, 1, 0, TranslationServer.DEFAULT_MAX_REQUEST_SIZE, null, CqlTranslator.Format.XML,
+                CqlTranslatorException.ErrorSeverity.Info);
+        limitedServer.start();
+        try {
+            // Each model version gets a LibraryManager of its own, whether or not the model can be loaded
+            for (int i = 0; i < TranslationServer.MAX_LIBRARY_MANAGERS + 4; i++) {
+                request(limitedServer, "POST", null, String.format("library Test using QUICK version '%d.0' define X: 1", i));
+            }
+            assertThat(limitedServer.getLibraryManagerCount(), is(TranslationServer.MAX_LIBRARY_MANAGERS));
+        }
+        finally {
+            limitedServer.stop(5);
+        }
+    }
+
+    @Test
+    public void testRequestSizeLimit() throws IOException, InterruptedException {
+        String source = "library Test define X: 1 + 1";
+        TranslationServer limitedServer = new TranslationServer(0, 1, 0, source.length(), null, CqlTranslator.Format.XML,
+                CqlTranslatorException.ErrorSeverity.Info);
+        limitedServer.start();
+        try {
+            assertThat(request(limitedServer, "POST", null, source).status, is(200));
+
+            Response response = request(limitedServer, "POST", null, source + " ");
+            assertThat(response.status, is(413));
+            assertThat(response.body, containsString(String.format("larger than %d bytes", source.length())));
+
+            // Without a Content-Length, the body is only read up to the limit
+            assertThat(request(limitedServer, "POST", null, source, true).status, is(200));
+            assertThat(request(limitedServer, "POST", null, source + " ", true).status, is(413));
+        }
+        finally {
+            limitedServer.stop(5);
+        }
+    }
+
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
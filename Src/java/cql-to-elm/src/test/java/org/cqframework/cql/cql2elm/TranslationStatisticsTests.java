@@ -0,0 +1,83 @@
+package org.cqframework.cql.cql2elm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.elm.r1.ExpressionDef;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TranslationStatisticsTests {
+    private static CqlTranslator translate(String resource, TranslationListener listener) throws IOException {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new TestLibrarySourceProvider());
+        try (InputStream is = TranslationStatisticsTests.class.getResourceAsStream(resource)) {
+            return CqlTranslator.fromStream(is, modelManager, libraryManager, CqlTranslatorException.ErrorSeverity.Info, listener);
+        }
+    }
+
+    @Test
+    public void testStatistics() throws IOException {
+        TranslationStatistics statistics = new TranslationStatistics();
+        CqlTranslator translator = translate("CMS146v2_Test_CQM.cql", statistics);
+        assertThat(translator.getErrors().size(), is(0));
+
+        assertThat(statistics.getLibraryIdentifier().getId(), is("CMS146"));
+        for (TranslationListener.Phase phase : new TranslationListener.Phase[] { TranslationListener.Phase.Lexing,
+                TranslationListener.Phase.Parsing, TranslationListener.Phase.Preprocessing, TranslationListener.Phase.Visiting }) {
+            assertThat(statistics.getPhaseNanos(phase), greaterThan(0L));
+        }
+        assertThat(statistics.getPhaseNanos(TranslationListener.Phase.Serialization), is(0L));
+        translator.toXml();
+        assertThat(statistics.getPhaseNanos(TranslationListener.Phase.Serialization), greaterThan(0L));
+
+        // Each definition is reported once, when it is first translated, the implicit Patient context definition is not
+        assertThat(statistics.getDefinitions().size(), is(translator.toELM().getStatements().getDef().size() - 1));
+        for (TranslationStatistics.Timing<ExpressionDef> definition : statistics.getDefinitions()) {
+            assertThat(translator.toELM().getStatements().getDef(), hasItem(definition.getSubject()));
+        }
+
+        assertThat(statistics.getResolutionStatistics().getOperatorResolutions(), greaterThan(0L));
+        assertThat(statistics.getResolutionStatistics().getOperatorResolutionCacheHits(),
+                lessThanOrEqualTo(statistics.getResolutionStatistics().getOperatorResolutions()));
+        assertThat(statistics.getResolutionStatistics().getConversionSearches(), greaterThan(0L));
+        assertThat(statistics.getResolutionStatistics().getConversionCacheHits(),
+                lessThanOrEqualTo(statistics.getResolutionStatistics().getConversionSearches()));
+    }
+
+    @Test
+    public void testIncludes() throws IOException {
+        TranslationStatistics statistics = new TranslationStatistics();
+        CqlTranslator translator = translate("LibraryTests/ReferencingLibrary.cql", statistics);
+        assertThat(translator.getErrors().size(), is(0));
+
+        assertThat(statistics.getIncludes().size(), is(1));
+        assertThat(statistics.getIncludes().get(0).getSubject().getId(), is("BaseLibrary"));
+        assertThat(statistics.getIncludes().get(0).getElapsedNanos(), greaterThan(0L));
+        assertThat(statistics.getIncludes().get(0).getElapsedNanos(),
+                lessThanOrEqualTo(statistics.getPhaseNanos(TranslationListener.Phase.Visiting)));
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        TranslationStatistics statistics = new TranslationStatistics();
+        CqlTranslator translator = translate("LibraryTests/ReferencingLibrary.cql", statistics);
+        translator.toJson();
+
+        JsonNode json = new ObjectMapper().readTree(statistics.toJson());
+        assertThat(json.get("library").asText(), is("ReferencingLibrary"));
+        assertThat(json.get("phases").get("visiting").asDouble(), greaterThan(0.0));
+        assertThat(json.get("phases").has("serialization"), is(true));
+        assertThat(json.get("includes").get(0).get("library").asText(), is("BaseLibrary"));
+        assertThat(json.get("definitions").size(), is(statistics.getDefinitions().size()));
+        assertThat(json.get("definitions").get(0).has("name"), is(true));
+        assertThat(json.get("definitions").get(0).has("ms"), is(true));
+        assertThat(json.get("operatorResolutions").asLong(), is(statistics.getResolutionStatistics().getOperatorResolutions()));
+        assertThat(json.get("conversionSearches").asLong(), is(statistics.getResolutionStatistics().getConversionSearches()));
+    }
+}
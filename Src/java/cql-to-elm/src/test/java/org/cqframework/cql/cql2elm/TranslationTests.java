@@ -3,8 +3,10 @@ package org.cqframework.cql.cql2elm;
 import org.testng.annotations.Test;
 
 import javax.xml.bind.JAXBException;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -31,4 +33,35 @@ public class TranslationTests {
         String actualXml = CqlTranslator.fromFile(cqlFile, modelManager, new LibraryManager(modelManager)).toXml();
         assertThat(actualXml, is(expectedXml));
     }
+
+    @Test
+    public void testStreamedOutput() throws IOException {
+        File cqlFile = new File(Cql2ElmVisitorTest.class.getResource("CMS146v2_Test_CQM.cql").getFile());
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromFile(cqlFile, modelManager, new LibraryManager(modelManager),
+                CqlTranslator.Options.EnableAnnotations, CqlTranslator.Options.EnableLocators);
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        translator.writeXml(xml);
+        assertThat(new String(xml.toByteArray(), StandardCharsets.UTF_8), is(translator.toXml()));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        translator.writeJson(json);
+        assertThat(new String(json.toByteArray(), StandardCharsets.UTF_8), is(translator.toJson()));
+    }
+
+    @Test
+    public void testStreamedOutputEncoding() {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = CqlTranslator.fromText("library Encoding define Text: 'caf\u00e9 \u2264 \u65e5\u672c'",
+                modelManager, new LibraryManager(modelManager));
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        translator.writeXml(xml);
+        assertThat(new String(xml.toByteArray(), StandardCharsets.UTF_8), is(translator.toXml()));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        translator.writeJson(json);
+        assertThat(new String(json.toByteArray(), StandardCharsets.UTF_8), is(translator.toJson()));
+    }
 }
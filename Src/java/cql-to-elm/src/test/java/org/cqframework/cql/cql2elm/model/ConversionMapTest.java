@@ -0,0 +1,84 @@
+package org.cqframework.cql.cql2elm.model;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.cql.model.ListType;
+import org.hl7.cql.model.TypeParameter;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConversionMapTest {
+    private SystemModel systemModel;
+    private TranslatedLibrary systemLibrary;
+
+    @BeforeClass
+    public void setup() {
+        systemModel = (SystemModel)new ModelManager().resolveModel("System");
+        systemLibrary = SystemLibraryHelper.load(systemModel);
+    }
+
+    private ConversionMap loadConversionMap() {
+        ConversionMap conversionMap = new ConversionMap();
+        for (Conversion conversion : systemLibrary.getConversions()) {
+            conversionMap.add(conversion);
+        }
+        return conversionMap;
+    }
+
+    @Test
+    public void testRepeatedConversionSearch() {
+        ConversionMap conversionMap = loadConversionMap();
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+
+        Conversion first = conversionMap.findConversion(systemModel.getInteger(), systemModel.getDecimal(), true, operatorMap);
+        assertThat(first, notNullValue());
+        long searches = conversionMap.getStatistics().getConversionSearches();
+        long hits = conversionMap.getStatistics().getConversionCacheHits();
+
+        Conversion second = conversionMap.findConversion(systemModel.getInteger(), systemModel.getDecimal(), true, operatorMap);
+        assertThat(second, sameInstance(first));
+        assertThat(conversionMap.getStatistics().getConversionSearches(), is(searches + 1));
+        assertThat(conversionMap.getStatistics().getConversionCacheHits(), is(hits + 1));
+
+        // Searches that differ in any part of the key are not answered from the cache
+        conversionMap.findConversion(systemModel.getInteger(), systemModel.getDecimal(), false, operatorMap);
+        assertThat(conversionMap.getStatistics().getConversionCacheHits(), is(hits + 1));
+    }
+
+    @Test
+    public void testCachedMissingConversion() {
+        ConversionMap conversionMap = new ConversionMap();
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+
+        assertThat(conversionMap.findConversion(systemModel.getInteger(), systemModel.getDecimal(), true, operatorMap), nullValue());
+        long hits = conversionMap.getStatistics().getConversionCacheHits();
+        assertThat(conversionMap.findConversion(systemModel.getInteger(), systemModel.getDecimal(), true, operatorMap), nullValue());
+        assertThat(conversionMap.getStatistics().getConversionCacheHits(), is(hits + 1));
+
+        // Adding a conversion replaces the cached failure
+        for (Conversion conversion : systemLibrary.getConversions()) {
+            if (conversion.getFromType() == systemModel.getInteger() && conversion.getToType() == systemModel.getDecimal()) {
+                conversionMap.add(conversion);
+            }
+        }
+        Conversion conversion = conversionMap.findConversion(systemModel.getInteger(), systemModel.getDecimal(), true, operatorMap);
+        assertThat(conversion, notNullValue());
+        assertThat(conversion.getToType(), is(systemModel.getDecimal()));
+    }
+
+    @Test
+    public void testGenericConversionSearch() {
+        ConversionMap conversionMap = loadConversionMap();
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+        ListType genericListType = ListType.of(new TypeParameter("T"));
+        long hits = conversionMap.getStatistics().getConversionCacheHits();
+
+        conversionMap.findConversion(genericListType, systemModel.getString(), true, operatorMap);
+        conversionMap.findConversion(genericListType, systemModel.getString(), true, operatorMap);
+        conversionMap.findConversion(systemModel.getString(), genericListType, true, operatorMap);
+        conversionMap.findConversion(systemModel.getString(), genericListType, true, operatorMap);
+        assertThat(conversionMap.getStatistics().getConversionCacheHits(), is(hits));
+    }
+}
@@ -0,0 +1,123 @@
+package org.cqframework.cql.cql2elm.model;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class OperatorMapTest {
+    private SystemModel systemModel;
+    private TranslatedLibrary systemLibrary;
+
+    @BeforeClass
+    public void setup() {
+        systemModel = (SystemModel)new ModelManager().resolveModel("System");
+        systemLibrary = SystemLibraryHelper.load(systemModel);
+    }
+
+    private ConversionMap loadConversionMap() {
+        ConversionMap conversionMap = new ConversionMap();
+        for (Conversion conversion : systemLibrary.getConversions()) {
+            conversionMap.add(conversion);
+        }
+        return conversionMap;
+    }
+
+    @Test
+    public void testResolutionCache() {
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+        ConversionMap conversionMap = loadConversionMap();
+        long hits = operatorMap.getResolutionCacheHits();
+        long misses = operatorMap.getResolutionCacheMisses();
+
+        OperatorResolution first = operatorMap.resolveOperator(
+                new CallContext(null, "Add", systemModel.getInteger(), systemModel.getDecimal()), conversionMap);
+        OperatorResolution second = operatorMap.resolveOperator(
+                new CallContext(null, "Add", systemModel.getInteger(), systemModel.getDecimal()), conversionMap);
+
+        assertThat(first, notNullValue());
+        assertThat(first.hasConversions(), is(true));
+        assertThat(second, sameInstance(first));
+        assertThat(operatorMap.getResolutionCacheHits(), is(hits + 1));
+        assertThat(operatorMap.getResolutionCacheMisses(), is(misses + 1));
+    }
+
+    @Test
+    public void testResolutionCacheConversionMapConfiguration() {
+        OperatorMap operatorMap = systemLibrary.getOperatorMap();
+        ConversionMap conversionMap = loadConversionMap();
+
+        OperatorResolution resolution = operatorMap.resolveOperator(
+                new CallContext(null, "Add", systemModel.getInteger(), systemModel.getDecimal()), conversionMap);
+        assertThat(resolution, notNullValue());
+
+        // Resolutions are not shared between conversion maps
+        ConversionMap emptyConversionMap = new ConversionMap();
+        assertThat(operatorMap.resolveOperator(
+                new CallContext(null, "Add", systemModel.getInteger(), systemModel.getDecimal()), emptyConversionMap),
+                nullValue());
+
+        // Adding a conversion invalidates the cached resolutions for the conversion map
+        for (Conversion conversion : systemLibrary.getConversions()) {
+            emptyConversionMap.add(conversion);
+        }
+        assertThat(operatorMap.resolveOperator(
+                new CallContext(null, "Add", systemModel.getInteger(), systemModel.getDecimal()), emptyConversionMap),
+                notNullValue());
+    }
+
+    @Test
+    public void testSharedSystemLibrary() {
+        TranslatedLibrary shared = SystemLibraryHelper.getSystemLibrary(systemModel);
+        assertThat(shared.isFrozen(), is(true));
+        assertThat(SystemLibraryHelper.getSystemLibrary(systemModel), sameInstance(shared));
+
+        TranslatedLibrary overlay = shared.createOverlay();
+        OperatorResolution resolution = overlay.resolveCall(new CallContext(null, "Message", systemModel.getInteger(),
+                systemModel.getBoolean(), systemModel.getString(), systemModel.getString(), systemModel.getString()),
+                loadConversionMap());
+        assertThat(resolution, notNullValue());
+        assertThat(resolution.getOperator().getResultType(), is(systemModel.getInteger()));
+
+        // The generic instantiation is only registered in the overlay
+        assertThat(overlay.contains(resolution.getOperator()), is(true));
+        assertThat(shared.contains(resolution.getOperator()), is(false));
+    }
+
+    @Test
+    public void testFrozenGenericInstantiation() {
+        TranslatedLibrary shared = SystemLibraryHelper.getSystemLibrary(systemModel);
+        ConversionMap conversionMap = new ConversionMap();
+        Conversion lastConversion = null;
+        for (Conversion conversion : systemLibrary.getConversions()) {
+            if (lastConversion != null) {
+                conversionMap.add(lastConversion);
+            }
+            lastConversion = conversion;
+        }
+        CallContext callContext = new CallContext(null, "Message", systemModel.getDecimal(), systemModel.getBoolean(),
+                systemModel.getString(), systemModel.getString(), systemModel.getString());
+        OperatorResolution first = shared.getOperatorMap().resolveOperator(callContext, conversionMap);
+        assertThat(first, notNullValue());
+
+        // Changing the conversion map misses the resolution cache, but the operator instantiated for the conversion map
+        // is resolved again rather than instantiated again
+        conversionMap.add(lastConversion);
+        OperatorResolution second = shared.getOperatorMap().resolveOperator(callContext, conversionMap);
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.getOperator(), sameInstance(first.getOperator()));
+        assertThat(shared.contains(first.getOperator()), is(false));
+
+        // Other conversion maps (i.e. translations) instantiate the operator for themselves
+        OperatorResolution other = shared.getOperatorMap().resolveOperator(callContext, loadConversionMap());
+        assertThat(other.getOperator(), not(sameInstance(first.getOperator())));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFrozenOperatorMap() {
+        SystemLibraryHelper.getSystemLibrary(systemModel).add(new Operator("Foo", new Signature(systemModel.getInteger()),
+                systemModel.getInteger()));
+    }
+}
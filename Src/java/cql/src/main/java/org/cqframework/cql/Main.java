@@ -26,7 +26,7 @@ public class Main {
         CommonTokenStream tokens = new CommonTokenStream(lexer);
         cqlParser parser = new cqlParser(tokens);
         parser.setBuildParseTree(true);
-        ParseTree tree = parser.library();
+        ParseTree tree = TwoStageParser.parseLibrary(parser);
 
         // show tree in text form
         System.out.println(tree.toStringTree(parser));
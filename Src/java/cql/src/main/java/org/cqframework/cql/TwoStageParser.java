@@ -0,0 +1,82 @@
+package org.cqframework.cql;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.cqframework.cql.gen.cqlLexer;
+import org.cqframework.cql.gen.cqlParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses CQL libraries using ANTLR's two-stage parsing strategy.
+ *
+ * The library is first parsed with SLL prediction, which is much cheaper than full LL prediction for the deeply
+ * left-recursive expression rules of the grammar, and which bails out at the first syntax error instead of
+ * recovering. Only if that fails is the library parsed again with full LL prediction and the parser's own error
+ * strategy and listeners, so syntax errors are reported exactly as they would be by a plain LL parse. A library that
+ * SLL parses without error has the same parse tree under LL prediction.
+ *
+ * The prediction DFAs built while parsing are shared by all cqlParser instances in the JVM, so parsing gets faster
+ * as more libraries are parsed. warmUp can be used to populate them at startup.
+ */
+public class TwoStageParser {
+    private TwoStageParser() {
+    }
+
+    /**
+     * Parses a library from the token stream of the given parser, which must be positioned at the start of the
+     * stream. On return, the prediction mode of the parser is SLL if the first stage succeeded, or LL if the library
+     * was parsed again.
+     */
+    public static cqlParser.LibraryContext parseLibrary(cqlParser parser) {
+        if (parser == null) {
+            throw new IllegalArgumentException("parser is null.");
+        }
+
+        ANTLRErrorStrategy errorHandler = parser.getErrorHandler();
+        List<ANTLRErrorListener> errorListeners = new ArrayList<>(parser.getErrorListeners());
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        try {
+            cqlParser.LibraryContext result = parser.library();
+            // The library rule doesn't match EOF, and the bail out strategy doesn't check loop exits, so trailing
+            // input that isn't part of the library is only detected here
+            if (parser.getInputStream().LA(1) == Token.EOF) {
+                return result;
+            }
+        }
+        catch (ParseCancellationException e) {
+            // Either a syntax error, or a construct SLL can't predict, so parse again with full LL below
+        }
+        finally {
+            parser.setErrorHandler(errorHandler);
+            for (ANTLRErrorListener errorListener : errorListeners) {
+                parser.addErrorListener(errorListener);
+            }
+        }
+
+        parser.reset();
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        return parser.library();
+    }
+
+    /**
+     * Parses the given library sources, discarding the results, to populate the shared prediction DFAs before the
+     * libraries of interest are parsed. The streams are not closed.
+     */
+    public static void warmUp(InputStream... sources) throws IOException {
+        for (InputStream source : sources) {
+            cqlLexer lexer = new cqlLexer(new ANTLRInputStream(source));
+            lexer.removeErrorListeners();
+            cqlParser parser = new cqlParser(new CommonTokenStream(lexer));
+            parser.removeErrorListeners();
+            parseLibrary(parser);
+        }
+    }
+}
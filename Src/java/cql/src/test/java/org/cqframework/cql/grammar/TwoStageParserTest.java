@@ -0,0 +1,92 @@
+package org.cqframework.cql.grammar;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.cqframework.cql.TwoStageParser;
+import org.cqframework.cql.gen.cqlLexer;
+import org.cqframework.cql.gen.cqlParser;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class TwoStageParserTest {
+    private static final String LIBRARY =
+            "library Test version '1'\n" +
+            "using QDM\n" +
+            "parameter MeasurementPeriod default Interval[@2013-01-01T00:00:00.0, @2014-01-01T00:00:00.0)\n" +
+            "context Patient\n" +
+            "define InDemographic: AgeInYearsAt(start of MeasurementPeriod) >= 2 and AgeInYearsAt(start of MeasurementPeriod) < 18\n" +
+            "define Encounters: [\"Encounter, Performed\": \"Ambulatory/ED Visit\"] E where E.relevantPeriod during MeasurementPeriod\n" +
+            "define Tuples: { Tuple { a: 1, b: 'x' }, Tuple { a: 2 + 3 * 4, b: 'y' } }\n" +
+            "define function Double(x Integer): x * 2\n";
+
+    private static class RecordingErrorListener extends BaseErrorListener {
+        private final List<String> errors = new ArrayList<>();
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+                                String msg, RecognitionException e) {
+            errors.add(String.format("%d:%d %s", line, charPositionInLine, msg));
+        }
+    }
+
+    private static cqlParser createParser(String logic, ANTLRErrorListener errorListener) {
+        cqlParser parser = new cqlParser(new CommonTokenStream(new cqlLexer(new ANTLRInputStream(logic))));
+        parser.removeErrorListeners();
+        parser.addErrorListener(errorListener);
+        return parser;
+    }
+
+    private static cqlParser.LibraryContext parseLL(String logic, ANTLRErrorListener errorListener) {
+        cqlParser parser = createParser(logic, errorListener);
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        return parser.library();
+    }
+
+    @Test
+    public void parsesWithSLL() {
+        RecordingErrorListener errorListener = new RecordingErrorListener();
+        cqlParser parser = createParser(LIBRARY, errorListener);
+        cqlParser.LibraryContext tree = TwoStageParser.parseLibrary(parser);
+
+        assertEquals(parser.getInterpreter().getPredictionMode(), PredictionMode.SLL);
+        assertEquals(errorListener.errors.size(), 0);
+        assertEquals(parser.getErrorListeners().size(), 1);
+        assertEquals(tree.toStringTree(parser), parseLL(LIBRARY, new RecordingErrorListener()).toStringTree(parser));
+    }
+
+    @Test
+    public void fallsBackToLLOnSyntaxErrors() {
+        String logic = LIBRARY + "define Broken: 1 + \ndefine AfterBroken: 2\n";
+        RecordingErrorListener errorListener = new RecordingErrorListener();
+        cqlParser parser = createParser(logic, errorListener);
+        cqlParser.LibraryContext tree = TwoStageParser.parseLibrary(parser);
+
+        RecordingErrorListener expectedErrorListener = new RecordingErrorListener();
+        cqlParser.LibraryContext expectedTree = parseLL(logic, expectedErrorListener);
+
+        assertEquals(parser.getInterpreter().getPredictionMode(), PredictionMode.LL);
+        assertEquals(errorListener.errors, expectedErrorListener.errors);
+        assertEquals(tree.toStringTree(parser), expectedTree.toStringTree(parser));
+        assertEquals(parser.getErrorHandler().getClass(), DefaultErrorStrategy.class);
+    }
+
+    @Test
+    public void fallsBackToLLOnTrailingInput() {
+        // The library rule can end before the input does, SLL must not accept the library up to that point
+        String logic = LIBRARY + "library Again\n";
+        RecordingErrorListener errorListener = new RecordingErrorListener();
+        cqlParser parser = createParser(logic, errorListener);
+        TwoStageParser.parseLibrary(parser);
+
+        RecordingErrorListener expectedErrorListener = new RecordingErrorListener();
+        parseLL(logic, expectedErrorListener);
+
+        assertEquals(parser.getInterpreter().getPredictionMode(), PredictionMode.LL);
+        assertEquals(errorListener.errors.size(), 1);
+        assertEquals(errorListener.errors, expectedErrorListener.errors);
+    }
+}
@@ -0,0 +1,68 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.cqframework.cql.elm.visiting.ElmRewriter;
+import org.hl7.elm.r1.*;
+
+/**
+ * Simplifies logical operators with a literal true, false or null operand, under the three-valued logic of CQL:
+ * <ul>
+ *     <li><code>true and X</code> is X and <code>false and X</code> is false,</li>
+ *     <li><code>false or X</code> is X and <code>true or X</code> is true, and</li>
+ *     <li><code>not</code> of a literal is a literal (or null), and <code>not not X</code> is X.</li>
+ * </ul>
+ * The operands of <code>and</code> and <code>or</code> are treated the same in either order.
+ */
+public class BooleanSimplification extends ElmRewriter<Void> implements ElmOptimizationPass {
+    @Override
+    public void optimize(Library library) {
+        rewrite(library, null);
+    }
+
+    @Override
+    public Expression visitAnd(And elm, Void context) {
+        Expression left = elm.getOperand().get(0);
+        Expression right = elm.getOperand().get(1);
+        if (Literals.isFalse(left) || Literals.isTrue(right)) {
+            return left;
+        }
+
+        if (Literals.isFalse(right) || Literals.isTrue(left)) {
+            return right;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitOr(Or elm, Void context) {
+        Expression left = elm.getOperand().get(0);
+        Expression right = elm.getOperand().get(1);
+        if (Literals.isTrue(left) || Literals.isFalse(right)) {
+            return left;
+        }
+
+        if (Literals.isTrue(right) || Literals.isFalse(left)) {
+            return right;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitNot(Not elm, Void context) {
+        Expression operand = elm.getOperand();
+        if (Literals.isTrue(operand) || Literals.isFalse(operand)) {
+            return replaces(elm, Literals.create(Literals.BOOLEAN, Boolean.toString(Literals.isFalse(operand))));
+        }
+
+        if (Literals.isNull(operand)) {
+            return operand;
+        }
+
+        if (operand instanceof Not) {
+            return ((Not)operand).getOperand();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,459 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.cqframework.cql.elm.visiting.ElmRewriter;
+import org.hl7.elm.r1.*;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Evaluates the subexpressions that occur more than once in the clauses a query evaluates for each of its rows once
+ * per row, by moving them into let clauses of the query, and referencing the let clause where they occurred.
+ *
+ * The clauses considered are the let clauses, the such that conditions of the relationship clauses, the where clause
+ * and the return clause, including any queries nested within them. Subexpressions that reference an alias or let
+ * clause of a nested query, or a related source, can't be evaluated before the clauses, so they are left in place, as
+ * are expressions that are as cheap to evaluate as a reference to a let clause (references and properties).
+ *
+ * Let clauses are evaluated for every row, so a subexpression is only moved into one if at least one of its
+ * occurrences is evaluated for every row too: in a let clause or the where clause, and not in a branch of an if or
+ * case, an operand of an and, or, implies or coalesce other than the first, or a clause of a nested query. The such
+ * that conditions are only evaluated for the related rows, and the return clause only for the rows the where clause
+ * keeps, so occurrences there don't count either. An expression that only occurs under a condition (e.g. behind a
+ * guard such as if X is not null then ... X ...) is left in place, as evaluating it for every row could fail or be
+ * needlessly expensive.
+ *
+ * The sources of a query are evaluated before the clauses, so they are not changed, and neither are any nodes the
+ * clauses share with them.
+ */
+public class CommonSubexpressionElimination extends ElmRewriter<Void> implements ElmOptimizationPass {
+    private static final String LET_PREFIX = "Common";
+
+    private Set<String> names;
+    private int counter;
+
+    @Override
+    public void optimize(Library library) {
+        names = new HashSet<>();
+        counter = 0;
+        try {
+            collectNames(library);
+            rewrite(library, null);
+        }
+        finally {
+            names = null;
+        }
+    }
+
+    private void collectNames(Object value) {
+        ElmNodes.anyMatch(value, node -> {
+            if (node instanceof AliasedQuerySource) {
+                names.add(((AliasedQuerySource)node).getAlias());
+            }
+            else if (node instanceof LetClause) {
+                names.add(((LetClause)node).getIdentifier());
+            }
+            return false;
+        });
+    }
+
+    private String createName() {
+        String name;
+        do {
+            name = LET_PREFIX + ++counter;
+        } while (names.contains(name));
+        names.add(name);
+        return name;
+    }
+
+    /**
+     * The key, size and free names of a subexpression. Subexpressions with the same key have the same meaning where
+     * the same names are in scope.
+     */
+    private static class Node {
+        private final StringBuilder key = new StringBuilder();
+        private int size = 1;
+        private int children;
+        private final Set<String> freeNames = new HashSet<>();
+        private boolean closed = true;
+        private boolean computed;
+    }
+
+    private static class Candidate {
+        private final String key;
+        private final int size;
+        private int count;
+        private boolean unconditional;
+        private final Expression first;
+        private final int firstClause;
+        private final boolean firstIsClause;
+
+        public Candidate(String key, int size, Expression first, int firstClause, boolean firstIsClause) {
+            this.key = key;
+            this.size = size;
+            this.first = first;
+            this.firstClause = firstClause;
+            this.firstIsClause = firstIsClause;
+        }
+    }
+
+    /**
+     * The analysis of the clauses of a query, redone each time a subexpression is moved into a let clause.
+     */
+    private static class Analysis {
+        private final Set<Object> excluded;
+        private final Map<Object, Node> nodes = new IdentityHashMap<>();
+        private final Map<String, Candidate> candidates = new LinkedHashMap<>();
+        private int replacements;
+
+        public Analysis(Set<Object> excluded) {
+            this.excluded = excluded;
+        }
+    }
+
+    @Override
+    public Expression visitQuery(Query elm, Void context) {
+        if (names == null) {
+            names = new HashSet<>();
+        }
+        collectNames(elm);
+
+        // Nodes the sources share with the clauses must stay as they are
+        Set<Object> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AliasedQuerySource source : elm.getSource()) {
+            addNodes(source.getExpression(), excluded);
+        }
+        for (RelationshipClause relationship : elm.getRelationship()) {
+            addNodes(relationship.getExpression(), excluded);
+        }
+
+        // The related sources are not in scope for the let clauses
+        Set<String> bound = new HashSet<>();
+        for (RelationshipClause relationship : elm.getRelationship()) {
+            bound.add(relationship.getAlias());
+        }
+
+        while (true) {
+            Analysis analysis = new Analysis(excluded);
+            List<Expression> clauses = getClauses(elm);
+            int where = elm.getLet().size() + elm.getRelationship().size();
+            for (int i = 0; i < clauses.size(); i++) {
+                // The let and where clauses are evaluated for every row, and so is the return clause if there is no where
+                boolean conditional = i >= elm.getLet().size() && i != where && (i < where || elm.getWhere() != null);
+                collect(clauses.get(i), Math.min(i, elm.getLet().size()), true, conditional, bound, analysis);
+            }
+
+            Candidate best = null;
+            for (Candidate candidate : analysis.candidates.values()) {
+                if (candidate.count > 1 && candidate.unconditional && (best == null || candidate.size > best.size)) {
+                    best = candidate;
+                }
+            }
+
+            // Stop if the other occurrences turn out to be the same node as the first (which the translator shares)
+            if (best == null || !hoist(elm, best, bound, analysis)) {
+                return null;
+            }
+        }
+    }
+
+    private static void addNodes(Object value, Set<Object> nodes) {
+        ElmNodes.anyMatch(value, nodes::add);
+    }
+
+    /**
+     * Returns the clauses of the query that are evaluated for each row, let clauses first, in the order they are
+     * evaluated.
+     */
+    private static List<Expression> getClauses(Query query) {
+        List<Expression> result = new ArrayList<>();
+        for (LetClause let : query.getLet()) {
+            result.add(let.getExpression());
+        }
+        for (RelationshipClause relationship : query.getRelationship()) {
+            result.add(relationship.getSuchThat());
+        }
+        result.add(query.getWhere());
+        if (query.getReturn() != null) {
+            result.add(query.getReturn().getExpression());
+        }
+        return result;
+    }
+
+    private static Set<String> getBoundNames(Query query) {
+        Set<String> result = new HashSet<>();
+        for (AliasedQuerySource source : query.getSource()) {
+            result.add(source.getAlias());
+        }
+        for (LetClause let : query.getLet()) {
+            result.add(let.getIdentifier());
+        }
+        for (RelationshipClause relationship : query.getRelationship()) {
+            result.add(relationship.getAlias());
+        }
+        return result;
+    }
+
+    private static boolean isEligible(Node node, Set<String> bound) {
+        if (!node.closed || !node.computed) {
+            return false;
+        }
+
+        for (String name : node.freeNames) {
+            if (bound.contains(name)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the given child of a node (the value of the named field, or the element of it at the given index
+     * if it is a list) may not be evaluated when the node is.
+     */
+    private static boolean isConditional(Object node, String field, int index) {
+        if (node instanceof If) {
+            return !field.equals("condition");
+        }
+
+        if (node instanceof Case) {
+            return field.equals("_else") || (field.equals("caseItem") && index > 0);
+        }
+
+        if (node instanceof CaseItem) {
+            return field.equals("then");
+        }
+
+        if (node instanceof And || node instanceof Or || node instanceof Implies || node instanceof Coalesce) {
+            return field.equals("operand") && index > 0;
+        }
+
+        if (node instanceof Query) {
+            return !field.equals("source");
+        }
+
+        return false;
+    }
+
+    private void collect(Object value, int clause, boolean isClause, boolean conditional, Set<String> bound,
+                         Analysis analysis) {
+        if (value == null || !ElmNodes.isElmClass(value.getClass()) || analysis.excluded.contains(value)) {
+            return;
+        }
+
+        if (value instanceof Expression) {
+            Node node = analyze(value, analysis);
+            if (isEligible(node, bound)) {
+                String key = node.key.toString();
+                Candidate candidate = analysis.candidates.get(key);
+                if (candidate == null) {
+                    candidate = new Candidate(key, node.size, (Expression)value, clause, isClause);
+                    analysis.candidates.put(key, candidate);
+                }
+                candidate.count++;
+                candidate.unconditional |= !conditional;
+            }
+        }
+
+        Set<String> childBound = bound;
+        if (value instanceof Query) {
+            childBound = new HashSet<>(bound);
+            childBound.addAll(getBoundNames((Query)value));
+        }
+
+        for (Field field : ElmNodes.getFields(value.getClass())) {
+            Object child = ElmNodes.getValue(field, value);
+            if (child instanceof List) {
+                List<?> elements = (List<?>)child;
+                for (int i = 0; i < elements.size(); i++) {
+                    collect(elements.get(i), clause, false, conditional || isConditional(value, field.getName(), i),
+                            childBound, analysis);
+                }
+            }
+            else {
+                collect(child, clause, false, conditional || isConditional(value, field.getName(), 0), childBound,
+                        analysis);
+            }
+        }
+    }
+
+    private Node analyze(Object value, Analysis analysis) {
+        Node node = analysis.nodes.get(value);
+        if (node != null) {
+            return node;
+        }
+
+        node = new Node();
+        node.key.append(value.getClass().getSimpleName()).append('(');
+        for (Field field : ElmNodes.getFields(value.getClass())) {
+            Object fieldValue = ElmNodes.getValue(field, value);
+            if (fieldValue != null) {
+                node.key.append(field.getName()).append('=');
+                appendValue(node, fieldValue, analysis);
+                node.key.append(';');
+            }
+        }
+        node.key.append(')');
+
+        if (value instanceof AliasRef) {
+            node.freeNames.add(((AliasRef)value).getName());
+        }
+        else if (value instanceof QueryLetRef) {
+            node.freeNames.add(((QueryLetRef)value).getName());
+        }
+        else if (value instanceof Property && ((Property)value).getScope() != null) {
+            node.freeNames.add(((Property)value).getScope());
+        }
+        else if (value instanceof IdentifierRef || value instanceof Current) {
+            node.closed = false;
+        }
+        else if (value instanceof Query) {
+            node.freeNames.removeAll(getBoundNames((Query)value));
+        }
+
+        // References, literals and properties are as cheap as a reference to a let clause
+        if (value instanceof Retrieve
+                || (node.children > 0 && !(value instanceof Property) && !Literals.isNull((Expression)value))) {
+            node.computed = true;
+        }
+
+        analysis.nodes.put(value, node);
+        return node;
+    }
+
+    private void appendValue(Node node, Object value, Analysis analysis) {
+        if (value instanceof List) {
+            node.key.append('[');
+            for (Object element : (List<?>)value) {
+                appendValue(node, element, analysis);
+                node.key.append(',');
+            }
+            node.key.append(']');
+        }
+        else if (ElmNodes.isElmClass(value.getClass())) {
+            Node child;
+            if (value instanceof Expression) {
+                child = analyze(value, analysis);
+            }
+            else {
+                // Clauses and type specifiers are part of the expression that contains them, and are not counted
+                child = new Node();
+                child.key.append(value.getClass().getSimpleName()).append('(');
+                for (Field field : ElmNodes.getFields(value.getClass())) {
+                    Object fieldValue = ElmNodes.getValue(field, value);
+                    if (fieldValue != null) {
+                        child.key.append(field.getName()).append('=');
+                        appendValue(child, fieldValue, analysis);
+                        child.key.append(';');
+                    }
+                }
+                child.key.append(')');
+                child.size--;
+            }
+
+            node.key.append(child.key);
+            node.size += child.size;
+            node.children++;
+            node.freeNames.addAll(child.freeNames);
+            node.closed &= child.closed;
+            node.computed |= child.computed;
+        }
+        else {
+            node.key.append(value);
+        }
+    }
+
+    /**
+     * Moves the given candidate into a let clause, returning false if no occurrence could be replaced.
+     */
+    private boolean hoist(Query query, Candidate candidate, Set<String> bound, Analysis analysis) {
+        String name;
+        Set<Object> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (candidate.firstIsClause && candidate.firstClause < query.getLet().size()) {
+            // The first occurrence is a let clause already
+            name = query.getLet().get(candidate.firstClause).getIdentifier();
+            keep.add(candidate.first);
+        }
+        else {
+            name = createName();
+            LetClause let = new LetClause().withIdentifier(name).withExpression(candidate.first);
+            let.setResultType(candidate.first.getResultType());
+            let.setResultTypeName(candidate.first.getResultTypeName());
+            let.setResultTypeSpecifier(candidate.first.getResultTypeSpecifier());
+            query.getLet().add(candidate.firstClause, let);
+            keep.add(let);
+        }
+
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (LetClause let : query.getLet()) {
+            if (!keep.contains(let)) {
+                if (keep.contains(let.getExpression())) {
+                    visited.add(let.getExpression());
+                }
+                let.setExpression((Expression)replace(let.getExpression(), candidate.key, name, bound, analysis, visited));
+            }
+        }
+        for (RelationshipClause relationship : query.getRelationship()) {
+            relationship.setSuchThat((Expression)replace(relationship.getSuchThat(), candidate.key, name, bound, analysis, visited));
+        }
+        query.setWhere((Expression)replace(query.getWhere(), candidate.key, name, bound, analysis, visited));
+        if (query.getReturn() != null) {
+            query.getReturn().setExpression((Expression)replace(query.getReturn().getExpression(), candidate.key, name, bound, analysis, visited));
+        }
+
+        return analysis.replacements > 0;
+    }
+
+    private Object replace(Object value, String key, String name, Set<String> bound, Analysis analysis, Set<Object> visited) {
+        if (value instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>)value;
+            for (int i = 0; i < list.size(); i++) {
+                Object element = list.get(i);
+                Object result = replace(element, key, name, bound, analysis, visited);
+                if (result != element) {
+                    list.set(i, result);
+                }
+            }
+            return value;
+        }
+
+        if (value == null || !ElmNodes.isElmClass(value.getClass()) || analysis.excluded.contains(value)) {
+            return value;
+        }
+
+        if (value instanceof Expression && !visited.contains(value)) {
+            Node node = analysis.nodes.get(value);
+            if (node != null && node.key.toString().equals(key) && isEligible(node, bound)) {
+                QueryLetRef ref = replaces((Expression)value, new QueryLetRef().withName(name));
+                // The expression keeps its id in the let clause
+                ref.setLocalId(null);
+                analysis.replacements++;
+                return ref;
+            }
+        }
+
+        if (!visited.add(value)) {
+            return value;
+        }
+
+        Set<String> childBound = bound;
+        if (value instanceof Query) {
+            childBound = new HashSet<>(bound);
+            childBound.addAll(getBoundNames((Query)value));
+        }
+
+        for (Field field : ElmNodes.getFields(value.getClass())) {
+            Object child = ElmNodes.getValue(field, value);
+            Object result = replace(child, key, name, childBound, analysis, visited);
+            if (result != child) {
+                ElmNodes.setValue(field, value, result);
+            }
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,245 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.cqframework.cql.elm.visiting.ElmRewriter;
+import org.hl7.elm.r1.*;
+
+import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Locale;
+
+/**
+ * Evaluates the operations on literals that are the same for every evaluation:
+ * <ul>
+ *     <li>Integer and Decimal addition, subtraction, multiplication and negation, and Integer truncated division and
+ *     modulo,</li>
+ *     <li>conversion of an Integer to a Decimal,</li>
+ *     <li>String concatenation, upper and lower case and length,</li>
+ *     <li>coalescing nulls and a literal, and</li>
+ *     <li>adding or subtracting a number of years, months, weeks or days to or from a date (a DateTime with a year,
+ *     month and day only).</li>
+ * </ul>
+ * Operations whose result is null or an error, such as an Integer overflow or a division by zero, are left to the
+ * engine, as are Decimal results outside the range of a CQL Decimal (28 digits, 8 of them decimal places), and the
+ * length of strings with characters outside the Basic Multilingual Plane, which engines may count differently.
+ */
+public class ConstantFolding extends ElmRewriter<Void> implements ElmOptimizationPass {
+    private static final int MAX_DECIMAL_PRECISION = 28;
+    private static final int MAX_DECIMAL_SCALE = 8;
+
+    @Override
+    public void optimize(Library library) {
+        rewrite(library, null);
+    }
+
+    private Expression integer(Expression original, long value) {
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        return replaces(original, Literals.create(Literals.INTEGER, Long.toString(value)));
+    }
+
+    private Expression decimal(Expression original, BigDecimal value) {
+        if (value.scale() > MAX_DECIMAL_SCALE || value.precision() > MAX_DECIMAL_PRECISION
+                || value.precision() - value.scale() > MAX_DECIMAL_PRECISION - MAX_DECIMAL_SCALE) {
+            return null;
+        }
+
+        return replaces(original, Literals.create(Literals.DECIMAL, value.toPlainString()));
+    }
+
+    private Expression string(Expression original, String value) {
+        return replaces(original, Literals.create(Literals.STRING, value));
+    }
+
+    @Override
+    public Expression visitAdd(Add elm, Void context) {
+        Expression left = elm.getOperand().get(0);
+        Expression right = elm.getOperand().get(1);
+        if (Literals.getInteger(left) != null && Literals.getInteger(right) != null) {
+            return integer(elm, (long)Literals.getInteger(left) + Literals.getInteger(right));
+        }
+
+        if (Literals.getDecimal(left) != null && Literals.getDecimal(right) != null) {
+            return decimal(elm, Literals.getDecimal(left).add(Literals.getDecimal(right)));
+        }
+
+        return addToDate(elm, left, right, 1);
+    }
+
+    @Override
+    public Expression visitSubtract(Subtract elm, Void context) {
+        Expression left = elm.getOperand().get(0);
+        Expression right = elm.getOperand().get(1);
+        if (Literals.getInteger(left) != null && Literals.getInteger(right) != null) {
+            return integer(elm, (long)Literals.getInteger(left) - Literals.getInteger(right));
+        }
+
+        if (Literals.getDecimal(left) != null && Literals.getDecimal(right) != null) {
+            return decimal(elm, Literals.getDecimal(left).subtract(Literals.getDecimal(right)));
+        }
+
+        return addToDate(elm, left, right, -1);
+    }
+
+    @Override
+    public Expression visitMultiply(Multiply elm, Void context) {
+        Expression left = elm.getOperand().get(0);
+        Expression right = elm.getOperand().get(1);
+        if (Literals.getInteger(left) != null && Literals.getInteger(right) != null) {
+            return integer(elm, (long)Literals.getInteger(left) * Literals.getInteger(right));
+        }
+
+        if (Literals.getDecimal(left) != null && Literals.getDecimal(right) != null) {
+            return decimal(elm, Literals.getDecimal(left).multiply(Literals.getDecimal(right)));
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitTruncatedDivide(TruncatedDivide elm, Void context) {
+        Integer left = Literals.getInteger(elm.getOperand().get(0));
+        Integer right = Literals.getInteger(elm.getOperand().get(1));
+        if (left != null && right != null && right != 0) {
+            return integer(elm, (long)left / right);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitModulo(Modulo elm, Void context) {
+        Integer left = Literals.getInteger(elm.getOperand().get(0));
+        Integer right = Literals.getInteger(elm.getOperand().get(1));
+        if (left != null && right != null && right != 0) {
+            return integer(elm, (long)left % right);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitNegate(Negate elm, Void context) {
+        if (Literals.getInteger(elm.getOperand()) != null) {
+            return integer(elm, -(long)Literals.getInteger(elm.getOperand()));
+        }
+
+        if (Literals.getDecimal(elm.getOperand()) != null) {
+            return decimal(elm, Literals.getDecimal(elm.getOperand()).negate());
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitToDecimal(ToDecimal elm, Void context) {
+        if (Literals.getInteger(elm.getOperand()) != null) {
+            return decimal(elm, new BigDecimal(Literals.getInteger(elm.getOperand())));
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitConcatenate(Concatenate elm, Void context) {
+        StringBuilder result = new StringBuilder();
+        for (Expression operand : elm.getOperand()) {
+            String value = Literals.getString(operand);
+            if (value == null) {
+                return null;
+            }
+            result.append(value);
+        }
+
+        return string(elm, result.toString());
+    }
+
+    @Override
+    public Expression visitUpper(Upper elm, Void context) {
+        String value = Literals.getString(elm.getOperand());
+        return value != null ? string(elm, value.toUpperCase(Locale.ROOT)) : null;
+    }
+
+    @Override
+    public Expression visitLower(Lower elm, Void context) {
+        String value = Literals.getString(elm.getOperand());
+        return value != null ? string(elm, value.toLowerCase(Locale.ROOT)) : null;
+    }
+
+    @Override
+    public Expression visitLength(Length elm, Void context) {
+        String value = Literals.getString(elm.getOperand());
+        if (value == null || value.codePointCount(0, value.length()) != value.length()) {
+            return null;
+        }
+
+        return integer(elm, value.length());
+    }
+
+    @Override
+    public Expression visitCoalesce(Coalesce elm, Void context) {
+        // A single operand is a list whose first non-null element is the result
+        if (elm.getOperand().size() < 2) {
+            return null;
+        }
+
+        for (Expression operand : elm.getOperand()) {
+            if (!Literals.isNull(operand)) {
+                return operand instanceof Literal ? operand : null;
+            }
+        }
+
+        return null;
+    }
+
+    private Expression addToDate(Expression elm, Expression left, Expression right, int sign) {
+        if (!(left instanceof DateTime) || !(right instanceof Quantity)) {
+            return null;
+        }
+
+        DateTime date = (DateTime)left;
+        Quantity quantity = (Quantity)right;
+        Integer year = Literals.getInteger(date.getYear());
+        Integer month = Literals.getInteger(date.getMonth());
+        Integer day = Literals.getInteger(date.getDay());
+        if (year == null || month == null || day == null || date.getHour() != null || date.getMinute() != null
+                || date.getSecond() != null || date.getMillisecond() != null || date.getTimezoneOffset() != null
+                || quantity.getValue() == null || quantity.getUnit() == null) {
+            return null;
+        }
+
+        long amount;
+        try {
+            amount = quantity.getValue().longValueExact() * sign;
+        }
+        catch (ArithmeticException e) {
+            return null;
+        }
+
+        LocalDate result;
+        try {
+            result = LocalDate.of(year, month, day);
+            switch (quantity.getUnit()) {
+                case "year": case "years": result = result.plusYears(amount); break;
+                case "month": case "months": result = result.plusMonths(amount); break;
+                case "week": case "weeks": result = result.plusWeeks(amount); break;
+                case "day": case "days": result = result.plusDays(amount); break;
+                default: return null;
+            }
+        }
+        catch (DateTimeException | ArithmeticException e) {
+            return null;
+        }
+
+        if (result.getYear() < 1 || result.getYear() > 9999) {
+            return null;
+        }
+
+        return replaces(elm, new DateTime()
+                .withYear(replaces(date.getYear(), Literals.create(Literals.INTEGER, Integer.toString(result.getYear()))))
+                .withMonth(replaces(date.getMonth(), Literals.create(Literals.INTEGER, Integer.toString(result.getMonthValue()))))
+                .withDay(replaces(date.getDay(), Literals.create(Literals.INTEGER, Integer.toString(result.getDayOfMonth())))));
+    }
+}
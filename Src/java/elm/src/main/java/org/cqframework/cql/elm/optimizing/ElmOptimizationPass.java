@@ -0,0 +1,14 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.hl7.elm.r1.Library;
+
+/**
+ * A pass of the ElmOptimizer: a transformation of the ELM of a library that leaves the results of its expressions
+ * unchanged.
+ */
+public interface ElmOptimizationPass {
+    /**
+     * Optimizes the given library in place.
+     */
+    void optimize(Library library);
+}
@@ -0,0 +1,57 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.hl7.elm.r1.Library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optimizes the ELM of a library after translation, by running a pipeline of passes over it in order. The translator
+ * outputs ELM that follows the CQL as written; the optimizer reduces the work an engine does to evaluate it.
+ *
+ * The default pipeline removes redundant conversions first, so that the constants they wrap can be folded, and then
+ * simplifies the conditions the folding made constant, before factoring out the common subexpressions of queries.
+ * Passes may keep state while they run, so an optimizer is only used by one thread at a time.
+ */
+public class ElmOptimizer {
+    private final List<ElmOptimizationPass> passes;
+
+    public ElmOptimizer(ElmOptimizationPass... passes) {
+        this(Arrays.asList(passes));
+    }
+
+    public ElmOptimizer(List<ElmOptimizationPass> passes) {
+        if (passes == null) {
+            throw new IllegalArgumentException("passes is null.");
+        }
+
+        this.passes = Collections.unmodifiableList(new ArrayList<>(passes));
+    }
+
+    /**
+     * Returns an optimizer with the passes of this package, in the order they are best run.
+     */
+    public static ElmOptimizer createDefault() {
+        return new ElmOptimizer(new RedundantConversionRemoval(), new ConstantFolding(), new BooleanSimplification(),
+                new CommonSubexpressionElimination());
+    }
+
+    public List<ElmOptimizationPass> getPasses() {
+        return passes;
+    }
+
+    /**
+     * Runs the passes over the given library, which is changed in place.
+     */
+    public void optimize(Library library) {
+        if (library == null) {
+            throw new IllegalArgumentException("library is null.");
+        }
+
+        for (ElmOptimizationPass pass : passes) {
+            pass.optimize(library);
+        }
+    }
+}
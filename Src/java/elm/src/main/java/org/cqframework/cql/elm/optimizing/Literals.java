@@ -0,0 +1,86 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.hl7.elm.r1.As;
+import org.hl7.elm.r1.Expression;
+import org.hl7.elm.r1.Literal;
+import org.hl7.elm.r1.Null;
+
+import javax.xml.namespace.QName;
+import java.math.BigDecimal;
+
+/**
+ * Recognizes and creates the literals of the System types.
+ */
+final class Literals {
+    public static final String SYSTEM_NAMESPACE = "urn:hl7-org:elm-types:r1";
+    public static final QName BOOLEAN = new QName(SYSTEM_NAMESPACE, "Boolean");
+    public static final QName INTEGER = new QName(SYSTEM_NAMESPACE, "Integer");
+    public static final QName DECIMAL = new QName(SYSTEM_NAMESPACE, "Decimal");
+    public static final QName STRING = new QName(SYSTEM_NAMESPACE, "String");
+
+    private Literals() {
+    }
+
+    public static boolean isLiteral(Expression expression, QName valueType) {
+        return expression instanceof Literal && valueType.equals(((Literal)expression).getValueType())
+                && ((Literal)expression).getValue() != null;
+    }
+
+    public static boolean isTrue(Expression expression) {
+        return isLiteral(expression, BOOLEAN) && Boolean.parseBoolean(((Literal)expression).getValue());
+    }
+
+    public static boolean isFalse(Expression expression) {
+        return isLiteral(expression, BOOLEAN) && !Boolean.parseBoolean(((Literal)expression).getValue());
+    }
+
+    /**
+     * Returns true if the given expression is null, either as is or cast to a type.
+     */
+    public static boolean isNull(Expression expression) {
+        return expression instanceof Null || (expression instanceof As && ((As)expression).getOperand() instanceof Null);
+    }
+
+    /**
+     * Returns the value of the given Integer literal, or null if the expression is not an Integer literal.
+     */
+    public static Integer getInteger(Expression expression) {
+        if (isLiteral(expression, INTEGER)) {
+            try {
+                return Integer.parseInt(((Literal)expression).getValue());
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the value of the given Decimal literal, or null if the expression is not a Decimal literal.
+     */
+    public static BigDecimal getDecimal(Expression expression) {
+        if (isLiteral(expression, DECIMAL)) {
+            try {
+                return new BigDecimal(((Literal)expression).getValue());
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the value of the given String literal, or null if the expression is not a String literal.
+     */
+    public static String getString(Expression expression) {
+        return isLiteral(expression, STRING) ? ((Literal)expression).getValue() : null;
+    }
+
+    public static Literal create(QName valueType, String value) {
+        return new Literal().withValueType(valueType).withValue(value);
+    }
+}
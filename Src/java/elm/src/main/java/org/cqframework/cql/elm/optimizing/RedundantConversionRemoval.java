@@ -0,0 +1,54 @@
+package org.cqframework.cql.elm.optimizing;
+
+import org.cqframework.cql.elm.visiting.ElmRewriter;
+import org.hl7.elm.r1.*;
+
+/**
+ * Removes the conversions that the translator inserts to make the types of operands match, where they turn out to
+ * have no effect:
+ * <ul>
+ *     <li>a cast of an expression to the type it already has (other than a typed null),</li>
+ *     <li>a demotion of a list that was promoted from a single value, and</li>
+ *     <li>a conversion of the elements of a list that converts each element to itself.</li>
+ * </ul>
+ * Casts are compared by result type, so ELM without result types (as read from XML or JSON) is left unchanged.
+ */
+public class RedundantConversionRemoval extends ElmRewriter<Void> implements ElmOptimizationPass {
+    @Override
+    public void optimize(Library library) {
+        rewrite(library, null);
+    }
+
+    @Override
+    public Expression visitAs(As elm, Void context) {
+        Expression operand = elm.getOperand();
+        if (!Literals.isNull(operand) && operand.getResultType() != null
+                && operand.getResultType().equals(elm.getResultType())) {
+            return operand;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitSingletonFrom(SingletonFrom elm, Void context) {
+        if (elm.getOperand() instanceof ToList) {
+            return ((ToList)elm.getOperand()).getOperand();
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expression visitQuery(Query elm, Void context) {
+        // Query X return X, as the translator converts a list when its elements need no conversion after all
+        if (elm.getSource().size() == 1 && elm.getLet().isEmpty() && elm.getRelationship().isEmpty()
+                && elm.getWhere() == null && elm.getSort() == null && elm.getReturn() != null
+                && !elm.getReturn().isDistinct() && elm.getReturn().getExpression() instanceof AliasRef
+                && ((AliasRef)elm.getReturn().getExpression()).getName().equals(elm.getSource().get(0).getAlias())) {
+            return elm.getSource().get(0).getExpression();
+        }
+
+        return null;
+    }
+}
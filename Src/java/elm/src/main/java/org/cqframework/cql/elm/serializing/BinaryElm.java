@@ -0,0 +1,556 @@
+package org.cqframework.cql.elm.serializing;
+
+import org.cqframework.cql.elm.visiting.ElmNodes;
+import org.hl7.elm.r1.Element;
+import org.hl7.elm.r1.Library;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes a compact binary form of ELM, which is much smaller than ELM XML or JSON, and much faster to read.
+ *
+ * The binary form is a string table and a type table, followed by the library tree. Each node of the tree is written
+ * as a tag identifying its type in the type table, a bit set of the fields of the node that are present, and then
+ * the values of those fields. Names, paths, QNames and other strings are written as indexes into the string table,
+ * locators as their line and character positions, and all numbers as variable length integers.
+ *
+ * The fields of each node type are found by reflection over the generated org.hl7.elm.r1 and
+ * org.hl7.cql_annotations.r1 classes, so the format covers the same content as ELM XML (the trackbacks and result
+ * types used by the translator are not written), and a library read from the binary form produces the same XML as
+ * the library it was written from. The format depends on the ELM schema, so FORMAT_VERSION must be incremented
+ * whenever the schema changes.
+ */
+public class BinaryElm {
+    private static final int MAGIC = 0x43454C30; // CEL0
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int JAXB_ELEMENT = 2;
+    private static final int FIRST_NODE_TYPE = 3;
+
+    private static final int LOCATOR_STRING = 0;
+    private static final int LOCATOR_POINT = 1;
+    private static final int LOCATOR_RANGE = 2;
+
+    private static final Map<Class<?>, NodeType> nodeTypes = new ConcurrentHashMap<>();
+    private static final Map<String, NodeType> nodeTypesByName = new ConcurrentHashMap<>();
+
+    public static void write(Library library, OutputStream os) throws IOException {
+        if (library == null) {
+            throw new IllegalArgumentException("library is null.");
+        }
+
+        Writer writer = new Writer();
+        writer.writeNode(library);
+        writer.writeTo(os);
+    }
+
+    public static Library read(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[65536];
+        int read;
+        while ((read = is.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return read(ByteBuffer.wrap(buffer.toByteArray()));
+    }
+
+    public static Library read(ByteBuffer buffer) {
+        Object result;
+        try {
+            result = new Reader(buffer).readNode();
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Binary ELM is truncated.", e);
+        }
+        if (!(result instanceof Library)) {
+            throw new IllegalArgumentException("Binary ELM does not contain a library.");
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException(String.format("Binary ELM has %d unexpected bytes after the library.", buffer.remaining()));
+        }
+
+        return (Library)result;
+    }
+
+    private enum ValueKind { STRING, LOCATOR, QNAME, BOOLEAN, INTEGER, DECIMAL, ENUM, LIST, NODE }
+
+    private static class NodeType {
+        private final Class<?> nodeClass;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final ValueKind[] kinds;
+        private final Object[][] enumConstants;
+
+        NodeType(Class<?> nodeClass) {
+            this.nodeClass = nodeClass;
+            try {
+                constructor = nodeClass.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            }
+            catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(String.format("ELM class %s has no default constructor.", nodeClass.getName()), e);
+            }
+
+            List<Field> fieldList = ElmNodes.getAllFields(nodeClass);
+
+            // The present fields of a node are written as a bit set in a long
+            if (fieldList.size() > 63) {
+                throw new IllegalArgumentException(String.format("ELM class %s has too many fields.", nodeClass.getName()));
+            }
+
+            fields = fieldList.toArray(new Field[fieldList.size()]);
+            kinds = new ValueKind[fields.length];
+            enumConstants = new Object[fields.length][];
+            for (int i = 0; i < fields.length; i++) {
+                kinds[i] = getValueKind(fields[i]);
+                enumConstants[i] = fields[i].getType().getEnumConstants();
+            }
+        }
+
+        private static ValueKind getValueKind(Field field) {
+            Class<?> type = field.getType();
+            if (type == String.class) {
+                return field.getDeclaringClass() == Element.class && field.getName().equals("locator")
+                        ? ValueKind.LOCATOR : ValueKind.STRING;
+            }
+            if (type == QName.class) {
+                return ValueKind.QNAME;
+            }
+            if (type == Boolean.class) {
+                return ValueKind.BOOLEAN;
+            }
+            if (type == Integer.class) {
+                return ValueKind.INTEGER;
+            }
+            if (type == BigDecimal.class) {
+                return ValueKind.DECIMAL;
+            }
+            if (type.isEnum()) {
+                return ValueKind.ENUM;
+            }
+            if (type == List.class) {
+                return ValueKind.LIST;
+            }
+            if (type == Object.class || ElmNodes.isNodeClass(type)) {
+                return ValueKind.NODE;
+            }
+
+            throw new IllegalArgumentException(String.format("Unsupported type %s of ELM field %s.%s.",
+                    type.getName(), field.getDeclaringClass().getName(), field.getName()));
+        }
+
+        Object newInstance() {
+            try {
+                return constructor.newInstance();
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(String.format("Could not create ELM node %s.", nodeClass.getName()), e);
+            }
+        }
+    }
+
+    private static NodeType getNodeType(Class<?> nodeClass) {
+        NodeType result = nodeTypes.get(nodeClass);
+        if (result == null) {
+            if (!ElmNodes.isNodeClass(nodeClass)) {
+                throw new IllegalArgumentException(String.format("%s is not an ELM class.", nodeClass.getName()));
+            }
+
+            result = nodeTypes.computeIfAbsent(nodeClass, NodeType::new);
+        }
+
+        return result;
+    }
+
+    private static NodeType getNodeType(String className) {
+        NodeType result = nodeTypesByName.get(className);
+        if (result == null) {
+            try {
+                result = getNodeType(Class.forName(className, false, BinaryElm.class.getClassLoader()));
+            }
+            catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException(String.format("Unknown ELM class %s.", className), e);
+            }
+            nodeTypesByName.put(className, result);
+        }
+
+        return result;
+    }
+
+    private static class Writer {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<NodeType, Integer> types = new LinkedHashMap<>();
+        private final VarintOutput body = new VarintOutput();
+
+        public void writeTo(OutputStream os) throws IOException {
+            VarintOutput header = new VarintOutput();
+            header.writeInt(MAGIC);
+            header.writeVarint(FORMAT_VERSION);
+            header.writeVarint(strings.size());
+            for (String s : strings.keySet()) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                header.writeVarint(bytes.length);
+                header.write(bytes, 0, bytes.length);
+            }
+            header.writeVarint(types.size());
+            for (NodeType type : types.keySet()) {
+                byte[] bytes = type.nodeClass.getName().getBytes(StandardCharsets.UTF_8);
+                header.writeVarint(bytes.length);
+                header.write(bytes, 0, bytes.length);
+            }
+
+            header.writeTo(os);
+            body.writeTo(os);
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                body.writeVarint(0);
+            }
+            else {
+                Integer index = strings.get(value);
+                if (index == null) {
+                    index = strings.size() + 1;
+                    strings.put(value, index);
+                }
+                body.writeVarint(index);
+            }
+        }
+
+        private int getTypeIndex(NodeType type) {
+            Integer result = types.get(type);
+            if (result == null) {
+                result = types.size();
+                types.put(type, result);
+            }
+            return result;
+        }
+
+        private void writeNode(Object value) {
+            if (value == null) {
+                body.writeVarint(NULL);
+            }
+            else if (value instanceof String) {
+                body.writeVarint(STRING);
+                writeString((String)value);
+            }
+            else if (value instanceof JAXBElement) {
+                JAXBElement<?> element = (JAXBElement<?>)value;
+                body.writeVarint(JAXB_ELEMENT);
+                writeQName(element.getName());
+                body.writeVarint(getTypeIndex(getNodeType(element.getDeclaredType())));
+                body.writeVarint(element.getScope() != JAXBElement.GlobalScope.class
+                        ? getTypeIndex(getNodeType(element.getScope())) + 1 : 0);
+                writeNode(element.getValue());
+            }
+            else {
+                NodeType type = getNodeType(value.getClass());
+                body.writeVarint(FIRST_NODE_TYPE + getTypeIndex(type));
+
+                Object[] values = new Object[type.fields.length];
+                long present = 0;
+                for (int i = 0; i < type.fields.length; i++) {
+                    values[i] = ElmNodes.getValue(type.fields[i], value);
+                    // Empty lists are not written, the same as in XML
+                    if (values[i] != null && !(values[i] instanceof List && ((List<?>)values[i]).isEmpty())) {
+                        present |= 1L << i;
+                    }
+                }
+
+                body.writeVarlong(present);
+                for (int i = 0; i < type.fields.length; i++) {
+                    if ((present & (1L << i)) != 0) {
+                        writeValue(type.kinds[i], values[i]);
+                    }
+                }
+            }
+        }
+
+        private void writeValue(ValueKind kind, Object value) {
+            switch (kind) {
+                case STRING:
+                    writeString((String)value);
+                    break;
+                case LOCATOR:
+                    writeLocator((String)value);
+                    break;
+                case QNAME:
+                    writeQName((QName)value);
+                    break;
+                case BOOLEAN:
+                    body.writeVarint((Boolean)value ? 1 : 0);
+                    break;
+                case INTEGER:
+                    body.writeSignedVarint((Integer)value);
+                    break;
+                case DECIMAL:
+                    writeString(value.toString());
+                    break;
+                case ENUM:
+                    body.writeVarint(((Enum<?>)value).ordinal());
+                    break;
+                case LIST:
+                    List<?> list = (List<?>)value;
+                    body.writeVarint(list.size());
+                    for (Object element : list) {
+                        writeNode(element);
+                    }
+                    break;
+                case NODE:
+                    writeNode(value);
+                    break;
+            }
+        }
+
+        private void writeQName(QName value) {
+            writeString(value.getNamespaceURI());
+            writeString(value.getLocalPart());
+            writeString(value.getPrefix());
+        }
+
+        private void writeLocator(String value) {
+            // Locators are written by the translator as line:char or line:char-line:char
+            int[] positions = parseLocator(value);
+            if (positions == null) {
+                body.writeVarint(LOCATOR_STRING);
+                writeString(value);
+            }
+            else if (positions.length == 2) {
+                body.writeVarint(LOCATOR_POINT);
+                body.writeVarint(positions[0]);
+                body.writeVarint(positions[1]);
+            }
+            else {
+                body.writeVarint(LOCATOR_RANGE);
+                body.writeVarint(positions[0]);
+                body.writeVarint(positions[1]);
+                body.writeVarint(positions[2]);
+                body.writeVarint(positions[3]);
+            }
+        }
+
+        private static int[] parseLocator(String value) {
+            String[] range = value.split("-", -1);
+            if (range.length > 2) {
+                return null;
+            }
+
+            int[] result = new int[range.length * 2];
+            for (int i = 0; i < range.length; i++) {
+                String[] position = range[i].split(":", -1);
+                if (position.length != 2) {
+                    return null;
+                }
+
+                for (int j = 0; j < 2; j++) {
+                    // Only plain non-negative numbers, anything else is kept as written
+                    if (position[j].isEmpty() || position[j].length() > 9 || !position[j].chars().allMatch(Character::isDigit)
+                            || (position[j].length() > 1 && position[j].charAt(0) == '0')) {
+                        return null;
+                    }
+                    result[i * 2 + j] = Integer.parseInt(position[j]);
+                }
+            }
+
+            return result;
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private final String[] strings;
+        private final NodeType[] types;
+
+        public Reader(ByteBuffer in) {
+            this.in = in;
+            if (in.remaining() < 4 || in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Input is not binary ELM.");
+            }
+            int formatVersion = readVarint();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalArgumentException(String.format("Unsupported binary ELM format version %d.", formatVersion));
+            }
+
+            strings = new String[readVarint()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readUtf8();
+            }
+
+            types = new NodeType[readVarint()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = getNodeType(readUtf8());
+            }
+        }
+
+        private String readUtf8() {
+            byte[] bytes = new byte[readVarint()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private String readString() {
+            int index = readVarint();
+            return index == 0 ? null : strings[index - 1];
+        }
+
+        private QName readQName() {
+            String namespaceURI = readString();
+            String localPart = readString();
+            String prefix = readString();
+            return new QName(namespaceURI, localPart, prefix);
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object readNode() {
+            int tag = readVarint();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case JAXB_ELEMENT:
+                    QName name = readQName();
+                    Class<?> declaredType = readType(readVarint()).nodeClass;
+                    int scope = readVarint();
+                    return new JAXBElement(name, declaredType, scope != 0 ? readType(scope - 1).nodeClass : JAXBElement.GlobalScope.class, readNode());
+            }
+
+            NodeType type = readType(tag - FIRST_NODE_TYPE);
+            Object result = type.newInstance();
+            long present = readVarlong();
+            for (int i = 0; i < type.fields.length; i++) {
+                if ((present & (1L << i)) != 0) {
+                    setValue(type.fields[i], result, readValue(type.kinds[i], type.enumConstants[i]));
+                }
+            }
+
+            return result;
+        }
+
+        private Object readValue(ValueKind kind, Object[] enumConstants) {
+            switch (kind) {
+                case STRING:
+                case DECIMAL:
+                    String value = readString();
+                    return kind == ValueKind.DECIMAL ? new BigDecimal(value) : value;
+                case LOCATOR:
+                    return readLocator();
+                case QNAME:
+                    return readQName();
+                case BOOLEAN:
+                    return readVarint() != 0;
+                case INTEGER:
+                    return readSignedVarint();
+                case ENUM:
+                    return enumConstants[readVarint()];
+                case LIST:
+                    int size = readVarint();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readNode());
+                    }
+                    return list;
+                case NODE:
+                default:
+                    return readNode();
+            }
+        }
+
+        private String readLocator() {
+            int form = readVarint();
+            switch (form) {
+                case LOCATOR_STRING:
+                    return readString();
+                case LOCATOR_POINT:
+                    return new StringBuilder().append(readVarint()).append(':').append(readVarint()).toString();
+                case LOCATOR_RANGE:
+                    return new StringBuilder().append(readVarint()).append(':').append(readVarint())
+                            .append('-').append(readVarint()).append(':').append(readVarint()).toString();
+                default:
+                    throw new IllegalArgumentException(String.format("Invalid binary ELM locator form %d.", form));
+            }
+        }
+
+        private NodeType readType(int index) {
+            if (index < 0 || index >= types.length) {
+                throw new IllegalArgumentException(String.format("Invalid binary ELM type index %d.", index));
+            }
+            return types[index];
+        }
+
+        private static void setValue(Field field, Object node, Object value) {
+            try {
+                field.set(node, value);
+            }
+            catch (IllegalAccessException | IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Could not set ELM field %s.%s.",
+                        field.getDeclaringClass().getName(), field.getName()), e);
+            }
+        }
+
+        private int readVarint() {
+            return (int)readVarlong();
+        }
+
+        private int readSignedVarint() {
+            int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarlong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = in.get();
+                result |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Invalid variable length integer in binary ELM.");
+        }
+    }
+
+    private static class VarintOutput extends ByteArrayOutputStream {
+        VarintOutput() {
+            super(8192);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xFFFFFFFFL);
+        }
+
+        void writeSignedVarint(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        void writeVarlong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int)value);
+        }
+    }
+}
@@ -12,6 +12,7 @@ public class Trackable {
     private final List<TrackBack> trackbacks;
 
     private DataType resultType;
+    private int dispatchType;
 
     public Trackable() {
         this.trackerId = UUID.randomUUID();
@@ -39,4 +40,17 @@ public class Trackable {
         setResultType(resultType);
         return this;
     }
+
+    /**
+     * Returns the number the ELM visitors dispatch this node by, which stands for its class, or 0 if the node has not
+     * been visited yet.
+     */
+    @XmlTransient
+    public int getDispatchType() {
+        return dispatchType;
+    }
+
+    public void setDispatchType(int dispatchType) {
+        this.dispatchType = dispatchType;
+    }
 }
@@ -0,0 +1,72 @@
+package org.cqframework.cql.elm.visiting;
+
+import org.cqframework.cql.elm.tracking.Trackable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the classes of ELM nodes to the index of the type that handles them in a list of types, so that a visit method
+ * can dispatch a node with a switch on the index rather than testing it against each of the types in turn.
+ *
+ * A node is handled by the nearest of its class and superclasses in the list. Each class is given a number the first
+ * time a node of the class is dispatched, which the node keeps (see Trackable.getDispatchType), and the index of each
+ * number is resolved once per table, so dispatching a node is a field read and an array lookup.
+ */
+final class DispatchTable {
+    private static final ClassValue<Integer> dispatchTypes = new ClassValue<Integer>() {
+        private int next = 1;
+
+        @Override
+        protected synchronized Integer computeValue(Class<?> type) {
+            return next++;
+        }
+    };
+
+    // Indexed by dispatch type: 0 if not resolved yet, 1 if no type handles it, otherwise the index plus 2
+    private volatile int[] indexes = new int[0];
+    private final Map<Class<?>, Integer> types = new HashMap<>();
+
+    DispatchTable(Class<?>... types) {
+        for (int i = 0; i < types.length; i++) {
+            this.types.put(types[i], i);
+        }
+    }
+
+    /**
+     * Returns the index of the type that handles the given node, or -1 if the node is null or none of the types
+     * handle it.
+     */
+    public int indexOf(Trackable elm) {
+        if (elm == null) {
+            return -1;
+        }
+
+        int dispatchType = elm.getDispatchType();
+        if (dispatchType == 0) {
+            dispatchType = dispatchTypes.get(elm.getClass());
+            elm.setDispatchType(dispatchType);
+        }
+
+        int[] indexes = this.indexes;
+        int index = dispatchType < indexes.length ? indexes[dispatchType] : 0;
+        return index != 0 ? index - 2 : resolve(dispatchType, elm.getClass());
+    }
+
+    private synchronized int resolve(int dispatchType, Class<?> nodeClass) {
+        int result = -1;
+        for (Class<?> current = nodeClass; current != null; current = current.getSuperclass()) {
+            Integer index = types.get(current);
+            if (index != null) {
+                result = index;
+                break;
+            }
+        }
+
+        int[] resolved = Arrays.copyOf(indexes, Math.max(indexes.length, dispatchType + 1));
+        resolved[dispatchType] = result + 2;
+        indexes = resolved;
+        return result;
+    }
+}
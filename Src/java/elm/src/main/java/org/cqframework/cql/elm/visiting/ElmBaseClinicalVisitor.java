@@ -11,6 +11,16 @@ import org.hl7.elm.r1.*;
  */
 public class ElmBaseClinicalVisitor<T, C> extends ElmBaseVisitor<T, C> implements ElmClinicalVisitor<T, C> {
 
+    private static final DispatchTable expressionTypes = new DispatchTable(
+            Code.class,
+            CodeSystemRef.class,
+            Concept.class,
+            InCodeSystem.class,
+            InValueSet.class,
+            Quantity.class,
+            Retrieve.class,
+            ValueSetRef.class);
+
     /**
      * Visit an Expression. This method will be called for
      * every node in the tree that is an Expression.
@@ -21,17 +31,22 @@ public class ElmBaseClinicalVisitor<T, C> extends ElmBaseVisitor<T, C> implement
      */
     @Override
     public T visitExpression(Expression elm, C context) {
-        if (elm instanceof Code) return visitCode((Code)elm, context);
-        else if (elm instanceof CodeSystemRef) return visitCodeSystemRef((CodeSystemRef)elm, context);
-        else if (elm instanceof Concept) return visitConcept((Concept)elm, context);
-        else if (elm instanceof InCodeSystem) return visitInCodeSystem((InCodeSystem)elm, context);
-        else if (elm instanceof InValueSet) return visitInValueSet((InValueSet)elm, context);
-        else if (elm instanceof Quantity) return visitQuantity((Quantity)elm, context);
-        else if (elm instanceof Retrieve) return visitRetrieve((Retrieve)elm, context);
-        else if (elm instanceof ValueSetRef) return visitValueSetRef((ValueSetRef)elm, context);
-        else return super.visitExpression(elm, context);
+        switch (expressionTypes.indexOf(elm)) {
+            case 0: return visitCode((Code)elm, context);
+            case 1: return visitCodeSystemRef((CodeSystemRef)elm, context);
+            case 2: return visitConcept((Concept)elm, context);
+            case 3: return visitInCodeSystem((InCodeSystem)elm, context);
+            case 4: return visitInValueSet((InValueSet)elm, context);
+            case 5: return visitQuantity((Quantity)elm, context);
+            case 6: return visitRetrieve((Retrieve)elm, context);
+            case 7: return visitValueSetRef((ValueSetRef)elm, context);
+            default: return super.visitExpression(elm, context);
+        }
     }
 
+    private static final DispatchTable unaryExpressionTypes = new DispatchTable(
+            CalculateAge.class);
+
     /**
      * Visit a UnaryExpression. This method will be called for
      * every node in the tree that is a UnaryExpression.
@@ -42,10 +57,15 @@ public class ElmBaseClinicalVisitor<T, C> extends ElmBaseVisitor<T, C> implement
      */
     @Override
     public T visitUnaryExpression(UnaryExpression elm, C context) {
-        if (elm instanceof CalculateAge) return visitCalculateAge((CalculateAge)elm, context);
-        else return super.visitUnaryExpression(elm, context);
+        switch (unaryExpressionTypes.indexOf(elm)) {
+            case 0: return visitCalculateAge((CalculateAge)elm, context);
+            default: return super.visitUnaryExpression(elm, context);
+        }
     }
 
+    private static final DispatchTable binaryExpressionTypes = new DispatchTable(
+            CalculateAgeAt.class);
+
     /**
      * Visit a BinaryExpression. This method will be called for
      * every node in the tree that is a BinaryExpression.
@@ -56,8 +76,10 @@ public class ElmBaseClinicalVisitor<T, C> extends ElmBaseVisitor<T, C> implement
      */
     @Override
     public T visitBinaryExpression(BinaryExpression elm, C context) {
-        if (elm instanceof CalculateAgeAt) return visitCalculateAgeAt((CalculateAgeAt)elm, context);
-        else return super.visitBinaryExpression(elm, context);
+        switch (binaryExpressionTypes.indexOf(elm)) {
+            case 0: return visitCalculateAgeAt((CalculateAgeAt)elm, context);
+            default: return super.visitBinaryExpression(elm, context);
+        }
     }
 
     /**
@@ -5,11 +5,26 @@ import org.hl7.elm.r1.*;
 /**
  * Provides the base implementation for an ElmVisitor.
  *
+ * The visit methods for a family of types, such as visitExpression and visitBinaryExpression, dispatch each node
+ * with a switch on the index of its type in a DispatchTable, so the case numbers follow the order of the table.
+ *
  * @param <T> The return type of the visit operation. Use {@link Void} for
  * @param <C> The type of context passed to each visit method
  * operations with no return type.
  */
 public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
+    private static final DispatchTable elementTypes = new DispatchTable(
+            AliasedQuerySource.class,
+            CaseItem.class,
+            Expression.class,
+            LetClause.class,
+            OperandDef.class,
+            ParameterDef.class,
+            ReturnClause.class,
+            SortByItem.class,
+            TupleElementDefinition.class,
+            TypeSpecifier.class);
+
     /**
      * Visit an Element in an ELM tree. This method will be called for
      * every node in the tree that is a descendant of the Element type.
@@ -19,19 +34,27 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
      * @return the visitor result
      */
     public T visitElement(Element elm, C context) {
-        if (elm instanceof AliasedQuerySource) return visitAliasedQuerySource((AliasedQuerySource)elm, context);
-        else if (elm instanceof CaseItem) return visitCaseItem((CaseItem)elm, context);
-        else if (elm instanceof Expression) return visitExpression((Expression)elm, context);
-        else if (elm instanceof LetClause) return visitLetClause((LetClause)elm, context);
-        else if (elm instanceof OperandDef) return visitOperandDef((OperandDef)elm, context);
-        else if (elm instanceof ParameterDef) return visitParameterDef((ParameterDef)elm, context);
-        else if (elm instanceof ReturnClause) return visitReturnClause((ReturnClause)elm, context);
-        else if (elm instanceof SortByItem) return visitSortByItem((SortByItem)elm, context);
-        else if (elm instanceof TupleElementDefinition) return visitTupleElementDefinition((TupleElementDefinition)elm, context);
-        else if (elm instanceof TypeSpecifier) return visitTypeSpecifier((TypeSpecifier)elm, context);
-        else return null;
+        switch (elementTypes.indexOf(elm)) {
+            case 0: return visitAliasedQuerySource((AliasedQuerySource)elm, context);
+            case 1: return visitCaseItem((CaseItem)elm, context);
+            case 2: return visitExpression((Expression)elm, context);
+            case 3: return visitLetClause((LetClause)elm, context);
+            case 4: return visitOperandDef((OperandDef)elm, context);
+            case 5: return visitParameterDef((ParameterDef)elm, context);
+            case 6: return visitReturnClause((ReturnClause)elm, context);
+            case 7: return visitSortByItem((SortByItem)elm, context);
+            case 8: return visitTupleElementDefinition((TupleElementDefinition)elm, context);
+            case 9: return visitTypeSpecifier((TypeSpecifier)elm, context);
+            default: return null;
+        }
     }
 
+    private static final DispatchTable typeSpecifierTypes = new DispatchTable(
+            NamedTypeSpecifier.class,
+            IntervalTypeSpecifier.class,
+            ListTypeSpecifier.class,
+            TupleTypeSpecifier.class);
+
     /**
      * Visit a TypeSpecifier. This method will be called for every
      * node in the tree that is a descendant of the TypeSpecifier type.
@@ -41,11 +64,13 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
      * @return the visitor result
      */
     public T visitTypeSpecifier(TypeSpecifier elm, C context) {
-        if (elm instanceof NamedTypeSpecifier) return visitNamedTypeSpecifier((NamedTypeSpecifier)elm, context);
-        else if (elm instanceof IntervalTypeSpecifier) return visitIntervalTypeSpecifier((IntervalTypeSpecifier)elm, context);
-        else if (elm instanceof ListTypeSpecifier) return visitListTypeSpecifier((ListTypeSpecifier)elm, context);
-        else if (elm instanceof TupleTypeSpecifier) return visitTupleTypeSpecifier((TupleTypeSpecifier)elm, context);
-        else return null;
+        switch (typeSpecifierTypes.indexOf(elm)) {
+            case 0: return visitNamedTypeSpecifier((NamedTypeSpecifier)elm, context);
+            case 1: return visitIntervalTypeSpecifier((IntervalTypeSpecifier)elm, context);
+            case 2: return visitListTypeSpecifier((ListTypeSpecifier)elm, context);
+            case 3: return visitTupleTypeSpecifier((TupleTypeSpecifier)elm, context);
+            default: return null;
+        }
     }
 
     /**
@@ -114,6 +139,49 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
         return null;
     }
 
+    private static final DispatchTable expressionTypes = new DispatchTable(
+            AggregateExpression.class,
+            AliasRef.class,
+            BinaryExpression.class,
+            Case.class,
+            Combine.class,
+            Current.class,
+            DateTime.class,
+            ExpressionRef.class,
+            Filter.class,
+            First.class,
+            ForEach.class,
+            FunctionRef.class,
+            IdentifierRef.class,
+            If.class,
+            IndexOf.class,
+            Instance.class,
+            Interval.class,
+            Last.class,
+            List.class,
+            Literal.class,
+            MaxValue.class,
+            MinValue.class,
+            NaryExpression.class,
+            Now.class,
+            Null.class,
+            OperandRef.class,
+            ParameterRef.class,
+            PositionOf.class,
+            Property.class,
+            Query.class,
+            QueryLetRef.class,
+            Round.class,
+            Sort.class,
+            Split.class,
+            Substring.class,
+            TernaryExpression.class,
+            Time.class,
+            TimeOfDay.class,
+            Today.class,
+            Tuple.class,
+            UnaryExpression.class);
+
     /**
      * Visit an Expression. This method will be called for
      * every node in the tree that is an Expression.
@@ -123,50 +191,94 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
      * @return the visitor result
      */
     public T visitExpression(Expression elm, C context) {
-        if (elm instanceof AggregateExpression) return visitAggregateExpression((AggregateExpression)elm, context);
-        else if (elm instanceof AliasRef) return visitAliasRef((AliasRef)elm, context);
-        else if (elm instanceof BinaryExpression) return visitBinaryExpression((BinaryExpression)elm, context);
-        else if (elm instanceof Case) return visitCase((Case)elm, context);
-        else if (elm instanceof Combine) return visitCombine((Combine)elm, context);
-        else if (elm instanceof Current) return visitCurrent((Current)elm, context);
-        else if (elm instanceof DateTime) return visitDateTime((DateTime)elm, context);
-        else if (elm instanceof ExpressionRef) return visitExpressionRef((ExpressionRef)elm, context);
-        else if (elm instanceof Filter) return visitFilter((Filter)elm, context);
-        else if (elm instanceof First) return visitFirst((First)elm, context);
-        else if (elm instanceof ForEach) return visitForEach((ForEach)elm, context);
-        else if (elm instanceof FunctionRef) return visitFunctionRef((FunctionRef)elm, context);
-        else if (elm instanceof IdentifierRef) return visitIdentifierRef((IdentifierRef)elm, context);
-        else if (elm instanceof If) return visitIf((If)elm, context);
-        else if (elm instanceof IndexOf) return visitIndexOf((IndexOf)elm, context);
-        else if (elm instanceof Instance) return visitInstance((Instance)elm, context);
-        else if (elm instanceof Interval) return visitInterval((Interval)elm, context);
-        else if (elm instanceof Last) return visitLast((Last)elm, context);
-        else if (elm instanceof List) return visitList((List)elm, context);
-        else if (elm instanceof Literal) return visitLiteral((Literal)elm, context);
-        else if (elm instanceof MaxValue) return visitMaxValue((MaxValue)elm, context);
-        else if (elm instanceof MinValue) return visitMinValue((MinValue)elm, context);
-        else if (elm instanceof NaryExpression) return visitNaryExpression((NaryExpression)elm, context);
-        else if (elm instanceof Now) return visitNow((Now)elm, context);
-        else if (elm instanceof Null) return visitNull((Null)elm, context);
-        else if (elm instanceof OperandRef) return visitOperandRef((OperandRef)elm, context);
-        else if (elm instanceof ParameterRef) return visitParameterRef((ParameterRef)elm, context);
-        else if (elm instanceof PositionOf) return visitPositionOf((PositionOf)elm, context);
-        else if (elm instanceof Property) return visitProperty((Property)elm, context);
-        else if (elm instanceof Query) return visitQuery((Query)elm, context);
-        else if (elm instanceof QueryLetRef) return visitQueryLetRef((QueryLetRef)elm, context);
-        else if (elm instanceof Round) return visitRound((Round)elm, context);
-        else if (elm instanceof Sort) return visitSort((Sort)elm, context);
-        else if (elm instanceof Split) return visitSplit((Split)elm, context);
-        else if (elm instanceof Substring) return visitSubstring((Substring)elm, context);
-        else if (elm instanceof TernaryExpression) return visitTernaryExpression((TernaryExpression)elm, context);
-        else if (elm instanceof Time) return visitTime((Time)elm, context);
-        else if (elm instanceof TimeOfDay) return visitTimeOfDay((TimeOfDay)elm, context);
-        else if (elm instanceof Today) return visitToday((Today)elm, context);
-        else if (elm instanceof Tuple) return visitTuple((Tuple)elm, context);
-        else if (elm instanceof UnaryExpression) return visitUnaryExpression((UnaryExpression)elm, context);
-        else return null;
+        switch (expressionTypes.indexOf(elm)) {
+            case 0: return visitAggregateExpression((AggregateExpression)elm, context);
+            case 1: return visitAliasRef((AliasRef)elm, context);
+            case 2: return visitBinaryExpression((BinaryExpression)elm, context);
+            case 3: return visitCase((Case)elm, context);
+            case 4: return visitCombine((Combine)elm, context);
+            case 5: return visitCurrent((Current)elm, context);
+            case 6: return visitDateTime((DateTime)elm, context);
+            case 7: return visitExpressionRef((ExpressionRef)elm, context);
+            case 8: return visitFilter((Filter)elm, context);
+            case 9: return visitFirst((First)elm, context);
+            case 10: return visitForEach((ForEach)elm, context);
+            case 11: return visitFunctionRef((FunctionRef)elm, context);
+            case 12: return visitIdentifierRef((IdentifierRef)elm, context);
+            case 13: return visitIf((If)elm, context);
+            case 14: return visitIndexOf((IndexOf)elm, context);
+            case 15: return visitInstance((Instance)elm, context);
+            case 16: return visitInterval((Interval)elm, context);
+            case 17: return visitLast((Last)elm, context);
+            case 18: return visitList((List)elm, context);
+            case 19: return visitLiteral((Literal)elm, context);
+            case 20: return visitMaxValue((MaxValue)elm, context);
+            case 21: return visitMinValue((MinValue)elm, context);
+            case 22: return visitNaryExpression((NaryExpression)elm, context);
+            case 23: return visitNow((Now)elm, context);
+            case 24: return visitNull((Null)elm, context);
+            case 25: return visitOperandRef((OperandRef)elm, context);
+            case 26: return visitParameterRef((ParameterRef)elm, context);
+            case 27: return visitPositionOf((PositionOf)elm, context);
+            case 28: return visitProperty((Property)elm, context);
+            case 29: return visitQuery((Query)elm, context);
+            case 30: return visitQueryLetRef((QueryLetRef)elm, context);
+            case 31: return visitRound((Round)elm, context);
+            case 32: return visitSort((Sort)elm, context);
+            case 33: return visitSplit((Split)elm, context);
+            case 34: return visitSubstring((Substring)elm, context);
+            case 35: return visitTernaryExpression((TernaryExpression)elm, context);
+            case 36: return visitTime((Time)elm, context);
+            case 37: return visitTimeOfDay((TimeOfDay)elm, context);
+            case 38: return visitToday((Today)elm, context);
+            case 39: return visitTuple((Tuple)elm, context);
+            case 40: return visitUnaryExpression((UnaryExpression)elm, context);
+            default: return null;
+        }
     }
 
+    private static final DispatchTable unaryExpressionTypes = new DispatchTable(
+            Abs.class,
+            As.class,
+            Ceiling.class,
+            Collapse.class,
+            Convert.class,
+            DateFrom.class,
+            DateTimeComponentFrom.class,
+            Distinct.class,
+            End.class,
+            Exists.class,
+            Exp.class,
+            Flatten.class,
+            Floor.class,
+            Is.class,
+            IsFalse.class,
+            IsNull.class,
+            IsTrue.class,
+            Length.class,
+            Ln.class,
+            Lower.class,
+            Negate.class,
+            Not.class,
+            Predecessor.class,
+            SingletonFrom.class,
+            Start.class,
+            Successor.class,
+            TimeFrom.class,
+            TimezoneFrom.class,
+            ToBoolean.class,
+            ToConcept.class,
+            ToDateTime.class,
+            ToDecimal.class,
+            ToInteger.class,
+            ToList.class,
+            ToQuantity.class,
+            ToString.class,
+            ToTime.class,
+            Truncate.class,
+            Upper.class,
+            Width.class);
+
     /**
      * Visit a UnaryExpression. This method will be called for
      * every node in the tree that is a UnaryExpression.
@@ -176,48 +288,99 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
      * @return the visitor result
      */
     public T visitUnaryExpression(UnaryExpression elm, C context) {
-        if (elm instanceof Abs) return visitAbs((Abs)elm, context);
-        else if (elm instanceof As) return visitAs((As)elm, context);
-        else if (elm instanceof Ceiling) return visitCeiling((Ceiling)elm, context);
-        else if (elm instanceof Collapse) return visitCollapse((Collapse)elm, context);
-        else if (elm instanceof Convert) return visitConvert((Convert)elm, context);
-        else if (elm instanceof DateFrom) return visitDateFrom((DateFrom)elm, context);
-        else if (elm instanceof DateTimeComponentFrom) return visitDateTimeComponentFrom((DateTimeComponentFrom)elm, context);
-        else if (elm instanceof Distinct) return visitDistinct((Distinct)elm, context);
-        else if (elm instanceof End) return visitEnd((End)elm, context);
-        else if (elm instanceof Exists) return visitExists((Exists)elm, context);
-        else if (elm instanceof Exp) return visitExp((Exp)elm, context);
-        else if (elm instanceof Flatten) return visitFlatten((Flatten)elm, context);
-        else if (elm instanceof Floor) return visitFloor((Floor)elm, context);
-        else if (elm instanceof Is) return visitIs((Is)elm, context);
-        else if (elm instanceof IsFalse) return visitIsFalse((IsFalse)elm, context);
-        else if (elm instanceof IsNull) return visitIsNull((IsNull)elm, context);
-        else if (elm instanceof IsTrue) return visitIsTrue((IsTrue)elm, context);
-        else if (elm instanceof Length) return visitLength((Length)elm, context);
-        else if (elm instanceof Ln) return visitLn((Ln)elm, context);
-        else if (elm instanceof Lower) return visitLower((Lower)elm, context);
-        else if (elm instanceof Negate) return visitNegate((Negate)elm, context);
-        else if (elm instanceof Not) return visitNot((Not)elm, context);
-        else if (elm instanceof Predecessor) return visitPredecessor((Predecessor)elm, context);
-        else if (elm instanceof SingletonFrom) return visitSingletonFrom((SingletonFrom)elm, context);
-        else if (elm instanceof Start) return visitStart((Start)elm, context);
-        else if (elm instanceof Successor) return visitSuccessor((Successor)elm, context);
-        else if (elm instanceof TimeFrom) return visitTimeFrom((TimeFrom)elm, context);
-        else if (elm instanceof TimezoneFrom) return visitTimezoneFrom((TimezoneFrom)elm, context);
-        else if (elm instanceof ToBoolean) return visitToBoolean((ToBoolean)elm, context);
-        else if (elm instanceof ToConcept) return visitToConcept((ToConcept)elm, context);
-        else if (elm instanceof ToDateTime) return visitToDateTime((ToDateTime)elm, context);
-        else if (elm instanceof ToDecimal) return visitToDecimal((ToDecimal)elm, context);
-        else if (elm instanceof ToInteger) return visitToInteger((ToInteger)elm, context);
-        else if (elm instanceof ToQuantity) return visitToQuantity((ToQuantity)elm, context);
-        else if (elm instanceof ToString) return visitToString((ToString)elm, context);
-        else if (elm instanceof ToTime) return visitToTime((ToTime)elm, context);
-        else if (elm instanceof Truncate) return visitTruncate((Truncate)elm, context);
-        else if (elm instanceof Upper) return visitUpper((Upper)elm, context);
-        else if (elm instanceof Width) return visitWidth((Width)elm, context);
-        else return null;
+        switch (unaryExpressionTypes.indexOf(elm)) {
+            case 0: return visitAbs((Abs)elm, context);
+            case 1: return visitAs((As)elm, context);
+            case 2: return visitCeiling((Ceiling)elm, context);
+            case 3: return visitCollapse((Collapse)elm, context);
+            case 4: return visitConvert((Convert)elm, context);
+            case 5: return visitDateFrom((DateFrom)elm, context);
+            case 6: return visitDateTimeComponentFrom((DateTimeComponentFrom)elm, context);
+            case 7: return visitDistinct((Distinct)elm, context);
+            case 8: return visitEnd((End)elm, context);
+            case 9: return visitExists((Exists)elm, context);
+            case 10: return visitExp((Exp)elm, context);
+            case 11: return visitFlatten((Flatten)elm, context);
+            case 12: return visitFloor((Floor)elm, context);
+            case 13: return visitIs((Is)elm, context);
+            case 14: return visitIsFalse((IsFalse)elm, context);
+            case 15: return visitIsNull((IsNull)elm, context);
+            case 16: return visitIsTrue((IsTrue)elm, context);
+            case 17: return visitLength((Length)elm, context);
+            case 18: return visitLn((Ln)elm, context);
+            case 19: return visitLower((Lower)elm, context);
+            case 20: return visitNegate((Negate)elm, context);
+            case 21: return visitNot((Not)elm, context);
+            case 22: return visitPredecessor((Predecessor)elm, context);
+            case 23: return visitSingletonFrom((SingletonFrom)elm, context);
+            case 24: return visitStart((Start)elm, context);
+            case 25: return visitSuccessor((Successor)elm, context);
+            case 26: return visitTimeFrom((TimeFrom)elm, context);
+            case 27: return visitTimezoneFrom((TimezoneFrom)elm, context);
+            case 28: return visitToBoolean((ToBoolean)elm, context);
+            case 29: return visitToConcept((ToConcept)elm, context);
+            case 30: return visitToDateTime((ToDateTime)elm, context);
+            case 31: return visitToDecimal((ToDecimal)elm, context);
+            case 32: return visitToInteger((ToInteger)elm, context);
+            case 33: return visitToList((ToList)elm, context);
+            case 34: return visitToQuantity((ToQuantity)elm, context);
+            case 35: return visitToString((ToString)elm, context);
+            case 36: return visitToTime((ToTime)elm, context);
+            case 37: return visitTruncate((Truncate)elm, context);
+            case 38: return visitUpper((Upper)elm, context);
+            case 39: return visitWidth((Width)elm, context);
+            default: return null;
+        }
     }
 
+    private static final DispatchTable binaryExpressionTypes = new DispatchTable(
+            Add.class,
+            After.class,
+            And.class,
+            Before.class,
+            Contains.class,
+            DifferenceBetween.class,
+            Divide.class,
+            DurationBetween.class,
+            Ends.class,
+            Equal.class,
+            Equivalent.class,
+            Except.class,
+            Greater.class,
+            GreaterOrEqual.class,
+            In.class,
+            IncludedIn.class,
+            Includes.class,
+            Indexer.class,
+            Intersect.class,
+            Less.class,
+            LessOrEqual.class,
+            Log.class,
+            Meets.class,
+            MeetsAfter.class,
+            MeetsBefore.class,
+            Modulo.class,
+            Multiply.class,
+            NotEqual.class,
+            Or.class,
+            Overlaps.class,
+            OverlapsAfter.class,
+            OverlapsBefore.class,
+            Power.class,
+            ProperContains.class,
+            ProperIn.class,
+            ProperIncludedIn.class,
+            ProperIncludes.class,
+            SameAs.class,
+            SameOrAfter.class,
+            SameOrBefore.class,
+            Starts.class,
+            Subtract.class,
+            Times.class,
+            TruncatedDivide.class,
+            Union.class,
+            Xor.class);
+
     /**
      * Visit a BinaryExpression. This method will be called for
      * every node in the tree that is a BinaryExpression.
@@ -227,53 +390,55 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
      * @return the visitor result
      */
     public T visitBinaryExpression(BinaryExpression elm, C context) {
-        if (elm instanceof Add) return visitAdd((Add)elm, context);
-        else if (elm instanceof After) return visitAfter((After)elm, context);
-        else if (elm instanceof And) return visitAnd((And)elm, context);
-        else if (elm instanceof Before) return visitBefore((Before)elm, context);
-        else if (elm instanceof Contains) return visitContains((Contains)elm, context);
-        else if (elm instanceof DifferenceBetween) return visitDifferenceBetween((DifferenceBetween)elm, context);
-        else if (elm instanceof Divide) return visitDivide((Divide)elm, context);
-        else if (elm instanceof DurationBetween) return visitDurationBetween((DurationBetween)elm, context);
-        else if (elm instanceof Ends) return visitEnds((Ends)elm, context);
-        else if (elm instanceof Equal) return visitEqual((Equal)elm, context);
-        else if (elm instanceof Equivalent) return visitEquivalent((Equivalent)elm, context);
-        else if (elm instanceof Except) return visitExcept((Except)elm, context);
-        else if (elm instanceof Greater) return visitGreater((Greater)elm, context);
-        else if (elm instanceof GreaterOrEqual) return visitGreaterOrEqual((GreaterOrEqual)elm, context);
-        else if (elm instanceof In) return visitIn((In)elm, context);
-        else if (elm instanceof IncludedIn) return visitIncludedIn((IncludedIn)elm, context);
-        else if (elm instanceof Includes) return visitIncludes((Includes)elm, context);
-        else if (elm instanceof Indexer) return visitIndexer((Indexer)elm, context);
-        else if (elm instanceof Intersect) return visitIntersect((Intersect)elm, context);
-        else if (elm instanceof Less) return visitLess((Less)elm, context);
-        else if (elm instanceof LessOrEqual) return visitLessOrEqual((LessOrEqual)elm, context);
-        else if (elm instanceof Log) return visitLog((Log)elm, context);
-        else if (elm instanceof Meets) return visitMeets((Meets)elm, context);
-        else if (elm instanceof MeetsAfter) return visitMeetsAfter((MeetsAfter)elm, context);
-        else if (elm instanceof MeetsBefore) return visitMeetsBefore((MeetsBefore)elm, context);
-        else if (elm instanceof Modulo) return visitModulo((Modulo)elm, context);
-        else if (elm instanceof Multiply) return visitMultiply((Multiply)elm, context);
-        else if (elm instanceof NotEqual) return visitNotEqual((NotEqual)elm, context);
-        else if (elm instanceof Or) return visitOr((Or)elm, context);
-        else if (elm instanceof Overlaps) return visitOverlaps((Overlaps)elm, context);
-        else if (elm instanceof OverlapsAfter) return visitOverlapsAfter((OverlapsAfter)elm, context);
-        else if (elm instanceof OverlapsBefore) return visitOverlapsBefore((OverlapsBefore)elm, context);
-        else if (elm instanceof Power) return visitPower((Power)elm, context);
-        else if (elm instanceof ProperContains) return visitProperContains((ProperContains)elm, context);
-        else if (elm instanceof ProperIn) return visitProperIn((ProperIn)elm, context);
-        else if (elm instanceof ProperIncludedIn) return visitProperIncludedIn((ProperIncludedIn)elm, context);
-        else if (elm instanceof ProperIncludes) return visitProperIncludes((ProperIncludes)elm, context);
-        else if (elm instanceof SameAs) return visitSameAs((SameAs)elm, context);
-        else if (elm instanceof SameOrAfter) return visitSameOrAfter((SameOrAfter)elm, context);
-        else if (elm instanceof SameOrBefore) return visitSameOrBefore((SameOrBefore)elm, context);
-        else if (elm instanceof Starts) return visitStarts((Starts)elm, context);
-        else if (elm instanceof Subtract) return visitSubtract((Subtract)elm, context);
-        else if (elm instanceof Times) return visitTimes((Times)elm, context);
-        else if (elm instanceof TruncatedDivide) return visitTruncatedDivide((TruncatedDivide)elm, context);
-        else if (elm instanceof Union) return visitUnion((Union)elm, context);
-        else if (elm instanceof Xor) return visitXor((Xor)elm, context);
-        else return null;
+        switch (binaryExpressionTypes.indexOf(elm)) {
+            case 0: return visitAdd((Add)elm, context);
+            case 1: return visitAfter((After)elm, context);
+            case 2: return visitAnd((And)elm, context);
+            case 3: return visitBefore((Before)elm, context);
+            case 4: return visitContains((Contains)elm, context);
+            case 5: return visitDifferenceBetween((DifferenceBetween)elm, context);
+            case 6: return visitDivide((Divide)elm, context);
+            case 7: return visitDurationBetween((DurationBetween)elm, context);
+            case 8: return visitEnds((Ends)elm, context);
+            case 9: return visitEqual((Equal)elm, context);
+            case 10: return visitEquivalent((Equivalent)elm, context);
+            case 11: return visitExcept((Except)elm, context);
+            case 12: return visitGreater((Greater)elm, context);
+            case 13: return visitGreaterOrEqual((GreaterOrEqual)elm, context);
+            case 14: return visitIn((In)elm, context);
+            case 15: return visitIncludedIn((IncludedIn)elm, context);
+            case 16: return visitIncludes((Includes)elm, context);
+            case 17: return visitIndexer((Indexer)elm, context);
+            case 18: return visitIntersect((Intersect)elm, context);
+            case 19: return visitLess((Less)elm, context);
+            case 20: return visitLessOrEqual((LessOrEqual)elm, context);
+            case 21: return visitLog((Log)elm, context);
+            case 22: return visitMeets((Meets)elm, context);
+            case 23: return visitMeetsAfter((MeetsAfter)elm, context);
+            case 24: return visitMeetsBefore((MeetsBefore)elm, context);
+            case 25: return visitModulo((Modulo)elm, context);
+            case 26: return visitMultiply((Multiply)elm, context);
+            case 27: return visitNotEqual((NotEqual)elm, context);
+            case 28: return visitOr((Or)elm, context);
+            case 29: return visitOverlaps((Overlaps)elm, context);
+            case 30: return visitOverlapsAfter((OverlapsAfter)elm, context);
+            case 31: return visitOverlapsBefore((OverlapsBefore)elm, context);
+            case 32: return visitPower((Power)elm, context);
+            case 33: return visitProperContains((ProperContains)elm, context);
+            case 34: return visitProperIn((ProperIn)elm, context);
+            case 35: return visitProperIncludedIn((ProperIncludedIn)elm, context);
+            case 36: return visitProperIncludes((ProperIncludes)elm, context);
+            case 37: return visitSameAs((SameAs)elm, context);
+            case 38: return visitSameOrAfter((SameOrAfter)elm, context);
+            case 39: return visitSameOrBefore((SameOrBefore)elm, context);
+            case 40: return visitStarts((Starts)elm, context);
+            case 41: return visitSubtract((Subtract)elm, context);
+            case 42: return visitTimes((Times)elm, context);
+            case 43: return visitTruncatedDivide((TruncatedDivide)elm, context);
+            case 44: return visitUnion((Union)elm, context);
+            case 45: return visitXor((Xor)elm, context);
+            default: return null;
+        }
     }
 
     /**
@@ -291,6 +456,10 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
         return null;
     }
 
+    private static final DispatchTable naryExpressionTypes = new DispatchTable(
+            Coalesce.class,
+            Concatenate.class);
+
     /**
      * Visit a NaryExpression. This method will be called for
      * every node in the tree that is a NaryExpression.
@@ -300,9 +469,11 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
      * @return the visitor result
      */
     public T visitNaryExpression(NaryExpression elm, C context) {
-        if (elm instanceof Coalesce) return visitCoalesce((Coalesce)elm, context);
-        else if (elm instanceof Concatenate) return visitConcatenate((Concatenate)elm, context);
-        else return null;
+        switch (naryExpressionTypes.indexOf(elm)) {
+            case 0: return visitCoalesce((Coalesce)elm, context);
+            case 1: return visitConcatenate((Concatenate)elm, context);
+            default: return null;
+        }
     }
 
     /**
@@ -1862,6 +2033,18 @@ public class ElmBaseVisitor<T, C> implements ElmVisitor<T, C> {
         return null;
     }
 
+    /**
+     * Visit a ToList. This method will be called for
+     * every node in the tree that is a ToList.
+     *
+     * @param elm     the ELM tree
+     * @param context the context passed to the visitor
+     * @return the visitor result
+     */
+    public T visitToList(ToList elm, C context) {
+        return null;
+    }
+
     /**
      * Visit a AggregateExpression. This method will be called for
      * every node in the tree that is a AggregateExpression.
@@ -0,0 +1,224 @@
+package org.cqframework.cql.elm.visiting;
+
+import org.hl7.cql_annotations.r1.Annotation;
+import org.hl7.elm.r1.Element;
+import org.hl7.elm.r1.Library;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Generic access to the children of ELM nodes, for analyses that need to look at every node of an ELM tree regardless
+ * of its type. The children of a node are the values of the fields of its class (in the org.hl7.elm.r1 package), other
+ * than the annotations, locators and result types of Element, which don't contribute to the meaning of an expression.
+ */
+public final class ElmNodes {
+    private static final Map<Class<?>, List<Field>> fields = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, List<Field>> allFields = new ConcurrentHashMap<>();
+
+    private ElmNodes() {
+    }
+
+    public static boolean isElmClass(Class<?> c) {
+        return c != null && c.getPackage() == Library.class.getPackage();
+    }
+
+    /**
+     * Returns true if the given class is one of the classes generated from the ELM schema, including the classes of
+     * annotations (in the org.hl7.cql_annotations.r1 package).
+     */
+    public static boolean isNodeClass(Class<?> c) {
+        return isElmClass(c) || (c != null && c.getPackage() == Annotation.class.getPackage());
+    }
+
+    /**
+     * Returns the fields of the given ELM class, other than those of Element, sorted by name.
+     */
+    public static List<Field> getFields(Class<?> elmClass) {
+        List<Field> result = fields.get(elmClass);
+        if (result == null) {
+            result = new ArrayList<>();
+            if (isElmClass(elmClass)) {
+                for (Field field : getAllFields(elmClass)) {
+                    if (field.getDeclaringClass() != Element.class) {
+                        result.add(field);
+                    }
+                }
+            }
+            result.sort(Comparator.comparing(Field::getName));
+            fields.put(elmClass, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns all the fields of the given ELM or annotation class, including those of Element, with the fields of base
+     * classes first and sorted by name within each class, so the order doesn't depend on reflection. BinaryElm writes
+     * the fields of each node in this order.
+     */
+    public static List<Field> getAllFields(Class<?> nodeClass) {
+        List<Field> result = allFields.get(nodeClass);
+        if (result == null) {
+            Deque<Class<?>> hierarchy = new ArrayDeque<>();
+            for (Class<?> current = nodeClass; isNodeClass(current); current = current.getSuperclass()) {
+                hierarchy.push(current);
+            }
+
+            result = new ArrayList<>();
+            for (Class<?> current : hierarchy) {
+                Field[] declaredFields = current.getDeclaredFields();
+                Arrays.sort(declaredFields, Comparator.comparing(Field::getName));
+                for (Field field : declaredFields) {
+                    if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0 && !field.isSynthetic()) {
+                        field.setAccessible(true);
+                        result.add(field);
+                    }
+                }
+            }
+            result = Collections.unmodifiableList(result);
+            allFields.put(nodeClass, result);
+        }
+
+        return result;
+    }
+
+    public static Object getValue(Field field, Object node) {
+        try {
+            return field.get(node);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format("Could not read ELM field %s.", field.getName()), e);
+        }
+    }
+
+    public static void setValue(Field field, Object node, Object value) {
+        try {
+            field.set(node, value);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format("Could not write ELM field %s.", field.getName()), e);
+        }
+    }
+
+    /**
+     * Returns a deep copy of the given value, which may be an ELM node or a list of ELM nodes. Nodes that are shared
+     * within the value are shared in the copy too, and each copied node is mapped to its copy in copies, which should
+     * compare by identity. The fields of Element are copied as well: annotations, result type specifiers and result
+     * types are shared with the original, trackbacks are copied.
+     */
+    public static Object copy(Object value, Map<Object, Object> copies) {
+        if (value instanceof List) {
+            List<Object> result = new ArrayList<>();
+            for (Object element : (List<?>)value) {
+                result.add(copy(element, copies));
+            }
+            return result;
+        }
+
+        if (value == null || value instanceof Enum || !isElmClass(value.getClass())) {
+            return value;
+        }
+
+        Object result = copies.get(value);
+        if (result != null) {
+            return result;
+        }
+
+        try {
+            result = value.getClass().newInstance();
+        }
+        catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format("Could not copy ELM node %s.", value.getClass().getSimpleName()), e);
+        }
+        copies.put(value, result);
+
+        if (value instanceof Element) {
+            Element element = (Element)value;
+            Element copy = (Element)result;
+            copy.getAnnotation().addAll(element.getAnnotation());
+            copy.setResultTypeSpecifier(element.getResultTypeSpecifier());
+            copy.setLocalId(element.getLocalId());
+            copy.setLocator(element.getLocator());
+            copy.setResultTypeName(element.getResultTypeName());
+            copy.setResultType(element.getResultType());
+            copy.getTrackbacks().addAll(element.getTrackbacks());
+        }
+
+        for (Field field : getFields(value.getClass())) {
+            Object fieldValue = getValue(field, value);
+            if (fieldValue != null) {
+                setValue(field, result, copy(fieldValue, copies));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns true if the given value, or any node within it, satisfies the given predicate. The value may be an ELM
+     * node or a list of ELM nodes.
+     */
+    public static boolean anyMatch(Object value, Predicate<Object> predicate) {
+        if (value instanceof List) {
+            for (Object element : (List<?>)value) {
+                if (anyMatch(element, predicate)) {
+                    return true;
+                }
+            }
+        }
+        else if (value != null && isElmClass(value.getClass())) {
+            if (predicate.test(value)) {
+                return true;
+            }
+
+            for (Field field : getFields(value.getClass())) {
+                if (anyMatch(getValue(field, value), predicate)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the given nodes that still occur in the given value, in the order of the given list. The value may be
+     * an ELM node or a list of ELM nodes.
+     */
+    public static <T> List<T> retainContained(List<T> nodes, Object value) {
+        if (nodes.isEmpty()) {
+            return nodes;
+        }
+
+        Set<Object> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        candidates.addAll(nodes);
+        Set<Object> contained = Collections.newSetFromMap(new IdentityHashMap<>());
+        anyMatch(value, node -> {
+            if (candidates.contains(node)) {
+                contained.add(node);
+            }
+            return false;
+        });
+
+        List<T> result = new ArrayList<>();
+        for (T node : nodes) {
+            if (contained.contains(node)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+}
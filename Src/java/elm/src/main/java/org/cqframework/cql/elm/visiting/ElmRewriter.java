@@ -0,0 +1,141 @@
+package org.cqframework.cql.elm.visiting;
+
+import org.hl7.elm.r1.*;
+
+import java.lang.reflect.Field;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Rewrites an ELM tree bottom up. The children of each node are rewritten first, then each expression is visited,
+ * and the expression returned by the visit method, if it is not null, replaces the expression in the tree. A
+ * subclass overrides the visit methods of the expressions it rewrites, all the other visit methods return null so
+ * that the expression is kept.
+ *
+ * Subtrees that are shared by several parents are rewritten once, and the rewritten subtree stays shared.
+ *
+ * @param <C> The type of context passed to each visit method
+ */
+public class ElmRewriter<C> extends ElmBaseClinicalVisitor<Expression, C> {
+    private Map<Object, Object> rewritten;
+
+    /**
+     * Rewrites all the expressions of the given library, in place.
+     */
+    public Library rewrite(Library library, C context) {
+        return (Library)rewriteNode(library, context);
+    }
+
+    /**
+     * Rewrites the given expression, returning the expression that replaces it (which is the expression itself, with
+     * its children rewritten in place, unless it was rewritten).
+     */
+    public Expression rewrite(Expression expression, C context) {
+        return (Expression)rewriteNode(expression, context);
+    }
+
+    private Object rewriteNode(Object node, C context) {
+        boolean outermost = rewritten == null;
+        if (outermost) {
+            rewritten = new IdentityHashMap<>();
+        }
+
+        try {
+            return rewriteValue(node, context);
+        }
+        finally {
+            if (outermost) {
+                rewritten = null;
+            }
+        }
+    }
+
+    private Object rewriteValue(Object value, C context) {
+        if (value instanceof java.util.List) {
+            @SuppressWarnings("unchecked")
+            java.util.List<Object> list = (java.util.List<Object>)value;
+            for (int i = 0; i < list.size(); i++) {
+                Object element = list.get(i);
+                Object result = rewriteValue(element, context);
+                if (result != element) {
+                    list.set(i, result);
+                }
+            }
+            return value;
+        }
+
+        if (value == null || !ElmNodes.isElmClass(value.getClass())) {
+            return value;
+        }
+
+        Object result = rewritten.get(value);
+        if (result == null) {
+            for (Field field : ElmNodes.getFields(value.getClass())) {
+                Object child = ElmNodes.getValue(field, value);
+                if (child != null) {
+                    Object childResult = rewriteValue(child, context);
+                    if (childResult != child) {
+                        ElmNodes.setValue(field, value, childResult);
+                    }
+                }
+            }
+
+            result = value;
+            if (value instanceof Expression) {
+                Expression replacement = visitExpression((Expression)value, context);
+                if (replacement != null) {
+                    result = replacement;
+                }
+            }
+            rewritten.put(value, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Gives an expression created to replace the given expression the result type and source information of the
+     * expression it replaces.
+     */
+    protected <E extends Expression> E replaces(Expression original, E replacement) {
+        replacement.setResultType(original.getResultType());
+        replacement.setResultTypeName(original.getResultTypeName());
+        replacement.setResultTypeSpecifier(original.getResultTypeSpecifier());
+        replacement.setLocalId(original.getLocalId());
+        replacement.setLocator(original.getLocator());
+        replacement.getTrackbacks().addAll(original.getTrackbacks());
+        return replacement;
+    }
+
+    // The children of an expression have already been rewritten when it is visited, so these don't visit them again
+
+    @Override
+    public Expression visitFunctionRef(FunctionRef elm, C context) {
+        return null;
+    }
+
+    @Override
+    public Expression visitTernaryExpression(TernaryExpression elm, C context) {
+        return null;
+    }
+
+    @Override
+    public Expression visitTuple(Tuple elm, C context) {
+        return null;
+    }
+
+    @Override
+    public Expression visitInstance(Instance elm, C context) {
+        return null;
+    }
+
+    @Override
+    public Expression visitInterval(Interval elm, C context) {
+        return null;
+    }
+
+    @Override
+    public Expression visitList(List elm, C context) {
+        return null;
+    }
+}
@@ -1390,6 +1390,16 @@ public interface ElmVisitor<T, C> {
      */
     T visitSingletonFrom(SingletonFrom elm, C context);
 
+    /**
+     * Visit a ToList. This method will be called for
+     * every node in the tree that is a ToList.
+     *
+     * @param elm the ELM tree
+     * @param context the context passed to the visitor
+     * @return the visitor result
+     */
+    T visitToList(ToList elm, C context);
+
     /**
      * Visit a AggregateExpression. This method will be called for
      * every node in the tree that is a AggregateExpression.
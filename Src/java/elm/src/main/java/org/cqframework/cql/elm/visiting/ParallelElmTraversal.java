@@ -0,0 +1,153 @@
+package org.cqframework.cql.elm.visiting;
+
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.FunctionDef;
+import org.hl7.elm.r1.Library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Visits the statements of ELM libraries in parallel on a ForkJoinPool, for whole-library analyses such as retrieve
+ * extraction or validation where each statement can be analyzed independently.
+ *
+ * The statements are split in halves until each task has at most the given number of statements (one by default).
+ * Each task visits its statements with a context of its own, so the visitor itself must not keep state between visits,
+ * and the results of the visits are merged with the given function. Results are merged in statement order (null
+ * results are skipped), so the merge has to be associative but need not be commutative.
+ *
+ * @param <T> The return type of the visit operation
+ * @param <C> The type of context passed to each visit method
+ */
+public class ParallelElmTraversal<T, C> {
+    private final ElmVisitor<T, C> visitor;
+    private final Supplier<C> contextFactory;
+    private final BinaryOperator<T> merge;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int threshold = 1;
+
+    public ParallelElmTraversal(ElmVisitor<T, C> visitor, Supplier<C> contextFactory, BinaryOperator<T> merge) {
+        if (visitor == null || contextFactory == null || merge == null) {
+            throw new IllegalArgumentException("A visitor, context factory and merge function are required.");
+        }
+
+        this.visitor = visitor;
+        this.contextFactory = contextFactory;
+        this.merge = merge;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public ParallelElmTraversal<T, C> withPool(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("A pool is required.");
+        }
+
+        this.pool = pool;
+        return this;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the number of statements below which a task visits its statements rather than splitting them further.
+     */
+    public ParallelElmTraversal<T, C> withThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException(String.format("Invalid threshold %d, the threshold must be at least 1.",
+                    threshold));
+        }
+
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Visits the statements of the given library and returns their merged result, or null if there are no results.
+     */
+    public T visitStatements(Library library) {
+        return visitStatements(Collections.singletonList(library));
+    }
+
+    /**
+     * Visits the statements of all the given libraries as one set of tasks, so a bundle of libraries is spread over the
+     * pool as a whole rather than library by library.
+     */
+    public T visitStatements(Collection<Library> libraries) {
+        List<ExpressionDef> statements = new ArrayList<>();
+        for (Library library : libraries) {
+            if (library.getStatements() != null) {
+                statements.addAll(library.getStatements().getDef());
+            }
+        }
+
+        return visitDefs(statements);
+    }
+
+    /**
+     * Visits each of the given definitions with visitExpressionDef, or visitFunctionDef for a function, and returns their
+     * merged result, or null if there are no results.
+     */
+    public T visitDefs(List<? extends ExpressionDef> defs) {
+        if (defs.isEmpty()) {
+            return null;
+        }
+
+        return pool.invoke(new VisitTask(defs, 0, defs.size()));
+    }
+
+    private T visitDef(ExpressionDef def, C context) {
+        return def instanceof FunctionDef
+                ? visitor.visitFunctionDef((FunctionDef)def, context)
+                : visitor.visitExpressionDef(def, context);
+    }
+
+    private T mergeResults(T left, T right) {
+        if (left == null) {
+            return right;
+        }
+
+        return right == null ? left : merge.apply(left, right);
+    }
+
+    private class VisitTask extends RecursiveTask<T> {
+        private final List<? extends ExpressionDef> defs;
+        private final int from;
+        private final int to;
+
+        VisitTask(List<? extends ExpressionDef> defs, int from, int to) {
+            this.defs = defs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= threshold) {
+                C context = contextFactory.get();
+                T result = null;
+                for (int i = from; i < to; i++) {
+                    result = mergeResults(result, visitDef(defs.get(i), context));
+                }
+                return result;
+            }
+
+            int middle = (from + to) >>> 1;
+            VisitTask left = new VisitTask(defs, from, middle);
+            VisitTask right = new VisitTask(defs, middle, to);
+            left.fork();
+            T rightResult = right.compute();
+            return mergeResults(left.join(), rightResult);
+        }
+    }
+}
@@ -16,6 +16,15 @@ public class ChoiceType extends DataType {
         }
     }
 
+    /**
+     * Returns the shared choice type for the given types, use this rather than the constructor for types that
+     * are created repeatedly during translation.
+     */
+    public static ChoiceType of(Iterable<DataType> types) {
+        ChoiceType choiceType = new ChoiceType(types);
+        return TypeInterner.intern(TypeInterner.key(ChoiceType.class, choiceType.types.toArray()), () -> choiceType);
+    }
+
     private ArrayList<DataType> types = new ArrayList<>();
     public Iterable<DataType> getTypes() {
         return types;
@@ -33,11 +42,18 @@ public class ChoiceType extends DataType {
         }
     }
 
+    // Choice types are immutable once constructed, so the hash code is computed once (racy but idempotent)
+    private int hashCode;
+
     @Override
     public int hashCode() {
-        int result = 13;
-        for (int i = 0; i < types.size(); i++) {
-            result += (37 * types.get(i).hashCode());
+        int result = hashCode;
+        if (result == 0) {
+            result = 13;
+            for (int i = 0; i < types.size(); i++) {
+                result += (37 * types.get(i).hashCode());
+            }
+            hashCode = result;
         }
 
         return result;
@@ -46,9 +62,13 @@ public class ChoiceType extends DataType {
     @Override
     public boolean equals(Object o) {
         if (o instanceof ChoiceType) {
+            if (this == o) {
+                return true;
+            }
+
             ChoiceType that = (ChoiceType)o;
 
-            if (this.types.size() == that.types.size()) {
+            if (this.types.size() == that.types.size() && this.hashCode() == that.hashCode()) {
                 List<DataType> theseTypes = this.types;
                 List<DataType> thoseTypes = that.types;
                 for (int i = 0; i < theseTypes.size(); i++) {
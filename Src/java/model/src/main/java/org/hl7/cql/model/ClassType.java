@@ -1,5 +1,6 @@
 package org.hl7.cql.model;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 public class ClassType extends DataType implements NamedType {
@@ -78,22 +79,25 @@ public class ClassType extends DataType implements NamedType {
     public void setPrimaryCodePath(String primaryCodePath) { this.primaryCodePath = primaryCodePath; }
 
     private List<ClassTypeElement> elements = new ArrayList<ClassTypeElement>();
-    private List<ClassTypeElement> sortedElements = null;
-    private LinkedHashMap<String, ClassTypeElement> baseElementMap = null;
+    private volatile List<ClassTypeElement> sortedElements = null;
+    private volatile LinkedHashMap<String, ClassTypeElement> baseElementMap = null;
 
     public List<ClassTypeElement> getElements() {
         return elements;
     }
 
     private LinkedHashMap<String, ClassTypeElement> getBaseElementMap() {
-        if (baseElementMap == null) {
-            baseElementMap = new LinkedHashMap<>();
+        // Build the map fully before publishing it, instances may be shared across threads
+        LinkedHashMap<String, ClassTypeElement> result = baseElementMap;
+        if (result == null) {
+            result = new LinkedHashMap<>();
             if (getBaseType() instanceof ClassType) {
-                ((ClassType)getBaseType()).gatherElements(baseElementMap);
+                ((ClassType)getBaseType()).gatherElements(result);
             }
+            baseElementMap = result;
         }
 
-        return baseElementMap;
+        return result;
     }
 
     private void gatherElements(LinkedHashMap<String, ClassTypeElement> elementMap) {
@@ -118,6 +122,87 @@ public class ClassType extends DataType implements NamedType {
         return new ArrayList<>(elementMap.values());
     }
 
+    private volatile ElementIndex elementIndex = null;
+    private volatile int elementIndexInvalidations = 0;
+    // The types, this one and types derived from it, whose element index includes the elements of this type
+    private final List<WeakReference<ClassType>> indexingTypes = new ArrayList<>();
+
+    private static class ElementIndex {
+        private final Map<String, ClassTypeElement> elements;
+
+        ElementIndex(Map<String, ClassTypeElement> elements) {
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * Returns the element with the given name, either declared by this type or inherited from a base type, or null
+     * if there is no such element. Elements redeclared by this type take precedence over inherited ones.
+     *
+     * The lookup uses an index by name that is built on first use. Adding elements to this type or any of its base
+     * types discards the index, and it is built again by the next lookup.
+     */
+    public ClassTypeElement findElement(String name) {
+        ElementIndex result = elementIndex;
+        if (result == null) {
+            result = buildElementIndex();
+        }
+
+        return result.elements.get(name);
+    }
+
+    private synchronized ElementIndex buildElementIndex() {
+        int invalidations = elementIndexInvalidations;
+        Map<String, ClassTypeElement> elements = new HashMap<>();
+        for (DataType currentType = this; currentType instanceof ClassType; currentType = currentType.getBaseType()) {
+            ClassType classType = (ClassType)currentType;
+            classType.addIndexingType(this);
+            for (ClassTypeElement element : classType.elements) {
+                elements.putIfAbsent(element.getName(), element);
+            }
+        }
+
+        ElementIndex result = new ElementIndex(elements);
+        // Only keep the index if no elements were added to the chain while it was being built
+        if (elementIndexInvalidations == invalidations) {
+            elementIndex = result;
+        }
+
+        return result;
+    }
+
+    private void addIndexingType(ClassType type) {
+        synchronized (indexingTypes) {
+            Iterator<WeakReference<ClassType>> i = indexingTypes.iterator();
+            while (i.hasNext()) {
+                ClassType indexingType = i.next().get();
+                if (indexingType == type) {
+                    return;
+                }
+                if (indexingType == null) {
+                    i.remove();
+                }
+            }
+            indexingTypes.add(new WeakReference<>(type));
+        }
+    }
+
+    private void invalidateElementIndexes() {
+        List<WeakReference<ClassType>> types;
+        synchronized (indexingTypes) {
+            types = new ArrayList<>(indexingTypes);
+            indexingTypes.clear();
+        }
+
+        for (WeakReference<ClassType> reference : types) {
+            ClassType type = reference.get();
+            if (type != null) {
+                type.elementIndexInvalidations++;
+                type.elementIndex = null;
+            }
+        }
+    }
+
     private void internalAddElement(ClassTypeElement element) {
         ClassTypeElement existingElement = getBaseElementMap().get(element.getName());
         if (
@@ -143,6 +228,7 @@ public class ClassType extends DataType implements NamedType {
         internalAddElement(element);
         sortedElements = null;
         tupleType = null;
+        invalidateElementIndexes();
     }
 
     public void addElements(Collection<ClassTypeElement> elements) {
@@ -152,15 +238,18 @@ public class ClassType extends DataType implements NamedType {
 
         sortedElements = null;
         tupleType = null;
+        invalidateElementIndexes();
     }
 
     private List<ClassTypeElement> getSortedElements() {
-        if (sortedElements == null) {
-            sortedElements = new ArrayList<>(elements);
-            Collections.sort(sortedElements, (left, right) -> left.getName().compareTo(right.getName()));
+        List<ClassTypeElement> result = sortedElements;
+        if (result == null) {
+            result = new ArrayList<>(elements);
+            Collections.sort(result, (left, right) -> left.getName().compareTo(right.getName()));
+            sortedElements = result;
         }
 
-        return sortedElements;
+        return result;
     }
 
     @Override
@@ -188,13 +277,15 @@ public class ClassType extends DataType implements NamedType {
         return this.label == null ? this.name : this.label;
     }
 
-    private TupleType tupleType;
+    private volatile TupleType tupleType;
     public TupleType getTupleType() {
-        if (tupleType == null) {
-            tupleType = buildTupleType();
+        TupleType result = tupleType;
+        if (result == null) {
+            result = buildTupleType();
+            tupleType = result;
         }
 
-        return tupleType;
+        return result;
     }
 
     private void addTupleElements(ClassType classType, LinkedHashMap<String, TupleTypeElement> elements) {
@@ -13,6 +13,16 @@ public abstract class DataType {
         return baseType;
     }
 
+    // Set when the type is obtained from one of the interning factories, see TypeInterner
+    private Object internKey;
+    void setInternKey(Object internKey) {
+        this.internKey = internKey;
+    }
+
+    public boolean isInterned() {
+        return internKey != null;
+    }
+
     public String toLabel() {
         return toString();
     }
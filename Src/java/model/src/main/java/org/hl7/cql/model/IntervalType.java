@@ -13,6 +13,18 @@ public class IntervalType extends DataType {
         this.pointType = pointType;
     }
 
+    /**
+     * Returns the shared interval type for the given point type, use this rather than the constructor for types that
+     * are created repeatedly during translation.
+     */
+    public static IntervalType of(DataType pointType) {
+        if (pointType == null) {
+            throw new IllegalArgumentException("pointType");
+        }
+
+        return TypeInterner.intern(TypeInterner.key(IntervalType.class, pointType), () -> new IntervalType(pointType));
+    }
+
     public DataType getPointType() {
         return this.pointType;
     }
@@ -25,6 +37,10 @@ public class IntervalType extends DataType {
     @Override
     public boolean equals(Object o) {
         if (o instanceof IntervalType) {
+            if (this == o) {
+                return true;
+            }
+
             IntervalType that = (IntervalType)o;
             return this.pointType.equals(that.pointType);
         }
@@ -95,6 +111,6 @@ public class IntervalType extends DataType {
 
     @Override
     public DataType instantiate(InstantiationContext context) {
-        return new IntervalType(pointType.instantiate(context));
+        return IntervalType.of(pointType.instantiate(context));
     }
 }
@@ -13,6 +13,18 @@ public class ListType extends DataType {
         this.elementType = elementType;
     }
 
+    /**
+     * Returns the shared list type for the given element type, use this rather than the constructor for types that
+     * are created repeatedly during translation.
+     */
+    public static ListType of(DataType elementType) {
+        if (elementType == null) {
+            throw new IllegalArgumentException("elementType");
+        }
+
+        return TypeInterner.intern(TypeInterner.key(ListType.class, elementType), () -> new ListType(elementType));
+    }
+
     public DataType getElementType() {
         return this.elementType;
     }
@@ -25,6 +37,10 @@ public class ListType extends DataType {
     @Override
     public boolean equals(Object o) {
         if (o instanceof ListType) {
+            if (this == o) {
+                return true;
+            }
+
             ListType that = (ListType)o;
             return this.elementType.equals(that.elementType);
         }
@@ -95,6 +111,6 @@ public class ListType extends DataType {
 
     @Override
     public DataType instantiate(InstantiationContext context) {
-        return new ListType(elementType.instantiate(context));
+        return ListType.of(elementType.instantiate(context));
     }
 }
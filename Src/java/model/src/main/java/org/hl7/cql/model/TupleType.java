@@ -4,7 +4,8 @@ import java.util.*;
 
 public class TupleType extends DataType {
     private List<TupleTypeElement> elements = new ArrayList<TupleTypeElement>();
-    private List<TupleTypeElement> sortedElements = null;
+    private volatile List<TupleTypeElement> sortedElements = null;
+    private volatile Map<String, TupleTypeElement> elementIndex = null;
 
     public TupleType(Collection<TupleTypeElement> elements) {
         super();
@@ -18,35 +19,90 @@ public class TupleType extends DataType {
         this(null);
     }
 
+    /**
+     * Returns the shared tuple type for the given elements, use this rather than the constructor for types that
+     * are created repeatedly during translation. The resulting type cannot be modified.
+     */
+    public static TupleType of(Collection<TupleTypeElement> elements) {
+        TupleType tupleType = new TupleType(elements);
+        Object[] components = new Object[tupleType.elements.size() * 3];
+        for (int i = 0; i < tupleType.elements.size(); i++) {
+            TupleTypeElement element = tupleType.elements.get(i);
+            components[i * 3] = element.getName();
+            components[i * 3 + 1] = element.getType();
+            components[i * 3 + 2] = element.isOneBased();
+        }
+
+        return TypeInterner.intern(TypeInterner.key(TupleType.class, components), () -> tupleType);
+    }
+
     public Iterable<TupleTypeElement> getElements() {
         return elements;
     }
 
+    /**
+     * Returns the element with the given name, or null if there is no such element.
+     */
+    public TupleTypeElement findElement(String name) {
+        Map<String, TupleTypeElement> result = elementIndex;
+        if (result == null) {
+            result = new HashMap<>();
+            for (TupleTypeElement element : elements) {
+                result.putIfAbsent(element.getName(), element);
+            }
+            elementIndex = result;
+        }
+
+        return result.get(name);
+    }
+
     public void addElement(TupleTypeElement element)
     {
+        checkInterned();
         this.elements.add(element);
         sortedElements = null;
+        elementIndex = null;
+        hashCode = 0;
     }
 
     public void addElements(Collection<TupleTypeElement> elements) {
+        checkInterned();
         this.elements.addAll(elements);
         sortedElements = null;
+        elementIndex = null;
+        hashCode = 0;
+    }
+
+    private void checkInterned() {
+        if (isInterned()) {
+            throw new IllegalArgumentException(String.format("Tuple type %s is shared and cannot be modified.", toString()));
+        }
     }
 
     private List<TupleTypeElement> getSortedElements() {
-        if (sortedElements == null) {
-            sortedElements = new ArrayList<>(elements);
-            Collections.sort(sortedElements, (left, right) -> left.getName().compareTo(right.getName()));
+        // Build the list fully before publishing it, instances may be shared across threads
+        List<TupleTypeElement> result = sortedElements;
+        if (result == null) {
+            result = new ArrayList<>(elements);
+            Collections.sort(result, (left, right) -> left.getName().compareTo(right.getName()));
+            sortedElements = result;
         }
 
-        return sortedElements;
+        return result;
     }
 
+    // Computed on first use and reset when elements are added (racy but idempotent)
+    private int hashCode;
+
     @Override
     public int hashCode() {
-        int result = 13;
-        for (int i = 0; i < elements.size(); i++) {
-            result += (37 * elements.get(i).hashCode());
+        int result = hashCode;
+        if (result == 0) {
+            result = 13;
+            for (int i = 0; i < elements.size(); i++) {
+                result += (37 * elements.get(i).hashCode());
+            }
+            hashCode = result;
         }
 
         return result;
@@ -55,9 +111,13 @@ public class TupleType extends DataType {
     @Override
     public boolean equals(Object o) {
         if (o instanceof TupleType) {
+            if (this == o) {
+                return true;
+            }
+
             TupleType that = (TupleType)o;
 
-            if (this.elements.size() == that.elements.size()) {
+            if (this.elements.size() == that.elements.size() && this.hashCode() == that.hashCode()) {
                 List<TupleTypeElement> theseElements = this.getSortedElements();
                 List<TupleTypeElement> thoseElements = that.getSortedElements();
                 for (int i = 0; i < theseElements.size(); i++) {
@@ -190,11 +250,11 @@ public class TupleType extends DataType {
             return this;
         }
 
-        TupleType result = new TupleType();
+        List<TupleTypeElement> result = new ArrayList<>(elements.size());
         for (int i = 0; i < elements.size(); i++) {
-            result.addElement(new TupleTypeElement(elements.get(i).getName(), elements.get(i).getType().instantiate(context)));
+            result.add(new TupleTypeElement(elements.get(i).getName(), elements.get(i).getType().instantiate(context)));
         }
 
-        return result;
+        return TupleType.of(result);
     }
 }
@@ -0,0 +1,120 @@
+package org.hl7.cql.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Hash-conses the structural types (list, interval, choice and tuple types) created through their static factory
+ * methods, so that requesting a structurally identical type returns the same instance.
+ *
+ * Types are keyed on the identity of their component types rather than on their equality, since named types compare
+ * by name and the same name may refer to different types in different model versions. Because the components of an
+ * interned type are themselves usually interned, this is equivalent to structural interning in practice.
+ *
+ * Entries are weakly held, an interned type is discarded as soon as it is no longer referenced, and its entry is
+ * removed by the next call to intern. Interning does not lock: concurrent requests for a type that is not interned yet
+ * may each create it, but only the first one to be published is returned to any of them.
+ */
+final class TypeInterner {
+    private static final ConcurrentMap<Key, TypeReference> types = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<DataType> collected = new ReferenceQueue<>();
+
+    private TypeInterner() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends DataType> T intern(Key key, Supplier<T> factory) {
+        removeCollected();
+
+        TypeReference reference = types.get(key);
+        DataType result = reference != null ? reference.get() : null;
+        while (result == null) {
+            DataType created = factory.get();
+            created.setInternKey(key);
+            TypeReference createdReference = new TypeReference(key, created, collected);
+            boolean published = reference == null
+                    ? types.putIfAbsent(key, createdReference) == null
+                    : types.replace(key, reference, createdReference);
+            if (published) {
+                result = created;
+            }
+            else {
+                created.setInternKey(null);
+                reference = types.get(key);
+                result = reference != null ? reference.get() : null;
+            }
+        }
+
+        return (T)result;
+    }
+
+    private static void removeCollected() {
+        TypeReference reference;
+        while ((reference = (TypeReference)collected.poll()) != null) {
+            types.remove(reference.key, reference);
+        }
+    }
+
+    static Key key(Class<? extends DataType> kind, Object... components) {
+        return new Key(kind, components);
+    }
+
+    static final class Key {
+        private final Class<? extends DataType> kind;
+        private final Object[] components;
+        private final int hashCode;
+
+        private Key(Class<? extends DataType> kind, Object[] components) {
+            this.kind = kind;
+            this.components = components;
+            int result = kind.hashCode();
+            for (Object component : components) {
+                result = 31 * result + (component instanceof DataType
+                        ? System.identityHashCode(component) : Objects.hashCode(component));
+            }
+            this.hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key that = (Key)o;
+                if (this.kind != that.kind || this.components.length != that.components.length) {
+                    return false;
+                }
+
+                for (int i = 0; i < components.length; i++) {
+                    Object thisComponent = this.components[i];
+                    Object thatComponent = that.components[i];
+                    if (thisComponent instanceof DataType || thatComponent instanceof DataType
+                            ? thisComponent != thatComponent
+                            : !Objects.equals(thisComponent, thatComponent)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static final class TypeReference extends WeakReference<DataType> {
+        private final Key key;
+
+        TypeReference(Key key, DataType type, ReferenceQueue<DataType> queue) {
+            super(type, queue);
+            this.key = key;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.cqframework.cql.tools.parsetree;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.cqframework.cql.TwoStageParser;
 import org.cqframework.cql.gen.cqlLexer;
 import org.cqframework.cql.gen.cqlParser;
 
@@ -29,7 +30,7 @@ public class Main {
         tokens.fill();
         cqlParser parser = new cqlParser(tokens);
         parser.setBuildParseTree(true);
-        ParserRuleContext tree = parser.library();
+        ParserRuleContext tree = TwoStageParser.parseLibrary(parser);
         tree.inspect(parser);
     }
 }